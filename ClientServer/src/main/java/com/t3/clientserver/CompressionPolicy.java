@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.clientserver;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * Decides per message how the serialized payload is compressed before it goes over the wire.
+ * Tiny messages are not worth the zlib header, already compressed data (images) is not worth
+ * the CPU, and very large messages use the fastest deflate level.
+ */
+public class CompressionPolicy {
+
+	/**
+	 * The codec of a message. Its flag is the first byte of every serialized message.
+	 */
+	public static enum Codec {
+		NONE(0, 0),
+		DEFLATE(1, Deflater.DEFAULT_COMPRESSION),
+		DEFLATE_FAST(2, Deflater.BEST_SPEED);
+
+		private final byte flag;
+		private final int level;
+
+		private Codec(int flag, int level) {
+			this.flag = (byte) flag;
+			this.level = level;
+		}
+
+		public byte getFlag() {
+			return flag;
+		}
+
+		public int getLevel() {
+			return level;
+		}
+
+		public static Codec fromFlag(byte flag) {
+			for (Codec codec : values()) {
+				if (codec.flag == flag) {
+					return codec;
+				}
+			}
+			throw new IllegalArgumentException("Unknown codec flag " + flag);
+		}
+	}
+
+	public static final int DEFAULT_MIN_SIZE = 128;
+	public static final int DEFAULT_FAST_SIZE = 256 * 1024;
+
+	private final Set<Enum<? extends Command>> uncompressed = Collections.newSetFromMap(new ConcurrentHashMap<Enum<? extends Command>, Boolean>());
+	private volatile int minSize = DEFAULT_MIN_SIZE;
+	private volatile int fastSize = DEFAULT_FAST_SIZE;
+
+	/**
+	 * @param minSize serialized messages smaller than this are sent as they are
+	 */
+	public void setMinSize(int minSize) {
+		this.minSize = minSize;
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	/**
+	 * @param fastSize serialized messages of at least this size are compressed with {@link Codec#DEFLATE_FAST}
+	 */
+	public void setFastSize(int fastSize) {
+		this.fastSize = fastSize;
+	}
+
+	public int getFastSize() {
+		return fastSize;
+	}
+
+	/**
+	 * Marks commands whose payload is already compressed, like image data, so that they are
+	 * never deflated again.
+	 */
+	@SafeVarargs
+	public final void setUncompressed(Enum<? extends Command>... methods) {
+		for (Enum<? extends Command> method : methods) {
+			uncompressed.add(method);
+		}
+	}
+
+	public Codec choose(Enum<? extends Command> method, int size) {
+		if (size < minSize || uncompressed.contains(method)) {
+			return Codec.NONE;
+		}
+		return size >= fastSize ? Codec.DEFLATE_FAST : Codec.DEFLATE;
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.clientserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects, per command, how many bytes the {@link NetworkSerializer} produced before and after
+ * compression and how much time it spent compressing and decompressing.
+ */
+public class CompressionStatistics {
+
+	private final ConcurrentMap<Enum<? extends Command>, Entry> entries = new ConcurrentHashMap<Enum<? extends Command>, Entry>();
+
+	public Entry get(Enum<? extends Command> method) {
+		Entry entry = entries.get(method);
+		if (entry == null) {
+			entry = new Entry(method);
+			Entry old = entries.putIfAbsent(method, entry);
+			if (old != null) {
+				entry = old;
+			}
+		}
+		return entry;
+	}
+
+	void recordSerialized(Enum<? extends Command> method, int rawSize, int wireSize, long nanos) {
+		Entry entry = get(method);
+		entry.messages.incrementAndGet();
+		entry.rawBytes.addAndGet(rawSize);
+		entry.wireBytes.addAndGet(wireSize);
+		entry.compressNanos.addAndGet(nanos);
+	}
+
+	void recordDeserialized(Enum<? extends Command> method, long nanos) {
+		get(method).decompressNanos.addAndGet(nanos);
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	@Override
+	public String toString() {
+		List<Entry> list = new ArrayList<Entry>(entries.values());
+		Collections.sort(list, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry o1, Entry o2) {
+				return o1.method.name().compareTo(o2.method.name());
+			}
+		});
+
+		StringBuilder builder = new StringBuilder("Network compression:\n");
+		for (Entry entry : list) {
+			builder.append("\t").append(entry).append("\n");
+		}
+		return builder.toString();
+	}
+
+	public static class Entry {
+		private final Enum<? extends Command> method;
+		private final AtomicLong messages = new AtomicLong();
+		private final AtomicLong rawBytes = new AtomicLong();
+		private final AtomicLong wireBytes = new AtomicLong();
+		private final AtomicLong compressNanos = new AtomicLong();
+		private final AtomicLong decompressNanos = new AtomicLong();
+
+		private Entry(Enum<? extends Command> method) {
+			this.method = method;
+		}
+
+		public long getMessages() {
+			return messages.get();
+		}
+
+		public long getRawBytes() {
+			return rawBytes.get();
+		}
+
+		public long getWireBytes() {
+			return wireBytes.get();
+		}
+
+		/**
+		 * @return wire size divided by serialized size, below 1 means compression paid off
+		 */
+		public double getRatio() {
+			long raw = rawBytes.get();
+			return raw == 0 ? 1 : (double) wireBytes.get() / raw;
+		}
+
+		public long getCompressNanos() {
+			return compressNanos.get();
+		}
+
+		public long getDecompressNanos() {
+			return decompressNanos.get();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d messages, %d -> %d bytes (%.2f), compress %.2f ms, decompress %.2f ms", method.name(), getMessages(), getRawBytes(), getWireBytes(), getRatio(),
+					getCompressNanos() / 1000000d, getDecompressNanos() / 1000000d);
+		}
+	}
+}
@@ -12,6 +12,9 @@
 package com.t3.clientserver;
 
 import java.awt.Color;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.apache.commons.pool2.BasePooledObjectFactory;
 import org.apache.commons.pool2.PooledObject;
@@ -23,33 +26,128 @@ import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import com.t3.MD5Key;
+import com.t3.guid.GUID;
 
 import de.javakaffee.kryoserializers.SynchronizedCollectionsSerializer;
 
-public class KryoPool extends GenericObjectPool<Kryo> {
+public class KryoPool extends GenericObjectPool<KryoPool.KryoContext> {
+
+	/** how many unused contexts are kept around, all others are disposed when returned */
+	private static final int MAX_IDLE = 8;
 
 	public KryoPool() {
 		super(new KryoFactory());
-		this.setMaxTotal(5);
+		// never make a caller wait for a free Kryo, create a new one instead
+		this.setMaxTotal(-1);
+		this.setMaxIdle(MAX_IDLE);
 	}
 
-	public static class KryoFactory extends BasePooledObjectFactory<Kryo> {
+	/**
+	 * A Kryo instance together with the buffers and the zlib codecs it needs to (de)serialize a
+	 * message. All of them are reused as long as the context lives in the pool.
+	 */
+	public static class KryoContext {
+		/** buffers larger than this are dropped after use instead of being kept in the pool */
+		private static final int MAX_RETAINED_BUFFER = 256 * 1024;
+		private static final int INITIAL_BUFFER = 4 * 1024;
+		private static final byte[] EMPTY = new byte[0];
+
+		private final Kryo kryo;
+		private final Deflater deflater = new Deflater();
+		private final Inflater inflater = new Inflater();
+		private final Input input = new Input();
+		private Output output = new Output(INITIAL_BUFFER, -1);
+		private byte[] buffer = new byte[INITIAL_BUFFER];
+
+		public KryoContext(Kryo kryo) {
+			this.kryo = kryo;
+		}
+
+		public Kryo getKryo() {
+			return kryo;
+		}
+
+		public Deflater getDeflater(int level) {
+			deflater.reset();
+			deflater.setLevel(level);
+			return deflater;
+		}
+
+		public Inflater getInflater() {
+			inflater.reset();
+			return inflater;
+		}
+
+		public Input getInput() {
+			return input;
+		}
+
+		public Output getOutput() {
+			output.clear();
+			return output;
+		}
+
+		/**
+		 * @return a scratch buffer of at least the given size, its content is kept when it grows
+		 */
+		public byte[] getBuffer(int minSize) {
+			if (buffer.length < minSize) {
+				buffer = Arrays.copyOf(buffer, Math.max(minSize, buffer.length * 2));
+			}
+			return buffer;
+		}
+
+		/**
+		 * Drops references to message data and shrinks buffers that grew too large, so that a
+		 * single big message does not stay referenced by the pool.
+		 */
+		void recycle() {
+			input.setBuffer(EMPTY);
+			if (output.getBuffer().length > MAX_RETAINED_BUFFER) {
+				output = new Output(INITIAL_BUFFER, -1);
+			}
+			if (buffer.length > MAX_RETAINED_BUFFER) {
+				buffer = new byte[INITIAL_BUFFER];
+			}
+		}
+
+		void dispose() {
+			deflater.end();
+			inflater.end();
+		}
+	}
+
+	@Override
+	public void returnObject(KryoContext context) {
+		context.recycle();
+		super.returnObject(context);
+	}
+
+	public static class KryoFactory extends BasePooledObjectFactory<KryoContext> {
 		@Override
-		public PooledObject<Kryo> wrap(Kryo kryo) {
-			return new DefaultPooledObject<Kryo>(kryo);
+		public PooledObject<KryoContext> wrap(KryoContext context) {
+			return new DefaultPooledObject<KryoContext>(context);
 		}
 
 		@Override
-		public Kryo create() throws Exception {
+		public KryoContext create() throws Exception {
 			Kryo kryo = new Kryo();
 			((Kryo.DefaultInstantiatorStrategy) kryo.getInstantiatorStrategy()).setFallbackInstantiatorStrategy(new StdInstantiatorStrategy());
 
 			registerSerializers(kryo);
 			
-			return kryo;
+			return new KryoContext(kryo);
+		}
+
+		@Override
+		public void destroyObject(PooledObject<KryoContext> p) throws Exception {
+			p.getObject().dispose();
 		}
 
 		private void registerSerializers(Kryo kryo) {
+			// fields that are only made on demand are made before they are written
+			kryo.setDefaultSerializer(WriteReplaceSerializer.class);
 			//register custom serializers here
 			kryo.register(Color.class, new Serializer<Color>() {
 				@Override
@@ -62,6 +160,31 @@ public class KryoPool extends GenericObjectPool<Kryo> {
 					return new Color(input.readInt(), true);
 				}
 			});
+			// the ids are written as their 16 bytes, instead of field by field
+			kryo.register(MD5Key.class, new Serializer<MD5Key>(false, true) {
+				@Override
+				public void write(Kryo kryo, Output output, MD5Key object) {
+					output.writeLong(object.getHigh());
+					output.writeLong(object.getLow());
+				}
+
+				@Override
+				public MD5Key read(Kryo kryo, Input input, Class<MD5Key> type) {
+					return new MD5Key(input.readLong(), input.readLong());
+				}
+			});
+			kryo.register(GUID.class, new Serializer<GUID>(false, true) {
+				@Override
+				public void write(Kryo kryo, Output output, GUID object) {
+					output.writeLong(object.getHigh());
+					output.writeLong(object.getLow());
+				}
+
+				@Override
+				public GUID read(Kryo kryo, Input input, Class<GUID> type) {
+					return new GUID(input.readLong(), input.readLong());
+				}
+			});
 			SynchronizedCollectionsSerializer.registerSerializers( kryo );
 		}
 	}
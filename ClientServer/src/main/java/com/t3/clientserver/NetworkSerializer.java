@@ -11,55 +11,175 @@
  */
 package com.t3.clientserver;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.util.LinkedList;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
+import com.t3.clientserver.CompressionPolicy.Codec;
+import com.t3.clientserver.KryoPool.KryoContext;
 
 
+/**
+ * Turns a method call into the Kryo stream that is sent over the wire and back. The first byte of
+ * every message is the flag of the {@link CompressionPolicy.Codec} that was used for the rest of it.
+ * All buffers and codecs come from the {@link KryoPool}, so the only allocations per message are
+ * the resulting array and the deserialized objects.
+ */
 public class NetworkSerializer {
 	private static final KryoPool kryoPool=new KryoPool();
+	private static final CompressionPolicy compressionPolicy=new CompressionPolicy();
+	private static final CompressionStatistics statistics=new CompressionStatistics();
 	
+	public static CompressionPolicy getCompressionPolicy() {
+		return compressionPolicy;
+	}
+
+	public static CompressionStatistics getStatistics() {
+		return statistics;
+	}
 	
 	public static <T extends Enum<T> & Command> TransferredMessage<T> deserialize(byte[] bytes) {
-		try (Input in = new Input(new InflaterInputStream(new ByteArrayInputStream(bytes)))) {
-			Kryo kryo = kryoPool.borrowObject();
+		KryoContext context = null;
+		try {
+			context = kryoPool.borrowObject();
+			long start = System.nanoTime();
+			Input in = context.getInput();
+			if (Codec.fromFlag(bytes[0]) == Codec.NONE) {
+				in.setBuffer(bytes, 1, bytes.length - 1);
+			} else {
+				int length = inflate(context, bytes);
+				in.setBuffer(context.getBuffer(length), 0, length);
+			}
+			long inflateTime = System.nanoTime() - start;
+
+			Kryo kryo = context.getKryo();
 			T message = (T) kryo.readClassAndObject(in);
-			LinkedList<Object> parameters = new LinkedList<Object>();
-			while(!in.eof())
+			ArrayList<Object> parameters = new ArrayList<Object>();
+			while(in.position() < in.limit())
 				parameters.add(kryo.readClassAndObject(in));
-			kryoPool.returnObject(kryo);
+			statistics.recordDeserialized(message, inflateTime);
 			return new TransferredMessage<T>(message, parameters.toArray());
 		} catch (Exception e) {
 			throw new Error(e);
+		} finally {
+			if (context != null)
+				kryoPool.returnObject(context);
 		}
 	}
 	
 	 public static final byte[] serialize(Enum<? extends Command> method, Object... parameters) {
-		 try {
-			Kryo kryo = kryoPool.borrowObject();
-	    	ByteArrayOutputStream bout = new ByteArrayOutputStream();
-	    	try(Output kryoOut=new Output(new DeflaterOutputStream(bout))) {
-		    	//write Message
-		    	kryo.writeClassAndObject(kryoOut, method);
-		    	//write Parameters
-		    	for(Object p:parameters) {
-		    		kryo.writeClassAndObject(kryoOut, p);
-		    		//System.out.println(p.getClass().getName());
-		    		//System.out.println(p.toString());
-		    	}
+		KryoContext context = null;
+		try {
+			context = kryoPool.borrowObject();
+			Kryo kryo = context.getKryo();
+			Output kryoOut = context.getOutput();
+	    	//write Message
+	    	kryo.writeClassAndObject(kryoOut, method);
+	    	//write Parameters
+	    	for(Object p:parameters) {
+	    		kryo.writeClassAndObject(kryoOut, p);
+	    	}
+
+	    	long start = System.nanoTime();
+	    	int length = kryoOut.position();
+	    	Codec codec = compressionPolicy.choose(method, length);
+	    	byte[] result;
+	    	if (codec == Codec.NONE) {
+	    		result = new byte[length + 1];
+	    		result[0] = codec.getFlag();
+	    		System.arraycopy(kryoOut.getBuffer(), 0, result, 1, length);
+	    	} else {
+	    		result = deflate(context, codec, kryoOut.getBuffer(), length);
 	    	}
-	    	kryoPool.returnObject(kryo);
-	    	return bout.toByteArray();
+	    	statistics.recordSerialized(method, length, result.length, System.nanoTime() - start);
+	    	return result;
 	 	} catch (Exception e) {
 			throw new Error(e);
+		} finally {
+			if (context != null)
+				kryoPool.returnObject(context);
 		}
     }
+
+	/**
+	 * Serializes a single object without a codec flag and without compression, e.g. to compare or to
+	 * transfer parts of a model object.
+	 */
+	public static byte[] serializeObject(Object object) {
+		KryoContext context = null;
+		try {
+			context = kryoPool.borrowObject();
+			Output kryoOut = context.getOutput();
+			context.getKryo().writeClassAndObject(kryoOut, object);
+			return kryoOut.toBytes();
+		} catch (Exception e) {
+			throw new Error(e);
+		} finally {
+			if (context != null)
+				kryoPool.returnObject(context);
+		}
+	}
+
+	/**
+	 * Reverses {@link #serializeObject(Object)}.
+	 */
+	public static Object deserializeObject(byte[] bytes) {
+		KryoContext context = null;
+		try {
+			context = kryoPool.borrowObject();
+			Input in = context.getInput();
+			in.setBuffer(bytes);
+			return context.getKryo().readClassAndObject(in);
+		} catch (Exception e) {
+			throw new Error(e);
+		} finally {
+			if (context != null)
+				kryoPool.returnObject(context);
+		}
+	}
+
+	/**
+	 * Compresses the given data into a new array of exactly the compressed size plus the codec flag.
+	 */
+	private static byte[] deflate(KryoContext context, Codec codec, byte[] data, int length) {
+		Deflater deflater = context.getDeflater(codec.getLevel());
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		byte[] buffer = context.getBuffer(length / 2 + 64);
+		buffer[0] = codec.getFlag();
+		int size = 1;
+		while (!deflater.finished()) {
+			if (size == buffer.length)
+				buffer = context.getBuffer(size + 1);
+			size += deflater.deflate(buffer, size, buffer.length - size);
+		}
+		return Arrays.copyOf(buffer, size);
+	}
+
+	/**
+	 * Decompresses the given message, without its codec flag, into the scratch buffer of the context.
+	 * @return the number of decompressed bytes
+	 */
+	private static int inflate(KryoContext context, byte[] data) throws DataFormatException {
+		Inflater inflater = context.getInflater();
+		inflater.setInput(data, 1, data.length - 1);
+		byte[] buffer = context.getBuffer(data.length * 2);
+		int size = 0;
+		while (!inflater.finished()) {
+			if (size == buffer.length)
+				buffer = context.getBuffer(size + 1);
+			int inflated = inflater.inflate(buffer, size, buffer.length - size);
+			if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+				throw new DataFormatException("Truncated message");
+			size += inflated;
+		}
+		return size;
+	}
 	
 	public static class TransferredMessage<T extends Enum<T> & Command> {
 		private final T message;
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.clientserver;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+
+/**
+ * A {@link FieldSerializer} that calls the <code>writeReplace()</code> method of a class before
+ * its fields are written, like Java serialization and XStream do. Classes use it to bring fields
+ * up to date that are only made on demand, e.g. an area that is kept as a bitmap.
+ * <p>
+ * The class of the object is written before the serializer is asked, so an object can not be
+ * replaced by another one here. If <code>writeReplace()</code> returns a different object, the
+ * fields of the original one are written, like they were before this serializer was used.
+ */
+public class WriteReplaceSerializer<T> extends FieldSerializer<T> {
+	private final Method writeReplace;
+
+	public WriteReplaceSerializer(Kryo kryo, Class<T> type) {
+		super(kryo, type);
+		writeReplace = findWriteReplace(type);
+	}
+
+	@Override
+	public void write(Kryo kryo, Output output, T object) {
+		if (writeReplace != null) {
+			try {
+				writeReplace.invoke(object);
+			} catch (IllegalAccessException e) {
+				throw new KryoException(e);
+			} catch (InvocationTargetException e) {
+				throw new KryoException(e.getCause());
+			}
+		}
+		super.write(kryo, output, object);
+	}
+
+	private static Method findWriteReplace(Class<?> type) {
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			try {
+				Method method = c.getDeclaredMethod("writeReplace");
+				method.setAccessible(true);
+				return method;
+			} catch (NoSuchMethodException e) {
+				// try the super class
+			} catch (SecurityException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+}
@@ -14,16 +14,12 @@ package com.t3.clientserver.connection;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.t3.clientserver.connection.ActivityListener.Direction;
 import com.t3.clientserver.connection.ActivityListener.State;
+import com.t3.clientserver.connection.QueuePolicy.Priority;
 import com.t3.clientserver.handler.DisconnectHandler;
 import com.t3.clientserver.handler.MessageHandler;
 
@@ -35,14 +31,17 @@ import com.t3.clientserver.handler.MessageHandler;
  */
 public abstract class AbstractConnection {
 
-	// We don't need to make each list synchronized since the class is synchronized
-	
-	protected Map<Object, List<byte[]>> outQueueMap = new HashMap<Object, List<byte[]>>();
-	protected List<List<byte[]>> outQueueList = new LinkedList<List<byte[]>>();
+	private static final QueuePolicy queuePolicy = new QueuePolicy();
+
+	protected final OutboundQueue outQueue = new OutboundQueue(queuePolicy);
     protected List<MessageHandler> messageHandlers = new CopyOnWriteArrayList<MessageHandler>();
     protected List<ActivityListener> listeners = new CopyOnWriteArrayList<ActivityListener>();
     protected List<DisconnectHandler> disconnectHandlers = new CopyOnWriteArrayList<DisconnectHandler>();
 
+    public static QueuePolicy getQueuePolicy() {
+    	return queuePolicy;
+    }
+
     public final void addMessageHandler(MessageHandler handler) {
         messageHandlers.add(handler);
     }
@@ -57,48 +56,33 @@ public abstract class AbstractConnection {
         }
     }
     
-    public synchronized void addMessage(byte[] message) {
+    public void addMessage(byte[] message) {
     	addMessage(null, message);
     }
     
-    public synchronized void addMessage(Object channel, byte[] message) {
-    	List<byte[]> queue = getOutQueue(channel);
-    	queue.add(message);
-    	
-    	// Queue up for sending
-		outQueueList.add(queue);
+    public void addMessage(Object channel, byte[] message) {
+    	addMessage(queuePolicy.getPriority(channel, null), null, message);
     }
     
-    protected List<byte[]> getOutQueue(Object channel) {
-    	// Ordinarily I would synchronize this method, but I imagine the channels will be initialized once
-    	// at the beginning of execution.  Thus get(channel) will only return once right at the beginning
-    	// no sense incurring the cost of synchronizing the method on the class for that.
-    	List<byte[]> queue = outQueueMap.get(channel);
-    	if (queue == null) {
-    		queue = Collections.synchronizedList(new ArrayList<byte[]>());
-    		outQueueMap.put(channel, queue);
-    	}
-    	return queue;
+    /**
+     * @param key the coalescing key of the message, see {@link QueuePolicy#getCoalescingKey}
+     * @return false if the queue overflowed and the message was dropped
+     */
+    public boolean addMessage(Priority priority, Object key, byte[] message) {
+    	// the queue has its own lock, so a sender never waits for the connection
+    	return outQueue.offer(priority, key, message);
     }
     
-    public synchronized boolean hasMoreMessages() {
-    	return !outQueueList.isEmpty();
+    public OutboundQueue getOutQueue() {
+    	return outQueue;
     }
     
-    public synchronized byte[] nextMessage() {
-
-    	if (!hasMoreMessages()) {
-    		return null;
-    	}
-    	
-		List<byte[]> queue = outQueueList.remove(0);
-		
-		byte[] message = queue.remove(0);
-		if (!queue.isEmpty()) {
-			outQueueList.add(queue);
-		}
-		
-		return message;
+    public boolean hasMoreMessages() {
+    	return !outQueue.isEmpty();
+    }
+    
+    public byte[] nextMessage() {
+    	return outQueue.poll();
     }
     
     public final void fireDisconnect() {
@@ -133,21 +117,29 @@ public abstract class AbstractConnection {
     ///////////////////////////////////////////////////////////////////////////
     // static helper methods
     ///////////////////////////////////////////////////////////////////////////
+    // header buffers are reused, since there is only one reading and one writing thread per connection
+    private final byte[] writeHeader = new byte[4];
+    private final byte[] readHeader = new byte[4];
+
     protected final void writeMessage(OutputStream out, byte[] message) throws IOException {
         int length = message.length;
         
         notifyListeners(Direction.Outbound, State.Start, length, 0);
         
-        out.write(length >> 24);
-        out.write(length >> 16);
-        out.write(length >> 8);
-        out.write(length);
-
-        for (int i = 0; i < message.length; i++) {
-            out.write(message[i]);
+        writeHeader[0] = (byte) (length >> 24);
+        writeHeader[1] = (byte) (length >> 16);
+        writeHeader[2] = (byte) (length >> 8);
+        writeHeader[3] = (byte) length;
+        out.write(writeHeader);
+
+        // write in chunks so that the listeners still see the progress of large transfers
+        for (int offset = 0; offset < length; ) {
+            int chunk = Math.min(ActivityListener.CHUNK_SIZE, length - offset);
+            out.write(message, offset, chunk);
+            offset += chunk;
             
-            if (i != 0 && i % ActivityListener.CHUNK_SIZE == 0) {
-                notifyListeners(Direction.Outbound, State.Progress, length, i);
+            if (offset < length) {
+                notifyListeners(Direction.Outbound, State.Progress, length, offset);
             }
         }
 
@@ -157,25 +149,23 @@ public abstract class AbstractConnection {
     }
 
     protected final byte[] readMessage(InputStream in) throws IOException {
-        int b32 = in.read();
-        int b24 = in.read();
-        int b16 = in.read();
-        int b8 = in.read();
-        
-        if (b32 < 0) {
-            throw new IOException ("Stream closed");
-        }
+        readFully(in, readHeader, 0, 4);
 
-        int length = (b32 << 24) + (b24 << 16) + (b16 << 8) + b8;
+        int length = ((readHeader[0] & 0xFF) << 24) + ((readHeader[1] & 0xFF) << 16) + ((readHeader[2] & 0xFF) << 8) + (readHeader[3] & 0xFF);
+        if (length < 0) {
+            throw new IOException("Invalid message length " + length);
+        }
         
         notifyListeners(Direction.Inbound, State.Start, length, 0);
 
         byte[] ret = new byte[length];
-        for (int i = 0; i < length; i++) {
-            ret[i] = (byte) in.read();
+        for (int offset = 0; offset < length; ) {
+            int chunk = Math.min(ActivityListener.CHUNK_SIZE, length - offset);
+            readFully(in, ret, offset, chunk);
+            offset += chunk;
             
-            if (i != 0 && i % ActivityListener.CHUNK_SIZE == 0) {
-                notifyListeners(Direction.Inbound, State.Progress, length, i);
+            if (offset < length) {
+                notifyListeners(Direction.Inbound, State.Progress, length, offset);
             }
         }
 
@@ -183,4 +173,15 @@ public abstract class AbstractConnection {
 
         return ret;
     }
+
+    private static void readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(buffer, offset, length);
+            if (read < 0) {
+                throw new IOException ("Stream closed");
+            }
+            offset += read;
+            length -= read;
+        }
+    }
 }
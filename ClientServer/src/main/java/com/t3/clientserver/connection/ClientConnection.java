@@ -19,11 +19,16 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
 
+import org.apache.log4j.Logger;
+
 import com.t3.clientserver.Command;
 import com.t3.clientserver.NetworkSerializer;
+import com.t3.clientserver.connection.QueuePolicy.Priority;
 
 public class ClientConnection extends AbstractConnection implements Closeable {
 
+	private static final Logger log = Logger.getLogger(ClientConnection.class);
+
 	private final Socket socket;
 
     private SendThread send;
@@ -69,11 +74,34 @@ public class ClientConnection extends AbstractConnection implements Closeable {
     	sendMessage(null, message);
     }
     public void sendMessage(Object channel, byte[] message) {
-        addMessage(channel, message);
+        sendMessage(getQueuePolicy().getPriority(channel, null), null, message);
+    }
+
+    /**
+     * @param key the coalescing key of the message, see {@link QueuePolicy#getCoalescingKey}
+     */
+    public void sendMessage(Priority priority, Object key, byte[] message) {
+        if (!addMessage(priority, key, message)) {
+            handleOverflow();
+            return;
+        }
         synchronized (send) {
             send.notify();
         }
     }
+
+    /**
+     * Called when the remote end did not keep up and the outbound queue overflowed. The connection
+     * is closed, which makes the receiving side report the disconnect.
+     */
+    protected void handleOverflow() {
+        log.warn("Outbound queue of " + id + " overflowed, closing connection: " + outQueue);
+        try {
+            close();
+        } catch (IOException e) {
+            log.error(e.getMessage(), e);
+        }
+    }
     
     public boolean isAlive() {
         return !socket.isClosed();
@@ -86,6 +114,7 @@ public class ClientConnection extends AbstractConnection implements Closeable {
     		return;
     	}
         socket.close();
+        outQueue.close();
         send.requestStop();
         receive.requestStop();
 
@@ -109,7 +138,8 @@ public class ClientConnection extends AbstractConnection implements Closeable {
 
         public SendThread(ClientConnection conn, OutputStream out) {
             this.conn = conn;
-            this.out = new BufferedOutputStream(out, 1024);
+            // large enough for the header and a full chunk, so small messages leave in a single write
+            this.out = new BufferedOutputStream(out, ActivityListener.CHUNK_SIZE + 4);
         }
 
         public void requestStop() {
@@ -125,20 +155,14 @@ public class ClientConnection extends AbstractConnection implements Closeable {
                 while (!stopRequested && conn.isAlive()) {
 
                     try {
-                        while (conn.hasMoreMessages()) {
-                            try {
-                                byte[] message = conn.nextMessage();
-                                if (message == null) {
-                                	continue;
-                                }
-                                conn.writeMessage(out, message);
-                            } catch (IndexOutOfBoundsException e) {
-                                // just ignore and wait
-                            }
+                        byte[] message;
+                        while ((message = conn.nextMessage()) != null) {
+                            conn.writeMessage(out, message);
                         }
 
                         synchronized (this) {
-                            if (!stopRequested) {
+                            // a message queued after the loop has notified us already
+                            if (!stopRequested && !conn.hasMoreMessages()) {
                                 this.wait();
                             }
                         }
@@ -193,6 +217,7 @@ public class ClientConnection extends AbstractConnection implements Closeable {
     public void callMethod(Enum<? extends Command> method, Object... parameters) {
 
     	byte[] message = NetworkSerializer.serialize(method, parameters);
-        sendMessage(message);
+    	QueuePolicy policy = getQueuePolicy();
+        sendMessage(policy.getPriority(null, method), policy.getCoalescingKey(method, parameters), message);
     }
 }
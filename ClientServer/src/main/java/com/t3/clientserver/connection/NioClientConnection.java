@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.clientserver.connection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import org.apache.log4j.Logger;
+
+import com.t3.clientserver.connection.ActivityListener.Direction;
+import com.t3.clientserver.connection.ActivityListener.State;
+import com.t3.clientserver.connection.QueuePolicy.Priority;
+
+/**
+ * A server side client connection that is driven by a {@link NioSelectorPool} instead of its own
+ * send and receive threads. It uses the same framing as {@link ClientConnection} (a 4 byte length
+ * followed by the payload), so the remote end can still be a plain {@link ClientConnection}.
+ *
+ * Messages are dispatched to the {@link com.t3.clientserver.handler.MessageHandler}s on the selector
+ * thread in the order they were received, just like the receive thread does for the blocking
+ * implementation.
+ */
+public class NioClientConnection extends ClientConnection {
+
+	private static final Logger log = Logger.getLogger(NioClientConnection.class);
+
+	private final SocketChannel channel;
+	private final NioSelectorPool pool;
+
+	private volatile NioSelectorPool.SelectorThread selectorThread;
+	private volatile SelectionKey key;
+	private volatile boolean closed = false;
+	private volatile boolean overflowed = false;
+
+	// read state, only touched by the selector thread
+	private final ByteBuffer readHeader = ByteBuffer.allocate(4);
+	private ByteBuffer readBody;
+	private int readProgress;
+
+	// write state, only touched by the selector thread
+	private final ByteBuffer writeHeader = ByteBuffer.allocate(4);
+	private final ByteBuffer[] writeBuffers = new ByteBuffer[2];
+	private int writeProgress;
+
+	public NioClientConnection(SocketChannel channel, String id, NioSelectorPool pool) {
+		super(channel.socket(), id);
+		this.channel = channel;
+		this.pool = pool;
+	}
+
+	@Override
+	public void start() throws IOException {
+		if (sendHandshake(channel.socket())) {
+			channel.configureBlocking(false);
+			pool.register(this);
+		} else {
+			channel.close();
+		}
+	}
+
+	@Override
+	public void sendMessage(Priority priority, Object key, byte[] message) {
+		if (!addMessage(priority, key, message)) {
+			handleOverflow();
+			return;
+		}
+		NioSelectorPool.SelectorThread thread = selectorThread;
+		if (thread != null) {
+			thread.requestWrite(this);
+		}
+	}
+
+	@Override
+	protected void handleOverflow() {
+		// fail on the selector thread, so the disconnect is reported like any other failure
+		overflowed = true;
+		NioSelectorPool.SelectorThread thread = selectorThread;
+		if (thread != null) {
+			thread.requestWrite(this);
+		}
+	}
+
+	@Override
+	public boolean isAlive() {
+		return !closed && channel.isOpen();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		outQueue.close();
+		if (key != null) {
+			key.cancel();
+		}
+		channel.close();
+	}
+
+	void setSelectorThread(NioSelectorPool.SelectorThread selectorThread) {
+		this.selectorThread = selectorThread;
+	}
+
+	////
+	// Selector thread callbacks
+	void register(Selector selector) throws IOException {
+		if (closed) {
+			return;
+		}
+		key = channel.register(selector, SelectionKey.OP_READ, this);
+		// messages might have been queued before we were registered
+		if (hasMoreMessages()) {
+			enableWrite();
+		}
+	}
+
+	void enableWrite() {
+		if (overflowed) {
+			handleFailure(new IOException("Outbound queue overflow: " + outQueue));
+			return;
+		}
+		if (key != null && key.isValid()) {
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+	}
+
+	void handleFailure(IOException e) {
+		if (closed) {
+			return;
+		}
+		log.debug("Connection " + getId() + " failed: " + e.getMessage());
+		try {
+			close();
+		} catch (IOException ioe) {
+			log.error(ioe.getMessage(), ioe);
+		}
+		fireDisconnect();
+	}
+
+	void handleRead() throws IOException {
+		while (true) {
+			if (readBody == null) {
+				if (channel.read(readHeader) < 0) {
+					throw new IOException("Stream closed");
+				}
+				if (readHeader.hasRemaining()) {
+					return;
+				}
+				readHeader.flip();
+				int length = readHeader.getInt();
+				readHeader.clear();
+				if (length < 0) {
+					throw new IOException("Invalid message length " + length);
+				}
+				readBody = ByteBuffer.allocate(length);
+				readProgress = 0;
+				notifyListeners(Direction.Inbound, State.Start, length, 0);
+			}
+
+			if (readBody.hasRemaining() && channel.read(readBody) < 0) {
+				throw new IOException("Stream closed");
+			}
+			int length = readBody.capacity();
+			int position = readBody.position();
+			if (position - readProgress >= ActivityListener.CHUNK_SIZE) {
+				readProgress = position - position % ActivityListener.CHUNK_SIZE;
+				notifyListeners(Direction.Inbound, State.Progress, length, position);
+			}
+			if (readBody.hasRemaining()) {
+				return;
+			}
+
+			byte[] message = readBody.array();
+			readBody = null;
+			notifyListeners(Direction.Inbound, State.Complete, length, length);
+			try {
+				dispatchMessage(getId(), message);
+			} catch (Throwable t) {
+				// a failing handler must not take the connection down
+				log.error(t.getMessage(), t);
+			}
+		}
+	}
+
+	void handleWrite() throws IOException {
+		while (true) {
+			if (writeBuffers[1] == null) {
+				byte[] message = nextMessage();
+				if (message == null) {
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+					// a message may have slipped in between the check and clearing the interest
+					if (!hasMoreMessages()) {
+						return;
+					}
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					continue;
+				}
+				writeHeader.clear();
+				writeHeader.putInt(message.length).flip();
+				writeBuffers[0] = writeHeader;
+				writeBuffers[1] = ByteBuffer.wrap(message);
+				writeProgress = 0;
+				notifyListeners(Direction.Outbound, State.Start, message.length, 0);
+			}
+
+			channel.write(writeBuffers);
+			ByteBuffer body = writeBuffers[1];
+			int length = body.capacity();
+			int position = body.position();
+			if (position - writeProgress >= ActivityListener.CHUNK_SIZE) {
+				writeProgress = position - position % ActivityListener.CHUNK_SIZE;
+				notifyListeners(Direction.Outbound, State.Progress, length, position);
+			}
+			if (body.hasRemaining()) {
+				// socket buffer is full, wait for the next OP_WRITE
+				return;
+			}
+			writeBuffers[0] = null;
+			writeBuffers[1] = null;
+			notifyListeners(Direction.Outbound, State.Complete, length, length);
+		}
+	}
+}
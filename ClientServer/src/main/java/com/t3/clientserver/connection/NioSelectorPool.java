@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.clientserver.connection;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A small, fixed set of selector threads that drive all {@link NioClientConnection}s of a server.
+ * Connections are spread round robin over the threads, so the number of threads no longer grows
+ * with the number of connected players.
+ */
+public class NioSelectorPool {
+
+	private static final Logger log = Logger.getLogger(NioSelectorPool.class);
+
+	public static final int DEFAULT_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	private final SelectorThread[] threads;
+	private final AtomicInteger next = new AtomicInteger();
+
+	public NioSelectorPool() throws IOException {
+		this(DEFAULT_THREADS);
+	}
+
+	public NioSelectorPool(int size) throws IOException {
+		if (size < 1) {
+			throw new IllegalArgumentException("A selector pool needs at least one thread");
+		}
+		threads = new SelectorThread[size];
+		for (int i = 0; i < size; i++) {
+			threads[i] = new SelectorThread(i);
+		}
+		for (SelectorThread t : threads) {
+			t.start();
+		}
+	}
+
+	public int getSize() {
+		return threads.length;
+	}
+
+	void register(NioClientConnection conn) {
+		SelectorThread thread = threads[(next.getAndIncrement() & Integer.MAX_VALUE) % threads.length];
+		conn.setSelectorThread(thread);
+		thread.pendingRegistrations.add(conn);
+		thread.selector.wakeup();
+	}
+
+	public void close() {
+		for (SelectorThread t : threads) {
+			t.requestStop();
+		}
+		for (SelectorThread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				log.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	////
+	// Threads
+	static class SelectorThread extends Thread {
+		private final Selector selector;
+		private final Queue<NioClientConnection> pendingRegistrations = new ConcurrentLinkedQueue<NioClientConnection>();
+		private final Queue<NioClientConnection> pendingWrites = new ConcurrentLinkedQueue<NioClientConnection>();
+
+		private volatile boolean stopRequested = false;
+
+		public SelectorThread(int index) throws IOException {
+			super("NIO Selector-" + index);
+			setDaemon(true);
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Asks the selector thread to start watching the given connection for writability. This may
+		 * be called from any thread.
+		 */
+		void requestWrite(NioClientConnection conn) {
+			pendingWrites.add(conn);
+			selector.wakeup();
+		}
+
+		public void requestStop() {
+			stopRequested = true;
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (!stopRequested) {
+				try {
+					selector.select();
+
+					NioClientConnection conn;
+					while ((conn = pendingRegistrations.poll()) != null) {
+						try {
+							conn.register(selector);
+						} catch (IOException e) {
+							conn.handleFailure(e);
+						}
+					}
+					while ((conn = pendingWrites.poll()) != null) {
+						conn.enableWrite();
+					}
+
+					for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+						SelectionKey key = i.next();
+						i.remove();
+						conn = (NioClientConnection) key.attachment();
+						try {
+							if (key.isReadable()) {
+								conn.handleRead();
+							}
+							if (key.isValid() && key.isWritable()) {
+								conn.handleWrite();
+							}
+						} catch (CancelledKeyException e) {
+							// the connection was closed from another thread, nothing left to do
+						} catch (IOException e) {
+							conn.handleFailure(e);
+						} catch (Throwable t) {
+							// don't let anything kill this thread via exception
+							log.error(t.getMessage(), t);
+						}
+					}
+				} catch (Throwable t) {
+					log.error(t.getMessage(), t);
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				log.error(e.getMessage(), e);
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.clientserver.connection;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.t3.clientserver.connection.QueuePolicy.Barrier;
+import com.t3.clientserver.connection.QueuePolicy.Priority;
+
+/**
+ * The bounded queue of messages a connection still has to send. Messages are sent by
+ * {@link Priority} and in order within a priority. A message with a coalescing key replaces the
+ * queued message with the same key in place, so a slow connection gets the latest token position
+ * instead of every position in between. A {@link Barrier} ends that, so that no message queued
+ * after it is sent ahead of it.
+ */
+public class OutboundQueue {
+
+	private final QueuePolicy policy;
+	private final List<ArrayDeque<Entry>> queues;
+	private final long[] queuedBytes;
+	private final Map<Object, Entry> pending = new HashMap<Object, Entry>();
+
+	private int depth;
+	private long bytes;
+	private boolean closed;
+
+	// statistics
+	private int maxDepth;
+	private long maxBytes;
+	private long sent;
+	private long coalesced;
+	private long dropped;
+
+	public OutboundQueue(QueuePolicy policy) {
+		this.policy = policy;
+		queues = new ArrayList<ArrayDeque<Entry>>(Priority.values().length);
+		for (int i = 0; i < Priority.values().length; i++) {
+			queues.add(new ArrayDeque<Entry>());
+		}
+		queuedBytes = new long[queues.size()];
+	}
+
+	/**
+	 * @return false if the queue is full, in which case the message was dropped and the remote end
+	 *         should be considered dead
+	 */
+	public synchronized boolean offer(Priority priority, Object key, byte[] message) {
+		if (closed) {
+			dropped++;
+			return true;
+		}
+		if (key instanceof Barrier) {
+			// the queued message stays where it is, but is no longer replaced
+			pending.remove(((Barrier) key).getKey());
+			key = null;
+		}
+		if (key != null) {
+			Entry entry = pending.get(key);
+			if (entry != null) {
+				// keep the position, but send the latest content
+				bytes += message.length - entry.message.length;
+				queuedBytes[entry.priority.ordinal()] += message.length - entry.message.length;
+				entry.message = message;
+				coalesced++;
+				return true;
+			}
+		}
+		if (depth > 0 && bytes + message.length > policy.getMaxBytes()) {
+			dropped++;
+			// a superseding message will follow anyway, everything else is lost
+			return key != null;
+		}
+
+		Entry entry = new Entry(priority, key, message);
+		queues.get(priority.ordinal()).add(entry);
+		if (key != null) {
+			pending.put(key, entry);
+		}
+		depth++;
+		bytes += message.length;
+		queuedBytes[priority.ordinal()] += message.length;
+		maxDepth = Math.max(maxDepth, depth);
+		maxBytes = Math.max(maxBytes, bytes);
+		return true;
+	}
+
+	/**
+	 * @return the next message to send, or null if there is none
+	 */
+	public synchronized byte[] poll() {
+		for (ArrayDeque<Entry> queue : queues) {
+			Entry entry = queue.poll();
+			if (entry != null) {
+				if (entry.key != null) {
+					pending.remove(entry.key);
+				}
+				depth--;
+				bytes -= entry.message.length;
+				queuedBytes[entry.priority.ordinal()] -= entry.message.length;
+				sent++;
+				return entry.message;
+			}
+		}
+		return null;
+	}
+
+	public synchronized boolean isEmpty() {
+		return depth == 0;
+	}
+
+	/**
+	 * Lets producers of bulk data, like asset transfers, wait for a slow connection instead of
+	 * filling its queue.
+	 * 
+	 * @return true if a message of the given priority can be queued without falling behind
+	 */
+	public synchronized boolean hasCapacity(Priority priority) {
+		if (priority == Priority.BULK) {
+			return queuedBytes[priority.ordinal()] < policy.getBulkBytes();
+		}
+		return bytes < policy.getMaxBytes();
+	}
+
+	/**
+	 * Drops all queued messages, messages offered afterwards are dropped right away.
+	 */
+	public synchronized void close() {
+		closed = true;
+		dropped += depth;
+		for (ArrayDeque<Entry> queue : queues) {
+			queue.clear();
+		}
+		pending.clear();
+		depth = 0;
+		bytes = 0;
+		for (int i = 0; i < queuedBytes.length; i++) {
+			queuedBytes[i] = 0;
+		}
+	}
+
+	public synchronized int getDepth() {
+		return depth;
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized long getSent() {
+		return sent;
+	}
+
+	public synchronized long getCoalesced() {
+		return coalesced;
+	}
+
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("depth %d (max %d), %d KB (max %d KB), sent %d, coalesced %d, dropped %d",
+				depth, maxDepth, bytes / 1024, maxBytes / 1024, sent, coalesced, dropped);
+	}
+
+	private static class Entry {
+		private final Priority priority;
+		private final Object key;
+		private byte[] message;
+
+		public Entry(Priority priority, Object key, byte[] message) {
+			this.priority = priority;
+			this.key = key;
+			this.message = message;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.clientserver.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.t3.clientserver.Command;
+
+/**
+ * Decides in which {@link OutboundQueue} priority a message waits and which messages supersede
+ * each other, so that only the latest of them is sent.
+ */
+public class QueuePolicy {
+
+	/**
+	 * The priorities of outgoing messages, the first one is sent first.
+	 */
+	public static enum Priority {
+		INTERACTIVE,
+		CHAT,
+		SYNC,
+		BULK
+	}
+
+	/** once this many bytes are queued for a connection, its remote end is considered dead */
+	public static final int DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+	/** producers of bulk data should wait while this many bytes of it are queued */
+	public static final int DEFAULT_BULK_BYTES = 1024 * 1024;
+
+	private final ConcurrentMap<Enum<? extends Command>, Priority> priorities = new ConcurrentHashMap<Enum<? extends Command>, Priority>();
+	private final ConcurrentMap<Object, Priority> channelPriorities = new ConcurrentHashMap<Object, Priority>();
+	private final ConcurrentMap<Enum<? extends Command>, int[]> coalesced = new ConcurrentHashMap<Enum<? extends Command>, int[]>();
+	private final ConcurrentMap<Enum<? extends Command>, BarrierSpec> barriers = new ConcurrentHashMap<Enum<? extends Command>, BarrierSpec>();
+	private volatile int maxBytes = DEFAULT_MAX_BYTES;
+	private volatile int bulkBytes = DEFAULT_BULK_BYTES;
+
+	@SafeVarargs
+	public final void setPriority(Priority priority, Enum<? extends Command>... commands) {
+		for (Enum<? extends Command> command : commands) {
+			priorities.put(command, priority);
+		}
+	}
+
+	/**
+	 * Every message sent on the given channel gets this priority, whatever its command is.
+	 */
+	public void setChannelPriority(Object channel, Priority priority) {
+		channelPriorities.put(channel, priority);
+	}
+
+	/**
+	 * A queued message of the given command is replaced by a newer one if both have the same
+	 * values for the given parameters, e.g. the zone and the token of a token move.
+	 */
+	public void setCoalesced(Enum<? extends Command> command, int... keyParameters) {
+		coalesced.put(command, keyParameters);
+	}
+
+	/**
+	 * A message of the given command ends the coalescing of the queued message of the coalesced
+	 * command with the same values for the given parameters, e.g. the stop of a token move ends the
+	 * coalescing of its move updates. A newer message of the coalesced command is then queued behind
+	 * it instead of replacing the older one ahead of it. Both commands need the same priority to
+	 * stay in order.
+	 */
+	public void setCoalescingBarrier(Enum<? extends Command> command, Enum<? extends Command> coalescedCommand, int... keyParameters) {
+		barriers.put(command, new BarrierSpec(coalescedCommand, keyParameters));
+	}
+
+	/**
+	 * @param channel the channel of the message, may be null
+	 * @param method the command of the message, may be null for raw messages
+	 */
+	public Priority getPriority(Object channel, Enum<? extends Command> method) {
+		Priority priority = channel != null ? channelPriorities.get(channel) : null;
+		if (priority == null && method != null) {
+			priority = priorities.get(method);
+		}
+		return priority != null ? priority : Priority.SYNC;
+	}
+
+	/**
+	 * @return the key under which the message supersedes older ones, a {@link Barrier} if it ends
+	 *         the coalescing of other messages, or null if it does neither
+	 */
+	public Object getCoalescingKey(Enum<? extends Command> method, Object[] parameters) {
+		if (method == null) {
+			return null;
+		}
+		int[] keyParameters = coalesced.get(method);
+		if (keyParameters != null) {
+			return createKey(method, keyParameters, parameters);
+		}
+		BarrierSpec barrier = barriers.get(method);
+		if (barrier != null) {
+			return new Barrier(createKey(barrier.coalescedCommand, barrier.keyParameters, parameters));
+		}
+		return null;
+	}
+
+	private static Object createKey(Enum<? extends Command> method, int[] keyParameters, Object[] parameters) {
+		List<Object> key = new ArrayList<Object>(keyParameters.length + 1);
+		key.add(method);
+		for (int index : keyParameters) {
+			key.add(parameters[index]);
+		}
+		return key;
+	}
+
+	public void setMaxBytes(int maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	public void setBulkBytes(int bulkBytes) {
+		this.bulkBytes = bulkBytes;
+	}
+
+	public int getBulkBytes() {
+		return bulkBytes;
+	}
+
+	/**
+	 * The coalescing key of a message that must not be replaced by messages queued after it.
+	 */
+	public static final class Barrier {
+		private final Object key;
+
+		public Barrier(Object key) {
+			this.key = key;
+		}
+
+		/**
+		 * @return the coalescing key of the messages that are no longer replaced
+		 */
+		public Object getKey() {
+			return key;
+		}
+	}
+
+	private static class BarrierSpec {
+		private final Enum<? extends Command> coalescedCommand;
+		private final int[] keyParameters;
+
+		public BarrierSpec(Enum<? extends Command> coalescedCommand, int[] keyParameters) {
+			this.coalescedCommand = coalescedCommand;
+			this.keyParameters = keyParameters;
+		}
+	}
+}
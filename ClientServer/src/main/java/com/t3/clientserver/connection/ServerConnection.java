@@ -12,8 +12,10 @@
 package com.t3.clientserver.connection;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -27,6 +29,7 @@ import org.apache.log4j.Logger;
 
 import com.t3.clientserver.Command;
 import com.t3.clientserver.NetworkSerializer;
+import com.t3.clientserver.connection.QueuePolicy.Priority;
 import com.t3.clientserver.handler.DisconnectHandler;
 import com.t3.clientserver.handler.MessageHandler;
 
@@ -44,6 +47,8 @@ public class ServerConnection extends AbstractConnection implements MessageHandl
 
     private final DispatchThread dispatchThread;
 
+    private final NioSelectorPool selectorPool;
+
 //    private final ReaperThread reaperThread;
     
     private Map<String, ClientConnection> clients = Collections.synchronizedMap(new HashMap<String, ClientConnection>());
@@ -51,7 +56,25 @@ public class ServerConnection extends AbstractConnection implements MessageHandl
     private List<ServerObserver> observerList = Collections.synchronizedList(new ArrayList<ServerObserver>());
 
     public ServerConnection(int port) throws IOException {
-        socket = new ServerSocket(port);
+    	this(port, false);
+    }
+
+    /**
+     * @param port the port to listen on
+     * @param nio if true the connected clients are served by a small {@link NioSelectorPool}
+     * instead of a send and a receive thread per client
+     */
+    public ServerConnection(int port, boolean nio) throws IOException {
+    	if (nio) {
+    		selectorPool = new NioSelectorPool();
+    		// sockets accepted from a channel backed server socket carry their own SocketChannel
+    		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+    		socket = serverChannel.socket();
+    		socket.bind(new InetSocketAddress(port));
+    	} else {
+    		selectorPool = null;
+    		socket = new ServerSocket(port);
+    	}
         dispatchThread = new DispatchThread(this);
         dispatchThread.start();
         listeningThread = new ListeningThread(this, socket);
@@ -80,6 +103,10 @@ public class ServerConnection extends AbstractConnection implements MessageHandl
     }
 
     public void broadcastMessage(String[] exclude, byte[] message) {
+        broadcastMessage(exclude, getQueuePolicy().getPriority(null, null), null, message);
+    }
+
+    private void broadcastMessage(String[] exclude, Priority priority, Object key, byte[] message) {
         Set<String> excludeSet = new HashSet<String>();
         for (String e : exclude) {
             excludeSet.add(e);
@@ -87,7 +114,7 @@ public class ServerConnection extends AbstractConnection implements MessageHandl
         synchronized (clients) {
             for (Map.Entry<String, ClientConnection> entry : clients.entrySet()) {
                 if (!excludeSet.contains(entry.getKey())) {
-                    entry.getValue().sendMessage(message);
+                    entry.getValue().sendMessage(priority, key, message);
                 }
             }
         }
@@ -102,6 +129,23 @@ public class ServerConnection extends AbstractConnection implements MessageHandl
         client.sendMessage(channel, message);
     }
 
+    /**
+     * @return the outbound queue of every connected client by its id, e.g. to report the queue depths
+     */
+    public Map<String, OutboundQueue> getOutQueues() {
+        Map<String, OutboundQueue> queues = new HashMap<String, OutboundQueue>();
+        synchronized (clients) {
+            for (Map.Entry<String, ClientConnection> entry : clients.entrySet()) {
+                queues.put(entry.getKey(), entry.getValue().getOutQueue());
+            }
+        }
+        return queues;
+    }
+
+    public boolean isNio() {
+    	return selectorPool != null;
+    }
+
     /**
      * Server subclasses may override this method to perform serial handshaking
      * before the connection is accepted into its pool.  By default, this just
@@ -124,6 +168,10 @@ public class ServerConnection extends AbstractConnection implements MessageHandl
                 conn.close();
             }
         }
+        // the selector threads only serve this server's clients
+        if (selectorPool != null) {
+            selectorPool.close();
+        }
 
         listeningThread.requestStop();
         log.debug("Server stopping listening thread");
@@ -231,7 +279,12 @@ public class ServerConnection extends AbstractConnection implements MessageHandl
                     	continue;
                     }
                     
-                    ClientConnection conn = new ClientConnection(s, id);
+                    ClientConnection conn;
+                    if (server.selectorPool != null) {
+                    	conn = new NioClientConnection(s.getChannel(), id, server.selectorPool);
+                    } else {
+                    	conn = new ClientConnection(s, id);
+                    }
                     conn.addMessageHandler(server);
                     conn.addDisconnectHandler(server);
                     conn.start();
@@ -320,21 +373,28 @@ public class ServerConnection extends AbstractConnection implements MessageHandl
     }
     
     public void broadcastCallMethod(Enum<? extends Command> method, Object... parameters) {
-        broadcastMessage(NetworkSerializer.serialize(method, parameters));
+        broadcastCallMethod(new String[0], method, parameters);
     }
     
     public void broadcastCallMethod(String[] exclude, Enum<? extends Command> method, Object... parameters) {
     	byte[] data  = NetworkSerializer.serialize(method, parameters);
-        broadcastMessage(exclude, data);
+    	QueuePolicy policy = getQueuePolicy();
+        broadcastMessage(exclude, policy.getPriority(null, method), policy.getCoalescingKey(method, parameters), data);
     }
     
     public void callMethod(String id, Enum<? extends Command> method, Object... parameters) {
-    	byte[] data = NetworkSerializer.serialize(method, parameters);
-        sendMessage(id, null, data);
+    	callMethod(id, null, method, parameters);
     }
 
     public void callMethod(String id, Object channel, Enum<? extends Command> method, Object... parameters) {
+    	ClientConnection client = clients.get(id);
+    	if (client == null) {
+    		// the client disconnected in the meantime
+    		log.debug("Dropping " + method + " for disconnected client " + id);
+    		return;
+    	}
     	byte[] data = NetworkSerializer.serialize(method, parameters);
-        sendMessage(id, channel, data);
+    	QueuePolicy policy = getQueuePolicy();
+        client.sendMessage(policy.getPriority(channel, method), policy.getCoalescingKey(method, parameters), data);
     }
 }
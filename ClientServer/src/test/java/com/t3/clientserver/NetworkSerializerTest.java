@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.clientserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedList;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.t3.MD5Key;
+import com.t3.clientserver.CompressionPolicy.Codec;
+import com.t3.clientserver.NetworkSerializer.TransferredMessage;
+import com.t3.guid.GUID;
+
+/**
+ * Checks that messages survive the serializer. The benchmark measures how much garbage a small
+ * message, like a token move during a drag, produces compared to the stream based serialization.
+ */
+public class NetworkSerializerTest {
+
+	private enum TestCommand implements Command {
+		updateTokenMove, updateAssetTransfer
+	};
+
+	private static final int ITERATIONS = 20000;
+
+	@Test
+	public void roundTrip() {
+		byte[] data = NetworkSerializer.serialize(TestCommand.updateTokenMove, "zone", 12, 34, "token");
+		TransferredMessage<TestCommand> tm = NetworkSerializer.<TestCommand> deserialize(data);
+		Assert.assertEquals(tm.getMessage(), TestCommand.updateTokenMove);
+		Assert.assertEquals(tm.getParameters().length, 4);
+		Assert.assertEquals(tm.getParameters()[0], "zone");
+		Assert.assertEquals(tm.getParameters()[1], 12);
+		Assert.assertEquals(tm.getParameters()[2], 34);
+		Assert.assertEquals(tm.getParameters()[3], "token");
+	}
+
+	@Test
+	public void largeRoundTrip() {
+		// larger than every pooled buffer, so they all have to grow
+		byte[] payload = new byte[1024 * 1024];
+		new java.util.Random(7).nextBytes(payload);
+		byte[] data = NetworkSerializer.serialize(TestCommand.updateAssetTransfer, payload);
+		TransferredMessage<TestCommand> tm = NetworkSerializer.<TestCommand> deserialize(data);
+		Assert.assertEquals((byte[]) tm.getParameters()[0], payload);
+	}
+
+	@Test
+	public void identifiers() {
+		MD5Key key = new MD5Key("900150983cd24fb0d6963f7d28e17f72");
+		GUID guid = new GUID();
+		byte[] data = NetworkSerializer.serialize(TestCommand.updateTokenMove, key, guid);
+		TransferredMessage<TestCommand> tm = NetworkSerializer.<TestCommand> deserialize(data);
+		Assert.assertEquals(tm.getParameters()[0], key);
+		Assert.assertEquals(tm.getParameters()[1], guid);
+		// their 16 bytes each and the id of their class
+		int size = data.length - NetworkSerializer.serialize(TestCommand.updateTokenMove).length;
+		Assert.assertTrue(size <= 2 * 18, "ids of " + size + " bytes");
+	}
+
+	@Test
+	public void compressionPolicy() {
+		CompressionPolicy policy = NetworkSerializer.getCompressionPolicy();
+		// tiny messages are not compressed
+		byte[] data = NetworkSerializer.serialize(TestCommand.updateTokenMove, 1, 2);
+		Assert.assertEquals(data[0], Codec.NONE.getFlag());
+		Assert.assertEquals(NetworkSerializer.<TestCommand> deserialize(data).getParameters()[1], 2);
+
+		// compressible data is deflated, very large data with the fast level
+		byte[] payload = new byte[policy.getFastSize()];
+		data = NetworkSerializer.serialize(TestCommand.updateTokenMove, new byte[policy.getMinSize() * 2]);
+		Assert.assertEquals(data[0], Codec.DEFLATE.getFlag());
+		data = NetworkSerializer.serialize(TestCommand.updateTokenMove, payload);
+		Assert.assertEquals(data[0], Codec.DEFLATE_FAST.getFlag());
+		Assert.assertEquals((byte[]) NetworkSerializer.<TestCommand> deserialize(data).getParameters()[0], payload);
+
+		// commands carrying compressed data are never deflated
+		policy.setUncompressed(TestCommand.updateAssetTransfer);
+		data = NetworkSerializer.serialize(TestCommand.updateAssetTransfer, payload);
+		Assert.assertEquals(data[0], Codec.NONE.getFlag());
+		Assert.assertEquals((byte[]) NetworkSerializer.<TestCommand> deserialize(data).getParameters()[0], payload);
+
+		CompressionStatistics.Entry entry = NetworkSerializer.getStatistics().get(TestCommand.updateTokenMove);
+		Assert.assertTrue(entry.getMessages() >= 3);
+		Assert.assertTrue(entry.getWireBytes() < entry.getRawBytes());
+	}
+
+	@Test(groups = "benchmark")
+	public void allocation() throws Exception {
+		Kryo kryo = new Kryo();
+		// warm up both paths
+		for (int i = 0; i < ITERATIONS; i++) {
+			deserializeLegacy(kryo, serializeLegacy(kryo, TestCommand.updateTokenMove, "zone", i, i, "token"));
+			NetworkSerializer.deserialize(NetworkSerializer.serialize(TestCommand.updateTokenMove, "zone", i, i, "token"));
+		}
+
+		long before = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			deserializeLegacy(kryo, serializeLegacy(kryo, TestCommand.updateTokenMove, "zone", i, i, "token"));
+		}
+		long legacyTime = System.nanoTime() - start;
+		long legacyBytes = allocatedBytes() - before;
+
+		before = allocatedBytes();
+		start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			NetworkSerializer.deserialize(NetworkSerializer.serialize(TestCommand.updateTokenMove, "zone", i, i, "token"));
+		}
+		long pooledTime = System.nanoTime() - start;
+		long pooledBytes = allocatedBytes() - before;
+
+		Reporter.log(String.format("streams: %7d bytes/message %6.2f us/message | pooled: %7d bytes/message %6.2f us/message",
+				legacyBytes / ITERATIONS, legacyTime / 1000d / ITERATIONS, pooledBytes / ITERATIONS, pooledTime / 1000d / ITERATIONS));
+	}
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	// the serialization as it was implemented before the pooled buffers
+	private static byte[] serializeLegacy(Kryo kryo, Enum<? extends Command> method, Object... parameters) {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		try (Output kryoOut = new Output(new DeflaterOutputStream(bout))) {
+			kryo.writeClassAndObject(kryoOut, method);
+			for (Object p : parameters) {
+				kryo.writeClassAndObject(kryoOut, p);
+			}
+		}
+		return bout.toByteArray();
+	}
+
+	private static Object[] deserializeLegacy(Kryo kryo, byte[] bytes) {
+		try (Input in = new Input(new InflaterInputStream(new ByteArrayInputStream(bytes)))) {
+			LinkedList<Object> parameters = new LinkedList<Object>();
+			parameters.add(kryo.readClassAndObject(in));
+			while (!in.eof())
+				parameters.add(kryo.readClassAndObject(in));
+			return parameters.toArray();
+		}
+	}
+}
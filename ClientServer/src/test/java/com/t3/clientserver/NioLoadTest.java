@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.clientserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+
+import com.t3.clientserver.connection.ClientConnection;
+import com.t3.clientserver.connection.ServerConnection;
+import com.t3.clientserver.connection.ServerObserver;
+import com.t3.clientserver.handler.MessageHandler;
+
+/**
+ * Connects simulated clients to a blocking and to a NIO server and lets every client ping the
+ * server. Checks that every ping comes back to its client and that the NIO server needs fewer
+ * threads. The benchmark reports the p99 round trip latency for 10, 50 and 200 clients.
+ */
+public class NioLoadTest {
+
+	private static final int MESSAGES_PER_CLIENT = 20;
+	private static final int[] CLIENT_COUNTS = { 10, 50, 200 };
+
+	@Test
+	public void compareTransports() throws Exception {
+		Result blocking = run(4450, false, 50);
+		Result nio = run(4451, true, 50);
+		Assert.assertTrue(nio.serverThreads < blocking.serverThreads, nio.serverThreads + " nio server threads against " + blocking.serverThreads);
+	}
+
+	@Test(groups = "benchmark")
+	public void latency() throws Exception {
+		int port = 4452;
+		for (int clients : CLIENT_COUNTS) {
+			Result blocking = run(port++, false, clients);
+			Result nio = run(port++, true, clients);
+			Reporter.log(String.format("%4d clients: blocking %4d threads p99 %6.2f ms | nio %4d threads p99 %6.2f ms",
+					clients, blocking.serverThreads, blocking.p99Millis, nio.serverThreads, nio.p99Millis));
+		}
+	}
+
+	private Result run(int port, boolean nio, int clientCount) throws Exception {
+		Set<Thread> baseThreads = new HashSet<Thread>(Thread.getAllStackTraces().keySet());
+
+		final ServerConnection server = new ServerConnection(port, nio);
+		final CountDownLatch connected = new CountDownLatch(clientCount);
+		server.addObserver(new ServerObserver() {
+			@Override
+			public void connectionAdded(ClientConnection conn) {
+				connected.countDown();
+			}
+
+			@Override
+			public void connectionRemoved(ClientConnection conn) {
+			}
+		});
+		// echo everything back to the sender
+		server.addMessageHandler(new MessageHandler() {
+			@Override
+			public void handleMessage(String id, byte[] message) {
+				server.sendMessage(id, message);
+			}
+		});
+
+		final long[] latencies = new long[clientCount * MESSAGES_PER_CLIENT];
+		final int[] echoes = new int[latencies.length];
+		final CountDownLatch received = new CountDownLatch(latencies.length);
+		List<ClientConnection> clients = new ArrayList<ClientConnection>();
+		for (int i = 0; i < clientCount; i++) {
+			final int clientIndex = i;
+			ClientConnection client = new ClientConnection("127.0.0.1", port, "client-" + i);
+			client.addMessageHandler(new MessageHandler() {
+				@Override
+				public void handleMessage(String id, byte[] message) {
+					ByteBuffer buffer = ByteBuffer.wrap(message);
+					int sequence = buffer.getInt();
+					latencies[clientIndex * MESSAGES_PER_CLIENT + sequence] = System.nanoTime() - buffer.getLong();
+					if (buffer.getInt() == clientIndex) {
+						echoes[clientIndex * MESSAGES_PER_CLIENT + sequence]++;
+					}
+					received.countDown();
+				}
+			});
+			client.start();
+			clients.add(client);
+		}
+		Assert.assertTrue(connected.await(30, TimeUnit.SECONDS), "clients did not connect");
+
+		// every simulated client owns a send and a receive thread, everything else belongs to the server
+		Set<Thread> threads = new HashSet<Thread>(Thread.getAllStackTraces().keySet());
+		threads.removeAll(baseThreads);
+		int serverThreads = threads.size() - 2 * clientCount;
+
+		for (int m = 0; m < MESSAGES_PER_CLIENT; m++) {
+			for (int i = 0; i < clientCount; i++) {
+				ByteBuffer buffer = ByteBuffer.allocate(64);
+				buffer.putInt(m);
+				buffer.putLong(System.nanoTime());
+				buffer.putInt(i);
+				clients.get(i).sendMessage(buffer.array());
+			}
+			Thread.sleep(10);
+		}
+		Assert.assertTrue(received.await(60, TimeUnit.SECONDS), "not all messages were echoed");
+
+		for (ClientConnection client : clients) {
+			client.close();
+		}
+		server.close();
+		for (Thread thread : threads) {
+			if (thread.getName().startsWith("NIO Selector")) {
+				Assert.assertFalse(thread.isAlive(), thread.getName() + " outlived the server");
+			}
+		}
+		for (int i = 0; i < echoes.length; i++) {
+			Assert.assertEquals(echoes[i], 1, "echoes of message " + i % MESSAGES_PER_CLIENT + " of client " + i / MESSAGES_PER_CLIENT);
+		}
+
+		Arrays.sort(latencies);
+		double p99 = latencies[(int) Math.ceil(latencies.length * 0.99) - 1] / 1000000d;
+		return new Result(serverThreads, p99);
+	}
+
+	private static class Result {
+		final int serverThreads;
+		final double p99Millis;
+
+		public Result(int serverThreads, double p99Millis) {
+			this.serverThreads = serverThreads;
+			this.p99Millis = p99Millis;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.clientserver.connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+
+import com.t3.clientserver.connection.ActivityListener.Direction;
+import com.t3.clientserver.connection.ActivityListener.State;
+
+/**
+ * Checks the bulk framing of {@link AbstractConnection} against the old byte by byte framing.
+ * The benchmark compares their throughput for payloads from 1 KB to 50 MB.
+ */
+public class FramingTest {
+
+	private static final int[] PAYLOAD_SIZES = { 1024, 64 * 1024, 1024 * 1024, 5 * 1024 * 1024, 50 * 1024 * 1024 };
+
+	private final AbstractConnection connection = new AbstractConnection() {
+	};
+
+	@Test
+	public void roundTrip() throws IOException {
+		byte[] message = new byte[3 * ActivityListener.CHUNK_SIZE + 17];
+		new Random(42).nextBytes(message);
+
+		final int[] progress = new int[2];
+		connection.addActivityListener(new ActivityListener() {
+			@Override
+			public void notify(Direction direction, State state, int totalTransferSize, int currentTransferSize) {
+				if (state == State.Progress) {
+					progress[direction.ordinal()]++;
+				}
+			}
+		});
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		connection.writeMessage(out, message);
+		Assert.assertEquals(out.size(), message.length + 4);
+
+		byte[] read = connection.readMessage(new ByteArrayInputStream(out.toByteArray()));
+		Assert.assertEquals(read, message);
+		Assert.assertEquals(progress[Direction.Inbound.ordinal()], 3);
+		Assert.assertEquals(progress[Direction.Outbound.ordinal()], 3);
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void truncatedMessage() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		connection.writeMessage(out, new byte[100]);
+		byte[] data = out.toByteArray();
+		connection.readMessage(new ByteArrayInputStream(data, 0, data.length - 1));
+	}
+
+	@Test
+	public void sameAsLegacy() throws IOException {
+		byte[] message = new byte[5 * ActivityListener.CHUNK_SIZE + 3];
+		new Random(7).nextBytes(message);
+		ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+		writeLegacy(legacy, message);
+		ByteArrayOutputStream bulk = new ByteArrayOutputStream();
+		connection.writeMessage(bulk, message);
+		Assert.assertEquals(bulk.toByteArray(), legacy.toByteArray());
+		Assert.assertEquals(readLegacy(new ByteArrayInputStream(bulk.toByteArray())), message);
+		Assert.assertEquals(connection.readMessage(new ByteArrayInputStream(legacy.toByteArray())), message);
+	}
+
+	@Test(groups = "benchmark")
+	public void throughput() throws IOException {
+		for (int size : PAYLOAD_SIZES) {
+			byte[] message = new byte[size];
+			ByteArrayOutputStream out = new ByteArrayOutputStream(size + 4);
+
+			long start = System.nanoTime();
+			writeLegacy(out, message);
+			readLegacy(new ByteArrayInputStream(out.toByteArray()));
+			long legacy = System.nanoTime() - start;
+
+			out.reset();
+			start = System.nanoTime();
+			connection.writeMessage(out, message);
+			connection.readMessage(new ByteArrayInputStream(out.toByteArray()));
+			long bulk = System.nanoTime() - start;
+
+			Reporter.log(String.format("%9d bytes: byte by byte %8.2f ms, bulk %8.2f ms", size, legacy / 1000000d, bulk / 1000000d));
+		}
+	}
+
+	// the framing as it was implemented before the bulk transfers
+	private static void writeLegacy(OutputStream out, byte[] message) throws IOException {
+		int length = message.length;
+		out.write(length >> 24);
+		out.write(length >> 16);
+		out.write(length >> 8);
+		out.write(length);
+		for (int i = 0; i < message.length; i++) {
+			out.write(message[i]);
+		}
+		out.flush();
+	}
+
+	private static byte[] readLegacy(InputStream in) throws IOException {
+		int length = (in.read() << 24) + (in.read() << 16) + (in.read() << 8) + in.read();
+		byte[] ret = new byte[length];
+		for (int i = 0; i < length; i++) {
+			ret[i] = (byte) in.read();
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.clientserver.connection;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.t3.clientserver.Command;
+import com.t3.clientserver.connection.QueuePolicy.Priority;
+
+/**
+ * Checks the ordering, coalescing and bounds of the {@link OutboundQueue} and simulates a client
+ * that only reads every tenth message during a token drag.
+ */
+public class OutboundQueueTest {
+
+	private enum TestCommand implements Command {
+		startTokenMove, updateTokenMove, stopTokenMove, message
+	};
+
+	@Test
+	public void priorities() {
+		OutboundQueue queue = new OutboundQueue(new QueuePolicy());
+		queue.offer(Priority.BULK, null, new byte[] { 4 });
+		queue.offer(Priority.SYNC, null, new byte[] { 3 });
+		queue.offer(Priority.CHAT, null, new byte[] { 2 });
+		queue.offer(Priority.INTERACTIVE, null, new byte[] { 1 });
+		queue.offer(Priority.SYNC, null, new byte[] { 5 });
+
+		Assert.assertEquals(queue.poll()[0], 1);
+		Assert.assertEquals(queue.poll()[0], 2);
+		Assert.assertEquals(queue.poll()[0], 3);
+		Assert.assertEquals(queue.poll()[0], 5);
+		Assert.assertEquals(queue.poll()[0], 4);
+		Assert.assertNull(queue.poll());
+		Assert.assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void coalescing() {
+		QueuePolicy policy = new QueuePolicy();
+		policy.setCoalesced(TestCommand.updateTokenMove, 0, 1);
+		OutboundQueue queue = new OutboundQueue(policy);
+
+		Object token1 = policy.getCoalescingKey(TestCommand.updateTokenMove, new Object[] { "zone", "token1", 1, 1 });
+		Object token2 = policy.getCoalescingKey(TestCommand.updateTokenMove, new Object[] { "zone", "token2", 1, 1 });
+		Assert.assertNull(policy.getCoalescingKey(TestCommand.message, new Object[] { "hello" }));
+
+		queue.offer(Priority.INTERACTIVE, token1, new byte[] { 1 });
+		queue.offer(Priority.INTERACTIVE, token2, new byte[] { 2 });
+		queue.offer(Priority.INTERACTIVE, token1, new byte[] { 3 });
+		Assert.assertEquals(queue.getDepth(), 2);
+		Assert.assertEquals(queue.getCoalesced(), 1);
+
+		// the latest move of token1 takes the place of the first one
+		Assert.assertEquals(queue.poll()[0], 3);
+		Assert.assertEquals(queue.poll()[0], 2);
+
+		// once sent, a new move is queued again
+		queue.offer(Priority.INTERACTIVE, token1, new byte[] { 4 });
+		Assert.assertEquals(queue.getDepth(), 1);
+	}
+
+	@Test
+	public void barrier() {
+		QueuePolicy policy = new QueuePolicy();
+		policy.setCoalesced(TestCommand.updateTokenMove, 0, 1);
+		policy.setCoalescingBarrier(TestCommand.startTokenMove, TestCommand.updateTokenMove, 0, 1);
+		policy.setCoalescingBarrier(TestCommand.stopTokenMove, TestCommand.updateTokenMove, 0, 1);
+		OutboundQueue queue = new OutboundQueue(policy);
+
+		Object[] token = new Object[] { "zone", "token1", 1, 1 };
+		Object update = policy.getCoalescingKey(TestCommand.updateTokenMove, token);
+		Assert.assertTrue(policy.getCoalescingKey(TestCommand.stopTokenMove, token) instanceof QueuePolicy.Barrier);
+
+		// one drag ends and the next one starts before anything was sent
+		queue.offer(Priority.INTERACTIVE, policy.getCoalescingKey(TestCommand.startTokenMove, token), new byte[] { 1 });
+		queue.offer(Priority.INTERACTIVE, update, new byte[] { 2 });
+		queue.offer(Priority.INTERACTIVE, update, new byte[] { 3 });
+		queue.offer(Priority.INTERACTIVE, policy.getCoalescingKey(TestCommand.stopTokenMove, token), new byte[] { 4 });
+		queue.offer(Priority.INTERACTIVE, policy.getCoalescingKey(TestCommand.startTokenMove, token), new byte[] { 5 });
+		queue.offer(Priority.INTERACTIVE, update, new byte[] { 6 });
+		queue.offer(Priority.INTERACTIVE, update, new byte[] { 7 });
+		Assert.assertEquals(queue.getCoalesced(), 2);
+
+		// the moves of each drag stay between its start and its stop
+		byte[] expected = new byte[] { 1, 3, 4, 5, 7 };
+		for (byte b : expected) {
+			Assert.assertEquals(queue.poll()[0], b);
+		}
+		Assert.assertNull(queue.poll());
+	}
+
+	@Test
+	public void bounds() {
+		QueuePolicy policy = new QueuePolicy();
+		policy.setMaxBytes(100);
+		policy.setBulkBytes(50);
+		OutboundQueue queue = new OutboundQueue(policy);
+
+		// a single message is accepted whatever its size
+		Assert.assertTrue(queue.offer(Priority.BULK, null, new byte[200]));
+		Assert.assertFalse(queue.hasCapacity(Priority.BULK));
+		queue.poll();
+		Assert.assertTrue(queue.hasCapacity(Priority.BULK));
+
+		Assert.assertTrue(queue.offer(Priority.SYNC, null, new byte[60]));
+		// superseded messages are dropped quietly, everything else overflows the queue
+		Assert.assertTrue(queue.offer(Priority.INTERACTIVE, "pointer", new byte[60]));
+		Assert.assertFalse(queue.offer(Priority.SYNC, null, new byte[60]));
+		Assert.assertEquals(queue.getDropped(), 2);
+		Assert.assertEquals(queue.getDepth(), 1);
+
+		queue.close();
+		Assert.assertTrue(queue.isEmpty());
+		Assert.assertEquals(queue.getDropped(), 3);
+	}
+
+	@Test
+	public void slowClient() {
+		QueuePolicy policy = new QueuePolicy();
+		policy.setCoalesced(TestCommand.updateTokenMove, 0, 1);
+		OutboundQueue queue = new OutboundQueue(policy);
+
+		// a drag of 10 tokens with 1000 updates each, the client reads every tenth update
+		int read = 0;
+		for (int i = 0; i < 1000; i++) {
+			for (int t = 0; t < 10; t++) {
+				Object key = policy.getCoalescingKey(TestCommand.updateTokenMove, new Object[] { "zone", "token" + t, i, i });
+				queue.offer(Priority.INTERACTIVE, key, new byte[64]);
+			}
+			if (i % 10 == 0) {
+				while (queue.poll() != null) {
+					read++;
+				}
+			}
+		}
+		Assert.assertTrue(queue.getMaxDepth() <= 10, "the queue should hold one move per token");
+		Assert.assertEquals(queue.getDropped(), 0);
+	}
+}
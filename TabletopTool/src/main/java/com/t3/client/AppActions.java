@@ -1824,6 +1824,7 @@ public class AppActions {
 					policy.setUseIndividualFOW(useIF);
 
 					ServerConfig config = new ServerConfig(serverProps.getUsername(), serverProps.getGMPassword(), serverProps.getPlayerPassword(), serverProps.getPort(), serverProps.getT3Name());
+					config.setNioTransport(serverProps.getUseNioTransport());
 
 					// Use the existing campaign
 					Campaign campaign = TabletopTool.getCampaign();
@@ -57,7 +57,10 @@ public class AssetURLStreamHandler extends URLStreamHandler {
 
 		@Override
 		public InputStream getInputStream() throws IOException {
-			final MD5Key assetId = new MD5Key(url.getHost());
+			final MD5Key assetId = MD5Key.valueOf(url.getHost());
+			if (assetId == null) {
+				throw new IOException("Not an asset: " + url);
+			}
 			String query = url.getQuery();
 			Map<String, String> var = new HashMap<String, String>();
 
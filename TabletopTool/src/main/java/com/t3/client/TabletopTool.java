@@ -107,6 +107,7 @@ import com.t3.networking.ServerDisconnectHandler;
 import com.t3.networking.ServerPolicy;
 import com.t3.networking.T3Connection;
 import com.t3.networking.T3Server;
+import com.t3.networking.TokenDeltaTracker;
 import com.t3.networking.registry.T3Registry;
 import com.t3.persistence.BackupManager;
 import com.t3.persistence.FileUtil;
@@ -183,6 +184,7 @@ public class TabletopTool {
 
 	private static BackupManager backupManager;
 	private static AssetTransferManager assetTransferManager;
+	private static TokenDeltaTracker tokenDeltaTracker = new TokenDeltaTracker();
 	private static ServiceAnnouncer announcer;
 	private static AutoSaveManager autoSaveManager;
 	private static SoundManager soundManager;
@@ -855,6 +857,7 @@ public class TabletopTool {
 	public static void setCampaign(Campaign campaign, GUID defaultRendererId) {
 		// Load up the new
 		TabletopTool.campaign = campaign;
+		tokenDeltaTracker.clear();
 		ZoneRenderer currRenderer = null;
 
 		// Clean up
@@ -890,6 +893,10 @@ public class TabletopTool {
 		return assetTransferManager;
 	}
 
+	public static TokenDeltaTracker getTokenDeltaTracker() {
+		return tokenDeltaTracker;
+	}
+
 	public static void startServer(String id, ServerConfig config, ServerPolicy policy, Campaign campaign) throws IOException {
 		if (server != null) {
 			Thread.dumpStack();
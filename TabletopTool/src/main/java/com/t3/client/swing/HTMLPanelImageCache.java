@@ -70,7 +70,8 @@ public class HTMLPanelImageCache extends Dictionary<URL, Image> {
 					path = path.substring(0, index);
 					size = Integer.parseInt(szStr);
 				}
-				image = ImageManager.getImageAndWait(new MD5Key(path));
+				MD5Key assetId = MD5Key.valueOf(path);
+				image = assetId != null ? ImageManager.getImageAndWait(assetId) : ImageManager.BROKEN_IMAGE;
 
 				if (size > 0) {
 					Dimension sz = new Dimension(image.getWidth(null), image.getHeight(null));
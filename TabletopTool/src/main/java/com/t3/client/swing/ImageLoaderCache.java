@@ -67,7 +67,8 @@ public class ImageLoaderCache {
 					path = path.substring(0, index);
 					size = Integer.parseInt(szStr);
 				}
-				image = ImageManager.getImage(new MD5Key(path), observers);
+				MD5Key assetId = MD5Key.valueOf(path);
+				image = assetId != null ? ImageManager.getImage(assetId, observers) : ImageManager.BROKEN_IMAGE;
 				boolean imageLoaded = image != ImageManager.TRANSFERING_IMAGE;
 				if (!imageLoaded) {
 					size = 38;
@@ -184,10 +184,15 @@ public class MeasureTool extends DefaultTool implements ZoneOverlay {
 			super.mouseDragged(e);
 			return;
 		}
-		ZoneRenderer renderer = (ZoneRenderer) e.getSource();
+		final ZoneRenderer renderer = (ZoneRenderer) e.getSource();
 		if (walker != null && renderer.getZone().getGrid().getCapabilities().isPathingSupported()) {
 			CellPoint cellPoint = renderer.getCellAt(new ScreenPoint(e.getX(), e.getY()));
-			walker.replaceLastWaypoint(cellPoint);
+			walker.replaceLastWaypointLater(cellPoint, new Runnable() {
+				@Override
+				public void run() {
+					renderer.repaint();
+				}
+			});
 		} else if (gridlessPath != null) {
 			gridlessPath.replaceLastPoint(new ScreenPoint(e.getX(), e.getY()).convertToZone(renderer));
 		}
@@ -76,6 +76,7 @@ import com.t3.guid.GUID;
 import com.t3.image.ImageUtil;
 import com.t3.model.CellPoint;
 import com.t3.model.ExposedAreaMetaData;
+import com.t3.model.ExposedCells;
 import com.t3.model.MovementKey;
 import com.t3.model.Player;
 import com.t3.model.Pointer;
@@ -817,25 +818,19 @@ public class PointerTool extends DefaultTool implements ZoneOverlay {
 		Zone zone = renderer.getZone();
 		if (zone.hasFog()) {
 			// Check that the new position for each token is within the exposed area
-			Area zoneFog = zone.getExposedArea();
-			if (zoneFog == null)
-				zoneFog = new Area();
 			boolean useTokenExposedArea = TabletopTool.getServerPolicy().isUseIndividualFOW() && zone.getVisionType() != VisionType.OFF;
 			int deltaX = point.x - leadToken.getX();
 			int deltaY = point.y - leadToken.getY();
 			Grid grid = zone.getGrid();
 			// Loop through all tokens.  As soon as one of them is blocked, stop processing and return false.
 			for (Iterator<GUID> iter = tokenSet.iterator(); !isBlocked && iter.hasNext();) {
-				Area tokenFog = new Area(zoneFog);
 				GUID tokenGUID = iter.next();
 				Token token = zone.getToken(tokenGUID);
 				if (token == null) {
 					continue;
 				}
-				if (useTokenExposedArea) {
-					ExposedAreaMetaData meta = zone.getExposedAreaMetaData(token.getExposedAreaGUID());
-					tokenFog.add(meta.getExposedAreaHistory());
-				}
+				// the zone keeps which cells are exposed, so most moves don't have to look at the area itself
+				ExposedCells tokenFog = zone.getExposedCells(useTokenExposedArea ? token.getExposedAreaGUID() : null);
 				Rectangle tokenSize = token.getBounds(zone);
 				Rectangle destination = new Rectangle(tokenSize.x + deltaX, tokenSize.y + deltaY, tokenSize.width, tokenSize.height);
 				isBlocked = !grid.validateMove(token, destination, dirx, diry, tokenFog);
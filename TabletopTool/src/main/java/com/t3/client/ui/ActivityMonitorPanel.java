@@ -14,13 +14,19 @@ package com.t3.client.ui;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Image;
+import java.awt.event.MouseEvent;
 import java.io.IOException;
+import java.util.Map;
 
 import javax.swing.JComponent;
 
+import com.t3.client.AppState;
+import com.t3.client.TabletopTool;
 import com.t3.client.swing.Animatable;
 import com.t3.client.swing.AnimationManager;
+import com.t3.clientserver.NetworkSerializer;
 import com.t3.clientserver.connection.ActivityListener;
+import com.t3.clientserver.connection.OutboundQueue;
 import com.t3.image.ImageUtil;
 import com.t3.language.I18N;
 
@@ -70,6 +76,28 @@ public class ActivityMonitorPanel extends JComponent implements ActivityListener
 		setToolTipText(I18N.getString("ActivityMonitorPanel.colorDefinition")); //$NON-NLS-1$
 	}
 
+	/**
+	 * While profiling data is collected the tooltip also shows the compression statistics of the
+	 * network messages and the outbound queues of the connections.
+	 */
+	@Override
+	public String getToolTipText(MouseEvent event) {
+		String text = super.getToolTipText(event);
+		if (AppState.isCollectProfilingData()) {
+			StringBuilder queues = new StringBuilder();
+			if (TabletopTool.getConnection() != null) {
+				queues.append("server: ").append(TabletopTool.getConnection().getOutQueue()).append('\n'); //$NON-NLS-1$
+			}
+			if (TabletopTool.isHostingServer()) {
+				for (Map.Entry<String, OutboundQueue> entry : TabletopTool.getServer().getConnection().getOutQueues().entrySet()) {
+					queues.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n'); //$NON-NLS-1$
+				}
+			}
+			text = "<html>" + text + "<pre>" + NetworkSerializer.getStatistics() + "\n" + queues + "</pre></html>"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		}
+		return text;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -39,6 +39,7 @@ public class StartServerDialogPreferences {
 	private static final String KEY_WALKER_METRIC = "movementMetric";
 	private static final String KEY_USE_INDIVIDUAL_FOW = "useIndividualFOW";
 	private static final String KEY_AUTO_REVEAL_ON_MOVE = "autoRevealOnMovement";
+	private static final String KEY_NIO_TRANSPORT = "nioTransport";
 
 	private static Boolean useToolTipsForUnformattedRolls = null;
 
@@ -191,4 +192,12 @@ public class StartServerDialogPreferences {
 	public void setAutoRevealOnMovement(boolean flag) {
 		prefs.putBoolean(KEY_AUTO_REVEAL_ON_MOVE, flag);
 	}
+
+	public boolean getUseNioTransport() {
+		return prefs.getBoolean(KEY_NIO_TRANSPORT, false);
+	}
+
+	public void setUseNioTransport(boolean flag) {
+		prefs.putBoolean(KEY_NIO_TRANSPORT, flag);
+	}
 }
@@ -236,7 +236,11 @@ public class EditLookupTablePanel extends AbeillePanel<LookupTableTableModel> {
 					}
 					MD5Key image = null;
 					if (imageId != null && imageId.length() > 0) {
-						image = new MD5Key(imageId);
+						image = MD5Key.valueOf(imageId);
+						if (image == null) {
+							TabletopTool.showError(I18N.getText("EditLookupTablePanel.error.badImage", name, imageId, i));
+							return;
+						}
 						T3Util.uploadAsset(AssetManager.getAsset(image));
 					}
 					lookupTable.addEntry(min, max, value, image);
@@ -286,7 +290,7 @@ public class EditLookupTablePanel extends AbeillePanel<LookupTableTableModel> {
 
 		@Override
 		public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
-			setImageId(value != null && ((String) value).length() > 0 ? new MD5Key((String) value) : null, EditLookupTablePanel.this);
+			setImageId(value != null ? MD5Key.valueOf((String) value) : null, EditLookupTablePanel.this);
 			return this;
 		}
 	}
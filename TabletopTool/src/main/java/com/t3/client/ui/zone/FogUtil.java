@@ -24,6 +24,7 @@ import java.awt.event.MouseMotionAdapter;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -31,6 +32,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
@@ -45,6 +47,7 @@ import com.t3.client.AppUtil;
 import com.t3.client.TabletopTool;
 import com.t3.client.ui.zone.vbl.AreaOcean;
 import com.t3.client.ui.zone.vbl.AreaTree;
+import com.t3.client.ui.zone.vbl.VisibilitySweep;
 import com.t3.client.ui.zone.vbl.VisibleAreaSegment;
 import com.t3.guid.GUID;
 import com.t3.model.CellPoint;
@@ -60,7 +63,67 @@ import com.t3.model.grid.GridCapabilities;
 public class FogUtil {
 	private static final Logger log = Logger.getLogger(FogUtil.class);
 
+	/**
+	 * The ways {@link FogUtil#calculateVisibility(int, int, Area, AreaTree)} can cut the vision of a
+	 * token down to what the topology doesn't block.
+	 */
+	public enum VisibilityEngine {
+		/** subtracts the union of the shadows of all visible faces from the vision */
+		AREA,
+		/** sweeps a ray around the token and intersects the vision with the resulting polygon */
+		SWEEP
+	}
+
+	private static volatile VisibilityEngine visibilityEngine = parseVisibilityEngine(System.getProperty("t3.visibilityEngine"));
+
+	/**
+	 * @return the engine of the name in any case, or {@link VisibilityEngine#SWEEP} if there is no
+	 *         such engine
+	 */
+	// Package protected for testing
+	static VisibilityEngine parseVisibilityEngine(String name) {
+		if (name == null) {
+			return VisibilityEngine.SWEEP;
+		}
+		try {
+			return VisibilityEngine.valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+		} catch (IllegalArgumentException e) {
+			log.warn("Unknown visibility engine " + name + ", using " + VisibilityEngine.SWEEP);
+			return VisibilityEngine.SWEEP;
+		}
+	}
+
+	public static VisibilityEngine getVisibilityEngine() {
+		return visibilityEngine;
+	}
+
+	public static void setVisibilityEngine(VisibilityEngine engine) {
+		visibilityEngine = engine;
+	}
+
 	public static Area calculateVisibility(int x, int y, Area vision, AreaTree topology) {
+		if (visibilityEngine == VisibilityEngine.SWEEP) {
+			return calculateVisibilityBySweep(x, y, vision, topology);
+		}
+		return calculateVisibilityByArea(x, y, vision, topology);
+	}
+
+	private static Area calculateVisibilityBySweep(int x, int y, Area vision, AreaTree topology) {
+		vision = new Area(vision);
+		vision.transform(AffineTransform.getTranslateInstance(x, y));
+
+		Point origin = new Point(x, y);
+		AreaOcean ocean = topology.getOceanAt(origin);
+		if (ocean == null) {
+			return null;
+		}
+		// one intersection with a simple polygon instead of adding up a shadow per face
+		Rectangle2D bounds = vision.getBounds2D();
+		vision.intersect(new Area(VisibilitySweep.calculateVisibility(origin, ocean.getFaces(bounds), bounds)));
+		return vision;
+	}
+
+	private static Area calculateVisibilityByArea(int x, int y, Area vision, AreaTree topology) {
 		CodeTimer timer = new CodeTimer("calculateVisibility");
 
 		vision = new Area(vision);
@@ -78,7 +141,10 @@ public class FogUtil {
 		}
 		int skippedAreas = 0;
 
-		List<VisibleAreaSegment> segmentList = new ArrayList<VisibleAreaSegment>(ocean.getVisibleAreaSegments(origin));
+		// islands beyond the reach of the vision can only shadow what is out of reach anyway
+		Rectangle2D bounds = vision.getBounds2D();
+		bounds.add(origin);
+		List<VisibleAreaSegment> segmentList = new ArrayList<VisibleAreaSegment>(ocean.getVisibleAreaSegments(origin, bounds));
 		Collections.sort(segmentList);
 
 		List<Area> clearedAreaList = new LinkedList<Area>();
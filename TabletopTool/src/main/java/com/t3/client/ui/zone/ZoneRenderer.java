@@ -102,6 +102,7 @@ import com.t3.model.Asset;
 import com.t3.model.AssetManager;
 import com.t3.model.CellPoint;
 import com.t3.model.ExposedAreaMetaData;
+import com.t3.model.FogBitmap;
 import com.t3.model.Label;
 import com.t3.model.LightSource;
 import com.t3.model.ModelChangeEvent;
@@ -135,6 +136,12 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 	private static final Logger log = Logger.getLogger(ZoneRenderer.class);
 
 	public static final int MIN_GRID_SIZE = 10;
+	/** the edge length in screen pixels of the tiles the fog is cached in */
+	private static final int FOG_TILE_SIZE = 256;
+	/** the fog tiles kept at least, enough to pan across a small window and back */
+	private static final int MIN_FOG_TILES = 32;
+	/** the light and aura layers reach this fraction of the screen size beyond each of its edges */
+	private static final int LIGHT_LAYER_MARGIN = 4;
 	private static LightSourceIconOverlay lightSourceIconOverlay = new LightSourceIconOverlay();
 	protected Zone zone;
 	private final ZoneView zoneView;
@@ -149,6 +156,8 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 	private final List<Set<GUID>> selectedTokenSetHistory = new ArrayList<Set<GUID>>();
 	private final List<LabelLocation> labelLocationList = new LinkedList<LabelLocation>();
 	private Map<Token, Set<Token>> tokenStackMap;
+	// the zone region the token lists were last taken from
+	private Rectangle tokenRegion;
 	private final Map<GUID, SelectionSet> selectionSetMap = new HashMap<GUID, SelectionSet>();
 //	private final Map<Token, TokenLocation> tokenLocationCache = Collections.synchronizedMap(new HashMap<Token, TokenLocation>());
 	private final Map<Token, TokenLocation> tokenLocationCache = new HashMap<Token, TokenLocation>();
@@ -165,10 +174,13 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 	private Zone.Layer activeLayer;
 	private String loadingProgress;
 	private boolean isLoaded;
-	private BufferedImage fogBuffer;
+	// The fog in tiles of the scaled zone, so that panning only has to render the tiles it uncovers
+	private final FogTileCache fogTiles = new FogTileCache();
 	// I don't like this, at all, but it'll work for now, basically keep track of when the fog cache
 	// needs to be flushed in the case of switching views
 	private boolean flushFog = true;
+	// counts the fog flushes, tiles of older versions are never drawn again
+	private int fogVersion;
 	private Area exposedFogArea; // In screen space
 	private BufferedImage miniImage;
 	private BufferedImage backbuffer;
@@ -176,10 +188,14 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 	private int lastX;
 	private int lastY;
 	private double lastScale;
+	// the copy of the map image the backbuffer was drawn with
+	private BufferedImage lastMapImage;
 	private Area visibleScreenArea;
 	private final List<ItemRenderer> itemRenderList = new LinkedList<ItemRenderer>();
 	private PlayerView lastView;
 	private Set<GUID> visibleTokenSet;
+	// the images drawn in this frame, they stay in the image cache while they are on screen
+	private final Set<MD5Key> visibleImageSet = new HashSet<MD5Key>();
 	private CodeTimer timer;
 
 	public static enum TokenMoveCompletion {
@@ -196,6 +212,15 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 		setFocusable(true);
 		setZoneScale(new Scale());
 		zoneView = new ZoneView(zone);
+		zoneView.setCalculationListener(new Runnable() {
+			@Override
+			public void run() {
+				// Vision and lights caught up, show them
+				renderedLightMap = null;
+				renderedAuraMap = null;
+				flushFog();
+			}
+		});
 
 		// DnD
 		setTransferHandler(new TransferableHelper());
@@ -391,6 +416,9 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 		moveTimer.start("setup");
 		Token keyToken = zone.getToken(keyTokenId);
 		CellPoint originPoint = zone.getGrid().convert(new ZonePoint(keyToken.getX(), keyToken.getY()));
+		if (set.getWalker() != null) {
+			set.getWalker().finishLastWaypoint();
+		}
 		Path<? extends AbstractPoint> path = set.getWalker() != null ? set.getWalker().getPath() : set.gridlessPath;
 
 		Set<GUID> selectionSet = set.getTokens();
@@ -572,7 +600,7 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 		flushDrawableRenderer();
 		replacementImageMap.clear();
 		flipImageMap.clear();
-		fogBuffer = null;
+		fogTiles.clear();
 		renderedLightMap = null;
 		renderedAuraMap = null;
 
@@ -739,7 +767,8 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 	}
 
 	public Rectangle fogExtents() {
-		return zone.getExposedArea().getBounds();
+		FogBitmap fog = zone.getExposedFog();
+		return fog != null ? fog.getBounds() : zone.getExposedArea().getBounds();
 	}
 
 	/**
@@ -939,6 +968,7 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 		tokenLocationMap.clear();
 		markerLocationList.clear();
 		itemRenderList.clear();
+		visibleImageSet.clear();
 
 		timer.stop("setup");
 
@@ -978,7 +1008,14 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 		timer.start("calcs-2");
 		{
 			// renderMoveSelectionSet() requires exposedFogArea to be properly set
-			exposedFogArea = new Area(zone.getExposedArea());
+			Rectangle2D zoneViewBounds = null;
+			try {
+				// only what is on screen is needed
+				zoneViewBounds = af.createInverse().createTransformedShape(viewArea).getBounds2D();
+			} catch (NoninvertibleTransformException nte) {
+				// use the whole exposed area then
+			}
+			exposedFogArea = zone.getExposedArea(zoneViewBounds);
 			if (exposedFogArea != null && zone.hasFog()) {
 				if (visibleScreenArea != null && !visibleScreenArea.isEmpty())
 					exposedFogArea.intersect(visibleScreenArea);
@@ -1000,6 +1037,14 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 		}
 		timer.stop("calcs-2");
 
+		// Only the tokens that can be on screen are handed to renderTokens()
+		Rectangle zoneViewport = getTokenRegion(viewRect);
+		if (!zoneViewport.equals(tokenRegion)) {
+			// stacks are only calculated for the tokens in the region
+			tokenStackMap = null;
+			tokenRegion = zoneViewport;
+		}
+
 		// Rendering pipeline
 		if (zone.drawBoard()) {
 			timer.start("board");
@@ -1013,7 +1058,7 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 				renderDrawableOverlay(g2d, backgroundDrawableRenderer, view, drawables);
 				timer.stop("drawableBackground");
 			}
-			List<Token> background = zone.getBackgroundStamps();
+			List<Token> background = zone.getTokensInRegion(Zone.Layer.BACKGROUND, zoneViewport);
 			if (!background.isEmpty()) {
 				timer.start("tokensBackground");
 				renderTokens(g2d, background, view);
@@ -1035,7 +1080,7 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 
 		if (Zone.Layer.OBJECT.isEnabled()) {
 			// ... Images on the object layer are always ABOVE the grid.
-			List<Token> stamps = zone.getStampTokens();
+			List<Token> stamps = zone.getTokensInRegion(Zone.Layer.OBJECT, zoneViewport);
 			if (!stamps.isEmpty()) {
 				timer.start("tokensStamp");
 				renderTokens(g2d, stamps, view);
@@ -1089,7 +1134,7 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 						renderDrawableOverlay(g2d, gmDrawableRenderer, view, drawables);
 						timer.stop("drawableGM");
 					}
-					List<Token> stamps = zone.getGMStamps();
+					List<Token> stamps = zone.getTokensInRegion(Zone.Layer.GM, zoneViewport);
 					if (!stamps.isEmpty()) {
 						timer.start("tokensGM");
 						renderTokens(g2d, stamps, view);
@@ -1097,7 +1142,7 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 					}
 				}
 			}
-			List<Token> tokens = zone.getTokens();
+			List<Token> tokens = zone.getTokensInRegion(Zone.Layer.TOKEN, zoneViewport);
 			if (!tokens.isEmpty()) {
 				timer.start("tokens");
 				renderTokens(g2d, tokens, view);
@@ -1180,6 +1225,7 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 			}
 		}
 		timer.stop("lightSourceIconOverlay.paintOverlay");
+		ImageManager.setPinnedImages(this, visibleImageSet);
 //		g2d.setColor(Color.red);
 //		for (AreaMeta meta : getTopologyAreaData().getAreaList()) {
 //			Area area = new Area(meta.getArea().getBounds()).createTransformedArea(AffineTransform.getScaleInstance(getScale(), getScale()));
@@ -1206,7 +1252,7 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 		return timer;
 	}
 
-	private Map<Paint, List<Area>> renderedLightMap;
+	private LightLayer renderedLightMap;
 
 	private void renderLights(Graphics2D g, PlayerView view) {
 		// Setup
@@ -1217,23 +1263,12 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 			clip.intersect(visibleScreenArea);
 			newG.setClip(clip);
 		}
-		SwingUtil.useAntiAliasing(newG);
 		timer.stop("lights-1");
-		timer.start("lights-2");
-
-		AffineTransform af = g.getTransform();
-		af.translate(getViewOffsetX(), getViewOffsetY());
-		af.scale(getScale(), getScale());
-		newG.setTransform(af);
 
-		newG.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, AppPreferences.getLightOverlayOpacity() / 255.0f));
-		timer.stop("lights-2");
-
-		if (renderedLightMap == null) {
+		if (renderedLightMap == null || !renderedLightMap.covers(getSize(), getViewOffsetX(), getViewOffsetY(), getScale())) {
 			timer.start("lights-3");
 			// Organize
-			Map<Paint, List<Area>> colorMap = new HashMap<Paint, List<Area>>();
-			List<DrawableLight> otherLightList = new LinkedList<DrawableLight>();
+			Map<Paint, List<Area>> colorMap = new LinkedHashMap<Paint, List<Area>>();
 			for (DrawableLight light : zoneView.getDrawableLights()) {
 				if (light.getType() == LightSource.Type.NORMAL) {
 					if (zone.getVisionType() == Zone.VisionType.NIGHT && light.getPaint() != null) {
@@ -1242,67 +1277,25 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 							areaList = new ArrayList<Area>();
 							colorMap.put(light.getPaint().getPaint(), areaList);
 						}
-						areaList.add(new Area(light.getArea()));
+						areaList.add(light.getArea());
 					}
-				} else {
-					// I'm not a huge fan of this hard wiring, but I haven't thought of a better way yet, so this'll work fine for now
-					otherLightList.add(light);
 				}
 			}
 			timer.stop("lights-3");
 
 			timer.start("lights-4");
-			// Combine same colors to avoid ugly overlap
-			// Avoid combining _all_ of the lights as the area adds are very expensive, just combine those that overlap
-			for (List<Area> areaList : colorMap.values()) {
-				List<Area> sourceList = new LinkedList<Area>(areaList);
-				areaList.clear();
-
-				outter:
-				while (sourceList.size() > 0) {
-					Area area = sourceList.remove(0);
-
-					for (ListIterator<Area> iter = sourceList.listIterator(); iter.hasNext();) {
-						Area currArea = iter.next();
-
-						if (currArea.getBounds().intersects(area.getBounds())) {
-							iter.remove();
-							area.add(currArea);
-							sourceList.add(area);
-							continue outter;
-						}
-					}
-					// If we are here, we didn't find any other area to merge with
-					areaList.add(area);
-				}
-				// Cut out the bright light
-				if (areaList.size() > 0) {
-					for (Area area : areaList) {
-						for (Area brightArea : zoneView.getBrightLights()) {
-							area.subtract(brightArea);
-						}
-					}
-				}
-			}
-			renderedLightMap = new LinkedHashMap<Paint, List<Area>>();
-			for (Entry<Paint, List<Area>> entry : colorMap.entrySet()) {
-				renderedLightMap.put(entry.getKey(), entry.getValue());
-			}
+			// Same colors are combined in the raster, the bright light is cut out of all of them
+			renderedLightMap = renderLightLayer(colorMap, zoneView.getBrightLights(), AppPreferences.getLightOverlayOpacity() / 255.0f);
 			timer.stop("lights-4");
 		}
 		// Draw
 		timer.start("lights-5");
-		for (Entry<Paint, List<Area>> entry : renderedLightMap.entrySet()) {
-			newG.setPaint(entry.getKey());
-			for (Area area : entry.getValue()) {
-				newG.fill(area);
-			}
-		}
+		renderedLightMap.draw(newG, getViewOffsetX(), getViewOffsetY());
 		timer.stop("lights-5");
 		newG.dispose();
 	}
 
-	private Map<Paint, Area> renderedAuraMap;
+	private LightLayer renderedAuraMap;
 
 	private void renderAuras(Graphics2D g, PlayerView view) {
 		// Setup
@@ -1313,22 +1306,12 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 			clip.intersect(visibleScreenArea);
 			newG.setClip(clip);
 		}
-		SwingUtil.useAntiAliasing(newG);
 		timer.stop("auras-1");
-		timer.start("auras-2");
-
-		AffineTransform af = g.getTransform();
-		af.translate(getViewOffsetX(), getViewOffsetY());
-		af.scale(getScale(), getScale());
-		newG.setTransform(af);
 
-		newG.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, AppPreferences.getAuraOverlayOpacity() / 255.0f));
-		timer.stop("auras-2");
-
-		if (renderedAuraMap == null) {
+		if (renderedAuraMap == null || !renderedAuraMap.covers(getSize(), getViewOffsetX(), getViewOffsetY(), getScale())) {
 
 			// Organize
-			Map<Paint, List<Area>> colorMap = new HashMap<Paint, List<Area>>();
+			Map<Paint, List<Area>> colorMap = new LinkedHashMap<Paint, List<Area>>();
 
 			timer.start("auras-4");
 			Color paintColor = new Color(255, 255, 255, 150);
@@ -1336,31 +1319,155 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 				Paint paint = light.getPaint() != null ? light.getPaint().getPaint() : paintColor;
 				List<Area> list = colorMap.get(paint);
 				if (list == null) {
-					list = new LinkedList<Area>();
-					list.add(new Area(light.getArea()));
+					list = new ArrayList<Area>();
 					colorMap.put(paint, list);
+				}
+				list.add(light.getArea());
+			}
+			renderedAuraMap = renderLightLayer(colorMap, Collections.<Area> emptySet(), AppPreferences.getAuraOverlayOpacity() / 255.0f);
+			timer.stop("auras-4");
+		}
+
+		// Draw
+		timer.start("auras-5");
+		renderedAuraMap.draw(newG, getViewOffsetX(), getViewOffsetY());
+		timer.stop("auras-5");
+
+		newG.dispose();
+	}
+
+	/**
+	 * Renders the areas of each color into a mask, which takes care of the overlaps of the areas,
+	 * and then paints the color through the mask onto the layer. Cuts the other areas out of the
+	 * layer at the end. The layer covers the screen and a margin around it, so it can be reused
+	 * while panning a bit.
+	 * 
+	 * @param cutOut
+	 *            the areas that don't get any color, like the bright light
+	 * @param opacity
+	 *            the opacity of each color
+	 */
+	private LightLayer renderLightLayer(Map<Paint, List<Area>> colorMap, Collection<Area> cutOut, float opacity) {
+		Dimension size = getSize();
+		double scale = getScale();
+		// In pixels of the scaled zone
+		Rectangle viewport = new Rectangle(-getViewOffsetX(), -getViewOffsetY(), size.width, size.height);
+		Rectangle reusable = new Rectangle(viewport);
+		reusable.grow(size.width / LIGHT_LAYER_MARGIN, size.height / LIGHT_LAYER_MARGIN);
+
+		Rectangle bounds = null;
+		for (List<Area> areaList : colorMap.values()) {
+			for (Area area : areaList) {
+				Rectangle areaBounds = area.getBounds();
+				if (bounds == null) {
+					bounds = areaBounds;
 				} else {
-					list.get(0).add(new Area(light.getArea()));
+					bounds.add(areaBounds);
 				}
 			}
+		}
+		if (bounds == null) {
+			return new LightLayer(null, reusable, reusable, scale);
+		}
+		Rectangle region = reusable.intersection(AffineTransform.getScaleInstance(scale, scale).createTransformedShape(bounds).getBounds());
+		if (region.isEmpty()) {
+			return new LightLayer(null, region, reusable, scale);
+		}
+		AffineTransform af = new AffineTransform();
+		af.translate(-region.x, -region.y);
+		af.scale(scale, scale);
+
+		// The whole image in zone coordinates, with a pixel to spare for rounding
+		Rectangle2D all = new Rectangle2D.Double((region.x - 1) / scale, (region.y - 1) / scale, (region.width + 2) / scale, (region.height + 2) / scale);
 
-			renderedAuraMap = new LinkedHashMap<Paint, Area>();
+		BufferedImage layer = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_ARGB);
+		BufferedImage mask = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D layerG = layer.createGraphics();
+		Graphics2D maskG = mask.createGraphics();
+		try {
+			SwingUtil.useAntiAliasing(maskG);
+			Rectangle image = new Rectangle(0, 0, region.width, region.height);
 			for (Entry<Paint, List<Area>> entry : colorMap.entrySet()) {
-				renderedAuraMap.put(entry.getKey(), entry.getValue().get(0));
+				// Only touch the pixels of this color
+				Rectangle colorBounds = null;
+				for (Area area : entry.getValue()) {
+					Rectangle areaBounds = af.createTransformedShape(area.getBounds2D()).getBounds();
+					if (colorBounds == null) {
+						colorBounds = areaBounds;
+					} else {
+						colorBounds.add(areaBounds);
+					}
+				}
+				colorBounds.grow(1, 1);
+				colorBounds = colorBounds.intersection(image);
+				if (colorBounds.isEmpty()) {
+					continue;
+				}
+				maskG.setTransform(new AffineTransform());
+				maskG.setClip(colorBounds);
+				maskG.setComposite(AlphaComposite.Clear);
+				maskG.fill(colorBounds);
+
+				maskG.setTransform(af);
+				maskG.setComposite(AlphaComposite.Src);
+				maskG.setColor(Color.WHITE);
+				for (Area area : entry.getValue()) {
+					maskG.fill(area);
+				}
+				// Keep the coverage of the mask, take the color of the paint
+				maskG.setComposite(AlphaComposite.SrcIn);
+				maskG.setPaint(entry.getKey());
+				maskG.fill(all);
+
+				layerG.setClip(colorBounds);
+				layerG.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, opacity));
+				layerG.drawImage(mask, 0, 0, null);
+			}
+			// Cut out of all colors at once
+			layerG.setClip(null);
+			layerG.setTransform(af);
+			SwingUtil.useAntiAliasing(layerG);
+			layerG.setComposite(AlphaComposite.Clear);
+			for (Area area : cutOut) {
+				if (area.intersects(all)) {
+					layerG.fill(area);
+				}
 			}
-			timer.stop("auras-4");
+		} finally {
+			maskG.dispose();
+			layerG.dispose();
 		}
+		return new LightLayer(layer, region, reusable, scale);
+	}
 
-		// Draw
-		timer.start("auras-5");
-		for (Entry<Paint, Area> entry : renderedAuraMap.entrySet()) {
+	/**
+	 * The lights or the auras as one image, in pixels of the scaled zone.
+	 */
+	private static final class LightLayer {
+		private final BufferedImage image;
+		private final Rectangle region;
+		private final Rectangle reusable;
+		private final double scale;
 
-			newG.setPaint(entry.getKey());
-			newG.fill(entry.getValue());
+		LightLayer(BufferedImage image, Rectangle region, Rectangle reusable, double scale) {
+			this.image = image;
+			this.region = region;
+			this.reusable = reusable;
+			this.scale = scale;
 		}
-		timer.stop("auras-5");
 
-		newG.dispose();
+		/**
+		 * @return whether the layer has everything the screen shows
+		 */
+		boolean covers(Dimension size, int offsetX, int offsetY, double scale) {
+			return this.scale == scale && reusable.contains(new Rectangle(-offsetX, -offsetY, size.width, size.height));
+		}
+
+		void draw(Graphics2D g, int offsetX, int offsetY) {
+			if (image != null) {
+				g.drawImage(image, offsetX + region.x, offsetY + region.y, null);
+			}
+		}
 	}
 
 	/**
@@ -1488,168 +1595,202 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 		timer.stop("labels-1");
 	}
 
-	// Private cache variables just for renderFog() and no one else. :)
-	Integer fogX = null;
-	Integer fogY = null;
-
-	private Area renderFog(Graphics2D g, PlayerView view) {
+	private void renderFog(Graphics2D g, PlayerView view) {
 		Dimension size = getSize();
-		Area fogClip = new Area(new Rectangle(0, 0, size.width, size.height));
-		Area combined = null;
-
-		// Optimization for panning
-		if (!flushFog && fogX != null && fogY != null && (fogX != getViewOffsetX() || fogY != getViewOffsetY())) {
-			// This optimization does not seem to keep the alpha channel correctly, and sometimes leaves
-			// lines on some graphics boards, we'll leave it out for now
-//        	if (Math.abs(fogX - getViewOffsetX()) < size.width && Math.abs(fogY - getViewOffsetY()) < size.height) {
-//        		int deltaX = getViewOffsetX() - fogX;
-//        		int deltaY = getViewOffsetY() - fogY;
-//
-//            	Graphics2D buffG = fogBuffer.createGraphics();
-//
-//            	buffG.setComposite(AlphaComposite.Src);
-//            	buffG.copyArea(0, 0, size.width, size.height, deltaX, deltaY);
-//            	buffG.dispose();
-//
-//            	fogClip = new Area();
-//            	if (deltaX < 0) {
-//            		fogClip.add(new Area(new Rectangle(size.width+deltaX, 0, -deltaX, size.height)));
-//            	} else if (deltaX > 0){
-//            		fogClip.add(new Area(new Rectangle(0, 0, deltaX, size.height)));
-//            	}
-//
-//            	if (deltaY < 0) {
-//            		fogClip.add(new Area(new Rectangle(0, size.height + deltaY, size.width, -deltaY)));
-//            	} else if (deltaY > 0) {
-//            		fogClip.add(new Area(new Rectangle(0, 0, size.width, deltaY)));
-//            	}
-//        	}
-			flushFog = true;
-		}
-		boolean cacheNotValid = (fogBuffer == null || fogBuffer.getWidth() != size.width || fogBuffer.getHeight() != size.height);
 		timer.start("renderFog");
-		if (flushFog || cacheNotValid) {
-			fogX = getViewOffsetX();
-			fogY = getViewOffsetY();
-
-			boolean newImage = false;
-			if (cacheNotValid) {
-				newImage = true;
-				timer.start("renderFog-allocateBufferedImage");
-				fogBuffer = new BufferedImage(size.width, size.height, view.isGMView() ? Transparency.TRANSLUCENT : Transparency.BITMASK);
-				timer.stop("renderFog-allocateBufferedImage");
-			}
-			Graphics2D buffG = fogBuffer.createGraphics();
-			buffG.setClip(fogClip);
-			SwingUtil.useAntiAliasing(buffG);
-
-			// XXX Is this even needed?  Immediately below is another call to fillRect() with the same dimensions!
-			if (!newImage) {
-				timer.start("renderFog-clearOldImage");
-//				Composite oldComposite = buffG.getComposite();
-				buffG.setComposite(AlphaComposite.Clear);
-				buffG.fillRect(0, 0, size.width, size.height);
-//				buffG.setComposite(oldComposite);
-				timer.stop("renderFog-clearOldImage");
-			}
-			timer.start("renderFog-fill");
-			// Fill
-			double scale = getScale();
-			buffG.setPaint(zone.getFogPaint().getPaint(fogX, fogY, scale));
-			buffG.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC, view.isGMView() ? .6f : 1f)); // JFJ this fixes the GM exposed area view.
-			buffG.fillRect(0, 0, size.width, size.height);
-			timer.stop("renderFog-fill");
-
-			// Cut out the exposed area
-			AffineTransform af = new AffineTransform();
-			af.translate(fogX, fogY);
-			af.scale(scale, scale);
+		if (flushFog) {
+			fogVersion++;
+			flushFog = false;
+		}
+		// The tiles are anchored at the origin of the zone, so they stay valid while panning
+		double scale = getScale();
+		int offsetX = getViewOffsetX();
+		int offsetY = getViewOffsetY();
+		int tileX0 = (int) Math.floor(-offsetX / (double) FOG_TILE_SIZE);
+		int tileY0 = (int) Math.floor(-offsetY / (double) FOG_TILE_SIZE);
+		int tileX1 = (int) Math.floor((size.width - 1 - offsetX) / (double) FOG_TILE_SIZE);
+		int tileY1 = (int) Math.floor((size.height - 1 - offsetY) / (double) FOG_TILE_SIZE);
+		fogTiles.setCapacity(2 * (tileX1 - tileX0 + 1) * (tileY1 - tileY0 + 1));
+
+		// The tiles of this frame are held here, the ones rendered below may push hits out of the cache
+		Map<FogTileKey, BufferedImage> frameTiles = new HashMap<FogTileKey, BufferedImage>();
+		List<FogTileKey> missing = new ArrayList<FogTileKey>();
+		for (int y = tileY0; y <= tileY1; y++) {
+			for (int x = tileX0; x <= tileX1; x++) {
+				FogTileKey key = new FogTileKey(view, x, y, scale, fogVersion);
+				BufferedImage tile = fogTiles.get(key);
+				if (tile != null) {
+					frameTiles.put(key, tile);
+				} else {
+					missing.add(key);
+				}
+			}
+		}
+		timer.count("renderFog-tileHits", frameTiles.size());
+		timer.count("renderFog-tileMisses", missing.size());
 
-			buffG.setTransform(af);
-//			buffG.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC, view.isGMView() ? .6f : 1f));
-			buffG.setComposite(AlphaComposite.getInstance(AlphaComposite.CLEAR));
+		if (!missing.isEmpty()) {
+			renderFogTiles(view, missing, frameTiles);
+		}
+		for (int y = tileY0; y <= tileY1; y++) {
+			for (int x = tileX0; x <= tileX1; x++) {
+				BufferedImage tile = frameTiles.get(new FogTileKey(view, x, y, scale, fogVersion));
+				g.drawImage(tile, offsetX + x * FOG_TILE_SIZE, offsetY + y * FOG_TILE_SIZE, this);
+			}
+		}
+		timer.stop("renderFog");
+	}
 
-			timer.start("renderFog-visibleArea");
-			Area visibleArea = zoneView.getVisibleArea(view);
-			timer.stop("renderFog-visibleArea");
+	/**
+	 * Renders the region covering the missing tiles in one go and cuts it into tiles, which are put into the cache
+	 * and into the given tiles of the frame.
+	 */
+	private void renderFogTiles(PlayerView view, List<FogTileKey> missing, Map<FogTileKey, BufferedImage> frameTiles) {
+		int tileX0 = Integer.MAX_VALUE, tileY0 = Integer.MAX_VALUE, tileX1 = Integer.MIN_VALUE, tileY1 = Integer.MIN_VALUE;
+		for (FogTileKey key : missing) {
+			tileX0 = Math.min(tileX0, key.x);
+			tileY0 = Math.min(tileY0, key.y);
+			tileX1 = Math.max(tileX1, key.x);
+			tileY1 = Math.max(tileY1, key.y);
+		}
+		// The region in pixels of the scaled zone
+		int originX = tileX0 * FOG_TILE_SIZE;
+		int originY = tileY0 * FOG_TILE_SIZE;
+		int width = (tileX1 - tileX0 + 1) * FOG_TILE_SIZE;
+		int height = (tileY1 - tileY0 + 1) * FOG_TILE_SIZE;
+
+		timer.start("renderFog-allocateBufferedImage");
+		BufferedImage fogBuffer = new BufferedImage(width, height, view.isGMView() ? Transparency.TRANSLUCENT : Transparency.BITMASK);
+		timer.stop("renderFog-allocateBufferedImage");
+		Graphics2D buffG = fogBuffer.createGraphics();
+		SwingUtil.useAntiAliasing(buffG);
+
+		timer.start("renderFog-fill");
+		// Fill
+		double scale = getScale();
+		buffG.setPaint(zone.getFogPaint().getPaint(-originX, -originY, scale));
+		buffG.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC, view.isGMView() ? .6f : 1f)); // JFJ this fixes the GM exposed area view.
+		buffG.fillRect(0, 0, width, height);
+		timer.stop("renderFog-fill");
 
-			String msg = null;
-			if (timer.isEnabled()) {
-				List<Token> list = view.getTokens();
-				msg = "renderFog-combined(" + (list == null ? 0 : list.size()) + ")";
-			}
-			timer.start(msg);
-			combined = zone.getExposedArea(view);
-			timer.stop(msg);
-
-			timer.start("renderFogArea");
-			Area exposedArea = null;
-			Area tempArea = new Area();
-			boolean combinedView = !zoneView.isUsingVision() || TabletopTool.isPersonalServer() || !TabletopTool.getServerPolicy().isUseIndividualFOW() || view.isGMView();
-
-			if (view.getTokens() != null) {
-				// if there are tokens selected combine the areas, then, if individual FOW is enabled
-				// we pass the combined exposed area to build the soft FOW and visible area.
-				for (Token tok : view.getTokens()) {
-					ExposedAreaMetaData meta = zone.getExposedAreaMetaData(tok.getExposedAreaGUID());
-					exposedArea = meta.getExposedAreaHistory();
-					tempArea.add(new Area(exposedArea));
-				}
-				if (combinedView) {
-//					combined = zone.getExposedArea(view);
-					buffG.fill(combined);
-					renderFogArea(buffG, view, combined, visibleArea);
-					renderFogOutline(buffG, view, combined);
-				} else {
-					// 'combined' already includes the area encompassed by 'tempArea', so just
-					// use 'combined' instead in this block of code?
-					tempArea.add(combined);
-					buffG.fill(tempArea);
-					renderFogArea(buffG, view, tempArea, visibleArea);
-					renderFogOutline(buffG, view, tempArea);
-				}
-			} else {
-				// No tokens selected, so if we are using Individual FOW, we build up all the owned tokens
-				// exposed area's to build the soft FOW.
-				if (combinedView) {
-					if (combined.isEmpty()) {
-						combined = zone.getExposedArea();
-					}
-					buffG.fill(combined);
-					renderFogArea(buffG, view, combined, visibleArea);
-					renderFogOutline(buffG, view, combined);
-				} else {
-					Area myCombined = new Area();
-					List<Token> myToks = zone.getTokens();
-					for (Token tok : myToks) {
-						if (!AppUtil.playerOwns(tok)) { // Only here if !isGMview() so should the tokens already be in PlayerView.getTokens()?
-							continue;
-						}
-						ExposedAreaMetaData meta = zone.getExposedAreaMetaData(tok.getExposedAreaGUID());
-						exposedArea = meta.getExposedAreaHistory();
-						myCombined.add(new Area(exposedArea));
-					}
-					buffG.fill(myCombined);
-					renderFogArea(buffG, view, myCombined, visibleArea);
-					renderFogOutline(buffG, view, myCombined);
-				}
+		// Cut out the exposed area
+		AffineTransform af = new AffineTransform();
+		af.translate(-originX, -originY);
+		af.scale(scale, scale);
+
+		buffG.setTransform(af);
+//		buffG.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC, view.isGMView() ? .6f : 1f));
+		buffG.setComposite(AlphaComposite.getInstance(AlphaComposite.CLEAR));
+
+		timer.start("renderFog-visibleArea");
+		Area visibleArea = zoneView.getVisibleArea(view);
+		timer.stop("renderFog-visibleArea");
+
+		String msg = null;
+		if (timer.isEnabled()) {
+			List<Token> list = view.getTokens();
+			msg = "renderFog-combined(" + (list == null ? 0 : list.size()) + ")";
+		}
+		timer.start(msg);
+		Shape softFog;
+		FogBitmap fog = zone.getExposedFog(view);
+		if (fog != null) {
+			// only the part of the bitmap under the tiles is made into a shape
+			Rectangle2D region = new Rectangle2D.Double(originX / scale, originY / scale, width / scale, height / scale);
+			softFog = getSoftFog(view, fog).toPath(region);
+		} else {
+			softFog = getSoftFog(view, zone.getExposedArea(view));
+		}
+		timer.stop(msg);
+
+		timer.start("renderFogArea");
+		buffG.fill(softFog);
+		renderFogArea(buffG, view, softFog, visibleArea);
+		renderFogOutline(buffG, view, softFog, originX + getViewOffsetX(), originY + getViewOffsetY());
+		timer.stop("renderFogArea");
+		buffG.dispose();
+
+		// Each tile gets its own pixels, a subimage would keep the whole buffer alive as long as any of its tiles
+		for (int y = tileY0; y <= tileY1; y++) {
+			for (int x = tileX0; x <= tileX1; x++) {
+				BufferedImage tile = new BufferedImage(FOG_TILE_SIZE, FOG_TILE_SIZE, fogBuffer.getType());
+				tile.getRaster().setRect(-(x - tileX0) * FOG_TILE_SIZE, -(y - tileY0) * FOG_TILE_SIZE, fogBuffer.getRaster());
+				FogTileKey key = new FogTileKey(view, x, y, scale, fogVersion);
+				fogTiles.put(key, tile);
+				frameTiles.put(key, tile);
 			}
-//			renderFogArea(buffG, view, combined, visibleArea);
-			timer.stop("renderFogArea");
+		}
+	}
 
-//			timer.start("renderFogOutline");
-//			renderFogOutline(buffG, view, combined);
-//			timer.stop("renderFogOutline");
+	/**
+	 * @return the area the fog is cut out of for the view
+	 */
+	private Area getSoftFog(PlayerView view, Area combined) {
+		Area exposedArea = null;
+		Area tempArea = new Area();
+		boolean combinedView = !zoneView.isUsingVision() || TabletopTool.isPersonalServer() || !TabletopTool.getServerPolicy().isUseIndividualFOW() || view.isGMView();
+
+		if (view.getTokens() != null) {
+			// if there are tokens selected combine the areas, then, if individual FOW is enabled
+			// we pass the combined exposed area to build the soft FOW and visible area.
+			for (Token tok : view.getTokens()) {
+				ExposedAreaMetaData meta = zone.getExposedAreaMetaData(tok.getExposedAreaGUID());
+				exposedArea = meta.getExposedAreaHistory();
+				tempArea.add(new Area(exposedArea));
+			}
+			if (combinedView) {
+//				combined = zone.getExposedArea(view);
+				return combined;
+			}
+			// 'combined' already includes the area encompassed by 'tempArea', so just
+			// use 'combined' instead in this block of code?
+			tempArea.add(combined);
+			return tempArea;
+		}
+		// No tokens selected, so if we are using Individual FOW, we build up all the owned tokens
+		// exposed area's to build the soft FOW.
+		if (combinedView) {
+			if (combined.isEmpty()) {
+				combined = zone.getExposedArea();
+			}
+			return combined;
+		}
+		Area myCombined = new Area();
+		List<Token> myToks = zone.getTokens();
+		for (Token tok : myToks) {
+			if (!AppUtil.playerOwns(tok)) { // Only here if !isGMview() so should the tokens already be in PlayerView.getTokens()?
+				continue;
+			}
+			ExposedAreaMetaData meta = zone.getExposedAreaMetaData(tok.getExposedAreaGUID());
+			exposedArea = meta.getExposedAreaHistory();
+			myCombined.add(new Area(exposedArea));
+		}
+		return myCombined;
+	}
 
-			buffG.dispose();
-			flushFog = false;
+	/**
+	 * Like {@link #getSoftFog(PlayerView, Area)}, for the bitmap fog model.
+	 * 
+	 * @return the bitmap the fog is cut out of for the view
+	 */
+	private FogBitmap getSoftFog(PlayerView view, FogBitmap combined) {
+		boolean combinedView = !zoneView.isUsingVision() || TabletopTool.isPersonalServer() || !TabletopTool.getServerPolicy().isUseIndividualFOW() || view.isGMView();
+		if (view.getTokens() != null || combinedView) {
+			// the combined bitmap already holds the exposed areas of the selected tokens
+			return combined;
+		}
+		FogBitmap myCombined = new FogBitmap(combined.getResolution());
+		for (Token tok : zone.getTokens()) {
+			if (!AppUtil.playerOwns(tok)) {
+				continue;
+			}
+			ExposedAreaMetaData meta = zone.getExposedAreaMetaData(tok.getExposedAreaGUID());
+			myCombined.add(meta.getExposedFog());
 		}
-		timer.stop("renderFog");
-		g.drawImage(fogBuffer, 0, 0, this);
-		return combined;
+		return myCombined;
 	}
 
-	private void renderFogArea(final Graphics2D buffG, final PlayerView view, Area softFog, Area visibleArea) {
+	private void renderFogArea(final Graphics2D buffG, final PlayerView view, Shape softFog, Area visibleArea) {
 		if (zoneView.isUsingVision()) {
 			buffG.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC));
 			if (visibleArea != null && !visibleArea.isEmpty()) {
@@ -1674,7 +1815,13 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 		}
 	}
 
-	private void renderFogOutline(final Graphics2D buffG, PlayerView view, Area softFog) {
+	/**
+	 * @param screenX
+	 *            the x coordinate on screen of the buffer's left edge
+	 * @param screenY
+	 *            the y coordinate on screen of the buffer's top edge
+	 */
+	private void renderFogOutline(final Graphics2D buffG, PlayerView view, Shape softFog, int screenX, int screenY) {
 		//		if (false && AppPreferences.getUseSoftFogEdges()) {
 //			float alpha = view.isGMView() ? AppPreferences.getFogOverlayOpacity() / 255.0f : 1f;
 //			GraphicsUtil.renderSoftClipping(buffG, softFog, (int) (zone.getGrid().getSize() * getScale() * .25), alpha);
@@ -1682,7 +1829,7 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 		{
 			if (visibleScreenArea != null) {
 //				buffG.setClip(softFog);
-				buffG.setTransform(new AffineTransform());
+				buffG.setTransform(AffineTransform.getTranslateInstance(-screenX, -screenY));
 				buffG.setComposite(AlphaComposite.Src);
 				buffG.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 				buffG.setStroke(new BasicStroke(1));
@@ -1706,6 +1853,19 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 		Set<MD5Key> assetSet = zone.getAllAssetIds();
 		assetSet.remove(null); // remove bad data
 
+		// Load the ones on screen first
+		Set<MD5Key> visibleSet = new HashSet<MD5Key>();
+		if (zone.getMapAssetId() != null) {
+			visibleSet.add(zone.getMapAssetId());
+		}
+		Rectangle region = getTokenRegion(new Rectangle(getSize().width, getSize().height));
+		for (Zone.Layer layer : Zone.Layer.values()) {
+			for (Token token : zone.getTokensInRegion(layer, region)) {
+				visibleSet.add(token.getImageAssetId());
+			}
+		}
+		ImageManager.setImagePriorities(visibleSet, assetSet);
+
 		// Make sure they are loaded
 		int downloadCount = 0;
 		int cacheCount = 0;
@@ -1759,6 +1919,17 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 			drawBackground = true;
 			zone.setBoardChanged(false);
 		}
+		// Zoomed out, the map is drawn from a smaller copy of its image
+		BufferedImage mapImage = null;
+		BufferedImage mapCopy = null;
+		if (zone.getMapAssetId() != null) {
+			mapImage = ImageManager.getImage(zone.getMapAssetId(), this);
+			mapCopy = ImageManager.getImage(zone.getMapAssetId(), scale.getScale(), this);
+			visibleImageSet.add(zone.getMapAssetId());
+			if (mapCopy != lastMapImage) {
+				drawBackground = true;
+			}
+		}
 		if (drawBackground) {
 			Graphics2D bbg = backbuffer.createGraphics();
 
@@ -1768,12 +1939,12 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 			bbg.fillRect(0, 0, size.width, size.height);
 
 			// Map
-			if (zone.getMapAssetId() != null) {
-				BufferedImage mapImage = ImageManager.getImage(zone.getMapAssetId(), this);
+			if (mapImage != null) {
 				double scaleFactor = getScale();
-				bbg.drawImage(mapImage, getViewOffsetX() + (int) (zone.getBoardX() * scaleFactor), getViewOffsetY() + (int) (zone.getBoardY() * scaleFactor),
+				bbg.drawImage(mapCopy, getViewOffsetX() + (int) (zone.getBoardX() * scaleFactor), getViewOffsetY() + (int) (zone.getBoardY() * scaleFactor),
 						(int) (mapImage.getWidth() * scaleFactor), (int) (mapImage.getHeight() * scaleFactor), null);
 			}
+			lastMapImage = mapCopy;
 			bbg.dispose();
 			drawBackground = false;
 		}
@@ -2275,6 +2446,19 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 		return gp.createTransformedShape(AffineTransform.getScaleInstance(getScale(), getScale()));
 	}
 
+	/**
+	 * Returns the part of the zone that is visible in the given screen rectangle, grown by a grid
+	 * cell on every side so that tokens sticking out of their cell are not missed.
+	 */
+	private Rectangle getTokenRegion(Rectangle viewRect) {
+		ZonePoint topLeft = new ScreenPoint(viewRect.x, viewRect.y).convertToZone(this);
+		ZonePoint bottomRight = new ScreenPoint(viewRect.x + viewRect.width, viewRect.y + viewRect.height).convertToZone(this);
+		Rectangle region = new Rectangle(topLeft.x, topLeft.y, bottomRight.x - topLeft.x, bottomRight.y - topLeft.y);
+		int margin = zone.getGrid() != null ? zone.getGrid().getSize() : 0;
+		region.grow(margin, margin);
+		return region;
+	}
+
 	protected void renderTokens(Graphics2D g, List<Token> tokenList, PlayerView view) {
 		Graphics2D clippedG = g;
 		boolean isGMView = view.isGMView(); // speed things up
@@ -2345,6 +2529,7 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 
 			timer.start("tokenlist-1b");
 			BufferedImage image = ImageManager.getImage(token.getImageAssetId(), this);
+			visibleImageSet.add(token.getImageAssetId());
 			timer.stop("tokenlist-1b");
 
 			timer.start("tokenlist-1c");
@@ -2451,7 +2636,8 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 
 			// Moving ?
 			timer.start("renderTokens:ShowMovement");
-			if (isTokenMoving(token)) {
+			boolean moving = isTokenMoving(token);
+			if (moving) {
 				BufferedImage replacementImage = replacementImageMap.get(token);
 				if (replacementImage == null) {
 					replacementImage = ImageUtil.rgbToGrayscale(image);
@@ -2503,8 +2689,13 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 
 			timer.start("tokenlist-6");
 			// Position
-			Dimension imgSize = new Dimension(workImage.getWidth(), workImage.getHeight());
+			Dimension imgSize = new Dimension(image.getWidth(), image.getHeight());
 			SwingUtil.constrainTo(imgSize, footprintBounds.width, footprintBounds.height);
+			if (workImage == image && !moving) {
+				// Zoomed out, draw a smaller copy of the image
+				double imageScale = token.isSnapToScale() ? imgSize.width * getScale() / image.getWidth() : scaledWidth / image.getWidth();
+				workImage = ImageManager.getImage(token.getImageAssetId(), imageScale, this);
+			}
 
 			int offsetx = 0;
 			int offsety = 0;
@@ -3260,6 +3451,12 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 		// Pixel distance from keyToken's origin
 		private int offsetX;
 		private int offsetY;
+		private final Runnable repaintTask = new Runnable() {
+			@Override
+			public void run() {
+				repaint();
+			}
+		};
 
 		public SelectionSet(String playerId, GUID tokenGUID, Set<GUID> selectionList) {
 			selectionSet.addAll(selectionList);
@@ -3305,7 +3502,7 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 			if (ZoneRenderer.this.zone.getGrid().getCapabilities().isPathingSupported() && token.isSnapToGrid()) {
 				CellPoint point = zone.getGrid().convert(zp);
 
-				walker.replaceLastWaypoint(point);
+				walker.replaceLastWaypointLater(point, repaintTask);
 			} else {
 				if (gridlessPath.getCellPath().size() > 1) {
 					gridlessPath.replaceLastPoint(zp);
@@ -3436,6 +3633,63 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 		}
 	}
 
+	/**
+	 * A fog tile of a view, counted in tiles from the origin of the zone at a scale. The view tells
+	 * apart the fog of the selected tokens when each token has its own fog.
+	 */
+	private static final class FogTileKey {
+		final PlayerView view;
+		final int x;
+		final int y;
+		final double scale;
+		final int version;
+
+		FogTileKey(PlayerView view, int x, int y, double scale, int version) {
+			this.view = view;
+			this.x = x;
+			this.y = y;
+			this.scale = scale;
+			this.version = version;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof FogTileKey)) {
+				return false;
+			}
+			FogTileKey other = (FogTileKey) obj;
+			return x == other.x && y == other.y && version == other.version && Double.compare(scale, other.scale) == 0 && view.equals(other.view);
+		}
+
+		@Override
+		public int hashCode() {
+			long bits = Double.doubleToLongBits(scale);
+			return (((x * 31 + y) * 31 + version) * 31 + (int) (bits ^ (bits >>> 32))) * 31 + view.hashCode();
+		}
+	}
+
+	/**
+	 * The fog tiles, the least recently drawn ones are dropped once there are more than twice as many
+	 * as fit on screen.
+	 */
+	private static final class FogTileCache extends LinkedHashMap<FogTileKey, BufferedImage> {
+		private static final long serialVersionUID = 1L;
+		private int capacity = MIN_FOG_TILES;
+
+		FogTileCache() {
+			super(MIN_FOG_TILES * 2, 0.75f, true);
+		}
+
+		void setCapacity(int capacity) {
+			this.capacity = Math.max(capacity, MIN_FOG_TILES);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<FogTileKey, BufferedImage> eldest) {
+			return size() > capacity;
+		}
+	}
+
 	//
 	// DROP TARGET LISTENER
 	/*
@@ -3659,8 +3913,14 @@ public class ZoneRenderer extends JComponent implements DropTargetListener, Comp
 
 			if (evt == Zone.Event.TOPOLOGY_CHANGED) {
 				flushFog();
-				flushLight();
-
+				if (event.getArg() instanceof Area) {
+					// the zone view drops only the vision and lights near the change itself
+					renderedLightMap = null;
+					renderedAuraMap = null;
+					repaint();
+				} else {
+					flushLight();
+				}
 			}
 			if (evt == Zone.Event.TOKEN_CHANGED || evt == Zone.Event.TOKEN_REMOVED || evt == Zone.Event.TOKEN_ADDED) {
 				if (event.getArg() instanceof List<?>) {
@@ -20,10 +20,17 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.swing.SwingUtilities;
+
+import org.apache.log4j.Logger;
 
 import com.t3.client.AppState;
 import com.t3.client.AppUtil;
@@ -42,6 +49,10 @@ import com.t3.model.Zone;
 import com.t3.model.Zone.TokenFilter;
 
 public class ZoneView implements ModelChangeListener {
+	private static final Logger log = Logger.getLogger(ZoneView.class);
+	/** beyond this many pending topology changes rebuilding the tree is cheaper than updating it */
+	private static final int MAX_TOPOLOGY_CHANGES = 32;
+
 	private final Zone zone;
 
 	// VISION
@@ -52,8 +63,23 @@ public class ZoneView implements ModelChangeListener {
 	private final Map<GUID, Map<String, Set<DrawableLight>>> drawableLightCache = new HashMap<GUID, Map<String, Set<DrawableLight>>>();
 	private final Map<GUID, Map<String, Set<Area>>> brightLightCache = new Hashtable<GUID, Map<String, Set<Area>>>();
 	private final Map<PlayerView, VisibleAreaMeta> visibleAreaMap = new HashMap<PlayerView, VisibleAreaMeta>();
+	/** the bounds of the vision of each token and of the lights of each light source token */
+	private final Map<GUID, Rectangle2D> tokenVisionBounds = new HashMap<GUID, Rectangle2D>();
+	private final Map<GUID, Rectangle2D> lightSourceBounds = new HashMap<GUID, Rectangle2D>();
 	private AreaData topologyAreaData;
 	private AreaTree topology;
+	/** the regions of topology changes the tree hasn't caught up with yet */
+	private final List<Rectangle2D> topologyChanges = new ArrayList<Rectangle2D>();
+
+	// PARALLEL CALCULATION
+	private static final ForkJoinPool calculationPool = new ForkJoinPool();
+	/** the last complete visible area of each view, shown while the next one is calculated */
+	private final Map<PlayerView, Area> previousVisibleAreaMap = new HashMap<PlayerView, Area>();
+	private ParallelCalculation pendingCalculation;
+	/** what was flushed while the pending calculation ran, its results for these are stale */
+	private final Set<GUID> flushedTokens = new HashSet<GUID>();
+	private boolean flushedAll;
+	private Runnable calculationListener;
 
 	public ZoneView(Zone zone) {
 		this.zone = zone;
@@ -64,19 +90,42 @@ public class ZoneView implements ModelChangeListener {
 	public Area getVisibleArea(PlayerView view) {
 		calculateVisibleArea(view);
 		ZoneView.VisibleAreaMeta visible = visibleAreaMap.get(view);
+		if (visible == null) {
+			// Still calculating, keep showing what we had
+			visible = new VisibleAreaMeta();
+			visible.visibleArea = previousVisibleAreaMap.get(view);
+		}
 //		if (visible == null)
 //			System.out.println("ZoneView: visible == null.  Please report this on our forum @ forum.rptools.net.  Thank you!");
-		return visible != null ? visible.visibleArea : new Area();
+		return visible.visibleArea != null ? visible.visibleArea : new Area();
+	}
+
+	/**
+	 * @param listener
+	 *            called on the EDT whenever a calculation that ran in the background finished, so
+	 *            that the visible area and the lights can be rendered again
+	 */
+	public void setCalculationListener(Runnable listener) {
+		calculationListener = listener;
 	}
 
 	public boolean isUsingVision() {
 		return zone.getVisionType() != Zone.VisionType.OFF;
 	}
 
+	/**
+	 * A pending calculation still reads the tree it was handed on other threads, so while one
+	 * runs, topology changes go into a new tree instead of updating the old one.
+	 */
 	public AreaTree getTopology() {
-		if (topology == null) {
+		if (topology == null || (pendingCalculation != null && !topologyChanges.isEmpty())) {
 			topology = new AreaTree(zone.getTopology());
+			topologyChanges.clear();
+		}
+		for (Rectangle2D region : topologyChanges) {
+			topology.update(zone.getTopology(), region);
 		}
+		topologyChanges.clear();
 		return topology;
 	}
 
@@ -96,43 +145,56 @@ public class ZoneView implements ModelChangeListener {
 			if (lightSourceArea != null) {
 				return lightSourceArea;
 			}
-		} else {
-			areaBySightMap = new HashMap<String, Area>();
-			lightSourceCache.put(lightSourceToken.getId(), areaBySightMap);
 		}
 		// Calculate
-		Area area = new Area();
+		LightSourceCalculation calculation = prepareLightSource(token, lightSourceToken, getTopology());
+		calculation.compute();
+		return merge(calculation);
+	}
+
+	private LightSourceCalculation prepareLightSource(Token token, Token lightSourceToken, AreaTree topology) {
+		LightSourceCalculation calculation = new LightSourceCalculation(lightSourceToken.getId(), token.getSightType(), topology);
 		for (AttachedLightSource attachedLightSource : lightSourceToken.getLightSources()) {
 			LightSource lightSource = attachedLightSource.getLightSource();
 			if (lightSource == null) {
 				continue;
 			}
 			SightType sight = TabletopTool.getCampaign().getSightType(token.getSightType());
-			Area visibleArea = calculateLightSourceArea(lightSource, lightSourceToken, sight, attachedLightSource.getDirection());
-
-			// I don't like the NORMAL check here, it doesn't feel right, the API needs to change to support
-			// getting arbitrary light source types, but that's not a simple change
-			if (visibleArea != null && lightSource.getType() == LightSource.Type.NORMAL) {
-				area.add(visibleArea);
+			if (sight != null) {
+				calculation.lights.add(prepareLight(lightSource, lightSourceToken, sight, attachedLightSource.getDirection(), false));
 			}
 		}
-		// Cache
-		areaBySightMap.put(token.getSightType(), area);
-		return area;
+		return calculation;
 	}
 
-	private Area calculatePersonalLightSourceArea(LightSource lightSource, Token lightSourceToken, SightType sight, Direction direction) {
-		return calculateLightSourceArea(lightSource, lightSourceToken, sight, direction, true);
-	}
-
-	private Area calculateLightSourceArea(LightSource lightSource, Token lightSourceToken, SightType sight, Direction direction) {
-		return calculateLightSourceArea(lightSource, lightSourceToken, sight, direction, false);
+	private Area merge(LightSourceCalculation calculation) {
+		for (LightCalculation light : calculation.lights) {
+			merge(light);
+		}
+		// Cache
+		Map<String, Area> areaBySightMap = lightSourceCache.get(calculation.lightSourceTokenId);
+		if (areaBySightMap == null) {
+			areaBySightMap = new HashMap<String, Area>();
+			lightSourceCache.put(calculation.lightSourceTokenId, areaBySightMap);
+		}
+		areaBySightMap.put(calculation.sightType, calculation.area);
+		return calculation.area;
 	}
 
-	private Area calculateLightSourceArea(LightSource lightSource, Token lightSourceToken, SightType sight, Direction direction, boolean isPersonalLight) {
+	private Area calculatePersonalLightSourceArea(LightSource lightSource, Token lightSourceToken, SightType sight, Direction direction) {
 		if (sight == null) {
 			return null;
 		}
+		LightCalculation calculation = prepareLight(lightSource, lightSourceToken, sight, direction, true);
+		calculation.calculate(getTopology());
+		return merge(calculation);
+	}
+
+	/**
+	 * Takes everything a light needs from the model, so that {@link LightCalculation#calculate}
+	 * can run on any thread.
+	 */
+	private LightCalculation prepareLight(LightSource lightSource, Token lightSourceToken, SightType sight, Direction direction, boolean isPersonalLight) {
 		Point p = FogUtil.calculateVisionCenter(lightSourceToken, zone);
 		Area lightSourceArea = lightSource.getArea(lightSourceToken, zone, direction);
 
@@ -141,55 +203,61 @@ public class ZoneView implements ModelChangeListener {
 		if (sight.getMultiplier() != 1) {
 			lightSourceArea.transform(AffineTransform.getScaleInstance(sight.getMultiplier(), sight.getMultiplier()));
 		}
-		Area visibleArea = FogUtil.calculateVisibility(p.x, p.y, lightSourceArea, getTopology());
-
-		if (visibleArea == null) {
-			return null;
-		}
+		LightCalculation calculation = new LightCalculation(lightSourceToken.getId(), sight.getName(), lightSource.getType(), p, lightSourceArea, isPersonalLight);
 		if (lightSource.getType() != LightSource.Type.NORMAL) {
-			return visibleArea;
+			return calculation;
 		}
-		// Keep track of colored light
-		Set<DrawableLight> lightSet = new HashSet<DrawableLight>();
-		Set<Area> brightLightSet = new HashSet<Area>();
 		for (Light light : lightSource.getLightList()) {
 			Area lightArea = lightSource.getArea(lightSourceToken, zone, direction, light);
 			if (sight.getMultiplier() != 1) {
 				lightArea.transform(AffineTransform.getScaleInstance(sight.getMultiplier(), sight.getMultiplier()));
 			}
 			lightArea.transform(AffineTransform.getTranslateInstance(p.x, p.y));
-			lightArea.intersect(visibleArea);
+			calculation.lights.add(light);
+			calculation.lightAreas.add(lightArea);
+		}
+		return calculation;
+	}
 
-			if (light.getPaint() != null || isPersonalLight) {
-				lightSet.add(new DrawableLight(lightSource.getType(), light.getPaint(), lightArea));
-			} else {
-				brightLightSet.add(lightArea);
-			}
+	private Area merge(LightCalculation calculation) {
+		addBounds(lightSourceBounds, calculation.lightSourceTokenId, calculation.area, calculation.center);
+		Area visibleArea = calculation.visibleArea;
+		if (visibleArea == null) {
+			return null;
 		}
+		if (calculation.type != LightSource.Type.NORMAL) {
+			return visibleArea;
+		}
+		// Keep track of colored light
+		Set<DrawableLight> lightSet = calculation.lightSet;
+		Set<Area> brightLightSet = calculation.brightLightSet;
+		String sightName = calculation.sightName;
+		GUID lightSourceTokenId = calculation.lightSourceTokenId;
+
 		// FIXME There was a bug report of a ConcurrentModificationException regarding drawableLightCache.
 		// I don't see how, but perhaps this code -- and the ones in flush() and flush(Token) -- should be
 		// wrapped in a synchronization block?  This method is probably called only on the same thread as
 		// getDrawableLights() but the two flush() methods may be called from different threads.  How to
 		// verify this with Eclipse?  Maybe the flush() methods should defer modifications to the EventDispatchingThread?
-		Map<String, Set<DrawableLight>> lightMap = drawableLightCache.get(lightSourceToken.getId());
+		Map<String, Set<DrawableLight>> lightMap = drawableLightCache.get(lightSourceTokenId);
 		if (lightMap == null) {
 			lightMap = new HashMap<String, Set<DrawableLight>>();
-			drawableLightCache.put(lightSourceToken.getId(), lightMap);
+			drawableLightCache.put(lightSourceTokenId, lightMap);
 		}
-		if (lightMap.get(sight.getName()) != null) {
-			lightMap.get(sight.getName()).addAll(lightSet);
+		if (lightMap.get(sightName) != null) {
+			lightMap.get(sightName).addAll(lightSet);
 		} else {
-			lightMap.put(sight.getName(), lightSet);
+			lightMap.put(sightName, lightSet);
 		}
-		Map<String, Set<Area>> brightLightMap = brightLightCache.get(lightSourceToken.getId());
+		Map<String, Set<Area>> brightLightMap = brightLightCache.get(lightSourceTokenId);
 		if (brightLightMap == null) {
 			brightLightMap = new HashMap<String, Set<Area>>();
-			brightLightCache.put(lightSourceToken.getId(), brightLightMap);
+			brightLightCache.put(lightSourceTokenId, brightLightMap);
 		}
-		if (brightLightMap.get(sight.getName()) != null) {
-			brightLightMap.get(sight.getName()).addAll(brightLightSet);
+		if (brightLightMap.get(sightName) != null) {
+			brightLightMap.get(sightName).addAll(brightLightSet);
 		} else {
-			brightLightMap.put(sight.getName(), brightLightSet);
+			brightLightMap.put(sightName, brightLightSet);
 		}
 		return visibleArea;
 	}
@@ -213,11 +281,9 @@ public class ZoneView implements ModelChangeListener {
 		// Combine the player visible area with the available light sources
 		tokenVisibleArea = tokenVisibleAreaCache.get(token.getId());
 		if (tokenVisibleArea == null) {
-			Point p = FogUtil.calculateVisionCenter(token, zone);
-			Area visibleArea = sight.getVisionShape(token, zone);
-			tokenVisibleArea = FogUtil.calculateVisibility(p.x, p.y, visibleArea, getTopology());
-
-			tokenVisibleAreaCache.put(token.getId(), tokenVisibleArea);
+			VisionCalculation calculation = prepareVision(token, sight, getTopology());
+			calculation.compute();
+			tokenVisibleArea = merge(calculation);
 		}
 		// Combine in the visible light areas
 		if (tokenVisibleArea != null && zone.getVisionType() == Zone.VisionType.NIGHT) {
@@ -225,21 +291,7 @@ public class ZoneView implements ModelChangeListener {
 
 			// Combine all light sources that might intersect our vision
 			List<Area> intersects = new LinkedList<Area>();
-			List<Token> lightSourceTokens = new ArrayList<Token>();
-
-			if (lightSourceMap.get(LightSource.Type.NORMAL) != null) {
-				for (GUID lightSourceTokenId : lightSourceMap.get(LightSource.Type.NORMAL)) {
-					Token lightSourceToken = zone.getToken(lightSourceTokenId);
-					if (lightSourceToken != null) {
-						lightSourceTokens.add(lightSourceToken);
-					}
-				}
-			}
-			if (token.hasLightSources() && !lightSourceTokens.contains(token)) {
-				// This accounts for temporary tokens (such as during an Expose Last Path)
-				lightSourceTokens.add(token);
-			}
-			for (Token lightSourceToken : lightSourceTokens) {
+			for (Token lightSourceToken : getLightSourceTokens(token)) {
 				Area lightArea = getLightSourceArea(token, lightSourceToken);
 
 				if (origBounds.intersects(lightArea.getBounds2D())) {
@@ -270,6 +322,38 @@ public class ZoneView implements ModelChangeListener {
 		return tokenVisibleArea;
 	}
 
+	private VisionCalculation prepareVision(Token token, SightType sight, AreaTree topology) {
+		Point p = FogUtil.calculateVisionCenter(token, zone);
+		return new VisionCalculation(token.getId(), p, sight.getVisionShape(token, zone), topology);
+	}
+
+	private Area merge(VisionCalculation calculation) {
+		addBounds(tokenVisionBounds, calculation.tokenId, calculation.vision, calculation.center);
+		tokenVisibleAreaCache.put(calculation.tokenId, calculation.visibleArea);
+		return calculation.visibleArea;
+	}
+
+	/**
+	 * @return the tokens whose normal light the token might see by
+	 */
+	private List<Token> getLightSourceTokens(Token token) {
+		List<Token> lightSourceTokens = new ArrayList<Token>();
+
+		if (lightSourceMap.get(LightSource.Type.NORMAL) != null) {
+			for (GUID lightSourceTokenId : lightSourceMap.get(LightSource.Type.NORMAL)) {
+				Token lightSourceToken = zone.getToken(lightSourceTokenId);
+				if (lightSourceToken != null) {
+					lightSourceTokens.add(lightSourceToken);
+				}
+			}
+		}
+		if (token.hasLightSources() && !lightSourceTokens.contains(token)) {
+			// This accounts for temporary tokens (such as during an Expose Last Path)
+			lightSourceTokens.add(token);
+		}
+		return lightSourceTokens;
+	}
+
 	public List<DrawableLight> getLights(LightSource.Type type) {
 		List<DrawableLight> lightList = new LinkedList<DrawableLight>();
 		if (lightSourceMap.get(type) != null) {
@@ -370,16 +454,78 @@ public class ZoneView implements ModelChangeListener {
 		visibleAreaMap.clear();
 		drawableLightCache.clear();
 		brightLightCache.clear();
+		tokenVisionBounds.clear();
+		lightSourceBounds.clear();
+		previousVisibleAreaMap.clear();
+		flushedAll |= pendingCalculation != null;
+	}
+
+	/**
+	 * Drops the vision of the tokens and the lights that reach into a region whose topology
+	 * changed, everything else is still valid.
+	 */
+	private void flush(Rectangle2D region) {
+		// A pending calculation doesn't know its bounds yet and it works on the old topology
+		flushedAll |= pendingCalculation != null;
+
+		boolean lightChanged = false;
+		for (Iterator<Map.Entry<GUID, Rectangle2D>> iter = lightSourceBounds.entrySet().iterator(); iter.hasNext();) {
+			Map.Entry<GUID, Rectangle2D> entry = iter.next();
+			if (entry.getValue().intersects(region)) {
+				lightSourceCache.remove(entry.getKey());
+				drawableLightCache.remove(entry.getKey());
+				brightLightCache.remove(entry.getKey());
+				iter.remove();
+				lightChanged = true;
+			}
+		}
+		boolean visionChanged = false;
+		for (Iterator<Map.Entry<GUID, Rectangle2D>> iter = tokenVisionBounds.entrySet().iterator(); iter.hasNext();) {
+			Map.Entry<GUID, Rectangle2D> entry = iter.next();
+			if (entry.getValue().intersects(region)) {
+				tokenVisibleAreaCache.remove(entry.getKey());
+				tokenVisionCache.remove(entry.getKey());
+				iter.remove();
+				visionChanged = true;
+			}
+		}
+		if (lightChanged) {
+			// Any token might see by those lights
+			tokenVisionCache.clear();
+		}
+		if (lightChanged || visionChanged) {
+			visibleAreaMap.clear();
+		}
+	}
+
+	private static void addBounds(Map<GUID, Rectangle2D> boundsMap, GUID id, Area area, Point offset) {
+		Rectangle2D bounds = area.getBounds2D();
+		bounds.setRect(bounds.getX() + offset.x, bounds.getY() + offset.y, bounds.getWidth(), bounds.getHeight());
+		Rectangle2D old = boundsMap.get(id);
+		if (old != null) {
+			bounds.add(old);
+		}
+		boundsMap.put(id, bounds);
+	}
+
+	private void flushed(GUID id) {
+		if (pendingCalculation != null) {
+			flushedTokens.add(id);
+		}
 	}
 
 	public void flush(Token token) {
 		boolean hadLightSource = lightSourceCache.get(token.getId()) != null;
 
+		flushed(token.getId());
+
 		tokenVisionCache.remove(token.getId());
 		tokenVisibleAreaCache.remove(token.getId());
 		lightSourceCache.remove(token.getId());
 		drawableLightCache.remove(token.getId());
 		brightLightCache.remove(token.getId());
+		tokenVisionBounds.remove(token.getId());
+		lightSourceBounds.remove(token.getId());
 		visibleAreaMap.clear();
 
 		if (hadLightSource || token.hasLightSources()) {
@@ -397,6 +543,12 @@ public class ZoneView implements ModelChangeListener {
 		if (visibleAreaMap.get(view) != null && visibleAreaMap.get(view).visibleArea.getBounds().getCenterX() != 0.0d) {
 			return;
 		}
+		List<Token> tokenList = getVisionTokens(view);
+
+		// The expensive part for all tokens at once, if there is something to show meanwhile don't wait for it
+		if (calculateInParallel(tokenList, previousVisibleAreaMap.containsKey(view))) {
+			return;
+		}
 		// Cache it
 		VisibleAreaMeta meta = new VisibleAreaMeta();
 		meta.visibleArea = new Area();
@@ -404,6 +556,19 @@ public class ZoneView implements ModelChangeListener {
 		visibleAreaMap.put(view, meta);
 
 		// Calculate it
+		for (Token token : tokenList) {
+			Area tokenVision = getVisibleArea(token);
+			if (tokenVision != null) {
+				meta.visibleArea.add(tokenVision);
+			}
+		}
+		previousVisibleAreaMap.put(view, meta.visibleArea);
+	}
+
+	/**
+	 * @return the tokens whose vision makes up the visible area of the view
+	 */
+	private List<Token> getVisionTokens(PlayerView view) {
 		final boolean isGMview = view.isGMView();
 		final boolean checkOwnership = TabletopTool.getServerPolicy().isUseIndividualViews() || TabletopTool.isPersonalServer();
 		List<Token> tokenList = view.isUsingTokenView() ? view.getTokens() : zone.getTokensFiltered(new TokenFilter() {
@@ -412,7 +577,7 @@ public class ZoneView implements ModelChangeListener {
 				return t.isToken() && t.getHasSight() && (isGMview || t.isVisible());
 			}
 		});
-			
+		List<Token> visionTokens = new ArrayList<Token>(tokenList.size());
 		for (Token token : tokenList) {
 			boolean weOwnIt = AppUtil.playerOwns(token);
 			// Permission
@@ -432,11 +597,104 @@ public class ZoneView implements ModelChangeListener {
 			if (token.isVisibleOnlyToOwner() && !weOwnIt) {
 				continue;
 			}
-			Area tokenVision = getVisibleArea(token);
-			if (tokenVision != null) {
-				meta.visibleArea.add(tokenVision);
+			visionTokens.add(token);
+		}
+		return visionTokens;
+	}
+
+	/**
+	 * Calculates the vision of the tokens and the lights they see by, which is what makes a visible
+	 * area expensive, as one task per token and per light on all cores.
+	 * 
+	 * @param inBackground
+	 *            if the calculation may finish after this returns
+	 * @return true if the calculation is still running, the caches are filled once it finished
+	 */
+	private boolean calculateInParallel(List<Token> tokens, boolean inBackground) {
+		if (pendingCalculation != null) {
+			if (inBackground) {
+				return true;
+			}
+			ParallelCalculation calculation = pendingCalculation;
+			calculation.join();
+			finish(calculation);
+		}
+		ParallelCalculation calculation = prepareCalculation(tokens);
+		if (calculation == null) {
+			return false;
+		}
+		pendingCalculation = calculation;
+		if (inBackground) {
+			calculationPool.execute(calculation);
+			return true;
+		}
+		calculationPool.invoke(calculation);
+		finish(calculation);
+		return false;
+	}
+
+	/**
+	 * @return the calculations the tokens need that aren't cached yet, or null if there are none
+	 */
+	private ParallelCalculation prepareCalculation(List<Token> tokens) {
+		AreaTree topology = getTopology();
+		ParallelCalculation calculation = new ParallelCalculation();
+		Set<String> lightSources = new HashSet<String>();
+		for (Token token : tokens) {
+			if (!token.getHasSight() || tokenVisionCache.get(token.getId()) != null) {
+				continue;
+			}
+			SightType sight = TabletopTool.getCampaign().getSightType(token.getSightType());
+			if (sight == null) {
+				continue;
+			}
+			if (tokenVisibleAreaCache.get(token.getId()) == null) {
+				calculation.tasks.add(prepareVision(token, sight, topology));
+			}
+			if (zone.getVisionType() != Zone.VisionType.NIGHT) {
+				continue;
+			}
+			for (Token lightSourceToken : getLightSourceTokens(token)) {
+				Map<String, Area> areaBySightMap = lightSourceCache.get(lightSourceToken.getId());
+				if ((areaBySightMap == null || areaBySightMap.get(token.getSightType()) == null) && lightSources.add(lightSourceToken.getId() + token.getSightType())) {
+					calculation.tasks.add(prepareLightSource(token, lightSourceToken, topology));
+				}
+			}
+		}
+		return calculation.tasks.isEmpty() ? null : calculation;
+	}
+
+	/**
+	 * Moves the results of a calculation into the caches, unless they were flushed meanwhile.
+	 */
+	private void finish(ParallelCalculation calculation) {
+		if (calculation != pendingCalculation) {
+			// Already done
+			return;
+		}
+		pendingCalculation = null;
+		if (!flushedAll) {
+			for (RecursiveAction task : calculation.tasks) {
+				if (!task.isDone() || task.isCompletedAbnormally()) {
+					// failed or cancelled, it is calculated again the next time it is needed
+					continue;
+				}
+				if (task instanceof VisionCalculation) {
+					VisionCalculation vision = (VisionCalculation) task;
+					if (!flushedTokens.contains(vision.tokenId) && tokenVisibleAreaCache.get(vision.tokenId) == null) {
+						merge(vision);
+					}
+				} else {
+					LightSourceCalculation light = (LightSourceCalculation) task;
+					Map<String, Area> areaBySightMap = lightSourceCache.get(light.lightSourceTokenId);
+					if (!flushedTokens.contains(light.lightSourceTokenId) && (areaBySightMap == null || areaBySightMap.get(light.sightType) == null)) {
+						merge(light);
+					}
+				}
 			}
 		}
+		flushedTokens.clear();
+		flushedAll = false;
 	}
 
 	////
@@ -446,12 +704,16 @@ public class ZoneView implements ModelChangeListener {
 		Object evt = event.getEvent();
 		if (event.getModel() instanceof Zone) {
 			if (evt == Zone.Event.TOPOLOGY_CHANGED) {
-				tokenVisionCache.clear();
-				lightSourceCache.clear();
-				visibleAreaMap.clear();
 				topologyAreaData = null;
-				topology = null;
-				tokenVisibleAreaCache.clear();
+				if (event.getArg() instanceof Area && topologyChanges.size() < MAX_TOPOLOGY_CHANGES) {
+					// Digest only what changed, and only when vision is needed again
+					Rectangle2D region = ((Area) event.getArg()).getBounds2D();
+					topologyChanges.add(region);
+					flush(region);
+				} else {
+					flush();
+					topology = null;
+				}
 			}
 			if (evt == Zone.Event.TOKEN_CHANGED || evt == Zone.Event.TOKEN_REMOVED) {
 				if (event.getArg() instanceof List<?>) {
@@ -519,6 +781,141 @@ public class ZoneView implements ModelChangeListener {
 			visibleAreaMap.clear();
 	}
 
+	/**
+	 * Runs the calculations of a visible area in parallel and hands them back to the EDT.
+	 */
+	private class ParallelCalculation extends RecursiveAction {
+		private static final long serialVersionUID = -2101914328949051103L;
+
+		private final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+
+		@Override
+		protected void compute() {
+			try {
+				invokeAll(tasks);
+			} catch (Throwable t) {
+				// the tasks that failed are left out when the results are merged, the calculation has to end anyway
+				log.error("Calculating the visible area failed", t);
+			} finally {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						if (pendingCalculation == ParallelCalculation.this) {
+							finish(ParallelCalculation.this);
+							if (calculationListener != null) {
+								calculationListener.run();
+							}
+						}
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * The visibility of a token's vision. Everything it needs is taken from the model up front and
+	 * the topology doesn't change under it, so it can run on any thread.
+	 */
+	private static class VisionCalculation extends RecursiveAction {
+		private static final long serialVersionUID = -5506563712575813917L;
+
+		private final GUID tokenId;
+		private final Point center;
+		private final Area vision;
+		private final AreaTree topology;
+		private Area visibleArea;
+
+		VisionCalculation(GUID tokenId, Point center, Area vision, AreaTree topology) {
+			this.tokenId = tokenId;
+			this.center = center;
+			this.vision = vision;
+			this.topology = topology;
+		}
+
+		@Override
+		protected void compute() {
+			visibleArea = FogUtil.calculateVisibility(center.x, center.y, vision, topology);
+		}
+	}
+
+	/**
+	 * All lights of a light source token as seen with one sight type.
+	 */
+	private static class LightSourceCalculation extends RecursiveAction {
+		private static final long serialVersionUID = 2401193347977091314L;
+
+		private final GUID lightSourceTokenId;
+		private final String sightType;
+		private final AreaTree topology;
+		private final List<LightCalculation> lights = new ArrayList<LightCalculation>();
+		private Area area;
+
+		LightSourceCalculation(GUID lightSourceTokenId, String sightType, AreaTree topology) {
+			this.lightSourceTokenId = lightSourceTokenId;
+			this.sightType = sightType;
+			this.topology = topology;
+		}
+
+		@Override
+		protected void compute() {
+			area = new Area();
+			for (LightCalculation light : lights) {
+				light.calculate(topology);
+
+				// I don't like the NORMAL check here, it doesn't feel right, the API needs to change to support
+				// getting arbitrary light source types, but that's not a simple change
+				if (light.visibleArea != null && light.type == LightSource.Type.NORMAL) {
+					area.add(light.visibleArea);
+				}
+			}
+		}
+	}
+
+	/**
+	 * One light source, see {@link ZoneView#prepareLight}.
+	 */
+	private static class LightCalculation {
+		private final GUID lightSourceTokenId;
+		private final String sightName;
+		private final LightSource.Type type;
+		private final Point center;
+		private final Area area;
+		private final boolean isPersonalLight;
+		private final List<Light> lights = new ArrayList<Light>();
+		private final List<Area> lightAreas = new ArrayList<Area>();
+
+		private Area visibleArea;
+		private final Set<DrawableLight> lightSet = new HashSet<DrawableLight>();
+		private final Set<Area> brightLightSet = new HashSet<Area>();
+
+		LightCalculation(GUID lightSourceTokenId, String sightName, LightSource.Type type, Point center, Area area, boolean isPersonalLight) {
+			this.lightSourceTokenId = lightSourceTokenId;
+			this.sightName = sightName;
+			this.type = type;
+			this.center = center;
+			this.area = area;
+			this.isPersonalLight = isPersonalLight;
+		}
+
+		void calculate(AreaTree topology) {
+			visibleArea = FogUtil.calculateVisibility(center.x, center.y, area, topology);
+			if (visibleArea == null) {
+				return;
+			}
+			for (int i = 0; i < lights.size(); i++) {
+				Light light = lights.get(i);
+				Area lightArea = lightAreas.get(i);
+				lightArea.intersect(visibleArea);
+
+				if (light.getPaint() != null || isPersonalLight) {
+					lightSet.add(new DrawableLight(type, light.getPaint(), lightArea));
+				} else {
+					brightLightSet.add(lightArea);
+				}
+			}
+		}
+	}
+
 	private static class VisibleAreaMeta {
 		Area visibleArea;
 	}
@@ -12,7 +12,13 @@
 package com.t3.client.ui.zone.vbl;
 
 import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
 
 public interface AreaContainer {
 	public Area getBounds();
+
+	/**
+	 * @return the bounding box of {@link #getBounds()}, without computing it again
+	 */
+	public Rectangle2D getBounds2D();
 }
@@ -13,13 +13,19 @@ package com.t3.client.ui.zone.vbl;
 
 import java.awt.geom.Area;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class AreaIsland implements AreaContainer {
 
 	private AreaMeta meta;
 	private Set<AreaOcean> oceanSet = new HashSet<AreaOcean>();
+	// built on first use, dropped whenever an ocean is added
+	private volatile SpatialGrid<AreaOcean> oceanGrid;
 	
 	
 	public AreaIsland(AreaMeta meta) {
@@ -31,13 +37,19 @@ public class AreaIsland implements AreaContainer {
 		return meta.getVisibleAreas(origin);
 	}
 	
+	public List<AreaFace> getFaces() {
+		return Collections.unmodifiableList(meta.faceList);
+	}
+
 	public AreaOcean getDeepestOceanAt(Point2D point) {
 
 		if (!meta.area.contains(point)) {
 			return null;
 		}
 		
-		for (AreaOcean ocean : oceanSet) {
+		List<AreaOcean> oceans = new ArrayList<AreaOcean>();
+		getOceanGrid().query(point.getX(), point.getY(), oceans);
+		for (AreaOcean ocean : oceans) {
 			AreaOcean deepOcean = ocean.getDeepestOceanAt(point);
 			if (deepOcean != null) {
 				return deepOcean;
@@ -53,8 +65,37 @@ public class AreaIsland implements AreaContainer {
 		return new HashSet<AreaOcean>(oceanSet);
 	}
 	
+	/**
+	 * @return the oceans whose bounding box touches the region
+	 */
+	public List<AreaOcean> getOceans(Rectangle2D region) {
+		List<AreaOcean> oceans = new ArrayList<AreaOcean>();
+		getOceanGrid().query(region, oceans);
+		return oceans;
+	}
+
 	public void addOcean(AreaOcean ocean) {
 		oceanSet.add(ocean);
+		oceanGrid = null;
+	}
+
+	private SpatialGrid<AreaOcean> getOceanGrid() {
+		SpatialGrid<AreaOcean> result = oceanGrid;
+		if (result == null) {
+			synchronized (this) {
+				result = oceanGrid;
+				if (result == null) {
+					List<AreaOcean> oceans = new ArrayList<AreaOcean>(oceanSet);
+					List<Rectangle2D> bounds = new ArrayList<Rectangle2D>(oceans.size());
+					for (AreaOcean ocean : oceans) {
+						bounds.add(ocean.getBounds2D());
+					}
+					result = new SpatialGrid<AreaOcean>(oceans, bounds);
+					oceanGrid = result;
+				}
+			}
+		}
+		return result;
 	}
 	
 	////
@@ -63,4 +104,9 @@ public class AreaIsland implements AreaContainer {
 	public Area getBounds() {
 		return meta.area;
 	}
+
+	@Override
+	public Rectangle2D getBounds2D() {
+		return meta.bounds;
+	}
 }
@@ -14,6 +14,7 @@ package com.t3.client.ui.zone.vbl;
 import java.awt.geom.Area;
 import java.awt.geom.GeneralPath;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -24,6 +25,7 @@ import com.t3.GeometryUtil.PointNode;
 
 public class AreaMeta {
 	Area area;
+	Rectangle2D bounds;
 	Point2D centerPoint;
 	List<AreaFace> faceList = new ArrayList<AreaFace>();
 
@@ -114,6 +116,7 @@ public class AreaMeta {
 
 	public void close() {
 		area = new Area(path);
+		bounds = area.getBounds2D();
 
 		// Close the circle
 		lastPointNode.next = pointNodeList;
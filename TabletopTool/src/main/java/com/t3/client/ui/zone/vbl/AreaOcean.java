@@ -12,33 +12,52 @@
 package com.t3.client.ui.zone.vbl;
 
 import java.awt.geom.Area;
+import java.awt.geom.Line2D;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class AreaOcean implements AreaContainer {
 
 	private AreaMeta meta;
-	private Set<AreaIsland> islandSet = new HashSet<AreaIsland>();
+	// replaced rather than changed once the tree is in use, so that readers on other threads see
+	// either the old or the new islands
+	private volatile Set<AreaIsland> islandSet = new HashSet<AreaIsland>();
+	// built on first use, dropped whenever an island is added
+	private volatile Index index;
 	
 	public AreaOcean(AreaMeta meta) {
 		this.meta = meta;
 	}
 	
 	public Set<VisibleAreaSegment> getVisibleAreaSegments(Point2D origin) {
+		return getVisibleAreaSegments(origin, null);
+	}
+
+	/**
+	 * @param bounds
+	 *            the region the origin can see at most, islands outside it are skipped since they
+	 *            only cast shadows outside it as well. This has to contain the origin. Null means
+	 *            everything.
+	 */
+	public Set<VisibleAreaSegment> getVisibleAreaSegments(Point2D origin, Rectangle2D bounds) {
 		
 		Set<VisibleAreaSegment> segSet = new HashSet<VisibleAreaSegment>();
 
 		// If an island contains the point, then we're 
 		// not in this ocean, short circuit out
-		for (AreaIsland island : islandSet) {
-			if (island.getBounds().contains(origin)) {
-				return segSet;
-			}
+		if (getIslandAt(origin) != null) {
+			return segSet;
 		}
 		
 		// Inside boundaries
-		for (AreaIsland island : islandSet) {
+		List<AreaIsland> islands = new ArrayList<AreaIsland>();
+		getIndex().islands.query(bounds, islands);
+		for (AreaIsland island : islands) {
 			segSet.addAll(island.getVisibleAreaSegments(origin));
 		}
 		
@@ -50,6 +69,26 @@ public class AreaOcean implements AreaContainer {
 		return segSet;
 	}
 	
+	/**
+	 * @return the faces that can block the view inside this ocean, those of its own boundary and
+	 *         those of its islands
+	 */
+	public List<AreaFace> getFaces() {
+		return getFaces(null);
+	}
+
+	/**
+	 * @param bounds
+	 *            the region of interest, or null for everything
+	 * @return the faces of this ocean's boundary and of its islands whose bounding box touches the
+	 *         region
+	 */
+	public List<AreaFace> getFaces(Rectangle2D bounds) {
+		List<AreaFace> faces = new ArrayList<AreaFace>();
+		getIndex().faces.query(bounds, faces);
+		return faces;
+	}
+
 	public AreaOcean getDeepestOceanAt(Point2D point) {
 
 		if (meta != null && !meta.area.contains(point)) {
@@ -57,10 +96,9 @@ public class AreaOcean implements AreaContainer {
 		}
 
 		// If the point is in an island, then let the island figure it out
-		for (AreaIsland island : islandSet) {
-			if (island.getBounds().contains(point)) {
-				return island.getDeepestOceanAt(point);
-			}
+		AreaIsland island = getIslandAt(point);
+		if (island != null) {
+			return island.getDeepestOceanAt(point);
 		}
 		
 		return this;
@@ -72,12 +110,106 @@ public class AreaOcean implements AreaContainer {
 	
 	public void addIsland(AreaIsland island) {
 		islandSet.add(island);
+		index = null;
+	}
+
+	/**
+	 * @return the islands whose bounding box touches the region
+	 */
+	public List<AreaIsland> getIslands(Rectangle2D region) {
+		List<AreaIsland> islands = new ArrayList<AreaIsland>();
+		getIndex().islands.query(region, islands);
+		return islands;
+	}
+
+	/**
+	 * @return the ocean of one of this ocean's islands whose area contains the region, or null if
+	 *         there is none
+	 */
+	public AreaOcean getOceanContaining(Rectangle2D region) {
+		for (AreaIsland island : getIslands(region)) {
+			if (island.getBounds2D().contains(region)) {
+				for (AreaOcean ocean : island.getOceans(region)) {
+					if (ocean.getBounds().contains(region)) {
+						return ocean;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	void replaceIslands(Collection<AreaIsland> oldIslands, Collection<AreaIsland> newIslands) {
+		Set<AreaIsland> islands = new HashSet<AreaIsland>(islandSet);
+		islands.removeAll(oldIslands);
+		islands.addAll(newIslands);
+		islandSet = islands;
+		index = null;
 	}
 	
+	private AreaIsland getIslandAt(Point2D point) {
+		List<AreaIsland> islands = new ArrayList<AreaIsland>();
+		getIndex().islands.query(point.getX(), point.getY(), islands);
+		for (AreaIsland island : islands) {
+			if (island.getBounds().contains(point)) {
+				return island;
+			}
+		}
+		return null;
+	}
+
+	private Index getIndex() {
+		Index result = index;
+		if (result == null || result.source != islandSet) {
+			synchronized (this) {
+				result = index;
+				if (result == null || result.source != islandSet) {
+					result = new Index(meta, islandSet);
+					index = result;
+				}
+			}
+		}
+		return result;
+	}
+
 	////
 	// AREA CONTAINER
 	@Override
 	public Area getBounds() {
 		return meta != null ? meta.area : null;
 	}
+
+	@Override
+	public Rectangle2D getBounds2D() {
+		return meta != null ? meta.bounds : null;
+	}
+
+	/**
+	 * The islands and all faces of an ocean, indexed by their bounding boxes.
+	 */
+	private static final class Index {
+		final Set<AreaIsland> source;
+		final SpatialGrid<AreaIsland> islands;
+		final SpatialGrid<AreaFace> faces;
+
+		Index(AreaMeta meta, Set<AreaIsland> islandSet) {
+			source = islandSet;
+			List<AreaIsland> islandList = new ArrayList<AreaIsland>(islandSet);
+			List<Rectangle2D> islandBounds = new ArrayList<Rectangle2D>(islandList.size());
+			List<AreaFace> faceList = new ArrayList<AreaFace>();
+			if (meta != null) {
+				faceList.addAll(meta.faceList);
+			}
+			for (AreaIsland island : islandList) {
+				islandBounds.add(island.getBounds2D());
+				faceList.addAll(island.getFaces());
+			}
+			List<Rectangle2D> faceBounds = new ArrayList<Rectangle2D>(faceList.size());
+			for (AreaFace face : faceList) {
+				faceBounds.add(new Line2D.Double(face.getP1(), face.getP2()).getBounds2D());
+			}
+			islands = new SpatialGrid<AreaIsland>(islandList, islandBounds);
+			faces = new SpatialGrid<AreaFace>(faceList, faceBounds);
+		}
+	}
 }
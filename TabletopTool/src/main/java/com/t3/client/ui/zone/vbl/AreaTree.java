@@ -11,9 +11,12 @@
  */
 package com.t3.client.ui.zone.vbl;
 
+import java.awt.Shape;
 import java.awt.geom.Area;
+import java.awt.geom.Path2D;
 import java.awt.geom.PathIterator;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -29,16 +32,111 @@ public class AreaTree {
 		digest(area);
 	}
 
+	private AreaTree(Shape shape) {
+		digest(shape);
+	}
+
 	public AreaOcean getOceanAt(Point2D point) {
 		return theOcean.getDeepestOceanAt(point);
 	}
 
+	/**
+	 * Brings the tree up to date after the topology changed inside the region. Only the islands
+	 * near the region, in the deepest ocean enclosing it, are digested again.
+	 * 
+	 * @param area
+	 *            the complete topology after the change
+	 * @param region
+	 *            the bounds of the change
+	 */
+	public void update(Area area, Rectangle2D region) {
+		if (theOcean == null) {
+			digest(area);
+			return;
+		}
+		// leave a gap, so that nothing merely touching the region is cut in half
+		Rectangle2D changed = grow(region);
+
+		List<AreaOcean> path = new ArrayList<AreaOcean>();
+		for (AreaOcean ocean = theOcean; ocean != null; ocean = ocean.getOceanContaining(changed)) {
+			path.add(ocean);
+		}
+		for (int i = path.size() - 1; i >= 0; i--) {
+			AreaOcean ocean = path.get(i);
+
+			// Collect the islands near the change until none of the others is near them either
+			Rectangle2D bounds = changed;
+			List<AreaIsland> islands;
+			while (true) {
+				islands = ocean.getIslands(bounds);
+				Rectangle2D grown = new Rectangle2D.Double(changed.getX(), changed.getY(), changed.getWidth(), changed.getHeight());
+				for (AreaIsland island : islands) {
+					grown.add(grow(island.getBounds2D()));
+				}
+				if (grown.equals(bounds)) {
+					break;
+				}
+				bounds = grown;
+			}
+			// The islands must not reach the ocean's own boundary, otherwise the parent has to do it
+			if (ocean.getBounds() != null && !ocean.getBounds().contains(bounds)) {
+				continue;
+			}
+			ocean.replaceIslands(islands, new AreaTree(extract(area, bounds)).getOcean().getIslands());
+			return;
+		}
+	}
+
+	/**
+	 * @return the outlines of the area that lie completely inside the bounds, the outlines of an
+	 *         area never cross, so there is no need to clip anything
+	 */
+	private static Path2D extract(Area area, Rectangle2D bounds) {
+		Path2D result = new Path2D.Float();
+		Path2D outline = null;
+		boolean inside = false;
+		float[] coords = new float[6];
+		for (PathIterator iter = area.getPathIterator(null); !iter.isDone(); iter.next()) {
+			int type = iter.currentSegment(coords);
+			switch (type) {
+			case PathIterator.SEG_MOVETO:
+				outline = new Path2D.Float();
+				outline.moveTo(coords[0], coords[1]);
+				inside = bounds.contains(coords[0], coords[1]);
+				break;
+			case PathIterator.SEG_LINETO:
+				outline.lineTo(coords[0], coords[1]);
+				inside &= bounds.contains(coords[0], coords[1]);
+				break;
+			case PathIterator.SEG_QUADTO:
+				outline.quadTo(coords[0], coords[1], coords[2], coords[3]);
+				inside &= bounds.contains(coords[2], coords[3]);
+				break;
+			case PathIterator.SEG_CUBICTO:
+				outline.curveTo(coords[0], coords[1], coords[2], coords[3], coords[4], coords[5]);
+				inside &= bounds.contains(coords[4], coords[5]);
+				break;
+			case PathIterator.SEG_CLOSE:
+				outline.closePath();
+				if (inside) {
+					result.append(outline, false);
+				}
+				break;
+			}
+		}
+		return result;
+	}
+
+	private static Rectangle2D grow(Rectangle2D r) {
+		return new Rectangle2D.Double(r.getX() - 1, r.getY() - 1, r.getWidth() + 2, r.getHeight() + 2);
+	}
+
 	// Package level for testing purposes
 	AreaOcean getOcean() {
 		return theOcean;
 	}
 
-	private void digest(Area area) {
+	private void digest(Shape area) {
 		if (area == null) {
 			return;
 		}
@@ -71,11 +169,15 @@ public class AreaTree {
 			}
 		}
 		// Create the hierarchy
+		// Only containers near an item can contain it, so look them up by their bounding boxes
+		SpatialGrid<AreaIsland> islandGrid = createGrid(islandList);
+		SpatialGrid<AreaOcean> oceanGrid = createGrid(oceanList);
+
 		// Start by putting each ocean into the containing island
 		// Every ocean should have a containing island.  There is only one ocean that doesn't
 		// have an explicit island and that's the global scope ocean container
 		for (AreaOcean ocean : oceanList) {
-			AreaIsland island = findSmallestContainer(ocean, islandList);
+			AreaIsland island = findSmallestContainer(ocean, islandGrid);
 			if (island == null) {
 				log.warn("Weird, I couldn't find an island for an ocean.  Bad/overlapping VBL?");
 				continue;
@@ -85,7 +187,7 @@ public class AreaTree {
 		// Now put each island into the containing ocean
 		List<AreaIsland> globalIslandList = new ArrayList<AreaIsland>();
 		for (AreaIsland island : islandList) {
-			AreaOcean ocean = findSmallestContainer(island, oceanList);
+			AreaOcean ocean = findSmallestContainer(island, oceanGrid);
 			if (ocean == null) {
 				globalIslandList.add(island);
 				continue;
@@ -100,10 +202,23 @@ public class AreaTree {
 		}
 	}
 
-	private <T extends AreaContainer> T findSmallestContainer(AreaContainer item, List<T> list) {
-		T smallest = null;
+	private <T extends AreaContainer> SpatialGrid<T> createGrid(List<T> list) {
+		List<Rectangle2D> bounds = new ArrayList<Rectangle2D>(list.size());
 		for (T container : list) {
-			if (!GraphicsUtil.contains(container.getBounds(), item.getBounds())) {
+			bounds.add(container.getBounds2D());
+		}
+		return new SpatialGrid<T>(list, bounds);
+	}
+
+	private <T extends AreaContainer> T findSmallestContainer(AreaContainer item, SpatialGrid<T> grid) {
+		Rectangle2D itemBounds = item.getBounds2D();
+		List<T> candidates = new ArrayList<T>();
+		grid.query(itemBounds.getCenterX(), itemBounds.getCenterY(), candidates);
+
+		T smallest = null;
+		for (T container : candidates) {
+			// the bounding boxes rule out most candidates before the expensive area test
+			if (!contains(container.getBounds2D(), itemBounds) || !GraphicsUtil.contains(container.getBounds(), item.getBounds())) {
 				continue;
 			}
 			smallest = getSmallest(smallest, container);
@@ -111,6 +226,10 @@ public class AreaTree {
 		return smallest;
 	}
 
+	private static boolean contains(Rectangle2D outer, Rectangle2D inner) {
+		return outer.getMinX() <= inner.getMinX() && outer.getMinY() <= inner.getMinY() && outer.getMaxX() >= inner.getMaxX() && outer.getMaxY() >= inner.getMaxY();
+	}
+
 	private <T extends AreaContainer> T getSmallest(T left, T right) {
 		// Something is smaller than nothing, for our purposes
 		if (left == null) {
@@ -120,8 +239,8 @@ public class AreaTree {
 			return left;
 		}
 		// Presumably the container with the smaller area will be the contained area
-		double leftSize = left.getBounds().getBounds().getWidth() * left.getBounds().getBounds().getHeight();
-		double rightSize = right.getBounds().getBounds().getWidth() * right.getBounds().getBounds().getHeight();
+		double leftSize = left.getBounds2D().getWidth() * left.getBounds2D().getHeight();
+		double rightSize = right.getBounds2D().getWidth() * right.getBounds2D().getHeight();
 
 		return leftSize < rightSize ? left : right;
 	}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.client.ui.zone.vbl;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A uniform grid over the bounding boxes of islands, oceans or faces, so that a query only looks at
+ * what lies near the region it is interested in. The cell size adapts to the extent and the number
+ * of the items. Items that would span too many cells, like the outer wall of a dungeon, are kept in
+ * a separate list that every query checks.
+ * <p>
+ * The grid is immutable once created.
+ */
+final class SpatialGrid<T> {
+	private static final int MAX_CELLS_PER_SIDE = 256;
+	private static final int MAX_ITEM_CELLS = 64;
+
+	private final List<T> items;
+	private final double[] minX, minY, maxX, maxY;
+
+	private final double originX, originY, cellWidth, cellHeight;
+	private final int columns, rows;
+	/** the indexes of the items overlapping each cell, row by row */
+	private final int[][] cells;
+	/** the first cell column and row of each item, or -1 if the item is oversized */
+	private final int[] firstColumn, firstRow;
+	private final int[] oversized;
+
+	/**
+	 * @param items
+	 *            the items to index
+	 * @param bounds
+	 *            the bounding box of each item, in the same order
+	 */
+	SpatialGrid(List<T> items, List<? extends Rectangle2D> bounds) {
+		int n = items.size();
+		this.items = new ArrayList<T>(items);
+		minX = new double[n];
+		minY = new double[n];
+		maxX = new double[n];
+		maxY = new double[n];
+
+		Rectangle2D extent = null;
+		for (int i = 0; i < n; i++) {
+			Rectangle2D r = bounds.get(i);
+			minX[i] = r.getMinX();
+			minY[i] = r.getMinY();
+			maxX[i] = r.getMaxX();
+			maxY[i] = r.getMaxY();
+			if (extent == null) {
+				extent = new Rectangle2D.Double(r.getX(), r.getY(), r.getWidth(), r.getHeight());
+			} else {
+				extent.add(r);
+			}
+		}
+		if (extent == null) {
+			extent = new Rectangle2D.Double();
+		}
+		// about one item per cell
+		int side = Math.max(1, Math.min(MAX_CELLS_PER_SIDE, (int) Math.ceil(Math.sqrt(n))));
+		originX = extent.getX();
+		originY = extent.getY();
+		columns = side;
+		rows = side;
+		cellWidth = Math.max(extent.getWidth() / columns, Double.MIN_NORMAL);
+		cellHeight = Math.max(extent.getHeight() / rows, Double.MIN_NORMAL);
+
+		firstColumn = new int[n];
+		firstRow = new int[n];
+		int[] counts = new int[columns * rows];
+		int oversizedCount = 0;
+		for (int i = 0; i < n; i++) {
+			int c0 = column(minX[i]), c1 = column(maxX[i]), r0 = row(minY[i]), r1 = row(maxY[i]);
+			if ((c1 - c0 + 1) * (r1 - r0 + 1) > MAX_ITEM_CELLS) {
+				firstColumn[i] = -1;
+				firstRow[i] = -1;
+				oversizedCount++;
+				continue;
+			}
+			firstColumn[i] = c0;
+			firstRow[i] = r0;
+			for (int r = r0; r <= r1; r++) {
+				for (int c = c0; c <= c1; c++) {
+					counts[r * columns + c]++;
+				}
+			}
+		}
+		cells = new int[columns * rows][];
+		for (int i = 0; i < cells.length; i++) {
+			cells[i] = new int[counts[i]];
+			counts[i] = 0;
+		}
+		oversized = new int[oversizedCount];
+		oversizedCount = 0;
+		for (int i = 0; i < n; i++) {
+			if (firstColumn[i] < 0) {
+				oversized[oversizedCount++] = i;
+				continue;
+			}
+			int c1 = column(maxX[i]), r1 = row(maxY[i]);
+			for (int r = firstRow[i]; r <= r1; r++) {
+				for (int c = firstColumn[i]; c <= c1; c++) {
+					int cell = r * columns + c;
+					cells[cell][counts[cell]++] = i;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds all items whose bounding box touches the region to the result, each of them once.
+	 *
+	 * @param region
+	 *            the region of interest, or null for all items
+	 */
+	void query(Rectangle2D region, List<? super T> result) {
+		if (region == null) {
+			result.addAll(items);
+			return;
+		}
+		double x0 = region.getMinX(), y0 = region.getMinY(), x1 = region.getMaxX(), y1 = region.getMaxY();
+		for (int i : oversized) {
+			if (touches(i, x0, y0, x1, y1)) {
+				result.add(items.get(i));
+			}
+		}
+		if (x1 < originX || y1 < originY || x0 > originX + cellWidth * columns || y0 > originY + cellHeight * rows) {
+			return;
+		}
+		int c0 = column(x0), c1 = column(x1), r0 = row(y0), r1 = row(y1);
+		for (int r = r0; r <= r1; r++) {
+			for (int c = c0; c <= c1; c++) {
+				for (int i : cells[r * columns + c]) {
+					// an item spanning several cells is only reported from the first one the query shares with it
+					if (c == Math.max(c0, firstColumn[i]) && r == Math.max(r0, firstRow[i]) && touches(i, x0, y0, x1, y1)) {
+						result.add(items.get(i));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds all items whose bounding box contains the point to the result.
+	 */
+	void query(double x, double y, List<? super T> result) {
+		query(new Rectangle2D.Double(x, y, 0, 0), result);
+	}
+
+	int size() {
+		return items.size();
+	}
+
+	private boolean touches(int i, double x0, double y0, double x1, double y1) {
+		return minX[i] <= x1 && maxX[i] >= x0 && minY[i] <= y1 && maxY[i] >= y0;
+	}
+
+	private int column(double x) {
+		return Math.max(0, Math.min(columns - 1, (int) Math.floor((x - originX) / cellWidth)));
+	}
+
+	private int row(double y) {
+		return Math.max(0, Math.min(rows - 1, (int) Math.floor((y - originY) / cellHeight)));
+	}
+}
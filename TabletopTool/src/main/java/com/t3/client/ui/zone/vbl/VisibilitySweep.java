@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.client.ui.zone.vbl;
+
+import java.awt.geom.Path2D;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Calculates the visibility polygon of a point by sweeping a ray once around it. The faces the ray
+ * crosses are kept ordered by their distance to the point, so the nearest face, which is the edge
+ * of the visible region, is always at hand. Sorting the face end points dominates, which makes
+ * this O(n log n) in the number of faces.
+ * <p>
+ * The faces must not cross each other, which holds for the faces of an {@link AreaTree}.
+ */
+public class VisibilitySweep {
+	/** angles closer than this are treated as the same sweep position */
+	private static final double EPSILON = 1e-10;
+
+	private VisibilitySweep() {
+	}
+
+	/**
+	 * @param origin
+	 *            the point to look from
+	 * @param faces
+	 *            the faces that block the view
+	 * @param bounds
+	 *            the region of interest, nothing outside it is part of the result
+	 * @return a star shaped polygon around the origin that contains all points of the bounds that can
+	 *         be seen from the origin
+	 */
+	public static Path2D calculateVisibility(Point2D origin, Collection<AreaFace> faces, Rectangle2D bounds) {
+		Rectangle2D box = new Rectangle2D.Double(bounds.getX() - 1, bounds.getY() - 1, bounds.getWidth() + 2, bounds.getHeight() + 2);
+		box.add(origin);
+		double ox = origin.getX();
+		double oy = origin.getY();
+
+		// a face completely outside the box can only hide what lies outside the box as well
+		List<Segment> segments = new ArrayList<Segment>(faces.size() + 4);
+		for (AreaFace face : faces) {
+			Point2D p1 = face.getP1();
+			Point2D p2 = face.getP2();
+			if (box.intersectsLine(p1.getX(), p1.getY(), p2.getX(), p2.getY())) {
+				addSegment(segments, p1.getX() - ox, p1.getY() - oy, p2.getX() - ox, p2.getY() - oy);
+			}
+		}
+		// the box closes every ray that isn't blocked before
+		double minX = box.getMinX() - ox, minY = box.getMinY() - oy, maxX = box.getMaxX() - ox, maxY = box.getMaxY() - oy;
+		addSegment(segments, minX, minY, maxX, minY);
+		addSegment(segments, maxX, minY, maxX, maxY);
+		addSegment(segments, maxX, maxY, minX, maxY);
+		addSegment(segments, minX, maxY, minX, minY);
+
+		List<Event> events = new ArrayList<Event>(segments.size() * 2);
+		for (Segment segment : segments) {
+			events.add(new Event(segment.a1, segment, true));
+			events.add(new Event(segment.a2, segment, false));
+		}
+		Collections.sort(events);
+
+		Path2D polygon = new Path2D.Double();
+		TreeSet<Segment> active = new TreeSet<Segment>(NEAREST_FIRST);
+		double[] last = null;
+		int i = 0;
+		while (i < events.size()) {
+			double angle = events.get(i).angle;
+			Segment before = active.isEmpty() ? null : active.first();
+
+			// all segments ending at this angle leave before the ones starting here enter
+			int end = i;
+			while (end < events.size() && events.get(end).angle - angle <= EPSILON) {
+				end++;
+			}
+			for (int j = i; j < end; j++) {
+				Event e = events.get(j);
+				if (!e.start && !active.remove(e.segment)) {
+					removeIdentity(active, e.segment);
+				}
+			}
+			for (int j = i; j < end; j++) {
+				Event e = events.get(j);
+				if (e.start) {
+					active.add(e.segment);
+				}
+			}
+			Segment after = active.isEmpty() ? null : active.first();
+
+			if (after != before) {
+				if (before != null) {
+					last = addPoint(polygon, last, before.hit(angle), ox, oy);
+				}
+				if (after != null) {
+					last = addPoint(polygon, last, after.hit(angle), ox, oy);
+				}
+			}
+			i = end;
+		}
+		polygon.closePath();
+		return polygon;
+	}
+
+	private static void addSegment(List<Segment> segments, double x1, double y1, double x2, double y2) {
+		double cross = x1 * y2 - y1 * x2;
+		double length = Math.hypot(x2 - x1, y2 - y1);
+		// seen edge on, or passing through the origin, it hides nothing
+		if (Math.abs(cross) <= EPSILON * length * Math.max(1, Math.hypot(x1, y1))) {
+			return;
+		}
+		// sweep counter clockwise
+		if (cross < 0) {
+			double t = x1;
+			x1 = x2;
+			x2 = t;
+			t = y1;
+			y1 = y2;
+			y2 = t;
+		}
+		// + 0.0 turns -0.0 into 0.0, so the negative x axis is always at +PI
+		double a1 = Math.atan2(y1 + 0.0, x1);
+		double a2 = Math.atan2(y2 + 0.0, x2);
+		if (a1 == Math.PI) {
+			// starts on the negative x axis and leaves it counter clockwise
+			a1 = -Math.PI;
+		}
+		if (a2 < a1) {
+			// crosses the negative x axis, where the sweep starts and ends
+			double t = y1 / (y1 - y2);
+			double x = x1 + t * (x2 - x1);
+			segments.add(new Segment(segments.size(), x1, y1, x, 0, a1, Math.PI));
+			segments.add(new Segment(segments.size(), x, 0, x2, y2, -Math.PI, a2));
+		} else {
+			segments.add(new Segment(segments.size(), x1, y1, x2, y2, a1, a2));
+		}
+	}
+
+	private static double[] addPoint(Path2D polygon, double[] last, double[] point, double ox, double oy) {
+		if (last == null) {
+			polygon.moveTo(point[0] + ox, point[1] + oy);
+		} else if (Math.abs(last[0] - point[0]) > EPSILON || Math.abs(last[1] - point[1]) > EPSILON) {
+			polygon.lineTo(point[0] + ox, point[1] + oy);
+		} else {
+			return last;
+		}
+		return point;
+	}
+
+	// only needed if rounding made the ordering of the set inconsistent
+	private static void removeIdentity(TreeSet<Segment> active, Segment segment) {
+		for (Iterator<Segment> iter = active.iterator(); iter.hasNext();) {
+			if (iter.next() == segment) {
+				iter.remove();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Orders two segments that are crossed by the ray at the same time by their distance along a ray
+	 * in the middle of the angles they share. Since the segments don't cross, this order is the same
+	 * for every ray that crosses both.
+	 */
+	private static final Comparator<Segment> NEAREST_FIRST = new Comparator<Segment>() {
+		@Override
+		public int compare(Segment s, Segment t) {
+			if (s == t) {
+				return 0;
+			}
+			double angle = (Math.max(s.a1, t.a1) + Math.min(s.a2, t.a2)) / 2;
+			int result = Double.compare(s.distance(angle), t.distance(angle));
+			return result != 0 ? result : s.id - t.id;
+		}
+	};
+
+	/**
+	 * A face relative to the origin, with its end points in counter clockwise order.
+	 */
+	private static final class Segment {
+		final int id;
+		final double x1, y1, x2, y2;
+		final double a1, a2;
+
+		Segment(int id, double x1, double y1, double x2, double y2, double a1, double a2) {
+			this.id = id;
+			this.x1 = x1;
+			this.y1 = y1;
+			this.x2 = x2;
+			this.y2 = y2;
+			this.a1 = a1;
+			this.a2 = a2;
+		}
+
+		/**
+		 * @return the distance from the origin to this segment's line along the ray with the angle
+		 */
+		double distance(double angle) {
+			double dx = Math.cos(angle);
+			double dy = Math.sin(angle);
+			double ex = x2 - x1;
+			double ey = y2 - y1;
+			double denominator = ex * dy - ey * dx;
+			if (denominator == 0) {
+				return Math.min(Math.hypot(x1, y1), Math.hypot(x2, y2));
+			}
+			return (ex * y1 - ey * x1) / denominator;
+		}
+
+		double[] hit(double angle) {
+			if (Math.abs(angle - a1) <= EPSILON) {
+				return new double[] { x1, y1 };
+			}
+			if (Math.abs(angle - a2) <= EPSILON) {
+				return new double[] { x2, y2 };
+			}
+			double d = distance(angle);
+			return new double[] { d * Math.cos(angle), d * Math.sin(angle) };
+		}
+	}
+
+	private static final class Event implements Comparable<Event> {
+		final double angle;
+		final Segment segment;
+		final boolean start;
+
+		Event(double angle, Segment segment, boolean start) {
+			this.angle = angle;
+			this.segment = segment;
+			this.start = start;
+		}
+
+		@Override
+		public int compareTo(Event o) {
+			return Double.compare(angle, o.angle);
+		}
+	}
+}
@@ -14,15 +14,37 @@ package com.t3.client.walker;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingUtilities;
 
 import com.t3.model.CellPoint;
 import com.t3.model.Path;
 import com.t3.model.Zone;
 
 public abstract class AbstractZoneWalker implements ZoneWalker {
+	/** calculates the paths of all walkers that are dragged around, one at a time */
+	private static ExecutorService pathThreadPool = Executors.newFixedThreadPool(1, new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "Path calculation");
+			// a path still being calculated must not keep the application from exiting
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
 	protected List<PartialPath> partialPaths = new ArrayList<PartialPath>();
 	protected final Zone zone;
 
+	/** the last waypoint that is still being calculated in the background, only used by the EDT */
+	private PathRequest latestRequest;
+	/** the request the background thread will calculate next, older ones are skipped */
+	private PathRequest pendingRequest;
+	private final Object requestLock = new Object();
+
 	public AbstractZoneWalker(Zone zone) {
 		this.zone = zone;
 	}
@@ -33,6 +55,9 @@ public abstract class AbstractZoneWalker implements ZoneWalker {
 
 	@Override
 	public CellPoint getLastPoint() {
+		if (latestRequest != null) {
+			return latestRequest.end;
+		}
 		if (partialPaths.isEmpty()) {
 			return null;
 		}
@@ -42,23 +67,27 @@ public abstract class AbstractZoneWalker implements ZoneWalker {
 
 	@Override
 	public void setWaypoints(CellPoint... points) {
+		latestRequest = null;
 		partialPaths.clear();
 		addWaypoints(points);
 	}
 
 	@Override
 	public void addWaypoints(CellPoint... points) {
+		finishLastWaypoint();
 		CellPoint previous = partialPaths.size() > 0 ? partialPaths.get(partialPaths.size() - 1).end : null;
 		for (CellPoint current : points) {
 			if (previous != null) {
-				partialPaths.add(new PartialPath(previous, current, calculatePath(previous, current)));
+				partialPaths.add(new PartialPath(previous, current, calculatePathLocked(previous, current)));
 			}
 			previous = current;
 		}
+		partialPathsChanged();
 	}
 
 	@Override
 	public CellPoint replaceLastWaypoint(CellPoint point) {
+		latestRequest = null;
 		if (partialPaths.isEmpty())
 			return null;
 		PartialPath oldPartial = partialPaths.remove(partialPaths.size() - 1);
@@ -67,10 +96,82 @@ public abstract class AbstractZoneWalker implements ZoneWalker {
 //		if (oldPartial.end.equals(point))
 //			return null;
 
-		partialPaths.add(new PartialPath(oldPartial.start, point, calculatePath(oldPartial.start, point)));
+		partialPaths.add(new PartialPath(oldPartial.start, point, calculatePathLocked(oldPartial.start, point)));
+		partialPathsChanged();
 		return oldPartial.end;
 	}
 
+	@Override
+	public void replaceLastWaypointLater(CellPoint point, Runnable onPathChanged) {
+		if (partialPaths.isEmpty())
+			return;
+		CellPoint last = getLastPoint();
+		if (last != null && last.equals(point))
+			return;
+		final PathRequest request = new PathRequest(partialPaths.get(partialPaths.size() - 1).start, point, onPathChanged);
+		latestRequest = request;
+		boolean idle;
+		synchronized (requestLock) {
+			idle = pendingRequest == null;
+			pendingRequest = request;
+		}
+		if (idle) {
+			pathThreadPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					calculatePendingRequest();
+				}
+			});
+		}
+	}
+
+	@Override
+	public void finishLastWaypoint() {
+		if (latestRequest != null) {
+			replaceLastWaypoint(latestRequest.end);
+		}
+	}
+
+	/**
+	 * Calculates the latest request on the background thread and hands the path to the EDT, which
+	 * only takes it if no other waypoint was set in the meantime.
+	 */
+	private void calculatePendingRequest() {
+		final PathRequest request;
+		synchronized (requestLock) {
+			request = pendingRequest;
+			pendingRequest = null;
+		}
+		if (request == null) {
+			return;
+		}
+		final List<CellPoint> path = calculatePathLocked(request.start, request.end);
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				if (request != latestRequest) {
+					return;
+				}
+				latestRequest = null;
+				partialPaths.set(partialPaths.size() - 1, new PartialPath(request.start, request.end, path));
+				partialPathsChanged();
+				if (request.onPathChanged != null) {
+					request.onPathChanged.run();
+				}
+			}
+		});
+	}
+
+	/**
+	 * The search may keep state between two calls, so a path is only calculated by one thread at a
+	 * time.
+	 */
+	private List<CellPoint> calculatePathLocked(CellPoint start, CellPoint end) {
+		synchronized (this) {
+			return calculatePath(start, end);
+		}
+	}
+
 	@Override
 	public Path<CellPoint> getPath() {
 		Path<CellPoint> path = new Path<CellPoint>();
@@ -118,6 +219,7 @@ public abstract class AbstractZoneWalker implements ZoneWalker {
 	public boolean removeWaypoint(CellPoint aPoint) {
 		if (aPoint == null || partialPaths == null || partialPaths.isEmpty())
 			return false;
+		finishLastWaypoint();
 
 		// Find the partial path with the given end point
 		ListIterator<PartialPath> i = partialPaths.listIterator();
@@ -130,7 +232,8 @@ public abstract class AbstractZoneWalker implements ZoneWalker {
 					return false;
 				i.remove();
 				PartialPath path2 = i.next();
-				i.set(new PartialPath(path.start, path2.end, calculatePath(path.start, path2.end)));
+				i.set(new PartialPath(path.start, path2.end, calculatePathLocked(path.start, path2.end)));
+				partialPathsChanged();
 				return true;
 			} // endif
 		} // endwhile
@@ -163,6 +266,25 @@ public abstract class AbstractZoneWalker implements ZoneWalker {
 
 	protected abstract List<CellPoint> calculatePath(CellPoint start, CellPoint end);
 
+	/**
+	 * Called whenever the partial paths have changed, so that anything derived from them can be
+	 * calculated anew.
+	 */
+	protected void partialPathsChanged() {
+	}
+
+	private static class PathRequest {
+		final CellPoint start;
+		final CellPoint end;
+		final Runnable onPathChanged;
+
+		PathRequest(CellPoint start, CellPoint end, Runnable onPathChanged) {
+			this.start = start;
+			this.end = end;
+			this.onPathChanged = onPathChanged;
+		}
+	}
+
 	protected static class PartialPath {
 		final CellPoint start;
 		final CellPoint end;
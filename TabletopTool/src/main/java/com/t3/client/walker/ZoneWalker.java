@@ -21,6 +21,24 @@ public interface ZoneWalker {
 
 	public CellPoint replaceLastWaypoint(CellPoint point);
 
+	/**
+	 * Like {@link #replaceLastWaypoint(CellPoint)}, but the path is calculated in the background while
+	 * the walker keeps its old path. Requests that are overtaken by newer ones are skipped. Must be
+	 * called on the EDT.
+	 * 
+	 * @param point
+	 *            The new last waypoint
+	 * @param onPathChanged
+	 *            Run on the EDT once the new path is in place, may be null
+	 */
+	public void replaceLastWaypointLater(CellPoint point, Runnable onPathChanged);
+
+	/**
+	 * Calculates the path to the last waypoint that was set by
+	 * {@link #replaceLastWaypointLater(CellPoint, Runnable)} right now, if it isn't in place yet.
+	 */
+	public void finishLastWaypoint();
+
 	public boolean isWaypoint(CellPoint point);
 
 	public int getDistance();
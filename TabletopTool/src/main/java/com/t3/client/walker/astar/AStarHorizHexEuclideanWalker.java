@@ -38,4 +38,10 @@ public class AStarHorizHexEuclideanWalker extends AbstractAStarHexEuclideanWalke
 	protected int[][] getNeighborMap(int x, int y) {
 		return y % 2 == 0 ? evenNeighborMap : oddNeighborMap;
 	}
+
+	@Override
+	protected int getSteps(int x1, int y1, int x2, int y2) {
+		// the odd rows are shifted right by half a hex
+		return getCubeDistance(x1 - (y1 - (y1 & 1)) / 2, y1, x2 - (y2 - (y2 & 1)) / 2, y2);
+	}
 }
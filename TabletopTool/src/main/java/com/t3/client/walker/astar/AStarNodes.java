@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.client.walker.astar;
+
+import java.util.Arrays;
+
+/**
+ * The nodes of an A* search, kept in parallel arrays and indexed by their cell, with a binary heap
+ * of the open nodes ordered by their estimated total cost. A node is open while it is in the heap
+ * and closed once it has been polled.
+ * <p>
+ * The nodes can outlive a search: with a consistent estimate the cost of every closed node is
+ * final, so a search for another end from the same start only has to estimate the open nodes anew
+ * and go on from there.
+ */
+final class AStarNodes {
+	private static final int INITIAL_CAPACITY = 256;
+	private static final int NOT_QUEUED = -1;
+	private static final int CLOSED = -2;
+	/** costs closer than this are the same, no matter in which order the steps were added up */
+	private static final double EPSILON = 1e-6;
+
+	private final CellTable index = new CellTable();
+	private int[] x = new int[INITIAL_CAPACITY];
+	private int[] y = new int[INITIAL_CAPACITY];
+	private int[] parent = new int[INITIAL_CAPACITY];
+	private double[] g = new double[INITIAL_CAPACITY];
+	private double[] f = new double[INITIAL_CAPACITY];
+	private double[] tie = new double[INITIAL_CAPACITY];
+	/** the position of each node in the heap, or one of NOT_QUEUED and CLOSED */
+	private int[] heapPosition = new int[INITIAL_CAPACITY];
+	private int size;
+
+	private int[] heap = new int[INITIAL_CAPACITY];
+	private int heapSize;
+
+	void clear() {
+		index.clear();
+		size = 0;
+		heapSize = 0;
+	}
+
+	/**
+	 * @return the node of the cell, or -1 if the search hasn't reached it yet
+	 */
+	int get(int cellX, int cellY) {
+		return index.get(cellX, cellY);
+	}
+
+	/**
+	 * @return a new node for the cell, with an infinite cost and not yet in the heap
+	 */
+	int add(int cellX, int cellY) {
+		if (size == x.length) {
+			int capacity = size * 2;
+			x = Arrays.copyOf(x, capacity);
+			y = Arrays.copyOf(y, capacity);
+			parent = Arrays.copyOf(parent, capacity);
+			g = Arrays.copyOf(g, capacity);
+			f = Arrays.copyOf(f, capacity);
+			tie = Arrays.copyOf(tie, capacity);
+			heapPosition = Arrays.copyOf(heapPosition, capacity);
+		}
+		int node = size++;
+		x[node] = cellX;
+		y[node] = cellY;
+		parent[node] = -1;
+		g[node] = Double.POSITIVE_INFINITY;
+		f[node] = Double.POSITIVE_INFINITY;
+		heapPosition[node] = NOT_QUEUED;
+		index.put(cellX, cellY, node);
+		return node;
+	}
+
+	/**
+	 * Records a cheaper way to the node and puts it into the heap, or moves it up if it is already
+	 * there.
+	 * 
+	 * @param tieBreak
+	 *            decides between nodes of the same estimated total cost, the lower goes first
+	 */
+	void update(int node, int parentNode, double cost, double estimate, double tieBreak) {
+		parent[node] = parentNode;
+		g[node] = cost;
+		f[node] = cost + estimate;
+		tie[node] = tieBreak;
+		int position = heapPosition[node];
+		if (position == NOT_QUEUED) {
+			if (heapSize == heap.length) {
+				heap = Arrays.copyOf(heap, heapSize * 2);
+			}
+			position = heapSize++;
+		}
+		siftUp(node, position);
+	}
+
+	/**
+	 * @return the open node with the lowest estimated total cost, which is closed now
+	 */
+	int poll() {
+		int node = heap[0];
+		heapPosition[node] = CLOSED;
+		int last = heap[--heapSize];
+		if (heapSize > 0) {
+			siftDown(last, 0);
+		}
+		return node;
+	}
+
+	/**
+	 * Sets a new estimate of the remaining cost of an open node, for a search that goes on to
+	 * another end. The heap is out of order until {@link #reorder()} is called.
+	 */
+	void setEstimate(int node, double estimate, double tieBreak) {
+		f[node] = g[node] + estimate;
+		tie[node] = tieBreak;
+	}
+
+	/**
+	 * Restores the order of the heap after the estimates of the open nodes changed.
+	 */
+	void reorder() {
+		for (int position = (heapSize >>> 1) - 1; position >= 0; position--) {
+			siftDown(heap[position], position);
+		}
+	}
+
+	/**
+	 * @return the number of open nodes
+	 */
+	int getOpenCount() {
+		return heapSize;
+	}
+
+	/**
+	 * @return the open node at the index, in no particular order
+	 */
+	int getOpen(int i) {
+		return heap[i];
+	}
+
+	boolean isEmpty() {
+		return heapSize == 0;
+	}
+
+	boolean isClosed(int node) {
+		return heapPosition[node] == CLOSED;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int getX(int node) {
+		return x[node];
+	}
+
+	int getY(int node) {
+		return y[node];
+	}
+
+	int getParent(int node) {
+		return parent[node];
+	}
+
+	double getCost(int node) {
+		return g[node];
+	}
+
+	private void siftUp(int node, int position) {
+		while (position > 0) {
+			int parentPosition = (position - 1) >>> 1;
+			int other = heap[parentPosition];
+			if (!before(node, other)) {
+				break;
+			}
+			heap[position] = other;
+			heapPosition[other] = position;
+			position = parentPosition;
+		}
+		heap[position] = node;
+		heapPosition[node] = position;
+	}
+
+	private void siftDown(int node, int position) {
+		int half = heapSize >>> 1;
+		while (position < half) {
+			int child = 2 * position + 1;
+			int right = child + 1;
+			if (right < heapSize && before(heap[right], heap[child])) {
+				child = right;
+			}
+			int other = heap[child];
+			if (!before(other, node)) {
+				break;
+			}
+			heap[position] = other;
+			heapPosition[other] = position;
+			position = child;
+		}
+		heap[position] = node;
+		heapPosition[node] = position;
+	}
+
+	/**
+	 * Among equally promising nodes, the one with the lower tie break goes first, then the one
+	 * furthest along its path, which keeps the search from widening on open ground.
+	 */
+	private boolean before(int a, int b) {
+		if (Math.abs(f[a] - f[b]) > EPSILON) {
+			return f[a] < f[b];
+		}
+		if (Math.abs(tie[a] - tie[b]) > EPSILON) {
+			return tie[a] < tie[b];
+		}
+		return g[a] > g[b];
+	}
+}
@@ -59,19 +59,26 @@ public class AStarSquareEuclideanWalker extends AbstractAStarWalker {
 	}
 
 	@Override
-	protected double gScore(CellPoint p1, CellPoint p2) {
-		return metricDistance(p1, p2);
+	protected double gScore(int x1, int y1, int x2, int y2) {
+		return metricDistance(x2 - x1, y2 - y1);
 	}
 
 	@Override
-	protected double hScore(CellPoint p1, CellPoint p2) {
-		return metricDistance(p1, p2);
-	}
+	protected double hScore(int x1, int y1, int x2, int y2) {
+		int a = Math.abs(x2 - x1);
+		int b = Math.abs(y2 - y1);
 
-	private double metricDistance(CellPoint p1, CellPoint p2) {
-		int a = p2.x - p1.x;
-		int b = p2.y - p1.y;
+		switch (metric) {
+		case MANHATTAN:
+		case NO_DIAGONALS:
+			return a + b;
+		default:
+			// the straight and diagonal steps it takes on open ground, which keeps the search narrow
+			return Math.max(a, b) + (Math.sqrt(2) - 1) * Math.min(a, b);
+		}
+	}
 
+	private double metricDistance(int a, int b) {
 		final double distance;
 
 		switch (metric) {
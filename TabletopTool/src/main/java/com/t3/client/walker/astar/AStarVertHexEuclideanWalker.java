@@ -38,5 +38,11 @@ public class AStarVertHexEuclideanWalker extends AbstractAStarHexEuclideanWalker
 
 		return x % 2 == 0 ? evenNeighborMap : oddNeighborMap;
 	}
+
+	@Override
+	protected int getSteps(int x1, int y1, int x2, int y2) {
+		// the odd columns are shifted down by half a hex
+		return getCubeDistance(x1, y1 - (x1 - (x1 & 1)) / 2, x2, y2 - (x2 - (x2 & 1)) / 2);
+	}
 		
 }
@@ -20,6 +20,7 @@ import com.t3.model.ZonePoint;
 public abstract class AbstractAStarHexEuclideanWalker extends AbstractAStarWalker {
 	protected int[][] oddNeighborMap;
 	protected int[][] evenNeighborMap;
+	private double stepLength = -1;
 
 	public AbstractAStarHexEuclideanWalker(Zone zone) {
 		super(zone);
@@ -32,19 +33,55 @@ public abstract class AbstractAStarHexEuclideanWalker extends AbstractAStarWalke
 		return x % 2 == 0 ? evenNeighborMap : oddNeighborMap;
 	}
 
+	/**
+	 * Every step counts the same, like in the distance of the path.
+	 */
 	@Override
-	protected double gScore(CellPoint p1, CellPoint p2) {
-		return euclideanDistance(p1, p2);
+	protected double gScore(int x1, int y1, int x2, int y2) {
+		return getStepLength();
 	}
 
 	@Override
-	protected double hScore(CellPoint p1, CellPoint p2) {
-		return euclideanDistance(p1, p2);
+	protected double hScore(int x1, int y1, int x2, int y2) {
+		return getSteps(x1, y1, x2, y2) * getStepLength();
 	}
 
-	private double euclideanDistance(CellPoint p1, CellPoint p2) {
-		ZonePoint zp1 = getZone().getGrid().convert(p1);
-		ZonePoint zp2 = getZone().getGrid().convert(p2);
+	/**
+	 * @return the distance between the centers of neighboring hexes, the shortest one if the hexes
+	 *         are stretched
+	 */
+	private double getStepLength() {
+		if (stepLength < 0) {
+			stepLength = Double.MAX_VALUE;
+			// an even and an odd cell
+			for (int cell = 2; cell <= 3; cell++) {
+				for (int[] neighbor : getNeighborMap(cell, cell)) {
+					if (neighbor[0] != 0 || neighbor[1] != 0) {
+						stepLength = Math.min(stepLength, euclideanDistance(cell, cell, cell + neighbor[0], cell + neighbor[1]));
+					}
+				}
+			}
+		}
+		return stepLength;
+	}
+
+	/**
+	 * @return the number of steps between two hexes on open ground
+	 */
+	protected abstract int getSteps(int x1, int y1, int x2, int y2);
+
+	/**
+	 * @return the distance between two hexes in cube coordinates
+	 */
+	protected static int getCubeDistance(int q1, int r1, int q2, int r2) {
+		int dq = q2 - q1;
+		int dr = r2 - r1;
+		return (Math.abs(dq) + Math.abs(dr) + Math.abs(dq + dr)) / 2;
+	}
+
+	private double euclideanDistance(int x1, int y1, int x2, int y2) {
+		ZonePoint zp1 = getZone().getGrid().convert(new CellPoint(x1, y1));
+		ZonePoint zp2 = getZone().getGrid().convert(new CellPoint(x2, y2));
 
 		int a = zp2.x - zp1.x;
 		int b = zp2.y - zp1.y;
@@ -13,21 +13,42 @@ package com.t3.client.walker.astar;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.Map;
-import java.util.Set;
 
 import com.t3.client.walker.AbstractZoneWalker;
 import com.t3.model.CellPoint;
 import com.t3.model.Zone;
 
 public abstract class AbstractAStarWalker extends AbstractZoneWalker {
+	/**
+	 * How far a search may spread before the end counts as unreachable, about twice what a hundred
+	 * cells through a dungeon need
+	 */
+	private static final int MAX_NODES = 10000;
+
+	private static volatile boolean blockedByTopology = Boolean.getBoolean("t3.walkerTopology");
+
+	private final List<CellCostLayer> costLayers = new ArrayList<CellCostLayer>();
+	/** the search around the cost layers and the one for the direct way, when there is none */
+	private final Search search = new Search();
+	private final Search directSearch = new Search();
+
 	public AbstractAStarWalker(Zone zone) {
 		super(zone);
+		if (blockedByTopology && zone.getTopology() != null && !zone.getTopology().isEmpty()) {
+			costLayers.add(new TopologyCostLayer(zone));
+		}
+	}
+
+	/**
+	 * @return whether new walkers go around the topology of the zone instead of through it
+	 */
+	public static boolean isBlockedByTopology() {
+		return blockedByTopology;
+	}
+
+	public static void setBlockedByTopology(boolean blocked) {
+		blockedByTopology = blocked;
 	}
 
 	private int distance = -1;
@@ -44,90 +65,147 @@ public abstract class AbstractAStarWalker extends AbstractZoneWalker {
 	 */
 	protected abstract int[][] getNeighborMap(int x, int y);
 
+	public synchronized void addCostLayer(CellCostLayer layer) {
+		costLayers.add(layer);
+		search.start = null;
+	}
+
+	public synchronized void removeCostLayer(CellCostLayer layer) {
+		costLayers.remove(layer);
+		search.start = null;
+	}
+
+	public synchronized List<CellCostLayer> getCostLayers() {
+		return Collections.unmodifiableList(new ArrayList<CellCostLayer>(costLayers));
+	}
+
 	@Override
 	protected List<CellPoint> calculatePath(CellPoint start, CellPoint end) {
-		List<AStarCellPoint> openList = new ArrayList<AStarCellPoint>();
-		Map<AStarCellPoint, AStarCellPoint> openSet = new HashMap<AStarCellPoint, AStarCellPoint>(); // For faster lookups
-		Set<AStarCellPoint> closedSet = new HashSet<AStarCellPoint>();
+		List<CellPoint> path = null;
+		if (costLayers.isEmpty() || !Double.isInfinite(getCost(end.x, end.y, end.x, end.y, costLayers))) {
+			path = findPath(start, end, costLayers, search);
+		}
+		if (path == null) {
+			// There is no way around, show the direct way like there were no obstacles
+			path = findPath(start, end, Collections.<CellCostLayer> emptyList(), directSearch);
+		}
+		return path;
+	}
 
-		openList.add(new AStarCellPoint(start));
-		openSet.put(openList.get(0), openList.get(0));
+	/**
+	 * Goes on with the last search of the nodes if it started at the same cell, which is what
+	 * happens while a token is dragged around: everything it closed is still the cheapest way there.
+	 * 
+	 * @return the cheapest path from start to end, or null if the end can't be reached
+	 */
+	private List<CellPoint> findPath(CellPoint start, CellPoint end, List<CellCostLayer> layers, Search search) {
+		AStarNodes nodes = search.nodes;
+		boolean reuse = start.equals(search.start);
+		// Many paths are equally short, the one closest to the straight line looks best
+		double lineX = start.x - end.x;
+		double lineY = start.y - end.y;
+		double lineLength = Math.max(1, Math.sqrt(lineX * lineX + lineY * lineY));
 
-		AStarCellPoint node = null;
+		int node;
+		if (reuse) {
+			node = nodes.get(end.x, end.y);
+			if (node >= 0 && nodes.isClosed(node)) {
+				return getPath(nodes, node);
+			}
+			for (int i = 0; i < nodes.getOpenCount(); i++) {
+				int open = nodes.getOpen(i);
+				int x = nodes.getX(open);
+				int y = nodes.getY(open);
+				nodes.setEstimate(open, hScore(x, y, end.x, end.y), Math.abs((x - end.x) * lineY - (y - end.y) * lineX) / lineLength);
+			}
+			nodes.reorder();
+		} else {
+			nodes.clear();
+			int startNode = nodes.add(start.x, start.y);
+			nodes.update(startNode, -1, 0, hScore(start.x, start.y, end.x, end.y), 0);
+			search.start = start;
+		}
 
-		while (!openList.isEmpty()) {
-			node = openList.remove(0);
-			openSet.remove(node);
-			if (node.equals(end)) {
-				break;
+		node = -1;
+		while (!nodes.isEmpty()) {
+			node = nodes.poll();
+			if (nodes.size() > MAX_NODES && (reuse || !layers.isEmpty())) {
+				search.start = null;
+				// a search that went on for too long starts over, a new one gives up
+				return reuse ? findPath(start, end, layers, search) : null;
 			}
-			int[][] neighborMap = getNeighborMap(node.x, node.y);
+			int x = nodes.getX(node);
+			int y = nodes.getY(node);
+			// the neighbors of the end are opened as well, so that the next search can go on from here
+			int[][] neighborMap = getNeighborMap(x, y);
 			for (int i = 0; i < neighborMap.length; i++) {
-				int x = node.x + neighborMap[i][0];
-				int y = node.y + neighborMap[i][1];
-				AStarCellPoint neighborNode = new AStarCellPoint(x, y);
-				if (closedSet.contains(neighborNode)) {
+				int nx = x + neighborMap[i][0];
+				int ny = y + neighborMap[i][1];
+				int neighbor = nodes.get(nx, ny);
+				if (neighbor >= 0 && nodes.isClosed(neighbor)) {
 					continue;
 				}
-				neighborNode.parent = node;
-				neighborNode.gScore = gScore(start, neighborNode);
-				neighborNode.hScore = hScore(neighborNode, end);
-
-				if (openSet.containsKey(neighborNode)) {
-					AStarCellPoint oldNode = openSet.get(neighborNode);
-					// check if it is cheaper to get here the way that we just
-					// came, versus the previous path
-					if (neighborNode.gScore < oldNode.gScore) {
-						oldNode.gScore = neighborNode.gScore;
-						neighborNode = oldNode;
-						neighborNode.parent = node;
+				double step = gScore(x, y, nx, ny);
+				if (!layers.isEmpty()) {
+					step *= getCost(x, y, nx, ny, layers);
+					if (Double.isInfinite(step)) {
+						continue;
 					}
+				}
+				double cost = nodes.getCost(node) + step;
+				if (neighbor < 0) {
+					neighbor = nodes.add(nx, ny);
+				} else if (cost >= nodes.getCost(neighbor)) {
+					// it is no cheaper to get there the way that we just came
 					continue;
 				}
-				pushNode(openList, neighborNode);
-				openSet.put(neighborNode, neighborNode);
+				double offLine = Math.abs((nx - end.x) * lineY - (ny - end.y) * lineX) / lineLength;
+				nodes.update(neighbor, node, cost, hScore(nx, ny, end.x, end.y), offLine);
 			}
-			closedSet.add(node);
-			node = null;
+			if (x == end.x && y == end.y) {
+				break;
+			}
+			node = -1;
 		}
-		List<CellPoint> ret = new LinkedList<CellPoint>();
-		while (node != null) {
-			ret.add(node);
-			node = node.parent;
+		if (node < 0) {
+			return null;
+		}
+		return getPath(nodes, node);
+	}
+
+	private static List<CellPoint> getPath(AStarNodes nodes, int node) {
+		List<CellPoint> ret = new ArrayList<CellPoint>();
+		for (; node >= 0; node = nodes.getParent(node)) {
+			ret.add(new CellPoint(nodes.getX(node), nodes.getY(node)));
 		}
-		distance = -1;
 		Collections.reverse(ret);
 		return ret;
 	}
 
-	private void pushNode(List<AStarCellPoint> list, AStarCellPoint node) {
-		if (list.isEmpty()) {
-			list.add(node);
-			return;
-		}
-		if (node.cost() < list.get(0).cost()) {
-			list.add(0, node);
-			return;
-		}
-		if (node.cost() > list.get(list.size() - 1).cost()) {
-			list.add(node);
-			return;
-		}
-		for (ListIterator<AStarCellPoint> iter = list.listIterator(); iter.hasNext();) {
-			AStarCellPoint listNode = iter.next();
-			if (listNode.cost() > node.cost()) {
-				iter.previous();
-				iter.add(node);
-				return;
-			}
+	private static double getCost(int fromX, int fromY, int x, int y, List<CellCostLayer> layers) {
+		double cost = 1;
+		for (CellCostLayer layer : layers) {
+			cost *= layer.getCost(fromX, fromY, x, y);
 		}
+		return cost;
 	}
 
 	protected abstract int calculateDistance(List<CellPoint> path, int feetPerCell);
 
-	protected abstract double gScore(CellPoint p1, CellPoint p2);
+	/**
+	 * @return the cost of the step between two neighboring cells
+	 */
+	protected abstract double gScore(int x1, int y1, int x2, int y2);
+
+	/**
+	 * @return the estimated cost of the way between two cells, never more than the actual cost
+	 */
+	protected abstract double hScore(int x1, int y1, int x2, int y2);
 
-	protected abstract double hScore(CellPoint p1, CellPoint p2);
+	@Override
+	protected void partialPathsChanged() {
+		distance = -1;
+	}
 
 	@Override
 	public int getDistance() {
@@ -136,4 +214,13 @@ public abstract class AbstractAStarWalker extends AbstractZoneWalker {
 		}
 		return distance;
 	}
+
+	/**
+	 * The nodes of the last search and the cell it started at, the start is null when the nodes
+	 * can't be reused
+	 */
+	private static class Search {
+		final AStarNodes nodes = new AStarNodes();
+		CellPoint start;
+	}
 }
@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.client.walker.astar;
+
+/**
+ * An extra cost for moving through the cells of the grid, like difficult terrain or walls. The
+ * walker multiplies the cost of every step with the costs of all its layers.
+ */
+public interface CellCostLayer {
+	/**
+	 * @param fromX
+	 *            the cell the step starts at, the same as the target cell when the walker only
+	 *            wants to know whether the cell can be entered at all
+	 * @return the factor for the cost of entering the cell from its neighbor, at least 1 so that
+	 *         the walker still finds the cheapest path, or {@link Double#POSITIVE_INFINITY} if the
+	 *         step isn't possible
+	 */
+	public double getCost(int fromX, int fromY, int x, int y);
+}
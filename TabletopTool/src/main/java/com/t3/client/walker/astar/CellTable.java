@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.client.walker.astar;
+
+import java.util.Arrays;
+
+/**
+ * A hash table from cells to non-negative ints with open addressing, so that looking up a cell
+ * needs neither a {@link com.t3.model.CellPoint} nor a boxed key.
+ */
+final class CellTable {
+	private static final int INITIAL_CAPACITY = 256;
+
+	private long[] keys = new long[INITIAL_CAPACITY];
+	private int[] values = new int[INITIAL_CAPACITY];
+	private int size;
+
+	CellTable() {
+		Arrays.fill(values, -1);
+	}
+
+	/**
+	 * @return the value of the cell, or -1 if there is none
+	 */
+	int get(int x, int y) {
+		long key = key(x, y);
+		int mask = keys.length - 1;
+		for (int slot = slot(key, mask);; slot = (slot + 1) & mask) {
+			if (values[slot] < 0 || keys[slot] == key) {
+				return values[slot];
+			}
+		}
+	}
+
+	void put(int x, int y, int value) {
+		if (size * 2 >= keys.length) {
+			grow();
+		}
+		if (insert(key(x, y), value)) {
+			size++;
+		}
+	}
+
+	void clear() {
+		Arrays.fill(values, -1);
+		size = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private boolean insert(long key, int value) {
+		int mask = keys.length - 1;
+		for (int slot = slot(key, mask);; slot = (slot + 1) & mask) {
+			if (values[slot] < 0) {
+				keys[slot] = key;
+				values[slot] = value;
+				return true;
+			}
+			if (keys[slot] == key) {
+				values[slot] = value;
+				return false;
+			}
+		}
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new int[oldValues.length * 2];
+		Arrays.fill(values, -1);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] >= 0) {
+				insert(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+
+	private static long key(int x, int y) {
+		return ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	private static int slot(long key, int mask) {
+		// neighboring cells must not end up in neighboring slots
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+	}
+}
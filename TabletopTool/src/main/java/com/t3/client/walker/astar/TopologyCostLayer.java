@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.client.walker.astar;
+
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
+
+import com.t3.model.CellPoint;
+import com.t3.model.Zone;
+import com.t3.model.grid.Grid;
+
+/**
+ * Blocks the cells that the topology of the zone reaches into, and the steps between cells that
+ * cross it. Only the inner part of a cell counts, so that walls drawn along the grid lines don't
+ * block the cells on both sides of them, only the steps across.
+ * <p>
+ * Testing a cell against the topology area directly would look at every segment of it. Instead the
+ * cells look up the pixels they cover in the {@link TopologyRaster} of the zone, and steps the
+ * pixels between the centers of their cells. The raster, and with it what is known about the cells
+ * and the steps, is shared by all walkers of the zone, so a new walker for every drag starts out
+ * with what the walkers before it found out.
+ */
+public class TopologyCostLayer implements CellCostLayer {
+	/** the part of the cell on each side that may touch the topology */
+	private static final double MARGIN = 0.2;
+
+	/** the state of a cell, and for each of the steps into it from its neighbors whether it is known and whether it is blocked */
+	private static final int CELL_KNOWN = 1;
+	private static final int CELL_BLOCKED = 2;
+	private static final int STEP_SHIFT = 2;
+
+	private final Grid grid;
+	private final TopologyRaster raster;
+	private final Rectangle2D topologyBounds;
+	private final double pixelSize;
+
+	private final CellTable cells;
+	private long lastChunkKey;
+	private long[] lastChunk;
+
+	public TopologyCostLayer(Zone zone) {
+		this(zone.getGrid(), TopologyRaster.get(zone));
+	}
+
+	public TopologyCostLayer(Grid grid, Area topology) {
+		this(grid, new TopologyRaster(topology, grid.getSize()));
+	}
+
+	private TopologyCostLayer(Grid grid, TopologyRaster raster) {
+		this.grid = grid;
+		this.raster = raster;
+		cells = raster.getCells(grid);
+		topologyBounds = raster.getTopologyBounds();
+		pixelSize = raster.getPixelSize();
+	}
+
+	@Override
+	public double getCost(int fromX, int fromY, int x, int y) {
+		if (raster.isEmpty()) {
+			return 1;
+		}
+		int state;
+		synchronized (cells) {
+			state = cells.get(x, y);
+		}
+		if (state < 0) {
+			state = CELL_KNOWN | (isBlocked(x, y) ? CELL_BLOCKED : 0);
+			synchronized (cells) {
+				cells.put(x, y, state);
+			}
+		}
+		if ((state & CELL_BLOCKED) != 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		int dx = x - fromX;
+		int dy = y - fromY;
+		if (dx == 0 && dy == 0) {
+			return 1;
+		}
+		if (Math.abs(dx) > 1 || Math.abs(dy) > 1) {
+			return isBlocked(fromX, fromY, x, y) ? Double.POSITIVE_INFINITY : 1;
+		}
+		int shift = STEP_SHIFT + 2 * ((dx + 1) * 3 + dy + 1);
+		if ((state & (1 << shift)) == 0) {
+			state |= (1 << shift) | (isBlocked(fromX, fromY, x, y) ? 2 << shift : 0);
+			// another walker may have added a step meanwhile, at worst it is looked at again
+			synchronized (cells) {
+				cells.put(x, y, state);
+			}
+		}
+		return (state & (2 << shift)) != 0 ? Double.POSITIVE_INFINITY : 1;
+	}
+
+	/**
+	 * @return whether the topology reaches into the inner part of the cell
+	 */
+	public boolean isBlocked(int x, int y) {
+		Rectangle bounds = getBounds(x, y);
+		double x0 = bounds.x + bounds.width * MARGIN;
+		double y0 = bounds.y + bounds.height * MARGIN;
+		double x1 = x0 + bounds.width * (1 - 2 * MARGIN);
+		double y1 = y0 + bounds.height * (1 - 2 * MARGIN);
+		if (raster.isEmpty() || !topologyBounds.intersects(x0, y0, x1 - x0, y1 - y0)) {
+			return false;
+		}
+		int px1 = (int) Math.ceil(x1 / pixelSize);
+		int py1 = (int) Math.ceil(y1 / pixelSize);
+		for (int py = (int) Math.floor(y0 / pixelSize); py < py1; py++) {
+			for (int px = (int) Math.floor(x0 / pixelSize); px < px1; px++) {
+				if (isSet(px, py)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether the topology crosses the line between the centers of the two cells
+	 */
+	public boolean isBlocked(int fromX, int fromY, int x, int y) {
+		Rectangle from = getBounds(fromX, fromY);
+		Rectangle to = getBounds(x, y);
+		if (raster.isEmpty() || !topologyBounds.intersectsLine(from.getCenterX(), from.getCenterY(), to.getCenterX(), to.getCenterY())) {
+			return false;
+		}
+		double x0 = from.getCenterX() / pixelSize;
+		double y0 = from.getCenterY() / pixelSize;
+		double dx = to.getCenterX() / pixelSize - x0;
+		double dy = to.getCenterY() / pixelSize - y0;
+		// half a pixel at a time, so that the line can't slip past a pixel of the topology
+		int steps = (int) Math.ceil(Math.max(Math.abs(dx), Math.abs(dy)) * 2);
+		for (int i = 0; i <= steps; i++) {
+			if (isSet((int) Math.floor(x0 + dx * i / steps), (int) Math.floor(y0 + dy * i / steps))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private Rectangle getBounds(int x, int y) {
+		Rectangle bounds = grid.getBounds(new CellPoint(x, y));
+		// the bounds of a cell leave out the offset of the grid
+		bounds.translate(grid.getOffsetX(), grid.getOffsetY());
+		return bounds;
+	}
+
+	private boolean isSet(int px, int py) {
+		long[] chunk = getChunk(px >> TopologyRaster.CHUNK_SHIFT, py >> TopologyRaster.CHUNK_SHIFT);
+		if (chunk == TopologyRaster.EMPTY_CHUNK) {
+			return false;
+		}
+		int x = px & (TopologyRaster.CHUNK_SIZE - 1);
+		int y = py & (TopologyRaster.CHUNK_SIZE - 1);
+		return (chunk[y * TopologyRaster.WORDS_PER_ROW + (x >> 6)] & (1L << (x & 63))) != 0;
+	}
+
+	private long[] getChunk(int cx, int cy) {
+		long key = ((long) cx << 32) | (cy & 0xffffffffL);
+		if (lastChunk != null && key == lastChunkKey) {
+			return lastChunk;
+		}
+		long[] chunk = raster.getChunk(cx, cy);
+		lastChunkKey = key;
+		lastChunk = chunk;
+		return chunk;
+	}
+}
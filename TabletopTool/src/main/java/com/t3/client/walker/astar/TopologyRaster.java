@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.client.walker.astar;
+
+import java.awt.geom.Area;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.t3.model.ModelChangeEvent;
+import com.t3.model.ModelChangeListener;
+import com.t3.model.Zone;
+import com.t3.model.grid.Grid;
+
+/**
+ * The topology of a zone as pixels of an eighth of a cell. The outlines of the topology are
+ * flattened into edges once and sorted into horizontal bands. A chunk of pixels is rasterized from
+ * the edges of its band when a walker first gets there, the edges left of the chunk only count for
+ * the winding at its left side.
+ * <p>
+ * The raster of a zone is shared by all of its walkers, and the chunks and cells one of them looked
+ * at are there for the next one, which is what makes the first path of a new walker fast. It keeps a copy
+ * of the topology as it was when the raster was made, so that the EDT can go on changing the
+ * topology of the zone while the paths are calculated in the background, and it is dropped when
+ * the topology or the grid of the zone changes.
+ */
+class TopologyRaster {
+	static final int PIXELS_PER_CELL = 8;
+	static final int CHUNK_SHIFT = 7;
+	static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	static final int WORDS_PER_ROW = CHUNK_SIZE / 64;
+	static final long[] EMPTY_CHUNK = new long[0];
+
+	/** the raster of each zone, made on the EDT when a walker needs it */
+	private static final Map<Zone, TopologyRaster> rasters = new WeakHashMap<Zone, TopologyRaster>();
+	private static final ModelChangeListener INVALIDATOR = new ModelChangeListener() {
+		@Override
+		public void modelChanged(ModelChangeEvent event) {
+			if (event.getEvent() == Zone.Event.TOPOLOGY_CHANGED || event.getEvent() == Zone.Event.GRID_CHANGED) {
+				synchronized (rasters) {
+					rasters.remove(event.getModel());
+				}
+			}
+		}
+	};
+
+	private final Area topology;
+	private final Rectangle2D topologyBounds;
+	private final double pixelSize;
+
+	/** the flattened outlines, in pixels. Guarded by this. */
+	private float[] edges;
+	private int edgeCount;
+	private final Map<Integer, int[]> bands = new HashMap<Integer, int[]>();
+	private final Map<Long, long[]> chunks = new HashMap<Long, long[]>();
+	/** the states of the cells of the grid they were found out for, see {@link TopologyCostLayer}. Guarded by this. */
+	private CellTable cells;
+	private Grid cellsGrid;
+	private int cellsOffsetX;
+	private int cellsOffsetY;
+
+	TopologyRaster(Area topology, int gridSize) {
+		this.topology = new Area(topology);
+		topologyBounds = topology.getBounds2D();
+		pixelSize = (double) gridSize / PIXELS_PER_CELL;
+	}
+
+	/**
+	 * @return the raster of the current topology of the zone, shared with the other walkers of the
+	 *         zone
+	 */
+	static TopologyRaster get(Zone zone) {
+		synchronized (rasters) {
+			TopologyRaster raster = rasters.get(zone);
+			int gridSize = zone.getGrid().getSize();
+			// the size of a grid can change without an event
+			if (raster == null || raster.pixelSize != (double) gridSize / PIXELS_PER_CELL) {
+				// there is only ever one listener for a zone
+				zone.removeModelChangeListener(INVALIDATOR);
+				zone.addModelChangeListener(INVALIDATOR);
+				raster = new TopologyRaster(zone.getTopology(), gridSize);
+				rasters.put(zone, raster);
+			}
+			return raster;
+		}
+	}
+
+	boolean isEmpty() {
+		return topology.isEmpty();
+	}
+
+	Rectangle2D getTopologyBounds() {
+		return topologyBounds;
+	}
+
+	double getPixelSize() {
+		return pixelSize;
+	}
+
+	/**
+	 * @return the states of the cells of the grid, shared by the walkers as long as the grid stays
+	 *         where it is, the table has to be locked while it is used
+	 */
+	synchronized CellTable getCells(Grid grid) {
+		if (cells == null || grid != cellsGrid || grid.getOffsetX() != cellsOffsetX || grid.getOffsetY() != cellsOffsetY) {
+			cells = new CellTable();
+			cellsGrid = grid;
+			cellsOffsetX = grid.getOffsetX();
+			cellsOffsetY = grid.getOffsetY();
+		}
+		return cells;
+	}
+
+	/**
+	 * @return one bit per pixel of the chunk, row by row, or EMPTY_CHUNK if the topology doesn't
+	 *         reach into it
+	 */
+	synchronized long[] getChunk(int cx, int cy) {
+		long key = ((long) cx << 32) | (cy & 0xffffffffL);
+		long[] chunk = chunks.get(key);
+		if (chunk == null) {
+			chunk = rasterize(cx, cy);
+			chunks.put(key, chunk);
+		}
+		return chunk;
+	}
+
+	/**
+	 * Sets the pixels whose centers are inside the topology, like a fill would, and the pixels its
+	 * outlines pass through, which catches walls thinner than a pixel.
+	 */
+	private long[] rasterize(int cx, int cy) {
+		double size = CHUNK_SIZE * pixelSize;
+		if (!topologyBounds.intersects(cx * size, cy * size, size, size)) {
+			return EMPTY_CHUNK;
+		}
+		int x0 = cx * CHUNK_SIZE;
+		int y0 = cy * CHUNK_SIZE;
+		int x1 = x0 + CHUNK_SIZE;
+		int y1 = y0 + CHUNK_SIZE;
+		long[] chunk = new long[CHUNK_SIZE * WORDS_PER_ROW];
+		int[] winding = new int[CHUNK_SIZE];
+		int[] band = getBand(cy);
+		int[] inside = new int[band.length];
+		int insideCount = 0;
+		for (int edge : band) {
+			int i = edge * 4;
+			float ex0 = edges[i], ey0 = edges[i + 1], ex1 = edges[i + 2], ey1 = edges[i + 3];
+			if (Math.min(ex0, ex1) >= x1) {
+				continue;
+			}
+			if (Math.max(ex0, ex1) >= x0) {
+				inside[insideCount++] = edge;
+				continue;
+			}
+			// an edge left of the chunk only adds to the winding of the rows it spans
+			if (ey0 != ey1) {
+				int direction = ey1 > ey0 ? 1 : -1;
+				int first = Math.max(0, (int) Math.ceil(Math.min(ey0, ey1) - 0.5) - y0);
+				int last = Math.min(CHUNK_SIZE, (int) Math.ceil(Math.max(ey0, ey1) - 0.5) - y0);
+				for (int row = first; row < last; row++) {
+					winding[row] += direction;
+				}
+			}
+		}
+		inside = Arrays.copyOf(inside, insideCount);
+		double[] crossings = new double[insideCount];
+		int[] directions = new int[insideCount];
+		for (int row = 0; row < CHUNK_SIZE; row++) {
+			double y = y0 + row + 0.5;
+			int count = 0;
+			for (int edge : inside) {
+				int i = edge * 4;
+				float ex0 = edges[i], ey0 = edges[i + 1], ex1 = edges[i + 2], ey1 = edges[i + 3];
+				if (ey0 == ey1 || y < Math.min(ey0, ey1) || y >= Math.max(ey0, ey1)) {
+					continue;
+				}
+				double x = ex0 + (y - ey0) * (ex1 - ex0) / (ey1 - ey0);
+				int direction = ey1 > ey0 ? 1 : -1;
+				// insertion sort, there are only a few crossings per row
+				int j = count++;
+				for (; j > 0 && crossings[j - 1] > x; j--) {
+					crossings[j] = crossings[j - 1];
+					directions[j] = directions[j - 1];
+				}
+				crossings[j] = x;
+				directions[j] = direction;
+			}
+			int w = winding[row];
+			double from = x0;
+			for (int j = 0; j <= count; j++) {
+				double to = j < count ? crossings[j] : x1;
+				if (w != 0) {
+					setSpan(chunk, row, (int) Math.ceil(from - 0.5) - x0, (int) Math.ceil(to - 0.5) - x0);
+				}
+				if (j < count) {
+					w += directions[j];
+					from = Math.max(from, to);
+				}
+			}
+		}
+		for (int edge : inside) {
+			int i = edge * 4;
+			float ex0 = edges[i], ey0 = edges[i + 1];
+			float dx = edges[i + 2] - ex0, dy = edges[i + 3] - ey0;
+			int steps = Math.max(1, (int) Math.ceil(Math.max(Math.abs(dx), Math.abs(dy)) * 2));
+			for (int s = 0; s <= steps; s++) {
+				int px = (int) Math.floor(ex0 + dx * s / steps) - x0;
+				int py = (int) Math.floor(ey0 + dy * s / steps) - y0;
+				if (px >= 0 && px < CHUNK_SIZE && py >= 0 && py < CHUNK_SIZE) {
+					chunk[py * WORDS_PER_ROW + (px >> 6)] |= 1L << (px & 63);
+				}
+			}
+		}
+		return chunk;
+	}
+
+	private static void setSpan(long[] chunk, int row, int first, int last) {
+		first = Math.max(0, first);
+		last = Math.min(CHUNK_SIZE, last);
+		for (int x = first; x < last; x++) {
+			chunk[row * WORDS_PER_ROW + (x >> 6)] |= 1L << (x & 63);
+		}
+	}
+
+	/**
+	 * @return the edges that reach into a row of chunks
+	 */
+	private int[] getBand(int cy) {
+		int[] band = bands.get(cy);
+		if (band != null) {
+			return band;
+		}
+		if (edges == null) {
+			flatten();
+		}
+		int y0 = cy * CHUNK_SIZE;
+		int y1 = y0 + CHUNK_SIZE;
+		int[] found = new int[edgeCount];
+		int count = 0;
+		for (int edge = 0; edge < edgeCount; edge++) {
+			int i = edge * 4;
+			if (Math.max(edges[i + 1], edges[i + 3]) >= y0 && Math.min(edges[i + 1], edges[i + 3]) < y1) {
+				found[count++] = edge;
+			}
+		}
+		band = Arrays.copyOf(found, count);
+		bands.put(cy, band);
+		return band;
+	}
+
+	private void flatten() {
+		edges = new float[64];
+		float[] coords = new float[6];
+		float startX = 0, startY = 0, lastX = 0, lastY = 0;
+		for (PathIterator iter = topology.getPathIterator(null, pixelSize / 4); !iter.isDone(); iter.next()) {
+			switch (iter.currentSegment(coords)) {
+			case PathIterator.SEG_MOVETO:
+				startX = lastX = (float) (coords[0] / pixelSize);
+				startY = lastY = (float) (coords[1] / pixelSize);
+				break;
+			case PathIterator.SEG_LINETO:
+				float x = (float) (coords[0] / pixelSize);
+				float y = (float) (coords[1] / pixelSize);
+				addEdge(lastX, lastY, x, y);
+				lastX = x;
+				lastY = y;
+				break;
+			case PathIterator.SEG_CLOSE:
+				addEdge(lastX, lastY, startX, startY);
+				lastX = startX;
+				lastY = startY;
+				break;
+			}
+		}
+	}
+
+	private void addEdge(float x0, float y0, float x1, float y1) {
+		if (x0 == x1 && y0 == y1) {
+			return;
+		}
+		if (edgeCount * 4 == edges.length) {
+			edges = Arrays.copyOf(edges, edges.length * 2);
+		}
+		int i = edgeCount++ * 4;
+		edges[i] = x0;
+		edges[i + 1] = y0;
+		edges[i + 2] = x1;
+		edges[i + 3] = y1;
+	}
+}
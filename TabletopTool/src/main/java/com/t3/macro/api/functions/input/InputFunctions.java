@@ -306,9 +306,9 @@ public class InputFunctions {
 	 */
 	static ImageIcon getIcon(String id, int size, ImageObserver io) {
 		// Extract the MD5Key from the URL
-		if (id == null)
+		MD5Key assetID = MD5Key.valueOf(id);
+		if (assetID == null)
 			return null;
-		MD5Key assetID = new MD5Key(id);
 
 		// Get the base image && find the new size for the icon
 		BufferedImage assetImage = ImageManager.getImage(assetID, io);
@@ -492,6 +492,14 @@ public class TokenView extends TokenPropertyView {
 		TabletopTool.serverCommand().putToken(token.getZone().getId(), token);
 	}
 
+	private static MD5Key toAssetKey(String functionName, String assetId) {
+		MD5Key key = MD5Key.valueOf(assetId);
+		if (key == null) {
+			throw new IllegalArgumentException(I18N.getText("macro.function.general.invalidAssetId", functionName, assetId));
+		}
+		return key;
+	}
+
 	/**
 	 * @return the id of the token
 	 */
@@ -1519,7 +1527,7 @@ public class TokenView extends TokenPropertyView {
 	 */
 	public void setTokenImage(String assetId) {
 		Zone zone = token.getZone();
-		token.setImageAsset(null, new MD5Key(assetId));
+		token.setImageAsset(null, toAssetKey("setTokenImage", assetId));
 		zone.putToken(token);
 		TabletopTool.serverCommand().putToken(zone.getId(), token);
 	}
@@ -1530,7 +1538,7 @@ public class TokenView extends TokenPropertyView {
 	 */
 	public void setTokenPortrait(String assetId) {
 		Zone zone = token.getZone();
-		token.setPortraitImage(new MD5Key(assetId));
+		token.setPortraitImage(toAssetKey("setTokenPortrait", assetId));
 		zone.putToken(token);
 		TabletopTool.serverCommand().putToken(zone.getId(), token);
 	}
@@ -1541,7 +1549,7 @@ public class TokenView extends TokenPropertyView {
 	 */
 	public void setTokenHandout(String assetId) {
 		Zone zone = token.getZone();
-		token.setCharsheetImage(new MD5Key(assetId));
+		token.setCharsheetImage(toAssetKey("setTokenHandout", assetId));
 		zone.putToken(token);
 		TabletopTool.serverCommand().putToken(zone.getId(), token);
 	}
@@ -13,6 +13,7 @@ package com.t3.model;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 
 import javax.imageio.ImageIO;
@@ -47,6 +48,16 @@ public class Asset {
 		}
 	}
 
+	/**
+	 * Create an asset whose MD5 is already known, like one from the persistent cache, without hashing its data again.
+	 */
+	public Asset(MD5Key id, String name, byte[] image) {
+		this.id = id;
+		this.name = name;
+		this.image = image;
+		getImageExtension();
+	}
+
 	public Asset(MD5Key id) {
 		this.id = id;
 	}
@@ -68,6 +79,14 @@ public class Asset {
 		return image;
 	}
 
+	/**
+	 * @return the image data as a read only buffer, or null if the asset has none
+	 * @see AssetManager#getAssetBuffer(MD5Key)
+	 */
+	public ByteBuffer getImageBuffer() {
+		return image != null ? ByteBuffer.wrap(image).asReadOnlyBuffer() : null;
+	}
+
 	public void setImage(byte[] image) {
 		this.image = image;
 		extension = null;
@@ -98,6 +117,16 @@ public class Asset {
 		return name;
 	}
 
+	/**
+	 * @return a copy of the asset with its id, name and extension but without the image data, which
+	 *         is what the asset manager keeps of every asset it knows
+	 */
+	public Asset withoutImage() {
+		Asset info = new Asset(id, getImageExtension());
+		info.name = name;
+		return info;
+	}
+
 	public boolean isTransfering() {
 		return AssetManager.isAssetRequested(id);
 	}
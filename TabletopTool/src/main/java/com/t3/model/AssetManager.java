@@ -11,6 +11,7 @@
  */
 package com.t3.model;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -19,16 +20,25 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
@@ -40,14 +50,33 @@ import com.t3.persistence.FileUtil;
 
 /**
  * This class handles the caching, loading, and downloading of assets. All assets are loaded through this class.
- * 
+ * <p>
+ * Only the id, name and extension of an asset are kept for good. The image data of an asset stays in memory until it
+ * has been written to the persistent cache, after that it can be read again at any time and is only kept in a cache
+ * of recently used assets that is limited to {@link #getMaxCachedBytes()}. Code that only passes the image data on
+ * should use {@link #openAssetStream(MD5Key)} or {@link #getAssetBuffer(MD5Key)}, which read it from the persistent
+ * cache without keeping it.
  */
 public class AssetManager {
 	private static final Logger log = Logger.getLogger(AssetManager.class);
 
-	/** Assets are associated with the MD5 sum of their raw data */
+	/** Assets are associated with the MD5 sum of their raw data. These can't be read from the persistent cache (yet). */
 	private static Map<MD5Key, Asset> assetMap = new ConcurrentHashMap<MD5Key, Asset>();
 
+	/** Assets that can be read from the persistent cache again, least recently used first */
+	private static final LinkedHashMap<MD5Key, Asset> cachedAssets = new LinkedHashMap<MD5Key, Asset>(16, 0.75f, true);
+
+	/** The size of the image data in {@link #cachedAssets} */
+	private static long cachedBytes;
+
+	private static long maxCachedBytes = Long.getLong("t3.assetMemory", 256L * 1024 * 1024);
+
+	/** Every asset that has been put into the manager, without its image data */
+	private static Map<MD5Key, Asset> assetInfoMap = new ConcurrentHashMap<MD5Key, Asset>();
+
+	/** The size of the image data that waits for being written to the persistent cache */
+	private static AtomicLong pendingBytes = new AtomicLong();
+
 	/** Location of the cache on the filesystem */
 	private static File cacheDir;
 
@@ -66,13 +95,22 @@ public class AssetManager {
 	/** Used to load assets from storage */
 	private static AssetLoader assetLoader = new AssetLoader();
 
-	private static ExecutorService assetLoaderThreadPool = Executors.newFixedThreadPool(1);
+	/** Reads the assets from the persistent cache, which includes checking their MD5, so one thread per processor */
+	private static ExecutorService assetLoaderThreadPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+	private static ExecutorService assetWriterThreadPool = Executors.newFixedThreadPool(1);
+
+	/** The MD5 of the local images, so that they are only hashed again when they changed */
+	private static FileHashIndex hashIndex;
+
+	private static AtomicBoolean hashIndexSavePending = new AtomicBoolean();
 
 	static {
 		cacheDir = AppUtil.getAppHome("assetcache");
 		if (cacheDir != null) {
 			usePersistentCache = true;
 		}
+		hashIndex = new FileHashIndex(cacheDir != null ? new File(cacheDir, "filehashes") : null);
 	}
 
 	/**
@@ -160,7 +198,7 @@ public class AssetManager {
 	 * @return
 	 */
 	public static boolean hasAsset(MD5Key key) {
-		return assetMap.containsKey(key) || assetIsInPersistentCache(key) || assetHasLocalReference(key);
+		return hasAssetInMemory(key) || assetIsInPersistentCache(key) || assetHasLocalReference(key);
 	}
 
 	/**
@@ -171,7 +209,7 @@ public class AssetManager {
 	 * @return True if hte asset is loaded, false otherwise
 	 */
 	public static boolean hasAssetInMemory(MD5Key key) {
-		return assetMap.containsKey(key);
+		return getAssetInMemory(key) != null;
 	}
 
 	/**
@@ -186,6 +224,8 @@ public class AssetManager {
 			return;
 		}
 
+		assetInfoMap.put(asset.getId(), asset.withoutImage());
+		// Keep it until it can be read from the persistent cache
 		assetMap.put(asset.getId(), asset);
 
 		// Invalid images are represented by empty assets.
@@ -230,8 +270,10 @@ public class AssetManager {
 
 				// Let's get it from the server
 				// As a last resort we request the asset from the server
-				if (asset == null && !isAssetRequested(id)) {
-					requestAssetFromServer(id, listeners);
+				synchronized (assetLoader) {
+					if (asset == null && !isAssetRequested(id)) {
+						requestAssetFromServer(id, listeners);
+					}
 				}
 			}
 		});
@@ -251,7 +293,7 @@ public class AssetManager {
 			return null;
 		}
 
-		Asset asset = assetMap.get(id);
+		Asset asset = getAssetInMemory(id);
 
 		if (asset == null && usePersistentCache && assetIsInPersistentCache(id)) {
 			// Guaranteed that asset is in the cache.
@@ -268,12 +310,11 @@ public class AssetManager {
 					String name = FileUtil.getNameWithoutExtension(imageFile);
 					byte[] data = FileUtils.readFileToByteArray(imageFile);
 
-					asset = new Asset(name, data);
-
 					// Just to be sure the image didn't change
-					if (!asset.getId().equals(id)) {
+					if (!hashIndex.getKey(imageFile, data).equals(id)) {
 						throw new IOException("Image reference did not match the requested image");
 					}
+					asset = new Asset(id, name, data);
 
 					// Put it in the persistent cache so we'll find it faster next time
 					putInPersistentCache(asset);
@@ -287,6 +328,72 @@ public class AssetManager {
 		return asset;
 	}
 
+	/**
+	 * Get the id, name and extension of the asset without reading its image data, if it is already known.
+	 * 
+	 * @param id
+	 *            MD5 of the asset requested
+	 * @return Asset object without image data, or null if the asset isn't available
+	 */
+	public static Asset getAssetInfoOnly(MD5Key id) {
+		if (id == null) {
+			return null;
+		}
+		Asset info = assetInfoMap.get(id);
+		if (info == null) {
+			Asset asset = getAsset(id);
+			if (asset != null) {
+				info = asset.withoutImage();
+				assetInfoMap.put(id, info);
+			}
+		}
+		return info;
+	}
+
+	/**
+	 * Open the image data of the asset without keeping it in memory. If the asset is in the persistent cache, the data
+	 * is read from there.
+	 * 
+	 * @param id
+	 *            MD5 of the asset requested
+	 * @return stream of the image data, or null if the asset isn't available
+	 * @throws IOException
+	 */
+	public static InputStream openAssetStream(MD5Key id) throws IOException {
+		Asset asset = getAssetInMemory(id);
+		if (asset == null && usePersistentCache && assetIsInPersistentCache(id)) {
+			return new FileInputStream(getAssetCacheFile(id));
+		}
+		if (asset == null) {
+			asset = getAsset(id);
+		}
+		return asset != null ? new ByteArrayInputStream(asset.getImage()) : null;
+	}
+
+	/**
+	 * Get the image data of the asset as a read only buffer. If the asset is in the persistent cache, its file is
+	 * mapped into memory instead of being read onto the heap.
+	 * 
+	 * @param id
+	 *            MD5 of the asset requested
+	 * @return buffer of the image data, or null if the asset isn't available
+	 */
+	public static ByteBuffer getAssetBuffer(MD5Key id) {
+		Asset asset = getAssetInMemory(id);
+		if (asset == null && usePersistentCache && assetIsInPersistentCache(id)) {
+			try (FileInputStream in = new FileInputStream(getAssetCacheFile(id)); FileChannel channel = in.getChannel()) {
+				// the mapping stays valid after the channel is closed
+				return channel.map(MapMode.READ_ONLY, 0, channel.size());
+			} catch (IOException ioe) {
+				log.error("Could not map asset from persistent cache", ioe);
+			}
+		}
+		if (asset == null) {
+			asset = getAsset(id);
+		}
+		return asset != null ? asset.getImageBuffer() : null;
+	}
+
 	/**
 	 * Remove the asset from the asset cache.
 	 * 
@@ -295,6 +402,79 @@ public class AssetManager {
 	 */
 	public static void removeAsset(MD5Key id) {
 		assetMap.remove(id);
+		assetInfoMap.remove(id);
+		synchronized (cachedAssets) {
+			Asset asset = cachedAssets.remove(id);
+			if (asset != null) {
+				cachedBytes -= asset.getImage().length;
+			}
+		}
+	}
+
+	/**
+	 * @return how many bytes of image data are kept of assets that can be read from the persistent cache again
+	 */
+	public static long getMaxCachedBytes() {
+		return maxCachedBytes;
+	}
+
+	public static void setMaxCachedBytes(long bytes) {
+		synchronized (cachedAssets) {
+			maxCachedBytes = bytes;
+			evictCachedAssets(null);
+		}
+	}
+
+	/**
+	 * @return the size of the image data in the cache of recently used assets
+	 */
+	public static long getCachedBytes() {
+		synchronized (cachedAssets) {
+			return cachedBytes;
+		}
+	}
+
+	/**
+	 * @return the asset if its image data is in memory, otherwise null
+	 */
+	private static Asset getAssetInMemory(MD5Key id) {
+		Asset asset = assetMap.get(id);
+		if (asset == null) {
+			synchronized (cachedAssets) {
+				asset = cachedAssets.get(id);
+			}
+		}
+		return asset;
+	}
+
+	/**
+	 * Keep the asset, which can be read from the persistent cache, among the recently used assets.
+	 */
+	private static void cacheAsset(Asset asset) {
+		synchronized (cachedAssets) {
+			Asset old = cachedAssets.put(asset.getId(), asset);
+			if (old != null) {
+				cachedBytes -= old.getImage().length;
+			}
+			cachedBytes += asset.getImage().length;
+			evictCachedAssets(asset);
+		}
+		assetMap.remove(asset.getId());
+	}
+
+	/**
+	 * Drop the least recently used assets until the cache fits, but never the one that was just used.
+	 */
+	private static void evictCachedAssets(Asset keep) {
+		Iterator<Asset> iter = cachedAssets.values().iterator();
+		while (cachedBytes > maxCachedBytes && iter.hasNext()) {
+			Asset asset = iter.next();
+			if (asset == keep) {
+				break;
+			}
+			iter.remove();
+			cachedBytes -= asset.getImage().length;
+		}
 	}
 
 	/**
@@ -349,13 +529,10 @@ public class AssetManager {
 			byte[] data = FileUtils.readFileToByteArray(assetFile);
 			Properties props = getAssetInfo(id);
 
-			Asset asset = new Asset(props.getProperty(NAME), data);
-
-			if (!asset.getId().equals(id)) {
-				log.error("MD5 for asset " + asset.getName() + " corrupted");
-			}
+			// The cache files are only renamed to their MD5 once they are complete, no need to hash them again
+			Asset asset = new Asset(id, props.getProperty(NAME), data);
 
-			assetMap.put(id, asset);
+			cacheAsset(asset);
 
 			return asset;
 		} catch (IOException ioe) {
@@ -374,7 +551,10 @@ public class AssetManager {
 	 * @throws IOException
 	 */
 	public static Asset createAsset(File file) throws IOException {
-		return new Asset(FileUtil.getNameWithoutExtension(file), FileUtils.readFileToByteArray(file));
+		byte[] data = FileUtils.readFileToByteArray(file);
+		MD5Key id = hashIndex.getKey(file, data);
+		saveHashIndexLater();
+		return new Asset(id, FileUtil.getNameWithoutExtension(file), data);
 	}
 
 	/**
@@ -437,21 +617,41 @@ public class AssetManager {
 		if (!assetIsInPersistentCache(asset)) {
 
 			final File assetFile = getAssetCacheFile(asset);
+			final int length = asset.getImage().length;
+			assetFile.getParentFile().mkdirs();
 
-			new Thread() {
+			Runnable writer = new Runnable() {
 				@Override
 				public void run() {
 
-					assetFile.getParentFile().mkdirs();
-					try(OutputStream out = new FileOutputStream(assetFile)){
+					// Readers take any file named by the MD5 for complete
+					File tmpFile = new File(assetFile.getPath() + ".tmp");
+					try(OutputStream out = new FileOutputStream(tmpFile)){
 						out.write(asset.getImage());
 					} catch (IOException ioe) {
 						log.error("Could not persist asset while writing image data", ioe);
 						return;
+					} finally {
+						pendingBytes.addAndGet(-length);
 					}
+					if (!tmpFile.renameTo(assetFile)) {
+						log.error("Could not persist asset while renaming " + tmpFile);
+						tmpFile.delete();
+						return;
+					}
+					// It can be read again, so it no longer has to stay in memory
+					cacheAsset(asset);
 				}
-			}.start();
-
+			};
+			pendingBytes.addAndGet(length);
+			if (pendingBytes.get() > maxCachedBytes) {
+				// Loading a large campaign, don't let the writer fall behind
+				writer.run();
+			} else {
+				assetWriterThreadPool.execute(writer);
+			}
+		} else {
+			cacheAsset(asset);
 		}
 		if (!assetInfoIsInPersistentCache(asset)) {
 
@@ -513,8 +713,12 @@ public class AssetManager {
 	 * @param image
 	 */
 	public static void rememberLocalImageReference(File image) throws IOException {
+		rememberLocalImageReference(image, hashIndex.getKey(image));
+		saveHashIndexLater();
+	}
+
+	private static void rememberLocalImageReference(File image, MD5Key id) throws IOException {
 
-		MD5Key id = new MD5Key(image);
 		File lnkFile = getAssetLinkFile(id);
 
 		// See if we know about this one already
@@ -522,7 +726,7 @@ public class AssetManager {
 
 			List<String> referenceList = FileUtil.getLines(lnkFile);
 			for (String ref : referenceList) {
-				if (ref.equals(id.toString())) {
+				if (ref.equals(image.getAbsolutePath())) {
 
 					// We already know about this one
 					return;
@@ -606,6 +810,30 @@ public class AssetManager {
 		return new File(cacheDir.getAbsolutePath() + File.separator + id);
 	}
 
+	// Package protected for testing
+	static File getCacheDir() {
+		return cacheDir;
+	}
+
+	// Package protected for testing
+	static void setCacheDir(File dir) {
+		cacheDir = dir;
+		usePersistentCache = dir != null;
+		hashIndex = new FileHashIndex(dir != null ? new File(dir, "filehashes") : null);
+	}
+
+	/**
+	 * Wait until all assets that have been put so far are written to the persistent cache.
+	 */
+	// Package protected for testing
+	static void waitForPersistentCache() throws InterruptedException, ExecutionException {
+		assetWriterThreadPool.submit(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}).get();
+	}
+
 	/**
 	 * Return the asset info file, if any
 	 * 
@@ -650,28 +878,68 @@ public class AssetManager {
 	 *            Only add references to image files that are allowed by the filter
 	 */
 	public static void searchForImageReferences(File rootDir, FilenameFilter fileFilter) {
-		for (File file : rootDir.listFiles()) {
-			if (file.isDirectory()) {
-				searchForImageReferences(file, fileFilter);
-				continue;
-			}
+		List<File> files = new ArrayList<File>();
+		findImageFiles(rootDir, fileFilter, files);
+
+		// Only the images that changed since the last time are hashed, several at the same time
+		if (TabletopTool.getFrame() != null) {
+			TabletopTool.getFrame().setStatusMessage("Hashing images: " + rootDir.getName());
+		}
+		Map<File, MD5Key> keys = hashIndex.getKeys(files);
+		for (Map.Entry<File, MD5Key> entry : keys.entrySet()) {
 			try {
-				if (fileFilter.accept(rootDir, file.getName())) {
-					if (TabletopTool.getFrame() != null) {
-						TabletopTool.getFrame().setStatusMessage("Caching image reference: " + file.getName());
-					}
-					rememberLocalImageReference(file);
+				if (TabletopTool.getFrame() != null) {
+					TabletopTool.getFrame().setStatusMessage("Caching image reference: " + entry.getKey().getName());
 				}
+				rememberLocalImageReference(entry.getKey(), entry.getValue());
 			} catch (IOException ioe) {
 				ioe.printStackTrace();
 			}
 		}
+		try {
+			hashIndex.save();
+		} catch (IOException ioe) {
+			log.error("Could not save the image hashes", ioe);
+		}
 		// Done
 		if (TabletopTool.getFrame() != null) {
 			TabletopTool.getFrame().setStatusMessage("");
 		}
 	}
 
+	private static void findImageFiles(File dir, FilenameFilter fileFilter, List<File> files) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File file : children) {
+			if (file.isDirectory()) {
+				findImageFiles(file, fileFilter, files);
+			} else if (fileFilter.accept(dir, file.getName())) {
+				files.add(file);
+			}
+		}
+	}
+
+	/**
+	 * Save the hashes of the local images on the writer thread, once for all that are hashed until then.
+	 */
+	private static void saveHashIndexLater() {
+		if (hashIndexSavePending.compareAndSet(false, true)) {
+			assetWriterThreadPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					hashIndexSavePending.set(false);
+					try {
+						hashIndex.save();
+					} catch (IOException ioe) {
+						log.error("Could not save the image hashes", ioe);
+					}
+				}
+			});
+		}
+	}
+
 	/**
 	 * <p>
 	 * This method accepts the name of a repository (as it appears in the CampaignProperties) and updates it by adding
@@ -736,16 +1004,19 @@ public class AssetManager {
 
 		/*
 		 * The 'aggregate' now holds the sum total of all asset keys that are in repositories. Now we go through the
-		 * 'assetMap' and copy over <K,V> pairs that are NOT in 'aggregate' to our 'missing' Map.
+		 * known assets and copy over <K,V> pairs that are NOT in 'aggregate' to our 'missing' Map.
 		 * 
 		 * Unfortunately, the repository is a Map<String, String> while the return value is going to be a Map<MD5Key,
 		 * Asset>, which means each individual entry needs to be checked and references copied. If both were the same
 		 * data type, converting both to Set<String> would allow for an addAll() and removeAll() and be done with it!
 		 */
-		Map<MD5Key, Asset> missing = new HashMap<MD5Key, Asset>(Math.min(assetMap.size(), aggregate.size()));
-		for (MD5Key key : assetMap.keySet()) {
-			if (aggregate.contains(key) == false) // Not in any repository so add it.
-				missing.put(key, assetMap.get(key));
+		Map<MD5Key, Asset> missing = new HashMap<MD5Key, Asset>(Math.min(assetInfoMap.size(), aggregate.size()));
+		for (MD5Key key : assetInfoMap.keySet()) {
+			if (aggregate.contains(key) == false) { // Not in any repository so add it.
+				Asset asset = getAsset(key);
+				if (asset != null)
+					missing.put(key, asset);
+			}
 		}
 		return missing;
 	}
@@ -15,9 +15,18 @@ import java.awt.geom.Area;
 
 import com.t3.xstreamversioned.version.SerializationVersion;
 
+/**
+ * The area a token has explored. Under the {@link Zone.FogModel#BITMAP} fog model it is kept as a
+ * {@link FogBitmap}, and the area, which is what campaigns and the network protocol are made of,
+ * is only made from the bitmap when it is asked for.
+ */
 @SerializationVersion(0)
 public class ExposedAreaMetaData {
 	private Area exposedAreaHistory;
+	// the history as a bitmap, built on first use and kept instead of the area after that
+	private transient FogBitmap exposedFog;
+	// whether the bitmap changed since the area was last made from it
+	private transient boolean areaStale;
 
 	public ExposedAreaMetaData() {
 		exposedAreaHistory = new Area();
@@ -31,22 +40,67 @@ public class ExposedAreaMetaData {
 //		if (exposedAreaHistory == null) {
 //			exposedAreaHistory = new Area();
 //		}
+		if (areaStale) {
+			exposedAreaHistory = exposedFog.toArea();
+			areaStale = false;
+		}
 		return exposedAreaHistory;
 	}
 
+	/**
+	 * @return the history as a bitmap, or null unless the {@link Zone.FogModel#BITMAP} fog model is
+	 *         used
+	 */
+	public FogBitmap getExposedFog() {
+		if (Zone.getFogModel() != Zone.FogModel.BITMAP) {
+			if (exposedFog != null) {
+				// keep what only the bitmap knows
+				getExposedAreaHistory();
+				exposedFog = null;
+			}
+			return null;
+		}
+		if (exposedFog == null) {
+			exposedFog = FogBitmap.fromArea(exposedAreaHistory, Zone.FOG_RESOLUTION);
+		}
+		return exposedFog;
+	}
+
 	public void addToExposedAreaHistory(Area newArea) {
 		if (newArea != null && !newArea.isEmpty()) {
-			exposedAreaHistory.add(newArea);
+			FogBitmap fog = getExposedFog();
+			if (fog != null) {
+				fog.add(newArea);
+				areaStale = true;
+			} else {
+				exposedAreaHistory.add(newArea);
+			}
 		}
 	}
 
 	public void removeExposedAreaHistory(Area newArea) {
 		if (newArea != null && !newArea.isEmpty()) {
-			exposedAreaHistory.subtract(newArea);
+			FogBitmap fog = getExposedFog();
+			if (fog != null) {
+				fog.subtract(newArea);
+				areaStale = true;
+			} else {
+				exposedAreaHistory.subtract(newArea);
+			}
 		}
 	}
 
 	public void clearExposedAreaHistory() {
 		exposedAreaHistory = new Area();
+		exposedFog = null;
+		areaStale = false;
+	}
+
+	/**
+	 * Makes the area from the bitmap before the history is saved or sent.
+	 */
+	private Object writeReplace() {
+		getExposedAreaHistory();
+		return this;
 	}
 }
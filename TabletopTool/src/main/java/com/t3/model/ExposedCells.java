@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.model;
+
+import java.awt.Shape;
+import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers for each cell of a grid whether an exposed area covers it fully, partly or not at all,
+ * so that the questions {@link com.t3.model.grid.Grid#validateMove} asks about the pieces of a
+ * token only go to the area when a piece touches a partly exposed cell. On a map that has been
+ * explored for hours, the area is made of thousands of segments and every question to it walks
+ * all of them.
+ * <p>
+ * The cells are squares of the grid's size, aligned with its offset, and their state is found out
+ * the first time it is asked for. The area may be the union of several areas, like the global
+ * exposed area and the one of a token. Whoever changes an area has to {@link #invalidate} the
+ * region that changed.
+ */
+public class ExposedCells {
+	public static final byte HIDDEN = 1;
+	public static final byte PARTLY_EXPOSED = 2;
+	public static final byte EXPOSED = 3;
+
+	private static final byte UNKNOWN = 0;
+	private static final int CHUNK_SHIFT = 4;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	/** rectangles over more cells than this go to the area right away */
+	private static final int MAX_CELLS = 64;
+
+	private final Area[] areas;
+	private final int cellSize;
+	private final int offsetX;
+	private final int offsetY;
+	// the states of each chunk of cells by the chunk's key, row by row
+	private final Map<Long, byte[]> chunks = new HashMap<Long, byte[]>();
+	private Area union;
+
+	/**
+	 * @param cellSize
+	 *            the edge length of a cell in zone pixels
+	 * @param offsetX
+	 *            where the cells start, like the offset of the grid
+	 * @param areas
+	 *            the areas whose union is the exposed area, they are not copied
+	 */
+	public ExposedCells(int cellSize, int offsetX, int offsetY, Area... areas) {
+		if (cellSize < 1) {
+			throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+		}
+		this.cellSize = cellSize;
+		this.offsetX = offsetX;
+		this.offsetY = offsetY;
+		this.areas = areas.clone();
+	}
+
+	public int getCellSize() {
+		return cellSize;
+	}
+
+	public int getOffsetX() {
+		return offsetX;
+	}
+
+	public int getOffsetY() {
+		return offsetY;
+	}
+
+	/**
+	 * @return whether the cells were made of exactly these areas, not just equal ones
+	 */
+	public boolean isOf(Area... areas) {
+		if (areas.length != this.areas.length) {
+			return false;
+		}
+		for (int i = 0; i < areas.length; i++) {
+			if (areas[i] != this.areas[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Takes the areas in place of the ones the cells were made of, keeping the states of the cells,
+	 * for an exposed area that is made anew after every change, like the one of a
+	 * {@link FogBitmap}. The regions that changed must have been invalidated.
+	 */
+	public void setAreas(Area... areas) {
+		if (areas.length != this.areas.length) {
+			throw new IllegalArgumentException("Expected " + this.areas.length + " areas, got " + areas.length);
+		}
+		System.arraycopy(areas, 0, this.areas, 0, areas.length);
+		union = null;
+	}
+
+	/**
+	 * @return one of {@link #HIDDEN}, {@link #PARTLY_EXPOSED} and {@link #EXPOSED}
+	 */
+	public byte getState(int cellX, int cellY) {
+		Long key = key(cellX >> CHUNK_SHIFT, cellY >> CHUNK_SHIFT);
+		byte[] chunk = chunks.get(key);
+		if (chunk == null) {
+			chunk = new byte[CHUNK_SIZE * CHUNK_SIZE];
+			chunks.put(key, chunk);
+		}
+		int index = (cellY & CHUNK_MASK) * CHUNK_SIZE + (cellX & CHUNK_MASK);
+		if (chunk[index] == UNKNOWN) {
+			chunk[index] = calculateState(cellX, cellY);
+		}
+		return chunk[index];
+	}
+
+	/**
+	 * @return whether the point is exposed, like {@link Area#contains(double, double)}
+	 */
+	public boolean contains(double x, double y) {
+		byte state = getState(cell(x, offsetX), cell(y, offsetY));
+		if (state != PARTLY_EXPOSED) {
+			return state == EXPOSED;
+		}
+		return getArea().contains(x, y);
+	}
+
+	/**
+	 * @return whether the rectangle is exposed all over, like {@link Area#contains(Rectangle2D)}
+	 */
+	public boolean contains(Rectangle2D rect) {
+		byte state = getState(rect);
+		if (state != PARTLY_EXPOSED) {
+			return state == EXPOSED;
+		}
+		return getArea().contains(rect);
+	}
+
+	/**
+	 * @return whether any part of the rectangle is exposed, like {@link Area#intersects(Rectangle2D)}
+	 */
+	public boolean intersects(Rectangle2D rect) {
+		byte state = getState(rect);
+		if (state != PARTLY_EXPOSED) {
+			return state == EXPOSED;
+		}
+		return getArea().intersects(rect);
+	}
+
+	/**
+	 * @return whether the shape is exposed all over
+	 */
+	public boolean contains(Shape shape) {
+		if (getState(shape.getBounds2D()) == EXPOSED) {
+			return true;
+		}
+		Area transformed = new Area(shape);
+		Area a = new Area(transformed);
+		a.intersect(getArea());
+		return a.equals(transformed);
+	}
+
+	/**
+	 * Forgets the state of the cells touching the region, after the exposed area changed there.
+	 */
+	public void invalidate(Rectangle2D region) {
+		union = null;
+		if (region == null) {
+			chunks.clear();
+			return;
+		}
+		// a cell that only shares an edge with the region may have changed as well
+		int x0 = cell(region.getMinX(), offsetX) - 1;
+		int y0 = cell(region.getMinY(), offsetY) - 1;
+		int x1 = cell(region.getMaxX(), offsetX) + 1;
+		int y1 = cell(region.getMaxY(), offsetY) + 1;
+		for (Map.Entry<Long, byte[]> entry : chunks.entrySet()) {
+			int chunkX = chunkX(entry.getKey()) << CHUNK_SHIFT;
+			int chunkY = chunkY(entry.getKey()) << CHUNK_SHIFT;
+			if (chunkX > x1 || chunkY > y1 || chunkX + CHUNK_MASK < x0 || chunkY + CHUNK_MASK < y0) {
+				continue;
+			}
+			byte[] chunk = entry.getValue();
+			int columnEnd = Math.min(x1 - chunkX, CHUNK_MASK);
+			int rowEnd = Math.min(y1 - chunkY, CHUNK_MASK);
+			for (int y = Math.max(y0 - chunkY, 0); y <= rowEnd; y++) {
+				for (int x = Math.max(x0 - chunkX, 0); x <= columnEnd; x++) {
+					chunk[y * CHUNK_SIZE + x] = UNKNOWN;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the exposed area, the union is only made once it is needed
+	 */
+	public Area getArea() {
+		if (areas.length == 1) {
+			return areas[0];
+		}
+		if (union == null) {
+			union = new Area();
+			for (Area area : areas) {
+				union.add(area);
+			}
+		}
+		return union;
+	}
+
+	/**
+	 * @return the state all cells under the rectangle share, or {@link #PARTLY_EXPOSED} if they
+	 *         differ
+	 */
+	private byte getState(Rectangle2D rect) {
+		if (rect.isEmpty()) {
+			return PARTLY_EXPOSED;
+		}
+		int x0 = cell(rect.getMinX(), offsetX);
+		int y0 = cell(rect.getMinY(), offsetY);
+		// a rectangle ending on the edge of a cell doesn't overlap it
+		int x1 = (int) Math.ceil((rect.getMaxX() - offsetX) / cellSize) - 1;
+		int y1 = (int) Math.ceil((rect.getMaxY() - offsetY) / cellSize) - 1;
+		if ((long) (x1 - x0 + 1) * (y1 - y0 + 1) > MAX_CELLS) {
+			return PARTLY_EXPOSED;
+		}
+		byte state = getState(x0, y0);
+		for (int y = y0; y <= y1 && state != PARTLY_EXPOSED; y++) {
+			for (int x = x0; x <= x1; x++) {
+				if (getState(x, y) != state) {
+					return PARTLY_EXPOSED;
+				}
+			}
+		}
+		return state;
+	}
+
+	private byte calculateState(int cellX, int cellY) {
+		Rectangle2D cell = new Rectangle2D.Double(offsetX + (double) cellX * cellSize, offsetY + (double) cellY * cellSize, cellSize, cellSize);
+		boolean touched = false;
+		for (Area area : areas) {
+			if (area.contains(cell)) {
+				return EXPOSED;
+			}
+			touched |= area.intersects(cell);
+		}
+		return touched ? PARTLY_EXPOSED : HIDDEN;
+	}
+
+	private int cell(double coordinate, int offset) {
+		return (int) Math.floor((coordinate - offset) / cellSize);
+	}
+
+	private static Long key(int chunkX, int chunkY) {
+		return Long.valueOf(((long) chunkX << 32) | (chunkY & 0xffffffffL));
+	}
+
+	private static int chunkX(Long key) {
+		return (int) (key.longValue() >> 32);
+	}
+
+	private static int chunkY(Long key) {
+		return (int) key.longValue();
+	}
+}
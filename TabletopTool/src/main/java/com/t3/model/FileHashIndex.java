@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.model;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.t3.MD5Key;
+
+/**
+ * Remembers the MD5 of local files by their path, last modification time and length, so that the images of a
+ * directory are only hashed again when they changed. The index is kept in a file with a line per image.
+ */
+public class FileHashIndex {
+	private static final Logger log = Logger.getLogger(FileHashIndex.class);
+
+	/** Hashes the files of a directory, mostly waiting for the disk, so one thread per processor */
+	private static ExecutorService hashThreadPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+	private final File indexFile;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final AtomicInteger hashCount = new AtomicInteger();
+	private boolean loaded;
+	private volatile boolean changed;
+
+	/**
+	 * @param indexFile
+	 *            where the index is kept, or null to keep it in memory only
+	 */
+	public FileHashIndex(File indexFile) {
+		this.indexFile = indexFile;
+	}
+
+	/**
+	 * @return the MD5 of the file, only hashed if it changed since it was hashed last
+	 */
+	public MD5Key getKey(File file) throws IOException {
+		load();
+		MD5Key key = getIndexedKey(file);
+		if (key == null) {
+			// a change while it is hashed makes it look changed the next time
+			long lastModified = file.lastModified();
+			long length = file.length();
+			key = new MD5Key(file);
+			hashCount.incrementAndGet();
+			put(file, key, lastModified, length);
+		}
+		return key;
+	}
+
+	/**
+	 * @param data
+	 *            the content of the file, it is hashed if the file changed since it was hashed last
+	 * @return the MD5 of the file
+	 */
+	public MD5Key getKey(File file, byte[] data) {
+		load();
+		MD5Key key = getIndexedKey(file);
+		if (key == null) {
+			key = new MD5Key(data);
+			hashCount.incrementAndGet();
+			if (data.length == file.length()) {
+				put(file, key, file.lastModified(), data.length);
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * Hash the files that changed since they were hashed last, several at the same time.
+	 *
+	 * @return the MD5 of each file in the same order, files that could not be read are left out
+	 */
+	public Map<File, MD5Key> getKeys(List<File> files) {
+		load();
+		Map<File, MD5Key> keys = new LinkedHashMap<File, MD5Key>();
+		List<Future<MD5Key>> futures = new ArrayList<Future<MD5Key>>(files.size());
+		for (final File file : files) {
+			MD5Key key = getIndexedKey(file);
+			futures.add(key != null ? null : hashThreadPool.submit(new Callable<MD5Key>() {
+				@Override
+				public MD5Key call() throws Exception {
+					return getKey(file);
+				}
+			}));
+			keys.put(file, key);
+		}
+		for (int i = 0; i < files.size(); i++) {
+			if (futures.get(i) == null) {
+				continue;
+			}
+			try {
+				keys.put(files.get(i), futures.get(i).get());
+			} catch (InterruptedException | ExecutionException e) {
+				log.error("Could not hash " + files.get(i), e);
+				keys.remove(files.get(i));
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Write the index to its file, if anything changed.
+	 */
+	public synchronized void save() throws IOException {
+		if (indexFile == null || !changed) {
+			return;
+		}
+		changed = false;
+		File tmpFile = new File(indexFile.getPath() + ".tmp");
+		try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"))) {
+			for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+				Entry e = entry.getValue();
+				out.write(e.key + "\t" + e.lastModified + "\t" + e.length + "\t" + entry.getKey());
+				out.newLine();
+			}
+		}
+		if (!indexFile.delete() && indexFile.exists() || !tmpFile.renameTo(indexFile)) {
+			throw new IOException("Could not replace " + indexFile);
+		}
+	}
+
+	/**
+	 * @return how many files have been hashed, and not found in the index
+	 */
+	// Package protected for testing
+	int getHashCount() {
+		return hashCount.get();
+	}
+
+	private MD5Key getIndexedKey(File file) {
+		Entry entry = entries.get(file.getAbsolutePath());
+		if (entry != null && entry.lastModified == file.lastModified() && entry.length == file.length()) {
+			return entry.key;
+		}
+		return null;
+	}
+
+	private void put(File file, MD5Key key, long lastModified, long length) {
+		entries.put(file.getAbsolutePath(), new Entry(key, lastModified, length));
+		changed = true;
+	}
+
+	private synchronized void load() {
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+		if (indexFile == null || !indexFile.exists()) {
+			return;
+		}
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t", 4);
+				if (fields.length < 4) {
+					continue;
+				}
+				try {
+					entries.put(fields[3], new Entry(new MD5Key(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+				} catch (IllegalArgumentException iae) {
+					log.warn("Skipping broken line of " + indexFile + ": " + line);
+				}
+			}
+		} catch (IOException ioe) {
+			log.error("Could not read " + indexFile, ioe);
+		}
+	}
+
+	private static class Entry {
+		private final MD5Key key;
+		private final long lastModified;
+		private final long length;
+
+		public Entry(MD5Key key, long lastModified, long length) {
+			this.key = key;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+}
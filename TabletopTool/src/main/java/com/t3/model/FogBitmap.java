@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.model;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.Area;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An exposed area as a bitmap over the zone, with one bit per square of {@link #getResolution()}
+ * zone pixels. A bit is set if the center of its square is exposed. The bitmap is split into tiles
+ * of 64 by 64 bits and only tiles that have a bit set are kept, so a large map that is mostly
+ * hidden costs little memory.
+ * <p>
+ * Unlike an {@link Area}, which gets more complicated with every shape added to it, the cost of
+ * adding a shape, of testing a point and of drawing the bitmap only depends on the size of what is
+ * looked at. The bitmap can be turned back into an {@link Area} for the places that need one, like
+ * saved campaigns and the network protocol.
+ */
+public class FogBitmap {
+	private static final int TILE_SHIFT = 6;
+	/** the edge length of a tile in bits, one row of a tile is a long */
+	public static final int TILE_SIZE = 1 << TILE_SHIFT;
+	private static final int TILE_MASK = TILE_SIZE - 1;
+	private static final long FULL_ROW = -1L;
+	/** shapes are rendered in square chunks of up to this many tiles per side */
+	private static final int CHUNK_TILES = 16;
+
+	private final int resolution;
+	// the rows of each tile by the tile's key, bit x of a row is the column x of the tile
+	private final Map<Long, long[]> tiles = new HashMap<Long, long[]>();
+	private int version;
+
+	/**
+	 * @param resolution
+	 *            the edge length of the square a bit stands for, in zone pixels
+	 */
+	public FogBitmap(int resolution) {
+		if (resolution < 1) {
+			throw new IllegalArgumentException("Resolution must be positive: " + resolution);
+		}
+		this.resolution = resolution;
+	}
+
+	public FogBitmap(FogBitmap bitmap) {
+		this(bitmap.resolution);
+		for (Map.Entry<Long, long[]> entry : bitmap.tiles.entrySet()) {
+			tiles.put(entry.getKey(), entry.getValue().clone());
+		}
+	}
+
+	/**
+	 * @return a bitmap of the area, e.g. of the exposed area of a legacy campaign
+	 */
+	public static FogBitmap fromArea(Area area, int resolution) {
+		FogBitmap bitmap = new FogBitmap(resolution);
+		bitmap.add(area);
+		return bitmap;
+	}
+
+	public int getResolution() {
+		return resolution;
+	}
+
+	public boolean isEmpty() {
+		return tiles.isEmpty();
+	}
+
+	/**
+	 * @return a number that changes whenever the bitmap may have changed, for whoever keeps
+	 *         something made of it
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	public void clear() {
+		tiles.clear();
+		version++;
+	}
+
+	/**
+	 * Sets the bits of all squares whose center lies in the shape.
+	 */
+	public void add(Shape shape) {
+		rasterize(shape, true);
+	}
+
+	/**
+	 * Clears the bits of all squares whose center lies in the shape.
+	 */
+	public void subtract(Shape shape) {
+		rasterize(shape, false);
+	}
+
+	/**
+	 * Sets all bits that are set in the other bitmap, which must have the same resolution.
+	 */
+	public void add(FogBitmap bitmap) {
+		if (bitmap.resolution != resolution) {
+			throw new IllegalArgumentException("Resolutions differ: " + bitmap.resolution + " != " + resolution);
+		}
+		version++;
+		for (Map.Entry<Long, long[]> entry : bitmap.tiles.entrySet()) {
+			long[] tile = tiles.get(entry.getKey());
+			if (tile == null) {
+				tiles.put(entry.getKey(), entry.getValue().clone());
+			} else {
+				long[] other = entry.getValue();
+				for (int y = 0; y < TILE_SIZE; y++) {
+					tile[y] |= other[y];
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return whether the square containing the point is exposed
+	 */
+	public boolean contains(double x, double y) {
+		int bx = bit(x);
+		int by = bit(y);
+		long[] tile = tiles.get(key(bx >> TILE_SHIFT, by >> TILE_SHIFT));
+		return tile != null && (tile[by & TILE_MASK] & (1L << (bx & TILE_MASK))) != 0;
+	}
+
+	/**
+	 * @return whether any exposed square overlaps the rectangle
+	 */
+	public boolean intersects(Rectangle2D rect) {
+		if (tiles.isEmpty() || rect.isEmpty()) {
+			return false;
+		}
+		int x0 = bit(rect.getMinX());
+		int y0 = bit(rect.getMinY());
+		// a rectangle ending on the edge of a square doesn't overlap it
+		int x1 = (int) Math.ceil(rect.getMaxX() / resolution) - 1;
+		int y1 = (int) Math.ceil(rect.getMaxY() / resolution) - 1;
+		for (int ty = y0 >> TILE_SHIFT; ty <= y1 >> TILE_SHIFT; ty++) {
+			for (int tx = x0 >> TILE_SHIFT; tx <= x1 >> TILE_SHIFT; tx++) {
+				long[] tile = tiles.get(key(tx, ty));
+				if (tile == null) {
+					continue;
+				}
+				long mask = columnMask(Math.max(x0 - (tx << TILE_SHIFT), 0), Math.min(x1 - (tx << TILE_SHIFT), TILE_MASK));
+				int rowEnd = Math.min(y1 - (ty << TILE_SHIFT), TILE_MASK);
+				for (int y = Math.max(y0 - (ty << TILE_SHIFT), 0); y <= rowEnd; y++) {
+					if ((tile[y] & mask) != 0) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the bounds of all exposed squares in zone pixels, or an empty rectangle
+	 */
+	public Rectangle getBounds() {
+		Rectangle bounds = null;
+		for (Map.Entry<Long, long[]> entry : tiles.entrySet()) {
+			long[] tile = entry.getValue();
+			long columns = 0;
+			int minY = -1;
+			int maxY = -1;
+			for (int y = 0; y < TILE_SIZE; y++) {
+				if (tile[y] != 0) {
+					columns |= tile[y];
+					if (minY < 0) {
+						minY = y;
+					}
+					maxY = y;
+				}
+			}
+			int x = (tileX(entry.getKey()) << TILE_SHIFT) + Long.numberOfTrailingZeros(columns);
+			int y = (tileY(entry.getKey()) << TILE_SHIFT) + minY;
+			Rectangle r = new Rectangle(x * resolution, y * resolution, (TILE_SIZE - Long.numberOfLeadingZeros(columns) - Long.numberOfTrailingZeros(columns)) * resolution,
+					(maxY - minY + 1) * resolution);
+			if (bounds == null) {
+				bounds = r;
+			} else {
+				bounds.add(r);
+			}
+		}
+		return bounds != null ? bounds : new Rectangle();
+	}
+
+	/**
+	 * @return the exposed squares as an area, rows of a tile that are the same are merged into one
+	 *         rectangle per run of set bits
+	 */
+	public Area toArea() {
+		return new Area(toPath(null));
+	}
+
+	/**
+	 * Like {@link #toArea()}, but only made of the tiles that overlap the region, for drawing the
+	 * part of the bitmap that is on screen. The path may reach a tile beyond the region.
+	 * 
+	 * @param region
+	 *            the region in zone pixels, or null for the whole bitmap
+	 * @return the exposed squares as non-overlapping rectangles, which can be filled or clipped to
+	 *         without making an area of them first
+	 */
+	public Path2D toPath(Rectangle2D region) {
+		Path2D path = new Path2D.Double(Path2D.WIND_NON_ZERO);
+		for (Map.Entry<Long, long[]> entry : tiles.entrySet()) {
+			long[] tile = entry.getValue();
+			int originX = tileX(entry.getKey()) << TILE_SHIFT;
+			int originY = tileY(entry.getKey()) << TILE_SHIFT;
+			if (region != null && !region.intersects(originX * resolution, originY * resolution, TILE_SIZE * resolution, TILE_SIZE * resolution)) {
+				continue;
+			}
+			int y0 = 0;
+			while (y0 < TILE_SIZE) {
+				long row = tile[y0];
+				int y1 = y0 + 1;
+				while (y1 < TILE_SIZE && tile[y1] == row) {
+					y1++;
+				}
+				while (row != 0) {
+					int start = Long.numberOfTrailingZeros(row);
+					int end = start + Long.numberOfTrailingZeros(~(row >>> start));
+					path.append(new Rectangle((originX + start) * resolution, (originY + y0) * resolution, (end - start) * resolution, (y1 - y0) * resolution), false);
+					row &= end == TILE_SIZE ? 0 : -1L << end;
+				}
+				y0 = y1;
+			}
+		}
+		return path;
+	}
+
+	/**
+	 * @return the number of tiles that have a bit set
+	 */
+	public int getTileCount() {
+		return tiles.size();
+	}
+
+	/**
+	 * Renders the shape in chunks of up to {@link #CHUNK_TILES} by {@link #CHUNK_TILES} tiles, one
+	 * pixel per bit, and sets or clears the bits of the pixels it covers.
+	 */
+	private void rasterize(Shape shape, boolean set) {
+		if (shape == null) {
+			return;
+		}
+		Rectangle2D bounds = shape.getBounds2D();
+		if (bounds.isEmpty() || (!set && tiles.isEmpty())) {
+			return;
+		}
+		version++;
+		int tx0 = bit(bounds.getMinX()) >> TILE_SHIFT;
+		int ty0 = bit(bounds.getMinY()) >> TILE_SHIFT;
+		int tx1 = bit(bounds.getMaxX()) >> TILE_SHIFT;
+		int ty1 = bit(bounds.getMaxY()) >> TILE_SHIFT;
+		long[] rows = new long[TILE_SIZE];
+		for (int cy = ty0; cy <= ty1; cy += CHUNK_TILES) {
+			for (int cx = tx0; cx <= tx1; cx += CHUNK_TILES) {
+				int columns = Math.min(CHUNK_TILES, tx1 - cx + 1);
+				int chunkRows = Math.min(CHUNK_TILES, ty1 - cy + 1);
+				if (!set && !hasTiles(cx, cy, columns, chunkRows)) {
+					continue;
+				}
+				byte[] data = render(shape, cx, cy, columns, chunkRows);
+				for (int ty = 0; ty < chunkRows; ty++) {
+					for (int tx = 0; tx < columns; tx++) {
+						if (extract(data, columns, tx, ty, rows)) {
+							apply(key(cx + tx, cy + ty), rows, set);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private boolean hasTiles(int cx, int cy, int columns, int chunkRows) {
+		for (int ty = cy; ty < cy + chunkRows; ty++) {
+			for (int tx = cx; tx < cx + columns; tx++) {
+				if (tiles.containsKey(key(tx, ty))) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the pixels of the shape in the chunk, one bit per pixel with the leftmost pixel in the
+	 *         highest bit of the first byte of a row
+	 */
+	private byte[] render(Shape shape, int cx, int cy, int columns, int chunkRows) {
+		BufferedImage image = new BufferedImage(columns * TILE_SIZE, chunkRows * TILE_SIZE, BufferedImage.TYPE_BYTE_BINARY);
+		Graphics2D g = image.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+			g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+			g.setColor(Color.WHITE);
+			g.scale(1.0 / resolution, 1.0 / resolution);
+			g.translate(-(double) (cx << TILE_SHIFT) * resolution, -(double) (cy << TILE_SHIFT) * resolution);
+			g.fill(shape);
+		} finally {
+			g.dispose();
+		}
+		return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * Copies the rows of one tile of a chunk.
+	 *
+	 * @return false if none of its bits are set
+	 */
+	private static boolean extract(byte[] data, int columns, int tx, int ty, long[] rows) {
+		int stride = columns * TILE_SIZE / 8;
+		int offset = ty * TILE_SIZE * stride + tx * TILE_SIZE / 8;
+		boolean any = false;
+		for (int y = 0; y < TILE_SIZE; y++) {
+			long row = 0;
+			for (int i = 0; i < TILE_SIZE / 8; i++) {
+				row = (row << 8) | (data[offset + i] & 0xff);
+			}
+			rows[y] = Long.reverse(row);
+			any |= row != 0;
+			offset += stride;
+		}
+		return any;
+	}
+
+	private void apply(Long key, long[] rows, boolean set) {
+		long[] tile = tiles.get(key);
+		if (set) {
+			if (tile == null) {
+				tiles.put(key, rows.clone());
+				return;
+			}
+			for (int y = 0; y < TILE_SIZE; y++) {
+				tile[y] |= rows[y];
+			}
+		} else if (tile != null) {
+			boolean empty = true;
+			for (int y = 0; y < TILE_SIZE; y++) {
+				tile[y] &= ~rows[y];
+				empty &= tile[y] == 0;
+			}
+			if (empty) {
+				tiles.remove(key);
+			}
+		}
+	}
+
+	private int bit(double coordinate) {
+		return (int) Math.floor(coordinate / resolution);
+	}
+
+	private static long columnMask(int from, int to) {
+		long upTo = to == TILE_MASK ? FULL_ROW : (1L << (to + 1)) - 1;
+		return upTo & (FULL_ROW << from);
+	}
+
+	private static Long key(int tx, int ty) {
+		return Long.valueOf(((long) tx << 32) | (ty & 0xffffffffL));
+	}
+
+	private static int tileX(Long key) {
+		return (int) (key.longValue() >> 32);
+	}
+
+	private static int tileY(Long key) {
+		return (int) key.longValue();
+	}
+}
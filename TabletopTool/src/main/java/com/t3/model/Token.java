@@ -79,6 +79,11 @@ public class Token extends BaseModel implements UniquelyIdentifiable {
 	private boolean beingImpersonated = false;
 	private GUID exposedAreaGUID;
 
+	/**
+	 * Incremented with every change that is sent to the server, so that {@link TokenDelta}s can be checked against it
+	 */
+	private int version;
+
 	@SerializationVersion(0)
 	public enum TokenShape {
 		TOP_DOWN("Top down"), CIRCLE("Circle"), SQUARE("Square");
@@ -659,6 +664,14 @@ public class Token extends BaseModel implements UniquelyIdentifiable {
 		return id.equals(((Token) o).id);
 	}
 
+	public int getVersion() {
+		return version;
+	}
+
+	public void setVersion(int version) {
+		this.version = version;
+	}
+
 	public void setZOrder(int z) {
 		this.z = z;
 	}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.model;
+
+import java.awt.Color;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.t3.MD5Key;
+import com.t3.clientserver.NetworkSerializer;
+import com.t3.guid.GUID;
+
+/**
+ * The fields of a {@link Token} that changed since a given version of it. Every field is serialized on
+ * its own, and the maps and sets of the token, like its properties, macros and states, entry by entry, so
+ * that a move or a single changed property does not require sending the whole token.
+ */
+public class TokenDelta {
+	/** the field of the z-order, it changes with {@link com.t3.model.Zone#setTokenZOrders} without a new version */
+	public static final String Z_ORDER = "z";
+	/** the fields that take part in a delta, everything that would be sent with the full token */
+	private static final Field[] FIELDS;
+	/** transient fields are caches of other fields and are dropped whenever a delta is applied */
+	private static final Field[] CACHES;
+
+	static {
+		List<Field> fields = new ArrayList<Field>();
+		List<Field> caches = new ArrayList<Field>();
+		for (Field field : Token.class.getDeclaredFields()) {
+			int modifiers = field.getModifiers();
+			if (Modifier.isStatic(modifiers)) {
+				continue;
+			}
+			field.setAccessible(true);
+			if (Modifier.isTransient(modifiers)) {
+				caches.add(field);
+			} else if (!field.getName().equals("id") && !field.getName().equals("version")) {
+				fields.add(field);
+			}
+		}
+		FIELDS = fields.toArray(new Field[fields.size()]);
+		CACHES = caches.toArray(new Field[caches.size()]);
+	}
+
+	private GUID tokenId;
+	private int baseVersion;
+	/** fields that are sent whole */
+	private HashMap<String, byte[]> changes;
+	/** entries of maps and elements of sets that were put, by field, elements of sets have no value */
+	private HashMap<String, HashMap<Object, byte[]>> putEntries;
+	/** keys of maps and elements of sets that were removed, by field */
+	private HashMap<String, ArrayList<Object>> removedEntries;
+
+	public TokenDelta() {
+		// for serialization
+	}
+
+	private TokenDelta(GUID tokenId, int baseVersion, HashMap<String, byte[]> changes, HashMap<String, HashMap<Object, byte[]>> putEntries,
+			HashMap<String, ArrayList<Object>> removedEntries) {
+		this.tokenId = tokenId;
+		this.baseVersion = baseVersion;
+		this.changes = changes;
+		this.putEntries = putEntries;
+		this.removedEntries = removedEntries;
+	}
+
+	public GUID getTokenId() {
+		return tokenId;
+	}
+
+	/**
+	 * @return the version of the token this delta has to be applied to, afterwards the token has the next version
+	 */
+	public int getBaseVersion() {
+		return baseVersion;
+	}
+
+	public TokenDelta rebase(int version) {
+		return new TokenDelta(tokenId, version, changes, putEntries, removedEntries);
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return the number of fields that changed
+	 */
+	public int size() {
+		Set<String> fields = new HashSet<String>(changes.keySet());
+		fields.addAll(putEntries.keySet());
+		fields.addAll(removedEntries.keySet());
+		return fields.size();
+	}
+
+	/**
+	 * Describes every field of the token cheaply: immutable values are kept as they are, maps and sets entry by
+	 * entry, and any other value by a hash of its serialized form.
+	 *
+	 * @return the fingerprint of every field, by the name of the field
+	 */
+	public static Map<String, Object> fingerprint(Token token) {
+		Map<String, Object> fingerprint = new HashMap<String, Object>();
+		try {
+			for (Field field : FIELDS) {
+				fingerprint.put(field.getName(), fingerprintField(field.get(token)));
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+		return fingerprint;
+	}
+
+	/**
+	 * @return the delta that turns a token with the fingerprint <code>before</code> into the given token, whose
+	 *         fingerprint is <code>after</code>
+	 */
+	public static TokenDelta create(Token token, int baseVersion, Map<String, Object> before, Map<String, Object> after) {
+		HashMap<String, byte[]> changes = new HashMap<String, byte[]>();
+		HashMap<String, HashMap<Object, byte[]>> putEntries = new HashMap<String, HashMap<Object, byte[]>>();
+		HashMap<String, ArrayList<Object>> removedEntries = new HashMap<String, ArrayList<Object>>();
+		try {
+			for (Field field : FIELDS) {
+				String name = field.getName();
+				Object oldPrint = before.get(name);
+				Object newPrint = after.get(name);
+				if (equal(oldPrint, newPrint)) {
+					continue;
+				}
+				Object value = field.get(token);
+				if (oldPrint instanceof Entries && newPrint instanceof Entries && ((Entries) oldPrint).isMap == ((Entries) newPrint).isMap) {
+					Map<Object, Object> oldEntries = ((Entries) oldPrint).entries;
+					Map<Object, Object> newEntries = ((Entries) newPrint).entries;
+					HashMap<Object, byte[]> put = new HashMap<Object, byte[]>();
+					for (Map.Entry<Object, Object> entry : newEntries.entrySet()) {
+						if (!oldEntries.containsKey(entry.getKey()) || !equal(oldEntries.get(entry.getKey()), entry.getValue())) {
+							put.put(entry.getKey(), value instanceof Map ? NetworkSerializer.serializeObject(((Map<?, ?>) value).get(entry.getKey())) : null);
+						}
+					}
+					ArrayList<Object> removed = new ArrayList<Object>();
+					for (Object key : oldEntries.keySet()) {
+						if (!newEntries.containsKey(key)) {
+							removed.add(key);
+						}
+					}
+					if (!put.isEmpty()) {
+						putEntries.put(name, put);
+					}
+					if (!removed.isEmpty()) {
+						removedEntries.put(name, removed);
+					}
+				} else {
+					changes.put(name, NetworkSerializer.serializeObject(value));
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+		return new TokenDelta(token.getId(), baseVersion, changes, putEntries, removedEntries);
+	}
+
+	/**
+	 * @return true if the delta covers so much of the token that sending the full token is just as good
+	 */
+	public boolean isLarge() {
+		return size() > FIELDS.length / 2;
+	}
+
+	/**
+	 * Writes the changed fields into the given token and moves it to the next version.
+	 */
+	@SuppressWarnings("unchecked")
+	public void applyTo(Token token) {
+		try {
+			for (Field field : FIELDS) {
+				String name = field.getName();
+				byte[] value = changes.get(name);
+				if (value != null) {
+					field.set(token, NetworkSerializer.deserializeObject(value));
+				}
+				HashMap<Object, byte[]> put = putEntries.get(name);
+				ArrayList<Object> removed = removedEntries.get(name);
+				if (put == null && removed == null) {
+					continue;
+				}
+				Object target = field.get(token);
+				if (target instanceof Map) {
+					Map<Object, Object> map = (Map<Object, Object>) target;
+					if (removed != null) {
+						map.keySet().removeAll(removed);
+					}
+					if (put != null) {
+						for (Map.Entry<Object, byte[]> entry : put.entrySet()) {
+							map.put(entry.getKey(), NetworkSerializer.deserializeObject(entry.getValue()));
+						}
+					}
+				} else if (target instanceof Set) {
+					Set<Object> set = (Set<Object>) target;
+					if (removed != null) {
+						set.removeAll(removed);
+					}
+					if (put != null) {
+						set.addAll(put.keySet());
+					}
+				}
+			}
+			for (Field field : CACHES) {
+				field.set(token, null);
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		}
+		token.setVersion(baseVersion + 1);
+	}
+
+	private static Object fingerprintField(Object value) {
+		if (value instanceof Map) {
+			Map<Object, Object> entries = new HashMap<Object, Object>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				entries.put(entry.getKey(), fingerprintValue(entry.getValue()));
+			}
+			return new Entries(true, entries);
+		}
+		if (value instanceof Set) {
+			Map<Object, Object> entries = new HashMap<Object, Object>();
+			for (Object element : (Set<?>) value) {
+				entries.put(element, null);
+			}
+			return new Entries(false, entries);
+		}
+		return fingerprintValue(value);
+	}
+
+	private static Object fingerprintValue(Object value) {
+		if (value == null || isImmutable(value)) {
+			return value;
+		}
+		return new Hash(hash(NetworkSerializer.serializeObject(value)));
+	}
+
+	private static boolean isImmutable(Object value) {
+		return value instanceof String || value instanceof Integer || value instanceof Long || value instanceof Double || value instanceof Float
+				|| value instanceof Short || value instanceof Byte || value instanceof Boolean || value instanceof Character
+				|| value instanceof BigDecimal || value instanceof BigInteger || value instanceof Enum || value instanceof MD5Key
+				|| value instanceof GUID || value instanceof Color || value instanceof Class;
+	}
+
+	/**
+	 * @return the 64 bit FNV-1a hash of the data, long enough that two different values practically never collide
+	 */
+	private static long hash(byte[] data) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : data) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static boolean equal(Object a, Object b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * The fingerprints of the entries of a map, or the elements of a set.
+	 */
+	private static class Entries {
+		private final boolean isMap;
+		private final Map<Object, Object> entries;
+
+		public Entries(boolean isMap, Map<Object, Object> entries) {
+			this.isMap = isMap;
+			this.entries = entries;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Entries && ((Entries) obj).isMap == isMap && ((Entries) obj).entries.equals(entries);
+		}
+
+		@Override
+		public int hashCode() {
+			return entries.hashCode();
+		}
+	}
+
+	/**
+	 * The hash of the serialized form of a value that may change in place.
+	 */
+	private static class Hash {
+		private final long value;
+
+		public Hash(long value) {
+			this.value = value;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Hash && ((Hash) obj).value == value;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (value ^ (value >>> 32));
+		}
+	}
+}
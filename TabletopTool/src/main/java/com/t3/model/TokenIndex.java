@@ -0,0 +1,574 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.model;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.t3.guid.GUID;
+import com.t3.model.Zone.Layer;
+import com.t3.model.Zone.TokenFilter;
+import com.t3.model.grid.Grid;
+import com.t3.util.StringUtil;
+
+/**
+ * The tokens of a {@link Zone} ordered by their z-order and hashed into a coarse grid per layer, so
+ * that adding a token and finding the tokens in a region do not have to look at every token of the
+ * zone. The tokens are also indexed by their name and GM name, including the numbers new tokens
+ * are named with. This is a cache of the zone's token map and is rebuilt from it whenever it is
+ * missing.
+ * <p>
+ * Readers get immutable snapshots of the ordered tokens, which are only copied again after the
+ * tokens changed. A snapshot can be iterated while the zone is changed by another thread. The
+ * methods are synchronized, so the snapshots are never taken from a half updated index.
+ */
+class TokenIndex {
+	/** the edge length of a hash cell in zone pixels */
+	static final int CELL_SIZE = 256;
+	/** tokens covering more cells than this are not hashed but checked on every query */
+	private static final int MAX_CELLS = 256;
+	/** a name ending in a number, as generated by {@link Zone#findFreeNumber(String, boolean)} */
+	private static final Pattern NUMBERED_NAME = Pattern.compile("^(.*) ([1-9]\\d{0,8})$");
+	private static final Pattern NUMBER = Pattern.compile("^[1-9]\\d{0,8}$");
+
+	private final Zone zone;
+	private final TreeMap<ZKey, Token> ordered = new TreeMap<ZKey, Token>();
+	private final Map<GUID, Entry> entries = new HashMap<GUID, Entry>();
+	private final EnumMap<Layer, SpatialHash> layers = new EnumMap<Layer, SpatialHash>(Layer.class);
+	private final Map<String, List<Entry>> names = new HashMap<String, List<Entry>>();
+	private final Map<String, List<Entry>> gmNames = new HashMap<String, List<Entry>>();
+	// the numbers used by names of the form "<base> <number>", by the key of the base
+	private final Map<String, NumberSet> nameNumbers = new HashMap<String, NumberSet>();
+	// the numbers used as GM names
+	private final NumberSet gmNumbers = new NumberSet();
+
+	// the grid the bounds were calculated with, the bounds of all tokens change with it
+	private Grid grid;
+	private int gridSize;
+	private int gridOffsetX;
+	private int gridOffsetY;
+	private boolean spatialValid;
+	private int queryMark;
+
+	// counts the changes, the snapshots are taken for one version
+	private int version;
+	private List<Token> snapshot;
+	private final Map<TokenFilter, Filtered> filtered = new IdentityHashMap<TokenFilter, Filtered>();
+
+	TokenIndex(Zone zone, Collection<Token> tokens) {
+		this.zone = zone;
+		for (Layer layer : Layer.values()) {
+			layers.put(layer, new SpatialHash());
+		}
+		for (Token token : tokens) {
+			put(token);
+		}
+	}
+
+	synchronized void put(Token token) {
+		version++;
+		snapshot = null;
+		Entry entry = entries.get(token.getId());
+		if (entry == null) {
+			entry = new Entry(new ZKey(token.getZOrder(), token.getId()));
+			entries.put(token.getId(), entry);
+		} else {
+			if (entry.key.z != token.getZOrder()) {
+				ordered.remove(entry.key);
+				entry.key = new ZKey(token.getZOrder(), token.getId());
+			}
+			if (spatialValid && entry.layer != null) {
+				layers.get(entry.layer).remove(entry);
+			}
+		}
+		entry.token = token;
+		ordered.put(entry.key, token);
+		indexNames(entry);
+
+		if (spatialValid && isGridCurrent()) {
+			index(entry);
+		} else {
+			spatialValid = false;
+		}
+	}
+
+	synchronized Token remove(GUID id) {
+		Entry entry = entries.remove(id);
+		if (entry == null) {
+			return null;
+		}
+		version++;
+		snapshot = null;
+		ordered.remove(entry.key);
+		if (spatialValid && entry.layer != null) {
+			layers.get(entry.layer).remove(entry);
+		}
+		removeName(names, entry.nameKey, entry);
+		removeName(gmNames, entry.gmNameKey, entry);
+		return entry.token;
+	}
+
+	/**
+	 * @return the first token in z-order whose name matches case-insensitively
+	 */
+	synchronized Token getTokenByName(String name) {
+		return find(names, name);
+	}
+
+	/**
+	 * @return the first token in z-order whose GM name matches case-insensitively
+	 */
+	synchronized Token getTokenByGMName(String name) {
+		return find(gmNames, name);
+	}
+
+	/**
+	 * Finds the first number after <code>lastUsed</code> that is neither used in a name
+	 * "<code>baseName</code> &lt;number&gt;" nor, if <code>checkGMName</code> is set, as a GM name.
+	 */
+	synchronized int findFreeNumber(String baseName, boolean checkGMName, int lastUsed) {
+		NumberSet used = baseName == null ? null : nameNumbers.get(foldCase(baseName));
+		int number = lastUsed + 1;
+		while (true) {
+			if (used != null) {
+				number = used.nextClearBit(number);
+			}
+			if (!checkGMName || !gmNumbers.get(number)) {
+				return number;
+			}
+			number = gmNumbers.nextClearBit(number);
+		}
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	synchronized int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return an immutable list of all tokens in z-order, shared until the tokens change
+	 */
+	synchronized List<Token> getSnapshot() {
+		if (snapshot == null) {
+			snapshot = Collections.unmodifiableList(Arrays.asList(ordered.values().toArray(new Token[ordered.size()])));
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Returns the tokens accepted by the filter. The result is cached for the filter instance
+	 * until the tokens change, so this is meant for filters that are kept in a constant.
+	 * 
+	 * @return an immutable list of the tokens in z-order
+	 */
+	synchronized List<Token> getFiltered(TokenFilter filter) {
+		Filtered result = filtered.get(filter);
+		if (result == null || result.version != version) {
+			List<Token> tokens = new ArrayList<Token>();
+			for (Token token : getSnapshot()) {
+				if (filter.filter(token)) {
+					tokens.add(token);
+				}
+			}
+			result = new Filtered(version, Collections.unmodifiableList(tokens));
+			filtered.put(filter, result);
+		}
+		return result.tokens;
+	}
+
+	synchronized int getSmallestZOrder() {
+		return ordered.isEmpty() ? 0 : ordered.firstKey().z;
+	}
+
+	synchronized int getLargestZOrder() {
+		return ordered.isEmpty() ? 0 : ordered.lastKey().z;
+	}
+
+	/**
+	 * @return the tokens of the layer whose bounds intersect the region, in z-order
+	 */
+	synchronized List<Token> query(Layer layer, Rectangle region) {
+		if (!spatialValid || !isGridCurrent()) {
+			rebuildSpatial();
+		}
+		if (!spatialValid) {
+			// without a grid there are no bounds, so every token of the layer might be in the region
+			List<Token> result = new ArrayList<Token>();
+			for (Token token : getSnapshot()) {
+				if (token.getLayer() == layer) {
+					result.add(token);
+				}
+			}
+			return result;
+		}
+		List<Entry> found = layers.get(layer).query(region, ++queryMark);
+		Collections.sort(found, ENTRY_Z_ORDER);
+		List<Token> result = new ArrayList<Token>(found.size());
+		for (Entry entry : found) {
+			result.add(entry.token);
+		}
+		return result;
+	}
+
+	private Token find(Map<String, List<Entry>> index, String name) {
+		if (name == null) {
+			return null;
+		}
+		List<Entry> candidates = index.get(foldCase(name));
+		if (candidates == null) {
+			return null;
+		}
+		Entry first = null;
+		for (Entry entry : candidates) {
+			if (first == null || entry.key.compareTo(first.key) < 0) {
+				first = entry;
+			}
+		}
+		return first.token;
+	}
+
+	private void indexNames(Entry entry) {
+		Token token = entry.token;
+		String nameKey = StringUtil.isEmpty(token.getName()) ? null : foldCase(token.getName());
+		if (!equals(nameKey, entry.nameKey)) {
+			removeName(names, entry.nameKey, entry);
+			entry.nameKey = nameKey;
+			addName(names, nameKey, entry);
+		}
+		String gmNameKey = StringUtil.isEmpty(token.getGMName()) ? null : foldCase(token.getGMName());
+		if (!equals(gmNameKey, entry.gmNameKey)) {
+			removeName(gmNames, entry.gmNameKey, entry);
+			entry.gmNameKey = gmNameKey;
+			addName(gmNames, gmNameKey, entry);
+		}
+	}
+
+	private void addName(Map<String, List<Entry>> index, String key, Entry entry) {
+		if (key == null) {
+			return;
+		}
+		List<Entry> list = index.get(key);
+		if (list == null) {
+			list = new ArrayList<Entry>(1);
+			index.put(key, list);
+			setNumber(index, key, true);
+		}
+		list.add(entry);
+	}
+
+	private void removeName(Map<String, List<Entry>> index, String key, Entry entry) {
+		if (key == null) {
+			return;
+		}
+		List<Entry> list = index.get(key);
+		if (list != null && removeIdentity(list, entry) && list.isEmpty()) {
+			index.remove(key);
+			setNumber(index, key, false);
+		}
+	}
+
+	// keeps the number indexes in step with the names that are in use
+	private void setNumber(Map<String, List<Entry>> index, String key, boolean used) {
+		if (index == gmNames) {
+			if (NUMBER.matcher(key).matches()) {
+				gmNumbers.set(Integer.parseInt(key), used);
+			}
+			return;
+		}
+		Matcher m = NUMBERED_NAME.matcher(key);
+		if (m.matches()) {
+			NumberSet numbers = nameNumbers.get(m.group(1));
+			if (numbers == null) {
+				if (!used) {
+					return;
+				}
+				numbers = new NumberSet();
+				nameNumbers.put(m.group(1), numbers);
+			}
+			numbers.set(Integer.parseInt(m.group(2)), used);
+			if (numbers.isEmpty()) {
+				nameNumbers.remove(m.group(1));
+			}
+		}
+	}
+
+	/**
+	 * Folds the case of every character the way {@link String#equalsIgnoreCase(String)} compares
+	 * them, so two names are equal ignoring case exactly when their keys are equal.
+	 */
+	static String foldCase(String name) {
+		char[] chars = name.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+		}
+		return new String(chars);
+	}
+
+	private static boolean equals(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static boolean removeIdentity(List<Entry> list, Entry entry) {
+		for (int i = 0; i < list.size(); i++) {
+			if (list.get(i) == entry) {
+				list.remove(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isGridCurrent() {
+		Grid current = zone.getGrid();
+		return current != null && current == grid && current.getSize() == gridSize && current.getOffsetX() == gridOffsetX && current.getOffsetY() == gridOffsetY;
+	}
+
+	private void rebuildSpatial() {
+		for (SpatialHash hash : layers.values()) {
+			hash.clear();
+		}
+		grid = zone.getGrid();
+		if (grid == null) {
+			spatialValid = false;
+			return;
+		}
+		gridSize = grid.getSize();
+		gridOffsetX = grid.getOffsetX();
+		gridOffsetY = grid.getOffsetY();
+		for (Entry entry : entries.values()) {
+			index(entry);
+		}
+		spatialValid = true;
+	}
+
+	private void index(Entry entry) {
+		Token token = entry.token;
+		Rectangle bounds = token.getBounds(zone);
+		if (token.hasFacing()) {
+			// a rotated token can cover its circumscribed square
+			int size = (int) Math.ceil(Math.sqrt((double) bounds.width * bounds.width + (double) bounds.height * bounds.height));
+			bounds = new Rectangle((int) bounds.getCenterX() - size / 2, (int) bounds.getCenterY() - size / 2, size + 1, size + 1);
+		}
+		entry.bounds = bounds;
+		entry.layer = token.getLayer();
+		layers.get(entry.layer).add(entry);
+	}
+
+	private static final Comparator<Entry> ENTRY_Z_ORDER = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry o1, Entry o2) {
+			return o1.key.compareTo(o2.key);
+		}
+	};
+
+	/**
+	 * The position of a token in the z-order. It is kept separately from the token, because the
+	 * token's z-order is changed before the zone is told about it.
+	 */
+	static final class ZKey implements Comparable<ZKey> {
+		final int z;
+		final GUID id;
+
+		ZKey(int z, GUID id) {
+			this.z = z;
+			this.id = id;
+		}
+
+		@Override
+		public int compareTo(ZKey o) {
+			if (z != o.z) {
+				return z < o.z ? -1 : 1;
+			}
+			return id.compareTo(o.id);
+		}
+	}
+
+	/**
+	 * The numbers in use, the small ones that names are usually numbered with in a bit set, and the
+	 * others on their own, so that a single name like "Goblin 999999999" does not allocate a bit for
+	 * every number below it.
+	 */
+	static final class NumberSet {
+		/** the numbers below this are kept in the bit set, it takes at most 8 KB */
+		static final int BITS = 1 << 16;
+
+		private final BitSet small = new BitSet();
+		private final TreeSet<Integer> large = new TreeSet<Integer>();
+
+		void set(int number, boolean used) {
+			if (number < BITS) {
+				small.set(number, used);
+			} else if (used) {
+				large.add(number);
+			} else {
+				large.remove(number);
+			}
+		}
+
+		boolean get(int number) {
+			return number < BITS ? small.get(number) : large.contains(number);
+		}
+
+		/**
+		 * @return the first number from the given one on that is not used
+		 */
+		int nextClearBit(int from) {
+			int number = from;
+			if (number < BITS) {
+				number = small.nextClearBit(number);
+				if (number < BITS) {
+					return number;
+				}
+			}
+			while (large.contains(number)) {
+				number++;
+			}
+			return number;
+		}
+
+		boolean isEmpty() {
+			return small.isEmpty() && large.isEmpty();
+		}
+	}
+
+	private static final class Filtered {
+		final int version;
+		final List<Token> tokens;
+
+		Filtered(int version, List<Token> tokens) {
+			this.version = version;
+			this.tokens = tokens;
+		}
+	}
+
+	private static final class Entry {
+		ZKey key;
+		Token token;
+		Layer layer;
+		Rectangle bounds;
+		int mark;
+		String nameKey;
+		String gmNameKey;
+
+		Entry(ZKey key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * A hash of fixed size cells. Every token is listed in every cell its bounds touch.
+	 */
+	private static final class SpatialHash {
+		private final Map<Long, List<Entry>> cells = new HashMap<Long, List<Entry>>();
+		private final List<Entry> oversized = new ArrayList<Entry>();
+
+		void add(Entry entry) {
+			Rectangle b = entry.bounds;
+			int x1 = cell(b.x), y1 = cell(b.y), x2 = cell(b.x + b.width), y2 = cell(b.y + b.height);
+			if ((long) (x2 - x1 + 1) * (y2 - y1 + 1) > MAX_CELLS) {
+				oversized.add(entry);
+				return;
+			}
+			for (int x = x1; x <= x2; x++) {
+				for (int y = y1; y <= y2; y++) {
+					Long key = key(x, y);
+					List<Entry> cell = cells.get(key);
+					if (cell == null) {
+						cell = new ArrayList<Entry>(4);
+						cells.put(key, cell);
+					}
+					cell.add(entry);
+				}
+			}
+		}
+
+		void remove(Entry entry) {
+			Rectangle b = entry.bounds;
+			int x1 = cell(b.x), y1 = cell(b.y), x2 = cell(b.x + b.width), y2 = cell(b.y + b.height);
+			if ((long) (x2 - x1 + 1) * (y2 - y1 + 1) > MAX_CELLS) {
+				removeIdentity(oversized, entry);
+				return;
+			}
+			for (int x = x1; x <= x2; x++) {
+				for (int y = y1; y <= y2; y++) {
+					Long key = key(x, y);
+					List<Entry> cell = cells.get(key);
+					if (cell != null && removeIdentity(cell, entry) && cell.isEmpty()) {
+						cells.remove(key);
+					}
+				}
+			}
+		}
+
+		List<Entry> query(Rectangle region, int mark) {
+			List<Entry> result = new ArrayList<Entry>();
+			int x1 = cell(region.x), y1 = cell(region.y), x2 = cell(region.x + region.width), y2 = cell(region.y + region.height);
+			if ((long) (x2 - x1 + 1) * (y2 - y1 + 1) > cells.size()) {
+				// the region covers more cells than there are filled ones
+				for (List<Entry> cell : cells.values()) {
+					collect(cell, region, mark, result);
+				}
+			} else {
+				for (int x = x1; x <= x2; x++) {
+					for (int y = y1; y <= y2; y++) {
+						List<Entry> cell = cells.get(key(x, y));
+						if (cell != null) {
+							collect(cell, region, mark, result);
+						}
+					}
+				}
+			}
+			collect(oversized, region, mark, result);
+			return result;
+		}
+
+		void clear() {
+			cells.clear();
+			oversized.clear();
+		}
+
+		private static void collect(List<Entry> cell, Rectangle region, int mark, List<Entry> result) {
+			for (Entry entry : cell) {
+				if (entry.mark != mark && entry.bounds.intersects(region)) {
+					entry.mark = mark;
+					result.add(entry);
+				}
+			}
+		}
+
+		private static int cell(int coordinate) {
+			// rounds towards negative infinity, so negative coordinates get their own cells
+			return coordinate >= 0 ? coordinate / CELL_SIZE : -((-coordinate - 1) / CELL_SIZE) - 1;
+		}
+
+		private static Long key(int x, int y) {
+			return ((long) x << 32) | (y & 0xFFFFFFFFL);
+		}
+	}
+}
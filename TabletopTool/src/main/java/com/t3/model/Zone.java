@@ -15,6 +15,7 @@ import java.awt.Color;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.geom.Area;
+import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -26,6 +27,7 @@ import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
@@ -51,7 +53,6 @@ import com.t3.model.drawing.Pen;
 import com.t3.model.grid.Grid;
 import com.t3.model.initiative.InitiativeList;
 import com.t3.model.initiative.InitiativeList.TokenInitiative;
-import com.t3.util.StringUtil;
 import com.t3.xstreamversioned.version.SerializationVersion;
 
 /**
@@ -63,7 +64,7 @@ import com.t3.xstreamversioned.version.SerializationVersion;
  * {@link #readResolve()} to ensure they are properly initialized for maximum
  * compatibility.
  */
-@SerializationVersion(0)
+@SerializationVersion(1)
 public class Zone extends BaseModel implements UniquelyIdentifiable {
 	private static final Logger log = Logger.getLogger(Zone.class);
 
@@ -110,6 +111,50 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 
 	public static final DrawablePaint DEFAULT_FOG = new DrawableColorPaint(Color.black);
 
+	/**
+	 * How the zone keeps its exposed areas. Campaigns and the network protocol are always made of
+	 * areas.
+	 */
+	public enum FogModel {
+		/** keeps the exposed areas */
+		AREA,
+		/**
+		 * keeps {@link FogBitmap}s of the exposed areas, exact to {@link Zone#FOG_RESOLUTION}
+		 * pixels, and only makes areas of them when they are asked for
+		 */
+		BITMAP
+	}
+
+	/** the edge length in zone pixels of the squares the fog bitmap is made of */
+	public static final int FOG_RESOLUTION = 5;
+
+	private static volatile FogModel fogModel = parseFogModel(System.getProperty("t3.fogModel"));
+
+	/**
+	 * @return the fog model of the name in any case, or {@link FogModel#AREA} if there is no such
+	 *         model
+	 */
+	// Package protected for testing
+	static FogModel parseFogModel(String name) {
+		if (name == null) {
+			return FogModel.AREA;
+		}
+		try {
+			return FogModel.valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+		} catch (IllegalArgumentException e) {
+			log.warn("Unknown fog model " + name + ", using " + FogModel.AREA);
+			return FogModel.AREA;
+		}
+	}
+
+	public static FogModel getFogModel() {
+		return fogModel;
+	}
+
+	public static void setFogModel(FogModel model) {
+		fogModel = model;
+	}
+
 	// The zones should be ordered.  We could have the server assign each zone
 	// an incrementing number as new zones are created, but that would take a lot
 	// more elegance than we really need.  Instead, let's just keep track of the
@@ -137,12 +182,19 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 	private final Map<GUID, Label> labels = new LinkedHashMap<GUID, Label>();
 	private final Map<GUID, Token> tokenMap = new HashMap<GUID, Token>();
 	private Map<GUID, ExposedAreaMetaData> exposedAreaMeta = new HashMap<GUID, ExposedAreaMetaData>();
-	//FIXME replace this with by making the token hashmap a linkedhashmap
-	private final List<Token> tokenOrderedList = new LinkedList<Token>();
+	// z-order and spatial index of the tokens, rebuilt from the token map when missing
+	private transient volatile TokenIndex tokenIndex;
 
 	private InitiativeList initiativeList = new InitiativeList(this);
 
 	private Area exposedArea = new Area();
+	// the exposed area as a bitmap, built on first use and kept instead of the area after that
+	private transient FogBitmap exposedFog;
+	// the version of the bitmap the area was last made from
+	private transient int exposedAreaVersion;
+	// the cells of the grid against the exposed area, alone or with the exposed area of a token
+	private transient ExposedCells exposedCells;
+	private transient Map<GUID, ExposedCells> tokenExposedCells;
 	private boolean hasFog;
 	private DrawablePaint fogPaint;
 	private transient UndoPerZone undo;
@@ -352,7 +404,8 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 		initiativeList.setHideNPC(zone.initiativeList.isHideNPC());
 
 		boardPosition = (Point) zone.boardPosition.clone();
-		exposedArea = (Area) zone.exposedArea.clone();
+		exposedArea = (Area) zone.getExposedArea().clone();
+		exposedFog = null;
 		topology = (Area) zone.topology.clone();
 		isVisible = zone.isVisible;
 		hasFog = zone.hasFog;
@@ -521,9 +574,23 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 		if (!hasFog() || view.isGMView()) {
 			return true;
 		}
+		FogBitmap fog = getExposedFog();
 		if (TabletopTool.getServerPolicy().isUseIndividualFOW() && getVisionType() != VisionType.OFF) {
-			Area combined = new Area(exposedArea);
 			List<Token> toks = view.getTokens(); // only owned and HasSight tokens are returned
+			if (fog != null) {
+				if (fog.contains(point.x, point.y)) {
+					return true;
+				}
+				if (toks != null) {
+					for (Token tok : toks) {
+						ExposedAreaMetaData meta = exposedAreaMeta.get(tok.getExposedAreaGUID());
+						if (meta != null && meta.getExposedFog().contains(point.x, point.y))
+							return true;
+					}
+				}
+				return false;
+			}
+			Area combined = new Area(exposedArea);
 			if (toks != null && !toks.isEmpty()) {
 				for (Token tok : toks) {
 					ExposedAreaMetaData meta = exposedAreaMeta.get(tok.getExposedAreaGUID());
@@ -533,7 +600,7 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 			}
 			return combined.contains(point.x, point.y);
 		} else {
-			return exposedArea.contains(point.x, point.y);
+			return fog != null ? fog.contains(point.x, point.y) : exposedArea.contains(point.x, point.y);
 		}
 	}
 
@@ -543,7 +610,7 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 					(gmDrawables == null || gmDrawables.isEmpty()) &&
 					(objectDrawables == null || objectDrawables.isEmpty()) &&
 					(backgroundDrawables == null || backgroundDrawables.isEmpty()) &&
-					(tokenOrderedList == null || tokenOrderedList.isEmpty()) &&
+					tokenMap.isEmpty() &&
 					(labels == null || labels.isEmpty());
 		// @formatter:on
 	}
@@ -581,7 +648,11 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 		}
 		// Token is visible, and there is fog
 		Rectangle tokenSize = token.getBounds(this);
-		Area combined = new Area(exposedArea);
+		FogBitmap fog = getExposedFog();
+		if (fog != null && fog.intersects(tokenSize)) {
+			return true;
+		}
+		Area combined = fog == null ? new Area(exposedArea) : null;
 		PlayerView view = TabletopTool.getFrame().getZoneRenderer(this).getPlayerView();
 		if (TabletopTool.getServerPolicy().isUseIndividualFOW() && getVisionType() != VisionType.OFF) {
 			List<Token> toks = view.getTokens();
@@ -591,13 +662,21 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 					if (!AppUtil.playerOwns(tok)) {
 						continue;
 					}
-					if (exposedAreaMeta.containsKey(tok.getExposedAreaGUID())) {
-						combined.add(exposedAreaMeta.get(tok.getExposedAreaGUID()).getExposedAreaHistory());
+					ExposedAreaMetaData meta = exposedAreaMeta.get(tok.getExposedAreaGUID());
+					if (meta == null) {
+						continue;
+					}
+					if (fog != null) {
+						if (meta.getExposedFog().intersects(tokenSize)) {
+							return true;
+						}
+					} else {
+						combined.add(meta.getExposedAreaHistory());
 					}
 				}
 			}
 		}
-		return combined.intersects(tokenSize);
+		return combined != null && combined.intersects(tokenSize);
 	}
 
 	public void clearTopology() {
@@ -607,12 +686,13 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 
 	public void addTopology(Area area) {
 		topology.add(area);
-		fireModelChangeEvent(new ModelChangeEvent(this, Event.TOPOLOGY_CHANGED));
+		// listeners only have to look at what changed
+		fireModelChangeEvent(new ModelChangeEvent(this, Event.TOPOLOGY_CHANGED, area));
 	}
 
 	public void removeTopology(Area area) {
 		topology.subtract(area);
-		fireModelChangeEvent(new ModelChangeEvent(this, Event.TOPOLOGY_CHANGED));
+		fireModelChangeEvent(new ModelChangeEvent(this, Event.TOPOLOGY_CHANGED, area));
 	}
 
 	public Area getTopology() {
@@ -621,6 +701,8 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 
 	public void clearExposedArea() {
 		exposedArea = new Area();
+		exposedFog = null;
+		flushExposedCells();
 		// There used to be a foreach loop here that iterated over getTokens() and called .clear() -- why?!
 		exposedAreaMeta.clear();
 		fireModelChangeEvent(new ModelChangeEvent(this, Event.FOG_CHANGED));
@@ -639,6 +721,7 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 					exposedAreaMeta.put(tea, meta);
 				}
 				meta.addToExposedAreaHistory(area);
+				flushExposedCells(tea);
 				ZoneRenderer zr = TabletopTool.getFrame().getZoneRenderer(this.getId());
 				if (zr != null) // Could be null if the AutoSaveManager is saving the campaign by copying Zones, but not ZoneRenderers
 					zr.getZoneView().flush();
@@ -647,7 +730,7 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 				return; // FJE Added so that TEA isn't added to the GEA, below.
 			}
 		}
-		exposedArea.add(area);
+		exposeGlobalArea(area);
 		fireModelChangeEvent(new ModelChangeEvent(this, Event.FOG_CHANGED));
 	}
 
@@ -666,7 +749,7 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 		if (getVisionType() == VisionType.OFF) {
 			// Why is this done here and then again below???
 			// And just because Vision==Off doesn't mean we aren't doing IF...
-			exposedArea.add(area);
+			exposeGlobalArea(area);
 		}
 		if (selectedToks != null && !selectedToks.isEmpty() && (TabletopTool.getServerPolicy().isUseIndividualFOW() || TabletopTool.isPersonalServer())) {
 			boolean isAllowed = TabletopTool.getPlayer().isGM() || !TabletopTool.getServerPolicy().useStrictTokenManagement();
@@ -686,6 +769,7 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 						exposedAreaMeta.put(tea, meta);
 					}
 					meta.addToExposedAreaHistory(area);
+					flushExposedCells(tea);
 				}
 			}
 			// If 'meta' is not null, it means at least one token's TEA was modified so we need to flush the ZoneView
@@ -693,7 +777,7 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 				zoneView.flush();
 		} else {
 			// Not using IF so add the EA to the GEA instead of a TEA.
-			exposedArea.add(area);
+			exposeGlobalArea(area);
 		}
 		fireModelChangeEvent(new ModelChangeEvent(this, Event.FOG_CHANGED));
 	}
@@ -727,12 +811,14 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 				meta.clearExposedAreaHistory();
 				meta.addToExposedAreaHistory(area);
 				exposedAreaMeta.put(tok.getExposedAreaGUID(), meta);
+				flushExposedCells(tok.getExposedAreaGUID());
 				TabletopTool.getFrame().getZoneRenderer(this.getId()).getZoneView().flush(tok);
 				putToken(tok);
 			}
 		} else {
-			exposedArea.reset();
-			exposedArea.add(area);
+			exposedArea = new Area(area);
+			exposedFog = null;
+			flushExposedCells();
 		}
 		fireModelChangeEvent(new ModelChangeEvent(this, Event.FOG_CHANGED));
 	}
@@ -742,7 +828,7 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 			return;
 		}
 		if (getVisionType() == VisionType.OFF) {
-			exposedArea.subtract(area);
+			hideGlobalArea(area);
 		}
 		if (selectedToks != null && !selectedToks.isEmpty() && TabletopTool.getServerPolicy().isUseIndividualFOW()) {
 			List<Token> allToks = new ArrayList<Token>();
@@ -762,15 +848,67 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 					meta = new ExposedAreaMetaData();
 				meta.removeExposedAreaHistory(area);
 				exposedAreaMeta.put(tok.getExposedAreaGUID(), meta);
+				flushExposedCells(tok.getExposedAreaGUID());
 				TabletopTool.getFrame().getZoneRenderer(this.getId()).getZoneView().flush(tok);
 				putToken(tok);
 			}
 		} else {
-			exposedArea.subtract(area);
+			hideGlobalArea(area);
 		}
 		fireModelChangeEvent(new ModelChangeEvent(this, Event.FOG_CHANGED));
 	}
 
+	private void exposeGlobalArea(Area area) {
+		FogBitmap fog = getExposedFog();
+		if (fog != null) {
+			// the area is made from the bitmap once somebody asks for it
+			fog.add(area);
+		} else {
+			exposedArea.add(area);
+		}
+		invalidateExposedCells(area);
+	}
+
+	private void hideGlobalArea(Area area) {
+		FogBitmap fog = getExposedFog();
+		if (fog != null) {
+			fog.subtract(area);
+		} else {
+			exposedArea.subtract(area);
+		}
+		invalidateExposedCells(area);
+	}
+
+	/**
+	 * Lets the cells of the grid find out again whether they are exposed where the global exposed
+	 * area changed.
+	 */
+	private void invalidateExposedCells(Area area) {
+		Rectangle2D region = area.getBounds2D();
+		if (exposedCells != null) {
+			exposedCells.invalidate(region);
+		}
+		if (tokenExposedCells != null) {
+			for (ExposedCells cells : tokenExposedCells.values()) {
+				cells.invalidate(region);
+			}
+		}
+	}
+
+	private void flushExposedCells() {
+		exposedCells = null;
+		tokenExposedCells = null;
+	}
+
+	/**
+	 * The exposed area of the token changed, or its history was replaced.
+	 */
+	private void flushExposedCells(GUID tokenExposedAreaGUID) {
+		if (tokenExposedCells != null) {
+			tokenExposedCells.remove(tokenExposedAreaGUID);
+		}
+	}
+
 	public long getCreationTime() {
 		return creationTime;
 	}
@@ -796,7 +934,7 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 	 * @return
 	 */
 	public Area getExposedArea(PlayerView view) {
-		Area combined = new Area(exposedArea);
+		Area combined = new Area(getExposedArea());
 
 		List<Token> toks = view.getTokens();
 		// Don't need to worry about StrictTokenOwnership since the PlayerView only contains tokens we own by calling AppUtil.playerOwns()
@@ -815,6 +953,26 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 		return combined;
 	}
 
+	/**
+	 * Like {@link #getExposedArea(PlayerView)}, as a bitmap.
+	 * 
+	 * @return the combined bitmap, or null unless the {@link FogModel#BITMAP} fog model is used
+	 */
+	public FogBitmap getExposedFog(PlayerView view) {
+		FogBitmap fog = getExposedFog();
+		List<Token> toks = view.getTokens();
+		if (fog == null || toks == null || toks.isEmpty()) {
+			return fog;
+		}
+		FogBitmap combined = new FogBitmap(fog);
+		for (Token tok : toks) {
+			ExposedAreaMetaData meta = exposedAreaMeta.get(tok.getExposedAreaGUID());
+			if (meta != null)
+				combined.add(meta.getExposedFog());
+		}
+		return combined;
+	}
+
 	/**
 	 * This is the Global Exposed Area (GEA) discussed so much on the dev-team
 	 * mailing list. :)
@@ -822,9 +980,92 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 	 * @return Area object representing exposed fog area visible to all tokens
 	 */
 	public Area getExposedArea() {
+		if (exposedFog != null && exposedAreaVersion != exposedFog.getVersion()) {
+			exposedArea = exposedFog.toArea();
+			exposedAreaVersion = exposedFog.getVersion();
+		}
 		return exposedArea;
 	}
 
+	/**
+	 * @param region
+	 *            the part of the zone that is looked at, or null for all of it
+	 * @return a copy of the Global Exposed Area that is exact within the region, under the
+	 *         {@link FogModel#BITMAP} fog model only the part of the bitmap over the region is
+	 *         made into an area
+	 */
+	public Area getExposedArea(Rectangle2D region) {
+		FogBitmap fog = getExposedFog();
+		if (fog == null || region == null) {
+			return new Area(getExposedArea());
+		}
+		return new Area(fog.toPath(region));
+	}
+
+	/**
+	 * The Global Exposed Area as a bitmap, which answers whether a point or a rectangle is exposed
+	 * no matter how much has been exposed over time. Under the {@link FogModel#BITMAP} fog model the
+	 * bitmap is what the zone keeps, {@link #getExposedArea()} makes an area of it when asked.
+	 * 
+	 * @return the global exposed area as a bitmap, or null
+	 */
+	public FogBitmap getExposedFog() {
+		if (fogModel != FogModel.BITMAP) {
+			if (exposedFog != null) {
+				// keep what only the bitmap knows
+				getExposedArea();
+				exposedFog = null;
+			}
+			return null;
+		}
+		if (exposedFog == null) {
+			exposedFog = FogBitmap.fromArea(exposedArea, FOG_RESOLUTION);
+			exposedAreaVersion = exposedFog.getVersion();
+		}
+		return exposedFog;
+	}
+
+	/**
+	 * The cells of the grid against the exposed area, which answer most of the questions
+	 * {@link Grid#validateMove} asks without going to the area. They are built on first use and
+	 * kept until the exposed area or the grid changes.
+	 * 
+	 * @param tokenExposedAreaGUID
+	 *            the token whose exposed area is added to the global one, or null for the global
+	 *            exposed area alone
+	 * @return the cells of the exposed area
+	 */
+	public ExposedCells getExposedCells(GUID tokenExposedAreaGUID) {
+		Area area = getExposedArea();
+		if (exposedCells == null || !matchesGrid(exposedCells)) {
+			exposedCells = new ExposedCells(grid.getSize(), grid.getOffsetX(), grid.getOffsetY(), area);
+			tokenExposedCells = null;
+		} else if (!exposedCells.isOf(area)) {
+			// under the bitmap fog model the area is made anew after a change, which the cells were
+			// invalidated for
+			exposedCells.setAreas(area);
+		}
+		ExposedAreaMetaData meta = tokenExposedAreaGUID != null ? exposedAreaMeta.get(tokenExposedAreaGUID) : null;
+		if (meta == null || meta.getExposedAreaHistory().isEmpty()) {
+			return exposedCells;
+		}
+		if (tokenExposedCells == null) {
+			tokenExposedCells = new HashMap<GUID, ExposedCells>();
+		}
+		ExposedCells cells = tokenExposedCells.get(tokenExposedAreaGUID);
+		if (cells == null) {
+			cells = new ExposedCells(grid.getSize(), grid.getOffsetX(), grid.getOffsetY(), area, meta.getExposedAreaHistory());
+			tokenExposedCells.put(tokenExposedAreaGUID, cells);
+		} else if (!cells.isOf(area, meta.getExposedAreaHistory())) {
+			cells.setAreas(area, meta.getExposedAreaHistory());
+		}
+		return cells;
+	}
+
+	private boolean matchesGrid(ExposedCells cells) {
+		return cells.getCellSize() == grid.getSize() && cells.getOffsetX() == grid.getOffsetX() && cells.getOffsetY() == grid.getOffsetY();
+	}
+
 	public int getUnitsPerCell() {
 		return Math.max(unitsPerCell, 1);
 	}
@@ -834,11 +1075,11 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 	}
 
 	public int getLargestZOrder() {
-		return tokenOrderedList.size() > 0 ? tokenOrderedList.get(tokenOrderedList.size() - 1).getZOrder() : 0;
+		return getTokenIndex().getLargestZOrder();
 	}
 
 	public int getSmallestZOrder() {
-		return tokenOrderedList.size() > 0 ? tokenOrderedList.get(0).getZOrder() : 0;
+		return getTokenIndex().getSmallestZOrder();
 	}
 
 	///////////////////////////////////////////////////////////////////////////
@@ -985,11 +1226,7 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 
 		token.setZone(this);
 		tokenMap.put(token.getId(), token);
-
-		// LATER: optimize this
-		tokenOrderedList.remove(token);
-		tokenOrderedList.add(token);
-		Collections.sort(tokenOrderedList, TOKEN_Z_ORDER_COMPARATOR);
+		getTokenIndex().put(token);
 
 		if (newToken) {
 			fireModelChangeEvent(new ModelChangeEvent(this, Event.TOKEN_ADDED, token));
@@ -1024,12 +1261,11 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 		List<Token> changedTokens = new LinkedList<Token>(tokens);
 		changedTokens.retainAll(values);
 
+		TokenIndex index = getTokenIndex();
 		for (Token t : tokens) {
 			tokenMap.put(t.getId(), t);
+			index.put(t);
 		}
-		tokenOrderedList.removeAll(tokens);
-		tokenOrderedList.addAll(tokens);
-		Collections.sort(tokenOrderedList, TOKEN_Z_ORDER_COMPARATOR);
 
 		if (!addedTokens.isEmpty())
 			fireModelChangeEvent(new ModelChangeEvent(this, Event.TOKEN_ADDED, addedTokens));
@@ -1037,10 +1273,34 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 			fireModelChangeEvent(new ModelChangeEvent(this, Event.TOKEN_CHANGED, changedTokens));
 	}
 
+	/**
+	 * Changes the z-order of several tokens at once, e.g. after the server brought them to the
+	 * front. Fires a single <code>Event.TOKEN_CHANGED</code> for all of them.
+	 * 
+	 * @param tokenIds
+	 *            the tokens to change, unknown ids are ignored
+	 * @param zOrders
+	 *            the new z-order of the token at the same index
+	 */
+	public void setTokenZOrders(GUID[] tokenIds, int[] zOrders) {
+		TokenIndex index = getTokenIndex();
+		List<Token> changedTokens = new ArrayList<Token>(tokenIds.length);
+		for (int i = 0; i < tokenIds.length; i++) {
+			Token token = tokenMap.get(tokenIds[i]);
+			if (token != null) {
+				token.setZOrder(zOrders[i]);
+				index.put(token);
+				changedTokens.add(token);
+			}
+		}
+		if (!changedTokens.isEmpty())
+			fireModelChangeEvent(new ModelChangeEvent(this, Event.TOKEN_CHANGED, changedTokens));
+	}
+
 	public void removeToken(GUID id) {
 		Token token = tokenMap.remove(id);
 		if (token != null) {
-			tokenOrderedList.remove(token);
+			getTokenIndex().remove(id);
 			fireModelChangeEvent(new ModelChangeEvent(this, Event.TOKEN_REMOVED, token));
 		}
 	}
@@ -1054,15 +1314,7 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 	 * case-insensitively.
 	 */
 	public Token getTokenByName(String name) {
-		for (Token token : getAllTokens()) {
-			if (StringUtil.isEmpty(token.getName())) {
-				continue;
-			}
-			if (token.getName().equalsIgnoreCase(name)) {
-				return token;
-			}
-		}
-		return null;
+		return getTokenIndex().getTokenByName(name);
 	}
 
 	/**
@@ -1093,15 +1345,7 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 	 * case-insensitively.
 	 */
 	public Token getTokenByGMName(String name) {
-		for (Token token : getAllTokens()) {
-			if (StringUtil.isEmpty(token.getGMName())) {
-				continue;
-			}
-			if (token.getGMName().equalsIgnoreCase(name)) {
-				return token;
-			}
-		}
-		return null;
+		return getTokenIndex().getTokenByGMName(name);
 	}
 
 	public List<DrawnElement> getAllDrawnElements() {
@@ -1116,11 +1360,50 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 	}
 
 	public int getTokenCount() {
-		return tokenOrderedList.size();
+		return tokenMap.size();
 	}
 
+	/**
+	 * Returns all tokens in z-order. The list is an immutable snapshot that is shared until the
+	 * tokens of the zone change, so it must not be modified but can be iterated without copying.
+	 */
 	public List<Token> getAllTokens() {
-		return Collections.unmodifiableList(new ArrayList<Token>(tokenOrderedList));
+		return getTokenIndex().getSnapshot();
+	}
+
+	/**
+	 * @return a number that changes whenever a token is added, changed or removed
+	 */
+	public int getTokenVersion() {
+		return getTokenIndex().getVersion();
+	}
+
+	/**
+	 * Finds the tokens of a layer in a region of the zone without looking at every token.
+	 * 
+	 * @param layer
+	 *            the layer the tokens are on
+	 * @param region
+	 *            the region in zone coordinates
+	 * @return the tokens whose bounds intersect the region, in z-order
+	 */
+	public List<Token> getTokensInRegion(Layer layer, Rectangle region) {
+		return Collections.unmodifiableList(getTokenIndex().query(layer, region));
+	}
+
+	private TokenIndex getTokenIndex() {
+		// transient, so it is missing after deserialization
+		TokenIndex index = tokenIndex;
+		if (index == null) {
+			synchronized (tokenMap) {
+				index = tokenIndex;
+				if (index == null) {
+					index = new TokenIndex(this, tokenMap.values());
+					tokenIndex = index;
+				}
+			}
+		}
+		return index;
 	}
 
 	public Set<MD5Key> getAllAssetIds() {
@@ -1158,8 +1441,8 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 	}
 
 	public List<Token> getTokensFiltered(TokenFilter filter) {
-		List<Token> l=new ArrayList<Token>(tokenOrderedList.size());
-		for(Token t:tokenOrderedList)
+		List<Token> l=new ArrayList<Token>();
+		for(Token t:getTokenIndex().getSnapshot())
 			if(filter.filter(t))
 				l.add(t);
 		return Collections.unmodifiableList(l);
@@ -1169,61 +1452,87 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 		boolean filter(Token t);
 	}
 
+	// the filters below only look at the token, so their results are cached until the tokens change
+	private static final TokenFilter TOKEN_FILTER = new TokenFilter() {
+		@Override
+		public boolean filter(Token t) {
+			return !t.isStamp();
+		}
+	};
+
+	private static final TokenFilter OBJECT_STAMP_FILTER = new TokenFilter() {
+		@Override
+		public boolean filter(Token t) {
+			return t.isObjectStamp();
+		}
+	};
+
+	private static final TokenFilter PC_FILTER = new TokenFilter() {
+		@Override
+		public boolean filter(Token t) {
+			return t.getType() == Token.Type.PC;
+		}
+	};
+
+	private static final TokenFilter PC_WITH_SIGHT_FILTER = new TokenFilter() {
+		@Override
+		public boolean filter(Token t) {
+			return t.getType() == Token.Type.PC && t.getHasSight();
+		}
+	};
+
+	private static final TokenFilter BACKGROUND_STAMP_FILTER = new TokenFilter() {
+		@Override
+		public boolean filter(Token t) {
+			return t.isBackgroundStamp();
+		}
+	};
+
+	private static final TokenFilter GM_STAMP_FILTER = new TokenFilter() {
+		@Override
+		public boolean filter(Token t) {
+			return t.isGMStamp();
+		}
+	};
+
 	/**
 	 * This is the list of non-stamp tokens, both pc and npc
 	 */
 	public List<Token> getTokens() {
-		return getTokensFiltered(new TokenFilter() {
-			@Override
-			public boolean filter(Token t) {
-				return !t.isStamp();
-			}
-		});
+		return getTokenIndex().getFiltered(TOKEN_FILTER);
 	}
 
 	public List<Token> getStampTokens() {
-		return getTokensFiltered(new TokenFilter() {
-			@Override
-			public boolean filter(Token t) {
-				return t.isObjectStamp();
-			}
-		});
+		return getTokenIndex().getFiltered(OBJECT_STAMP_FILTER);
 	}
 
 	public List<Token> getPlayerTokens() {
-		return getTokensFiltered(new TokenFilter() {
-			@Override
-			public boolean filter(Token t) {
-				return t.getType() == Token.Type.PC;
-			}
-		});
+		return getTokenIndex().getFiltered(PC_FILTER);
 	}
 
 	public List<Token> getPlayerOwnedTokensWithSight(Player p) {
-		return getTokensFiltered(new TokenFilter() {
-			@Override
-			public boolean filter(Token t) {
-				return t.getType() == Token.Type.PC && t.getHasSight() && AppUtil.playerOwns(t);
+		List<Token> withSight = getTokenIndex().getFiltered(PC_WITH_SIGHT_FILTER);
+		// ownership depends on the current player, so only copy if someone else owns a token
+		for (int i = 0; i < withSight.size(); i++) {
+			if (!AppUtil.playerOwns(withSight.get(i))) {
+				List<Token> owned = new ArrayList<Token>(withSight.subList(0, i));
+				for (int j = i + 1; j < withSight.size(); j++) {
+					if (AppUtil.playerOwns(withSight.get(j))) {
+						owned.add(withSight.get(j));
+					}
+				}
+				return Collections.unmodifiableList(owned);
 			}
-		});
+		}
+		return withSight;
 	}
 
 	public List<Token> getBackgroundStamps() {
-		return getTokensFiltered(new TokenFilter() {
-			@Override
-			public boolean filter(Token t) {
-				return t.isBackgroundStamp();
-			}
-		});
+		return getTokenIndex().getFiltered(BACKGROUND_STAMP_FILTER);
 	}
 
 	public List<Token> getGMStamps() {
-		return getTokensFiltered(new TokenFilter() {
-			@Override
-			public boolean filter(Token t) {
-				return t.isGMStamp();
-			}
-		});
+		return getTokenIndex().getFiltered(GM_STAMP_FILTER);
 	}
 
 	public int findFreeNumber(String tokenBaseName, boolean checkDm) {
@@ -1232,31 +1541,7 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 		}
 		Integer _lastUsed = tokenNumberCache.get(tokenBaseName);
 
-		int lastUsed;
-
-		if (_lastUsed == null) {
-			lastUsed = 0;
-		} else {
-			lastUsed = _lastUsed;
-		}
-		boolean repeat = true;
-		while (repeat) {
-			lastUsed++;
-			repeat = false;
-			if (checkDm) {
-				Token token = getTokenByGMName(Integer.toString(lastUsed));
-				if (token != null) {
-					repeat = true;
-				}
-			}
-			if (!repeat && tokenBaseName != null) {
-				String name = tokenBaseName + " " + lastUsed;
-				Token token = getTokenByName(name);
-				if (token != null) {
-					repeat = true;
-				}
-			}
-		}
+		int lastUsed = getTokenIndex().findFreeNumber(tokenBaseName, checkDm, _lastUsed == null ? 0 : _lastUsed);
 		tokenNumberCache.put(tokenBaseName, lastUsed);
 		return lastUsed;
 	}
@@ -1351,6 +1636,14 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 		}
 	}
 
+	/**
+	 * Makes the exposed area from the bitmap before the zone is saved or sent.
+	 */
+	private Object writeReplace() {
+		getExposedArea();
+		return this;
+	}
+
 	////
 	// Backward compatibility
 	@Override
@@ -1395,7 +1688,7 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 		// Look for the bizarre z-ordering disappearing trick
 		boolean foundZero = false;
 		boolean fixZOrder = false;
-		for (Token token : tokenOrderedList) {
+		for (Token token : getAllTokens()) {
 			if (token.getZOrder() == 0) {
 				if (foundZero) {
 					fixZOrder = true;
@@ -1406,9 +1699,10 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 		}
 		if (fixZOrder) {
 			int z = 0;
-			for (Token token : tokenOrderedList) {
+			for (Token token : getAllTokens()) {
 				token.setZOrder(z++);
 			}
+			tokenIndex = null;
 		}
 		// Transient "undo" field added in 1.3.b88
 		// This will be true; it's just in case we decide to make it persistent in the future
@@ -1447,6 +1741,7 @@ public class Zone extends BaseModel implements UniquelyIdentifiable {
 			exposedAreaMeta = new HashMap<GUID, ExposedAreaMetaData>();
 		}
 		exposedAreaMeta.put(tokenExposedAreaGUID, meta);
+		flushExposedCells(tokenExposedAreaGUID);
 		fireModelChangeEvent(new ModelChangeEvent(this, Event.FOG_CHANGED));
 	}
 }
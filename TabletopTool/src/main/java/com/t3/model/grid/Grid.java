@@ -31,6 +31,7 @@ import com.t3.client.walker.ZoneWalker;
 import com.t3.guid.GUID;
 import com.t3.model.Asset;
 import com.t3.model.CellPoint;
+import com.t3.model.ExposedCells;
 import com.t3.model.ModelChangeEvent;
 import com.t3.model.Token;
 import com.t3.model.TokenFootprint;
@@ -394,10 +395,10 @@ public abstract class Grid implements Cloneable {
 	 * @param diry
 	 *            direction token is traveling along the Y axis
 	 * @param exposedFog
-	 *            area in which fog has been cleared away
+	 *            cells of the area in which fog has been cleared away
 	 * @return true or false whether the token may move into the area
 	 */
-	public boolean validateMove(Token token, Rectangle areaToCheck, int dirx, int diry, Area exposedFog) {
+	public boolean validateMove(Token token, Rectangle areaToCheck, int dirx, int diry, ExposedCells exposedFog) {
 		int direction = calculator.getDirection(dirx, diry);
 
 		Rectangle bounds = new Rectangle();
@@ -431,7 +432,7 @@ public abstract class Grid implements Cloneable {
 	 *            defines areas where fog is currently covering the background
 	 * @return
 	 */
-	private boolean checkCenterRegion(Rectangle regionToCheck, Area fog) {
+	private boolean checkCenterRegion(Rectangle regionToCheck, ExposedCells fog) {
 		Rectangle center = new Rectangle();
 		Rectangle bounds = new Rectangle();
 		oneThird(regionToCheck, 1, 1, center); // selects the CENTER piece
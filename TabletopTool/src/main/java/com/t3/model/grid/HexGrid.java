@@ -28,6 +28,7 @@ import com.t3.client.AppState;
 import com.t3.client.ui.zone.ZoneRenderer;
 import com.t3.image.ImageUtil;
 import com.t3.model.CellPoint;
+import com.t3.model.ExposedCells;
 import com.t3.model.Token;
 import com.t3.model.TokenFootprint.OffsetTranslator;
 import com.t3.model.ZonePoint;
@@ -332,11 +333,11 @@ public abstract class HexGrid extends Grid {
 	/*
 	 * (non-Javadoc)
 	 * 
-	 * @see com.t3.model.Grid#validateMove(java.awt.Rectangle, int, int, java.awt.geom.Area)
+	 * @see com.t3.model.Grid#validateMove(java.awt.Rectangle, int, int, com.t3.model.ExposedCells)
 	 */
 
 	@Override
-	public boolean validateMove(Token token, Rectangle areaToCheck, int dirx, int diry, Area exposedFog) {
+	public boolean validateMove(Token token, Rectangle areaToCheck, int dirx, int diry, ExposedCells exposedFog) {
 		// For a hex grid, we calculate the center of the areaToCheck and use that to calculate the CellPoint.
 		ZonePoint actual = new ZonePoint(areaToCheck.x + areaToCheck.width / 2, areaToCheck.y + areaToCheck.height / 2);
 
@@ -378,21 +379,16 @@ public abstract class HexGrid extends Grid {
 		return result;
 	}
 
-	private boolean checkOneSlice(ZonePoint zp, int dir, Area exposedFog) {
+	private boolean checkOneSlice(ZonePoint zp, int dir, ExposedCells exposedFog) {
 		Shape s = calculator.getFogAreaToCheck(dir);
 
 		// The resulting Shape is 4x larger than it should be.  Use a transform to correct it.
 		AffineTransform af = new AffineTransform();
 		af.translate(zp.x, zp.y);
 		af.scale(minorRadius / 100, minorRadius / 100);
-		Area transformed = new Area(af.createTransformedShape(s));
-
-		// Create an Area based on the pie slice, then calculate the intersection with the exposed area.  If the result
-		// is exactly the same as the original pie slice, then the entire slice must have been contained with the
-		// exposed area.  That means it's fine for a token to move into the grid cell.  Whew. ;-)
-		Area a = new Area(transformed);
-		a.intersect(exposedFog);
-		return a.equals(transformed);
+
+		// The pie slice must be contained within the exposed area.  That means it's fine for a token to move into the grid cell.  Whew. ;-)
+		return exposedFog.contains(af.createTransformedShape(s));
 	}
 
 	/**
@@ -41,6 +41,7 @@ import com.t3.model.MacroButtonProperties;
 import com.t3.model.Player;
 import com.t3.model.Pointer;
 import com.t3.model.Token;
+import com.t3.model.TokenDelta;
 import com.t3.model.Zone;
 import com.t3.model.Zone.VisionType;
 import com.t3.model.ZonePoint;
@@ -219,10 +220,42 @@ public class ClientMethodHandler extends AbstractMethodHandler<NetworkCommand> {
 					zoneGUID = (GUID) parameters[0];
 					zone = TabletopTool.getCampaign().getZone(zoneGUID);
 					Token token = (Token) parameters[1];
+					TabletopTool.getTokenDeltaTracker().synced(token);
 					zone.putToken(token);
 					TabletopTool.getFrame().refresh();
 					return;
 
+				case updateTokenDelta:
+					zoneGUID = (GUID) parameters[0];
+					zone = TabletopTool.getCampaign().getZone(zoneGUID);
+					TokenDelta delta = (TokenDelta) parameters[1];
+					token = zone.getToken(delta.getTokenId());
+					if (token == null || token.getVersion() != delta.getBaseVersion()) {
+						// we missed an update, ask for the whole token
+						TabletopTool.serverCommand().getToken(zoneGUID, delta.getTokenId());
+						return;
+					}
+					delta.applyTo(token);
+					TabletopTool.getTokenDeltaTracker().synced(token);
+					zone.putToken(token);
+					TabletopTool.getFrame().refresh();
+					return;
+
+				case updateTokenZOrders:
+					zoneGUID = (GUID) parameters[0];
+					zone = TabletopTool.getCampaign().getZone(zoneGUID);
+					GUID[] tokenIds = (GUID[]) parameters[1];
+					zone.setTokenZOrders(tokenIds, (int[]) parameters[2]);
+					// the server does not count z-order changes as a new version of the token
+					for (GUID tokenId : tokenIds) {
+						token = zone.getToken(tokenId);
+						if (token != null) {
+							TabletopTool.getTokenDeltaTracker().zOrderChanged(token);
+						}
+					}
+					TabletopTool.getFrame().refresh();
+					return;
+
 				case putLabel:
 					zoneGUID = (GUID) parameters[0];
 					zone = TabletopTool.getCampaign().getZone(zoneGUID);
@@ -235,6 +268,7 @@ public class ClientMethodHandler extends AbstractMethodHandler<NetworkCommand> {
 					zoneGUID = (GUID) parameters[0];
 					zone = TabletopTool.getCampaign().getZone(zoneGUID);
 					GUID tokenGUID = (GUID) parameters[1];
+					TabletopTool.getTokenDeltaTracker().forget(tokenGUID);
 					zone.removeToken(tokenGUID);
 					TabletopTool.getFrame().refresh();
 					return;
@@ -12,6 +12,11 @@
 package com.t3.networking;
 
 import com.t3.clientserver.Command;
+import com.t3.clientserver.NetworkSerializer;
+import com.t3.clientserver.connection.AbstractConnection;
+import com.t3.clientserver.connection.QueuePolicy;
+import com.t3.clientserver.connection.QueuePolicy.Priority;
+import com.t3.common.T3Constants;
 
 public enum NetworkCommand implements Command {
 	//CLIENT COMMANDS
@@ -20,9 +25,11 @@ public enum NetworkCommand implements Command {
     playerConnected,
     playerDisconnected,
     setUseVision,
+    updateTokenZOrders,
     
     //SERVER COMMANDS
 	getZone,
+	getToken,
 	sendTokensToBack,
 	bringTokensToFront,
 	heartbeat,
@@ -37,6 +44,7 @@ public enum NetworkCommand implements Command {
 	getAsset,
 	removeAsset,
 	putToken,
+	updateTokenDelta,
 	removeToken,
 	draw,
 	clearAllDrawings,
@@ -73,4 +81,25 @@ public enum NetworkCommand implements Command {
 	exposePCArea,
 	setBoard,
 	updateExposedAreaMeta;
+
+	static {
+		// assets are image data that is compressed already, deflating it again only costs time
+		NetworkSerializer.getCompressionPolicy().setUncompressed(updateAssetTransfer, putAsset);
+
+		// start, stop and waypoints of a token move share the priority of the move updates, so that they
+		// stay in order with them
+		QueuePolicy queuePolicy = AbstractConnection.getQueuePolicy();
+		queuePolicy.setPriority(Priority.INTERACTIVE, startTokenMove, updateTokenMove, toggleTokenMoveWaypoint, stopTokenMove, showPointer, movePointer,
+				hidePointer, setLiveTypingLabel);
+		queuePolicy.setPriority(Priority.CHAT, message);
+		queuePolicy.setPriority(Priority.BULK, putAsset, startAssetTransfer, updateAssetTransfer);
+		queuePolicy.setChannelPriority(T3Constants.Channel.IMAGE, Priority.BULK);
+		// only the latest position of a dragged token or a pointer matters
+		queuePolicy.setCoalesced(updateTokenMove, 0, 1);
+		// but a move update never overtakes the start, a waypoint or the stop of a move
+		queuePolicy.setCoalescingBarrier(startTokenMove, updateTokenMove, 1, 2);
+		queuePolicy.setCoalescingBarrier(toggleTokenMoveWaypoint, updateTokenMove, 0, 1);
+		queuePolicy.setCoalescingBarrier(stopTokenMove, updateTokenMove, 0, 1);
+		queuePolicy.setCoalesced(movePointer, 0);
+	}
 }
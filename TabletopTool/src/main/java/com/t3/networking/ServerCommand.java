@@ -23,6 +23,7 @@ import com.t3.model.Label;
 import com.t3.model.MacroButtonProperties;
 import com.t3.model.Pointer;
 import com.t3.model.Token;
+import com.t3.model.TokenDelta;
 import com.t3.model.Zone;
 import com.t3.model.Zone.VisionType;
 import com.t3.model.ZonePoint;
@@ -70,6 +71,10 @@ public interface ServerCommand {
 
 	public void putToken(GUID zoneGUID, Token token);
 
+	public void updateTokenDelta(GUID zoneGUID, TokenDelta delta);
+
+	public void getToken(GUID zoneGUID, GUID tokenGUID);
+
 	public void removeToken(GUID zoneGUID, GUID tokenGUID);
 
 	public void putLabel(GUID zoneGUID, Label label);
@@ -26,6 +26,7 @@ import com.t3.model.Label;
 import com.t3.model.MacroButtonProperties;
 import com.t3.model.Pointer;
 import com.t3.model.Token;
+import com.t3.model.TokenDelta;
 import com.t3.model.Zone;
 import com.t3.model.Zone.VisionType;
 import com.t3.model.ZonePoint;
@@ -128,7 +129,26 @@ public class ServerCommandClientImpl implements ServerCommand {
 		// after changing the token. But they don't tell the zone about it so classes
 		// waiting for the zone change event don't get it.
 		TabletopTool.getCampaign().getZone(zoneGUID).putToken(token);
-		makeServerCall(NetworkCommand.putToken, zoneGUID, token);
+
+		// only send what changed since the server last saw the token
+		TokenDeltaTracker tracker = TabletopTool.getTokenDeltaTracker();
+		TokenDelta delta = tracker.createDelta(token);
+		if (delta == null) {
+			tracker.sentInFull(token);
+			makeServerCall(NetworkCommand.putToken, zoneGUID, token);
+		} else if (!delta.isEmpty()) {
+			makeServerCall(NetworkCommand.updateTokenDelta, zoneGUID, delta);
+		}
+	}
+
+	@Override
+	public void updateTokenDelta(GUID zoneGUID, TokenDelta delta) {
+		makeServerCall(NetworkCommand.updateTokenDelta, zoneGUID, delta);
+	}
+
+	@Override
+	public void getToken(GUID zoneGUID, GUID tokenGUID) {
+		makeServerCall(NetworkCommand.getToken, zoneGUID, tokenGUID);
 	}
 
 	@Override
@@ -26,6 +26,7 @@ public class ServerConfig {
 	private String playerPassword;
 	private boolean personalServer;
 	private String serverName;
+	private boolean nioTransport;
 
 	public ServerConfig() {
 		/* no op */
@@ -67,6 +68,18 @@ public class ServerConfig {
 		return port;
 	}
 
+	/**
+	 * @return true if the server should serve its clients from a small pool of selector threads
+	 * instead of a send and a receive thread per connected client
+	 */
+	public boolean isNioTransport() {
+		return nioTransport;
+	}
+
+	public void setNioTransport(boolean nioTransport) {
+		this.nioTransport = nioTransport;
+	}
+
 	public static ServerConfig createPersonalServerConfig() {
 		ServerConfig config = new ServerConfig();
 		config.personalServer = true;
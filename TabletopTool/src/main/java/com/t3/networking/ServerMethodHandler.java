@@ -32,6 +32,7 @@ import com.t3.model.Label;
 import com.t3.model.MacroButtonProperties;
 import com.t3.model.Pointer;
 import com.t3.model.Token;
+import com.t3.model.TokenDelta;
 import com.t3.model.Zone;
 import com.t3.model.Zone.VisionType;
 import com.t3.model.ZonePoint;
@@ -113,6 +114,12 @@ public class ServerMethodHandler extends AbstractMethodHandler<NetworkCommand> i
 			case putToken:
 				putToken(context.getGUID(0), (Token) context.get(1));
 				break;
+			case updateTokenDelta:
+				updateTokenDelta(context.getGUID(0), (TokenDelta) context.get(1));
+				break;
+			case getToken:
+				getToken(context.getGUID(0), context.getGUID(1));
+				break;
 			case putZone:
 				putZone((Zone) context.get(0));
 				break;
@@ -267,30 +274,7 @@ public class ServerMethodHandler extends AbstractMethodHandler<NetworkCommand> i
 
 	@Override
 	public void bringTokensToFront(GUID zoneGUID, Set<GUID> tokenSet) {
-		synchronized (MUTEX) {
-			Zone zone = server.getCampaign().getZone(zoneGUID);
-
-			// Get the tokens to update
-			List<Token> tokenList = new ArrayList<Token>();
-			for (GUID tokenGUID : tokenSet) {
-				Token token = zone.getToken(tokenGUID);
-				if (token != null) {
-					tokenList.add(token);
-				}
-			}
-			// Arrange
-			Collections.sort(tokenList, Zone.TOKEN_Z_ORDER_COMPARATOR);
-
-			// Update
-			int z = zone.getLargestZOrder() + 1;
-			for (Token token : tokenList) {
-				token.setZOrder(z++);
-			}
-			// Broadcast
-			for (Token token : tokenList) {
-				broadcastToAllClients(NetworkCommand.putToken, zoneGUID, token);
-			}
-		}
+		reorderTokens(zoneGUID, tokenSet, true);
 	}
 
 	@Override
@@ -442,13 +426,9 @@ public class ServerMethodHandler extends AbstractMethodHandler<NetworkCommand> i
 	public void putToken(GUID zoneGUID, Token token) {
 		Zone zone = server.getCampaign().getZone(zoneGUID);
 
-		boolean newToken = zone.getToken(token.getId()) == null;
+		boolean newToken;
 		synchronized (MUTEX) {
-			// Set z-order for new tokens
-			if (newToken) {
-				token.setZOrder(zone.getLargestZOrder() + 1);
-			}
-			zone.putToken(token);
+			newToken = putFullToken(zone, token);
 		}
 		if (newToken) {
 			forwardToAllClients();
@@ -457,6 +437,72 @@ public class ServerMethodHandler extends AbstractMethodHandler<NetworkCommand> i
 		}
 	}
 
+	@Override
+	public void updateTokenDelta(GUID zoneGUID, TokenDelta delta) {
+		Zone zone = server.getCampaign().getZone(zoneGUID);
+		String sender = RPCContext.getCurrent().id;
+
+		synchronized (MUTEX) {
+			TokenDelta applied = applyTokenDelta(zone, delta);
+			if (applied == null) {
+				// removed in the meantime, the sender will get the removeToken as well
+				return;
+			}
+			if (applied == delta) {
+				forwardToClients();
+			} else {
+				broadcastToClients(sender, NetworkCommand.updateTokenDelta, zoneGUID, applied);
+				server.getConnection().callMethod(sender, NetworkCommand.putToken, zoneGUID, zone.getToken(delta.getTokenId()));
+			}
+		}
+	}
+
+	/**
+	 * Puts a token that was sent in full into the zone. It replaces all of the token, so it is the next version of the
+	 * one in the zone, and a delta still based on that one has to be rebased. Must hold MUTEX.
+	 * 
+	 * @return whether the token is new in the zone
+	 */
+	// Package protected for testing
+	static boolean putFullToken(Zone zone, Token token) {
+		Token old = zone.getToken(token.getId());
+		if (old == null) {
+			// Set z-order for new tokens
+			token.setZOrder(zone.getLargestZOrder() + 1);
+		} else {
+			token.setVersion(old.getVersion() + 1);
+		}
+		zone.putToken(token);
+		return old == null;
+	}
+
+	/**
+	 * Applies a delta to the token in the zone. Must hold MUTEX.
+	 * 
+	 * @return the delta itself, or a rebased one if the sender missed a change and the last writer wins for every
+	 *         field it changed, or null if the token is gone
+	 */
+	// Package protected for testing
+	static TokenDelta applyTokenDelta(Zone zone, TokenDelta delta) {
+		Token token = zone.getToken(delta.getTokenId());
+		if (token == null) {
+			return null;
+		}
+		int version = token.getVersion();
+		TokenDelta applied = delta.getBaseVersion() == version ? delta : delta.rebase(version);
+		applied.applyTo(token);
+		zone.putToken(token);
+		return applied;
+	}
+
+	@Override
+	public void getToken(GUID zoneGUID, GUID tokenGUID) {
+		Token token = server.getCampaign().getZone(zoneGUID).getToken(tokenGUID);
+		if (token != null) {
+			server.getConnection().callMethod(RPCContext.getCurrent().id, NetworkCommand.putToken, zoneGUID, token);
+		}
+	}
+
 	@Override
 	public void putZone(Zone zone) {
 		server.getCampaign().putZone(zone);
@@ -490,6 +536,14 @@ public class ServerMethodHandler extends AbstractMethodHandler<NetworkCommand> i
 
 	@Override
 	public void sendTokensToBack(GUID zoneGUID, Set<GUID> tokenSet) {
+		reorderTokens(zoneGUID, tokenSet, false);
+	}
+
+	/**
+	 * Moves the tokens above or below all other tokens. Only the new z-orders are sent to the
+	 * clients, the rest of the tokens did not change.
+	 */
+	private void reorderTokens(GUID zoneGUID, Set<GUID> tokenSet, boolean toFront) {
 		synchronized (MUTEX) {
 			Zone zone = server.getCampaign().getZone(zoneGUID);
 
@@ -501,18 +555,24 @@ public class ServerMethodHandler extends AbstractMethodHandler<NetworkCommand> i
 					tokenList.add(token);
 				}
 			}
+			if (tokenList.isEmpty()) {
+				return;
+			}
 			// Arrange
 			Collections.sort(tokenList, Zone.TOKEN_Z_ORDER_COMPARATOR);
 
 			// Update
-			int z = zone.getSmallestZOrder() - 1;
-			for (Token token : tokenList) {
-				token.setZOrder(z--);
+			GUID[] tokenIds = new GUID[tokenList.size()];
+			int[] zOrders = new int[tokenList.size()];
+			int z = toFront ? zone.getLargestZOrder() + 1 : zone.getSmallestZOrder() - 1;
+			for (int i = 0; i < tokenIds.length; i++) {
+				tokenIds[i] = tokenList.get(i).getId();
+				zOrders[i] = toFront ? z++ : z--;
 			}
+			zone.setTokenZOrders(tokenIds, zOrders);
+
 			// Broadcast
-			for (Token token : tokenList) {
-				broadcastToAllClients(NetworkCommand.putToken, zoneGUID, token);
-			}
+			broadcastToAllClients(NetworkCommand.updateTokenZOrders, zoneGUID, tokenIds, zOrders);
 		}
 	}
 
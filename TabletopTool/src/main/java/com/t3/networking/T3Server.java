@@ -22,6 +22,7 @@ import org.apache.log4j.Logger;
 
 import com.t3.client.TabletopTool;
 import com.t3.clientserver.connection.ClientConnection;
+import com.t3.clientserver.connection.QueuePolicy.Priority;
 import com.t3.clientserver.connection.ServerObserver;
 import com.t3.common.T3Constants;
 import com.t3.model.campaign.Campaign;
@@ -51,7 +52,7 @@ public class T3Server {
 
 	public T3Server(ServerConfig config, ServerPolicy policy) throws IOException {
 		handler = new ServerMethodHandler(this);
-		conn = new T3ServerConnection(this, config.getPort());
+		conn = new T3ServerConnection(this, config.getPort(), config.isNioTransport());
 		conn.addMessageHandler(handler);
 
 		campaign = new Campaign();
@@ -213,7 +214,14 @@ public class T3Server {
 			while (!stop) {
 				try {
 					boolean lookForMore = false;
+					boolean backlogged = false;
 					for (Entry<String, AssetTransferManager> entry : assetManagerMap.entrySet()) {
+						// don't fill the queue of a slow client, its chunks are picked up once it caught up
+						ClientConnection connection = connectionMap.get(entry.getKey());
+						if (connection != null && !connection.getOutQueue().hasCapacity(Priority.BULK)) {
+							backlogged = true;
+							continue;
+						}
 						AssetChunk chunk = entry.getValue().nextChunk(ASSET_CHUNK_SIZE);
 						if (chunk != null) {
 							lookForMore = true;
@@ -225,7 +233,7 @@ public class T3Server {
 					}
 					// Sleep for a bit
 					synchronized (this) {
-						Thread.sleep(500);
+						Thread.sleep(backlogged ? 10 : 500);
 					}
 				} catch (Exception e) {
 					e.printStackTrace();
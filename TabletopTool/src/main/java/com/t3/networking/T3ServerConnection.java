@@ -32,7 +32,11 @@ public class T3ServerConnection extends ServerConnection implements ServerObserv
 	private final T3Server server;
 
 	public T3ServerConnection(T3Server server, int port) throws IOException {
-		super(port);
+		this(server, port, false);
+	}
+
+	public T3ServerConnection(T3Server server, int port, boolean nio) throws IOException {
+		super(port, nio);
 		this.server = server;
 		addObserver(this);
 	}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.networking;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.t3.guid.GUID;
+import com.t3.model.Token;
+import com.t3.model.TokenDelta;
+
+/**
+ * Remembers the state of every token as the server last saw it, so that a change to a token only
+ * has to send the fields that are different from that state.
+ */
+public class TokenDeltaTracker {
+
+	private final Map<GUID, Snapshot> snapshots = new HashMap<GUID, Snapshot>();
+
+	/**
+	 * Records the current state of the token as the one the server knows, e.g. because it was just
+	 * received from or sent to the server in full.
+	 */
+	public synchronized void synced(Token token) {
+		snapshots.put(token.getId(), new Snapshot(token.getVersion(), TokenDelta.fingerprint(token)));
+	}
+
+	/**
+	 * Moves the token to the next version and records it as synced, before it is sent to the server in full. The
+	 * server does the same, so that a delta somebody else based on the version before is rebased.
+	 */
+	public synchronized void sentInFull(Token token) {
+		token.setVersion(token.getVersion() + 1);
+		synced(token);
+	}
+
+	/**
+	 * Computes the changes of the token since it was last synced. If the delta is not empty, the token
+	 * is moved to the next version and that state is recorded as synced.
+	 * 
+	 * @return the delta, or null if the token has to be sent in full
+	 */
+	public synchronized TokenDelta createDelta(Token token) {
+		Snapshot before = snapshots.get(token.getId());
+		if (before == null || before.version != token.getVersion()) {
+			return null;
+		}
+		Map<String, Object> after = TokenDelta.fingerprint(token);
+		TokenDelta delta = TokenDelta.create(token, token.getVersion(), before.fields, after);
+		if (delta.isLarge()) {
+			return null;
+		}
+		if (!delta.isEmpty()) {
+			token.setVersion(token.getVersion() + 1);
+			snapshots.put(token.getId(), new Snapshot(token.getVersion(), after));
+		}
+		return delta;
+	}
+
+	/**
+	 * Records the z-order of the token as the one the server knows. All other fields keep the state the server last
+	 * saw, so that local changes not sent yet are still part of the next delta.
+	 */
+	public synchronized void zOrderChanged(Token token) {
+		Snapshot before = snapshots.get(token.getId());
+		if (before == null) {
+			return;
+		}
+		Map<String, Object> fields = new HashMap<String, Object>(before.fields);
+		// an int is its own fingerprint
+		fields.put(TokenDelta.Z_ORDER, Integer.valueOf(token.getZOrder()));
+		snapshots.put(token.getId(), new Snapshot(before.version, fields));
+	}
+
+	public synchronized void forget(GUID tokenGUID) {
+		snapshots.remove(tokenGUID);
+	}
+
+	public synchronized void clear() {
+		snapshots.clear();
+	}
+
+	private static class Snapshot {
+		private final int version;
+		/** the fingerprint of every field, cheaper to keep than the serialized token */
+		private final Map<String, Object> fields;
+
+		public Snapshot(int version, Map<String, Object> fields) {
+			this.version = version;
+			this.fields = fields;
+		}
+	}
+}
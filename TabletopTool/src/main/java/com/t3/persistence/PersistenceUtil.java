@@ -447,7 +447,8 @@ public class PersistenceUtil {
 	}
 
 	private static void loadAssets(Collection<MD5Key> assetIds, PackedFile pakFile) {
-		List<Asset> addToServer = new ArrayList<Asset>(assetIds.size());
+		// only the ids, the asset manager doesn't have to keep all the image data in memory
+		List<MD5Key> addToServer = new ArrayList<MD5Key>(assetIds.size());
 
 		for (MD5Key key : assetIds) {
 			if (key == null)
@@ -510,7 +511,7 @@ public class PersistenceUtil {
 					}
 				}
 				AssetManager.putAsset(asset);
-				addToServer.add(asset);
+				addToServer.add(key);
 			}
 		}
 		if (!addToServer.isEmpty()) {
@@ -523,8 +524,10 @@ public class PersistenceUtil {
 				if (TabletopTool.isDevelopment())
 					TabletopTool.showInformation("Please report this:  (!isHostingServer() && !isPersonalServer()) == true");
 				// If we are remotely installing this token, we'll need to send the image data to the server.
-				for (Asset asset : addToServer) {
-					TabletopTool.serverCommand().putAsset(asset);
+				for (MD5Key key : addToServer) {
+					Asset asset = AssetManager.getAsset(key);
+					if (asset != null)
+						TabletopTool.serverCommand().putAsset(asset);
 				}
 			}
 			addToServer.clear();
@@ -539,12 +542,19 @@ public class PersistenceUtil {
 			// And store the asset elsewhere
 			// As of 1.3.b64, assets are written in binary to allow them to be readable
 			// when a campaign file is unpacked.
-			Asset asset = AssetManager.getAsset(assetId);
+			// The image data is copied from the persistent cache if it is there
+			Asset asset = AssetManager.getAssetInfoOnly(assetId);
 			if (asset == null) {
 				log.error("AssetId " + assetId + " not found while saving?!");
 				continue;
 			}
-			pakFile.putFile(ASSET_DIR + assetId + "." + asset.getImageExtension(), asset.getImage());
+			try (InputStream is = AssetManager.openAssetStream(assetId)) {
+				if (is == null) {
+					log.error("AssetId " + assetId + " not found while saving?!");
+					continue;
+				}
+				pakFile.putFile(ASSET_DIR + assetId + "." + asset.getImageExtension(), is);
+			}
 			pakFile.putFile(ASSET_DIR + assetId, asset); // Does not write the image
 		}
 	}
@@ -1,7 +1,10 @@
 package com.t3.persistence;
 
+import com.t3.persistence.converters.GUIDConverter;
+import com.t3.persistence.converters.MD5KeyConverter;
 import com.t3.persistence.migrators.InitiativeList0_1Migrator;
 import com.t3.persistence.migrators.TokenInitiative0_1Migrator;
+import com.t3.persistence.migrators.Zone0_1Migrator;
 import com.t3.xstreamversioned.marshalling.MigratingMarshallingStrategy;
 import com.t3.xstreamversioned.migration.MigrationManager;
 import com.thoughtworks.xstream.XStream;
@@ -19,6 +22,7 @@ public class Persister {
 		//add migrators here for changed classes
 		mm.registerMigrator(new InitiativeList0_1Migrator());
 		mm.registerMigrator(new TokenInitiative0_1Migrator());
+		mm.registerMigrator(new Zone0_1Migrator());
 		
 		
 		XStream xstream=new XStream();
@@ -27,6 +31,8 @@ public class Persister {
 		
 		//ADD ALL CONVERTERS HERE THAT DECIDE HOW TO SERIALIZE DESERIALIZE CERTAIN CLASSES
 		//xstream.registerConverter(converter);
+		xstream.registerConverter(new MD5KeyConverter());
+		xstream.registerConverter(new GUIDConverter());
 		return xstream;
 	}
 }
@@ -0,0 +1,39 @@
+package com.t3.persistence.converters;
+
+import com.t3.guid.GUID;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+/**
+ * Writes a {@link GUID} as its bytes in a <code>baGUID</code> element, like it was written when the GUID held them
+ * in its <code>baGUID</code> field, so that the files stay the same.
+ */
+public class GUIDConverter implements Converter {
+
+	private static final String BYTES = "baGUID";
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public boolean canConvert(Class type) {
+		return GUID.class.equals(type);
+	}
+
+	@Override
+	public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+		writer.startNode(BYTES);
+		// through the context, the bytes are written and referenced like any other array
+		context.convertAnother(((GUID) source).getBytes());
+		writer.endNode();
+	}
+
+	@Override
+	public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+		reader.moveDown();
+		byte[] bytes = (byte[]) context.convertAnother(null, byte[].class);
+		reader.moveUp();
+		return new GUID(bytes);
+	}
+}
@@ -0,0 +1,47 @@
+package com.t3.persistence.converters;
+
+import org.apache.log4j.Logger;
+
+import com.t3.MD5Key;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+/**
+ * Writes an {@link MD5Key} as the hex text in an <code>id</code> element, like it was written when the key held that
+ * text in its <code>id</code> field, so that the files stay the same. Older versions stored any text as a key, e.g.
+ * the image of a token view or a lookup table, such a key is read as null instead of failing the whole file.
+ */
+public class MD5KeyConverter implements Converter {
+	private static final Logger log = Logger.getLogger(MD5KeyConverter.class);
+
+	private static final String ID = "id";
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public boolean canConvert(Class type) {
+		return MD5Key.class.equals(type);
+	}
+
+	@Override
+	public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+		writer.startNode(ID);
+		// through the context, the text is written like any other string
+		context.convertAnother(source.toString());
+		writer.endNode();
+	}
+
+	@Override
+	public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+		reader.moveDown();
+		String id = (String) context.convertAnother(null, String.class);
+		reader.moveUp();
+		MD5Key key = MD5Key.valueOf(id);
+		if (key == null) {
+			log.warn("Dropping asset id that is not an MD5 key: " + id);
+		}
+		return key;
+	}
+}
@@ -0,0 +1,25 @@
+package com.t3.persistence.migrators;
+
+import com.t3.xstreamversioned.migration.MigrationManager;
+import com.t3.xstreamversioned.migration.Migrator;
+import com.t3.xstreamversioned.model.GenericObject;
+import com.t3.xstreamversioned.version.Version;
+
+/**
+ * Version 1 of the zone no longer stores the z ordered token list, it is rebuilt from the token
+ * map when the zone is loaded.
+ */
+public class Zone0_1Migrator extends Migrator {
+
+	public Zone0_1Migrator() {
+		super(  Version.parseVersion("[0@com.t3.model.BaseModel, 0@com.t3.model.Zone]"), 
+				Version.parseVersion("[0@com.t3.model.BaseModel, 1@com.t3.model.Zone]"));
+	}
+
+	@Override
+	protected GenericObject update(MigrationManager mm, GenericObject oldObject) {
+		oldObject.removeChild(oldObject.getChild("tokenOrderedList"));
+		return oldObject;
+	}
+
+}
@@ -11,18 +11,28 @@
  */
 package com.t3.util;
 
+import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.awt.image.ImageObserver;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
@@ -34,16 +44,36 @@ import com.t3.model.AssetManager;
 
 /**
  * The ImageManager class keeps a cache of loaded images. This class can be used to load the raw image data from an
- * asset. The loading of the raw image data into a usable class is done in the background by one of two threads. The
- * ImageManager will return a "?" (UNKNOWN_IMAGE) if the asset is still downloading or the asset image is still being
- * loaded, and a "X" (BROKEN_IMAGE) if the asset or image is invalid. Small images are loaded using a different thread
- * pool from large images, and allows small images to load quicker.
+ * asset. The loading of the raw image data into a usable class is done in the background by a thread per processor.
+ * The ImageManager will return a "?" (UNKNOWN_IMAGE) if the asset is still downloading or the asset image is still
+ * being loaded, and a "X" (BROKEN_IMAGE) if the asset or image is invalid. The images on screen are loaded first, then
+ * the rest of the current zone, then everything else, see {@link #setImagePriorities(Set, Set)}. Within each of them
+ * small images are loaded before large images, which allows small images to load quicker.
+ * <p>
+ * The loaded images take up to {@link #getMaxImageBytes()} of memory. When there are more, the least recently used
+ * ones are dropped and loaded again the next time they are asked for, except for those that are pinned because they
+ * are on screen. For drawing an image much smaller than it is, {@link #getImage(MD5Key, double, ImageObserver...)}
+ * returns a copy of half, a quarter, ... the size, which are made in the background and count towards the same memory.
  */
 public class ImageManager {
 	private static final Logger log = Logger.getLogger(ImageManager.class);
 
-	/** Cache of images loaded for assets. */
-	private static final Map<MD5Key, BufferedImage> imageMap = new HashMap<MD5Key, BufferedImage>();
+	/** Cache of images loaded for assets, least recently used first. Guarded by imageLoaderMutex. */
+	private static final Map<MD5Key, BufferedImage> imageMap = new LinkedHashMap<MD5Key, BufferedImage>(16, 0.75f, true);
+
+	/** The smaller copies of the loaded images, half the size of the one before. Guarded by imageLoaderMutex. */
+	private static final Map<MD5Key, List<BufferedImage>> mipmapMap = new HashMap<MD5Key, List<BufferedImage>>();
+
+	/** The smallest copy asked for of each image whose copies are still being made. Guarded by imageLoaderMutex. */
+	private static final Map<MD5Key, Integer> mipmapRequests = new HashMap<MD5Key, Integer>();
+
+	/** The images each owner, like a zone renderer, has on screen. Guarded by imageLoaderMutex. */
+	private static final Map<Object, Set<MD5Key>> pinnedImages = new WeakHashMap<Object, Set<MD5Key>>();
+
+	/** The memory used by the images in imageMap and mipmapMap. Guarded by imageLoaderMutex. */
+	private static long imageBytes;
+
+	private static long maxImageBytes = Long.getLong("t3.imageMemory", Runtime.getRuntime().maxMemory() / 4);
 
 	/**
 	 * The unknown image, a "?" is used for all situations where the image will eventually appear e.g. asset download,
@@ -59,10 +89,30 @@ public class ImageManager {
 	public static BufferedImage BROKEN_IMAGE;
 
 	/**
-	 * Small and large thread pools for background processing of asset raw image data.
+	 * Which images are loaded first.
 	 */
-	private static ExecutorService smallImageLoader = Executors.newFixedThreadPool(1);
-	private static ExecutorService largeImageLoader = Executors.newFixedThreadPool(1);
+	public static enum Priority {
+		/** on screen */
+		VISIBLE,
+		/** in the current zone */
+		ZONE,
+		OTHER
+	}
+
+	/**
+	 * Thread pool for background processing of asset raw image data, it runs the {@link BackgroundImageLoader}s in
+	 * the order of their priority.
+	 */
+	private static ThreadPoolExecutor imageLoader = new ThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(), 0L,
+			TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+	private static ExecutorService mipmapLoader = Executors.newFixedThreadPool(1);
+
+	/** The images on screen and the other ones of the current zone. Guarded by imageLoaderMutex. */
+	private static Set<MD5Key> visibleImages = new HashSet<MD5Key>();
+	private static Set<MD5Key> zoneImages = new HashSet<MD5Key>();
+
+	/** Orders the loaders of the same priority and size by when they were queued. Guarded by imageLoaderMutex. */
+	private static long loaderSequence;
 
 	private static Object imageLoaderMutex = new Object();
 
@@ -92,7 +142,12 @@ public class ImageManager {
 	 * will be notified when the image is reloaded, and the same hints will be used for loading.
 	 */
 	public static void flush() {
-		imageMap.clear();
+		synchronized (imageLoaderMutex) {
+			imageMap.clear();
+			mipmapMap.clear();
+			imageBytes = 0;
+			cancelImageLoaders(null);
+		}
 	}
 
 	/**
@@ -114,9 +169,11 @@ public class ImageManager {
 		synchronized (imageLoaderMutex) {
 			for (MD5Key id : new HashSet<MD5Key>(imageMap.keySet())) {
 				if (!exceptionSet.contains(id)) {
-					imageMap.remove(id);
+					removeImage(id);
 				}
 			}
+			// Don't load the images of the zone we left
+			cancelImageLoaders(exceptionSet);
 		}
 	}
 
@@ -135,12 +192,14 @@ public class ImageManager {
 		}
 		BufferedImage image = null;
 		final CountDownLatch loadLatch = new CountDownLatch(1);
-		image = getImage(assetId, new ImageObserver() {
+		final BufferedImage[] loaded = new BufferedImage[1];
+		image = getImage(assetId, new LoadWaiter() {
 			@Override
 			public boolean imageUpdate(Image img, int infoflags, int x, int y, int width, int height) {
 				// If we're here then the image has just finished loading
 				// release the blocked thread
 				log.debug("Countdown: " + assetId);
+				loaded[0] = (BufferedImage) img;
 				loadLatch.countDown();
 				return false;
 			}
@@ -151,8 +210,8 @@ public class ImageManager {
 					log.debug("Wait for:  " + assetId);
 					loadLatch.await();
 				}
-				// This time we'll get the cached version
-				image = getImage(assetId);
+				// Don't ask the cache again, the image may already have been dropped from it
+				image = loaded[0] != null ? loaded[0] : getImage(assetId);
 			} catch (InterruptedException ie) {
 				log.error("getImageAndWait(" + assetId + "):  image not resolved; InterruptedException", ie);
 				image = BROKEN_IMAGE;
@@ -189,6 +248,193 @@ public class ImageManager {
 		}
 	}
 
+	/**
+	 * Get the image for drawing it at the given scale. If the image is drawn at half its size or smaller, this is the
+	 * smallest copy of the image that is still at least as large as it is drawn. Until the copy is made in the
+	 * background, a larger one is returned and the observers are notified once it is there.
+	 * 
+	 * @param assetId
+	 *            the asset of the image
+	 * @param scale
+	 *            the size the image is drawn at, compared to its own size
+	 * @return the image or a smaller copy, or one of {@link #TRANSFERING_IMAGE} and {@link #BROKEN_IMAGE}
+	 */
+	public static BufferedImage getImage(MD5Key assetId, double scale, ImageObserver... observers) {
+		BufferedImage image = getImage(assetId, observers);
+		if (image == TRANSFERING_IMAGE || image == BROKEN_IMAGE) {
+			return image;
+		}
+		int level = getMipmapLevel(image.getWidth(), image.getHeight(), scale);
+		if (level == 0) {
+			return image;
+		}
+		synchronized (imageLoaderMutex) {
+			List<BufferedImage> levels = mipmapMap.get(assetId);
+			int available = levels != null ? levels.size() : 0;
+			if (available < level) {
+				Integer requested = mipmapRequests.get(assetId);
+				if (requested == null || requested < level) {
+					if (requested == null) {
+						mipmapLoader.execute(new MipmapLoader(assetId, image));
+					}
+					mipmapRequests.put(assetId, level);
+				}
+				addObservers(assetId, observers);
+			}
+			return available > 0 ? levels.get(Math.min(level, available) - 1) : image;
+		}
+	}
+
+	/**
+	 * @return how many times an image of the given size can be halved and still be at least as large as when it is
+	 *         drawn at the scale
+	 */
+	static int getMipmapLevel(int width, int height, double scale) {
+		int level = 0;
+		while (scale <= 0.5 && (width > 1 || height > 1)) {
+			scale *= 2;
+			width = (width + 1) / 2;
+			height = (height + 1) / 2;
+			level++;
+		}
+		return level;
+	}
+
+	/**
+	 * Set which images are loaded first. The images that wait for being loaded are sorted again.
+	 * 
+	 * @param visible
+	 *            the assets on screen
+	 * @param zone
+	 *            the assets of the current zone
+	 */
+	public static void setImagePriorities(Set<MD5Key> visible, Set<MD5Key> zone) {
+		synchronized (imageLoaderMutex) {
+			if (visibleImages.equals(visible) && zoneImages.equals(zone)) {
+				return;
+			}
+			visibleImages = new HashSet<MD5Key>(visible);
+			zoneImages = new HashSet<MD5Key>(zone);
+
+			List<Runnable> queued = new ArrayList<Runnable>();
+			imageLoader.getQueue().drainTo(queued);
+			for (Runnable runnable : queued) {
+				BackgroundImageLoader loader = (BackgroundImageLoader) runnable;
+				loader.priority = getPriority(loader.asset.getId());
+				imageLoader.execute(loader);
+			}
+		}
+	}
+
+	/**
+	 * @return how many images wait for being loaded
+	 */
+	public static int getQueuedImageCount() {
+		return imageLoader.getQueue().size();
+	}
+
+	// Package protected for testing
+	static void setImageLoaderThreads(int threads) {
+		if (threads > imageLoader.getMaximumPoolSize()) {
+			imageLoader.setMaximumPoolSize(threads);
+			imageLoader.setCorePoolSize(threads);
+		} else {
+			imageLoader.setCorePoolSize(threads);
+			imageLoader.setMaximumPoolSize(threads);
+		}
+	}
+
+	/**
+	 * Must hold imageLoaderMutex.
+	 */
+	private static Priority getPriority(MD5Key assetId) {
+		if (visibleImages.contains(assetId)) {
+			return Priority.VISIBLE;
+		}
+		return zoneImages.contains(assetId) ? Priority.ZONE : Priority.OTHER;
+	}
+
+	/**
+	 * Drop the images that wait for being loaded, unless someone waits for them with
+	 * {@link #getImageAndWait(MD5Key)}. Their observers stay registered, so they are notified when the image is asked
+	 * for and loaded again. Must hold imageLoaderMutex.
+	 * 
+	 * @param exceptionSet
+	 *            the images that are still loaded, or null to drop all
+	 */
+	private static void cancelImageLoaders(Set<MD5Key> exceptionSet) {
+		int count = 0;
+		for (Runnable runnable : imageLoader.getQueue().toArray(new Runnable[0])) {
+			MD5Key id = ((BackgroundImageLoader) runnable).asset.getId();
+			if ((exceptionSet == null || !exceptionSet.contains(id)) && !hasLoadWaiter(id) && imageLoader.remove(runnable)) {
+				if (imageMap.get(id) == TRANSFERING_IMAGE) {
+					imageMap.remove(id);
+				}
+				count++;
+			}
+		}
+		if (count > 0) {
+			log.debug("Cancelled loading " + count + " images");
+		}
+	}
+
+	/**
+	 * Must hold imageLoaderMutex.
+	 */
+	private static boolean hasLoadWaiter(MD5Key assetId) {
+		Set<ImageObserver> observerSet = imageObserverMap.get(assetId);
+		if (observerSet != null) {
+			for (ImageObserver observer : observerSet) {
+				if (observer instanceof LoadWaiter) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Pin the images an owner has on screen, so that they are not dropped from the cache while it shows them. Replaces
+	 * the images pinned by the same owner before. Owners that are no longer in use don't pin anything.
+	 * 
+	 * @param owner
+	 *            who shows the images, like a zone renderer
+	 * @param assetIds
+	 *            the assets of the images, or null to pin nothing
+	 */
+	public static void setPinnedImages(Object owner, Set<MD5Key> assetIds) {
+		synchronized (imageLoaderMutex) {
+			if (assetIds == null || assetIds.isEmpty()) {
+				pinnedImages.remove(owner);
+			} else {
+				pinnedImages.put(owner, new HashSet<MD5Key>(assetIds));
+			}
+		}
+	}
+
+	/**
+	 * @return how much memory the loaded images may take, unless more are pinned
+	 */
+	public static long getMaxImageBytes() {
+		return maxImageBytes;
+	}
+
+	public static void setMaxImageBytes(long bytes) {
+		synchronized (imageLoaderMutex) {
+			maxImageBytes = bytes;
+			evictImages(null);
+		}
+	}
+
+	/**
+	 * @return the memory used by the loaded images and their smaller copies
+	 */
+	public static long getImageBytes() {
+		synchronized (imageLoaderMutex) {
+			return imageBytes;
+		}
+	}
+
 	/**
 	 * Remove the image associated the asset from the cache.
 	 * 
@@ -207,7 +453,86 @@ public class ImageManager {
 	 */
 	public static void flushImage(MD5Key assetId) {
 		// LATER: investigate how this effects images that are already in progress
-		imageMap.remove(assetId);
+		synchronized (imageLoaderMutex) {
+			removeImage(assetId);
+		}
+	}
+
+	/**
+	 * Put a loaded image into the cache, then drop the least recently used images that are not pinned until the cache
+	 * fits.
+	 */
+	// Package protected for testing
+	static void putImage(MD5Key assetId, BufferedImage image) {
+		synchronized (imageLoaderMutex) {
+			removeImage(assetId);
+			imageMap.put(assetId, image);
+			imageBytes += getByteCount(image);
+			evictImages(assetId);
+		}
+	}
+
+	/**
+	 * Remove the image and its smaller copies from the cache. Must hold imageLoaderMutex.
+	 */
+	private static void removeImage(MD5Key assetId) {
+		BufferedImage image = imageMap.remove(assetId);
+		if (image != null) {
+			imageBytes -= getByteCount(image);
+		}
+		List<BufferedImage> levels = mipmapMap.remove(assetId);
+		if (levels != null) {
+			for (BufferedImage level : levels) {
+				imageBytes -= getByteCount(level);
+			}
+		}
+	}
+
+	/**
+	 * Drop the least recently used images that are not pinned until the cache fits. Must hold imageLoaderMutex.
+	 * 
+	 * @param keep
+	 *            the image that was just loaded, it is never dropped
+	 */
+	private static void evictImages(MD5Key keep) {
+		if (imageBytes <= maxImageBytes) {
+			return;
+		}
+		Set<MD5Key> pinned = new HashSet<MD5Key>();
+		for (Set<MD5Key> ids : pinnedImages.values()) {
+			pinned.addAll(ids);
+		}
+		List<MD5Key> evicted = new ArrayList<MD5Key>();
+		for (Iterator<Map.Entry<MD5Key, BufferedImage>> iter = imageMap.entrySet().iterator(); iter.hasNext() && imageBytes > maxImageBytes;) {
+			Map.Entry<MD5Key, BufferedImage> entry = iter.next();
+			MD5Key id = entry.getKey();
+			// images in transit have no size yet
+			if (entry.getValue() == TRANSFERING_IMAGE || id.equals(keep) || pinned.contains(id)) {
+				continue;
+			}
+			evicted.add(id);
+			imageBytes -= getByteCount(entry.getValue());
+			List<BufferedImage> levels = mipmapMap.get(id);
+			if (levels != null) {
+				for (BufferedImage level : levels) {
+					imageBytes -= getByteCount(level);
+				}
+			}
+		}
+		for (MD5Key id : evicted) {
+			imageMap.remove(id);
+			mipmapMap.remove(id);
+		}
+		if (!evicted.isEmpty()) {
+			log.debug("Dropped " + evicted.size() + " images from the cache");
+		}
+	}
+
+	private static long getByteCount(BufferedImage image) {
+		if (image == TRANSFERING_IMAGE || image == BROKEN_IMAGE) {
+			return 0;
+		}
+		return (long) image.getWidth() * image.getHeight() * ((image.getColorModel().getPixelSize() + 7) / 8);
 	}
 
 	/**
@@ -234,12 +559,21 @@ public class ImageManager {
 		}
 	}
 
+	/**
+	 * Waits for an image in {@link ImageManager#getImageAndWait(MD5Key, Map)}, its image is never cancelled.
+	 */
+	private static abstract class LoadWaiter implements ImageObserver {
+	}
+
 	/**
 	 * Load the asset's raw image data into a BufferedImage.
 	 */
-	private static class BackgroundImageLoader implements Runnable {
+	private static class BackgroundImageLoader implements Runnable, Comparable<BackgroundImageLoader> {
 		private final Asset asset;
 		private final Map<String, Object> hints;
+		private final boolean large;
+		private final long sequence;
+		private Priority priority;
 
 		/**
 		 * Create a background image loader to load the asset image using the hints provided.
@@ -252,6 +586,23 @@ public class ImageManager {
 		public BackgroundImageLoader(Asset asset, Map<String, Object> hints) {
 			this.asset = asset;
 			this.hints = hints;
+			// Images larger than 128kb are loaded after the small ones
+			this.large = asset.getImage().length > 128 * 1024;
+			synchronized (imageLoaderMutex) {
+				this.priority = getPriority(asset.getId());
+				this.sequence = loaderSequence++;
+			}
+		}
+
+		@Override
+		public int compareTo(BackgroundImageLoader o) {
+			if (priority != o.priority) {
+				return priority.compareTo(o.priority);
+			}
+			if (large != o.large) {
+				return large ? 1 : -1;
+			}
+			return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
 		}
 
 		/**
@@ -260,7 +611,10 @@ public class ImageManager {
 		@Override
 		public void run() {
 			log.debug("Loading asset: " + asset.getId());
-			BufferedImage image = imageMap.get(asset.getId());
+			BufferedImage image;
+			synchronized (imageLoaderMutex) {
+				image = imageMap.get(asset.getId());
+			}
 			if (image != null && image != TRANSFERING_IMAGE) {
 				// We've somehow already loaded this image
 				log.debug("Image wasn't in transit: " + asset.getId());
@@ -275,24 +629,103 @@ public class ImageManager {
 			}
 			synchronized (imageLoaderMutex) {
 				// Replace placeholder with actual image
-				imageMap.put(asset.getId(), image);
-				notifyObservers(asset, image);
+				putImage(asset.getId(), image);
+				notifyObservers(asset.getId(), image);
 			}
 		}
 	}
 
+	/**
+	 * Make the smaller copies of an image up to the smallest one asked for, each from the one before.
+	 */
+	private static class MipmapLoader implements Runnable {
+		private final MD5Key assetId;
+		private final BufferedImage image;
+
+		public MipmapLoader(MD5Key assetId, BufferedImage image) {
+			this.assetId = assetId;
+			this.image = image;
+		}
+
+		@Override
+		public void run() {
+			BufferedImage source = image;
+			int level = 1;
+			while (true) {
+				synchronized (imageLoaderMutex) {
+					List<BufferedImage> levels = mipmapMap.get(assetId);
+					Integer requested = mipmapRequests.get(assetId);
+					if (imageMap.get(assetId) != image || requested == null) {
+						// dropped from the cache while we were at it
+						mipmapRequests.remove(assetId);
+						return;
+					}
+					if (levels != null && levels.size() >= requested) {
+						mipmapRequests.remove(assetId);
+						// the observers were notified after the last copy
+						return;
+					}
+					level = levels != null ? levels.size() + 1 : 1;
+					source = levels != null ? levels.get(levels.size() - 1) : image;
+				}
+				BufferedImage copy;
+				try {
+					copy = halve(source);
+				} catch (Throwable t) {
+					log.error("MipmapLoader.run(" + assetId + "): level " + level + " not resolved", t);
+					synchronized (imageLoaderMutex) {
+						mipmapRequests.remove(assetId);
+					}
+					return;
+				}
+				synchronized (imageLoaderMutex) {
+					if (imageMap.get(assetId) != image) {
+						mipmapRequests.remove(assetId);
+						return;
+					}
+					List<BufferedImage> levels = mipmapMap.get(assetId);
+					if (levels == null) {
+						levels = new ArrayList<BufferedImage>();
+						mipmapMap.put(assetId, levels);
+					}
+					levels.add(copy);
+					imageBytes += getByteCount(copy);
+					evictImages(assetId);
+					Integer requested = mipmapRequests.get(assetId);
+					if (requested == null || level >= requested) {
+						notifyObservers(assetId, image);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return a copy of the image half its size, each pixel is the mean of four
+	 */
+	static BufferedImage halve(BufferedImage image) {
+		int width = (image.getWidth() + 1) / 2;
+		int height = (image.getHeight() + 1) / 2;
+		BufferedImage copy = ImageUtil.createCompatibleImage(width, height, image.getType() != BufferedImage.TYPE_CUSTOM ? image.getType() : BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = copy.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(image, 0, 0, width, height, null);
+		g.dispose();
+		return copy;
+	}
+
 	/**
 	 * Notify all observers watching the asset that the image is loaded.
 	 * 
-	 * @param asset
+	 * @param assetId
 	 *            Loaded image from this asset
 	 * @param image
 	 *            Result of loading the asset raw image data
 	 */
-	private static void notifyObservers(Asset asset, BufferedImage image) {
+	private static void notifyObservers(MD5Key assetId, BufferedImage image) {
 		// Notify observers
-		log.debug("Notifying observers of image availability: " + asset.getId());
-		Set<ImageObserver> observerSet = imageObserverMap.remove(asset.getId());
+		log.debug("Notifying observers of image availability: " + assetId);
+		Set<ImageObserver> observerSet = imageObserverMap.remove(assetId);
 		if (observerSet != null) {
 			for (ImageObserver observer : observerSet) {
 				observer.imageUpdate(image, ImageObserver.ALLBITS, 0, 0, image.getWidth(), image.getHeight());
@@ -309,11 +742,12 @@ public class ImageManager {
 	 *            Hints used when loading image data
 	 */
 	private static void backgroundLoadImage(Asset asset, Map<String, Object> hints) {
-		// Use large image loader if the image is larger than 128kb.
-		if (asset.getImage().length > 128 * 1024) {
-			largeImageLoader.execute(new BackgroundImageLoader(asset, hints));
-		} else {
-			smallImageLoader.execute(new BackgroundImageLoader(asset, hints));
+		synchronized (imageLoaderMutex) {
+			if (imageMap.get(asset.getId()) == null && !hasLoadWaiter(asset.getId())) {
+				// Cancelled while the asset was loaded
+				return;
+			}
+			imageLoader.execute(new BackgroundImageLoader(asset, hints));
 		}
 	}
 
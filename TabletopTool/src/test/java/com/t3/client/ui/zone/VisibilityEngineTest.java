@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.client.ui.zone;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+
+import com.t3.client.ui.zone.FogUtil.VisibilityEngine;
+import com.t3.client.ui.zone.vbl.AreaTree;
+
+/**
+ * Compares the sweep based visibility with the area based one, which serves as the golden image.
+ * The benchmark measures both on the random topology of {@link FogUtil#main(String[])}.
+ */
+public class VisibilityEngineTest {
+
+	private static final int TOP_SIZE = 10000;
+	private static final int IMAGE_SIZE = 400;
+	private static final int ORIGINS = 50;
+	/** the area engine approximates the shadows, so a few pixels along their edges may differ */
+	private static final double TOLERANCE = 0.01;
+
+	private final AreaTree tree;
+	private final List<Point> origins;
+
+	public VisibilityEngineTest() {
+		Area topology = new Area();
+		Random r = new Random(12345);
+		for (int i = 0; i < 500; i++) {
+			topology.add(new Area(new Rectangle(r.nextInt(TOP_SIZE), r.nextInt(TOP_SIZE), r.nextInt(500) + 50, r.nextInt(500) + 50)));
+		}
+		topology.subtract(new Area(new Rectangle(TOP_SIZE / 2 - 200, TOP_SIZE / 2 - 200, 400, 400)));
+		tree = new AreaTree(topology);
+
+		origins = new ArrayList<Point>();
+		origins.add(new Point(TOP_SIZE / 2, TOP_SIZE / 2));
+		while (origins.size() < ORIGINS) {
+			Point p = new Point(r.nextInt(TOP_SIZE), r.nextInt(TOP_SIZE));
+			// a token standing inside a wall sees nothing well defined
+			if (!topology.contains(p)) {
+				origins.add(p);
+			}
+		}
+	}
+
+	@Test
+	public void goldenImage() {
+		Area[] visions = { new Area(new Ellipse2D.Double(-2000, -2000, 4000, 4000)), new Area(new Rectangle(-20000, -20000, 40000, 40000)) };
+		VisibilityEngine engine = FogUtil.getVisibilityEngine();
+		try {
+			for (Point origin : origins) {
+				for (Area vision : visions) {
+					FogUtil.setVisibilityEngine(VisibilityEngine.AREA);
+					Area expected = FogUtil.calculateVisibility(origin.x, origin.y, vision, tree);
+					FogUtil.setVisibilityEngine(VisibilityEngine.SWEEP);
+					Area actual = FogUtil.calculateVisibility(origin.x, origin.y, vision, tree);
+					Assert.assertEquals(actual == null, expected == null, "ocean at " + origin);
+					if (expected == null) {
+						continue;
+					}
+					Rectangle bounds = vision.getBounds();
+					bounds.translate(origin.x, origin.y);
+					bounds = bounds.intersection(new Rectangle(-1000, -1000, TOP_SIZE + 2000, TOP_SIZE + 2000));
+	
+					int[] golden = render(expected, bounds);
+					int[] image = render(actual, bounds);
+					int lit = 0;
+					int mismatches = 0;
+					for (int i = 0; i < golden.length; i++) {
+						if ((golden[i] & 0xffffff) != 0) {
+							lit++;
+						}
+						if (golden[i] != image[i]) {
+							mismatches++;
+						}
+					}
+					Assert.assertTrue(mismatches <= TOLERANCE * Math.max(lit, 1), mismatches + " of " + lit + " pixels differ at " + origin);
+				}
+			}
+		} finally {
+			FogUtil.setVisibilityEngine(engine);
+		}
+	}
+
+	@Test
+	public void parseVisibilityEngine() {
+		Assert.assertEquals(FogUtil.parseVisibilityEngine(null), VisibilityEngine.SWEEP);
+		Assert.assertEquals(FogUtil.parseVisibilityEngine("area"), VisibilityEngine.AREA);
+		Assert.assertEquals(FogUtil.parseVisibilityEngine(" Sweep "), VisibilityEngine.SWEEP);
+		Assert.assertEquals(FogUtil.parseVisibilityEngine("rays"), VisibilityEngine.SWEEP);
+	}
+
+	@Test(groups = "benchmark")
+	public void benchmark() {
+		Area vision = new Area(new Ellipse2D.Double(-2000, -2000, 4000, 4000));
+		VisibilityEngine engine = FogUtil.getVisibilityEngine();
+		try {
+			for (VisibilityEngine e : VisibilityEngine.values()) {
+				FogUtil.setVisibilityEngine(e);
+				// warm up
+				for (Point origin : origins) {
+					FogUtil.calculateVisibility(origin.x, origin.y, vision, tree);
+				}
+				long start = System.nanoTime();
+				for (Point origin : origins) {
+					FogUtil.calculateVisibility(origin.x, origin.y, vision, tree);
+				}
+				long time = System.nanoTime() - start;
+				Reporter.log(String.format("%-5s %8.2f ms/token", e, time / 1000000d / origins.size()));
+			}
+		} finally {
+			FogUtil.setVisibilityEngine(engine);
+		}
+	}
+
+	private static int[] render(Area area, Rectangle bounds) {
+		BufferedImage img = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = img.createGraphics();
+		g.scale(IMAGE_SIZE / bounds.getWidth(), IMAGE_SIZE / bounds.getHeight());
+		g.translate(-bounds.getX(), -bounds.getY());
+		g.setColor(Color.WHITE);
+		g.fill(area);
+		g.dispose();
+		return img.getRGB(0, 0, IMAGE_SIZE, IMAGE_SIZE, null, 0, IMAGE_SIZE);
+	}
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.client.ui.zone.vbl;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+
+/**
+ * Checks the spatial indexes of the vbl package against plain scans on a dungeon with 5,000
+ * islands, like the one of {@link AreaTreeInspector} but a lot larger. The benchmark measures them
+ * on the same dungeon.
+ */
+public class AreaTreeTest {
+
+	private static final int COLUMNS = 100;
+	private static final int ROWS = 50;
+	private static final int SPACING = 100;
+	private static final int SIZE = COLUMNS * SPACING;
+
+	@Test
+	public void grid() {
+		Random r = new Random(3);
+		List<Integer> items = new ArrayList<Integer>();
+		List<Rectangle2D> bounds = new ArrayList<Rectangle2D>();
+		for (int i = 0; i < 2000; i++) {
+			items.add(i);
+			// mostly small boxes, some spanning most of the grid
+			int size = i % 100 == 0 ? 5000 : r.nextInt(50);
+			bounds.add(new Rectangle2D.Double(r.nextInt(5000), r.nextInt(5000), size, r.nextInt(50)));
+		}
+		SpatialGrid<Integer> grid = new SpatialGrid<Integer>(items, bounds);
+		for (int q = 0; q < 500; q++) {
+			Rectangle2D region = new Rectangle2D.Double(r.nextInt(12000) - 1000, r.nextInt(12000) - 1000, q % 10 == 0 ? 0 : r.nextInt(2000), r.nextInt(500));
+			List<Integer> found = new ArrayList<Integer>();
+			grid.query(region, found);
+
+			Set<Integer> expected = new HashSet<Integer>();
+			for (int i = 0; i < items.size(); i++) {
+				Rectangle2D b = bounds.get(i);
+				if (b.getMinX() <= region.getMaxX() && b.getMaxX() >= region.getMinX() && b.getMinY() <= region.getMaxY() && b.getMaxY() >= region.getMinY()) {
+					expected.add(i);
+				}
+			}
+			Assert.assertEquals(found.size(), expected.size(), "duplicates or misses for " + region);
+			Assert.assertEquals(new HashSet<Integer>(found), expected);
+		}
+	}
+
+	@Test
+	public void hierarchy() {
+		Area dungeon = createDungeon();
+		AreaTree tree = new AreaTree(dungeon);
+		AreaOcean global = tree.getOcean();
+		Assert.assertEquals(global.getIslands().size(), 1, "the outer wall");
+		AreaIsland wall = global.getIslands().iterator().next();
+		Assert.assertEquals(wall.getOceans().size(), 1, "the dungeon floor");
+		AreaOcean floor = wall.getOceans().iterator().next();
+		Assert.assertEquals(floor.getIslands().size(), COLUMNS * ROWS);
+
+		Random r = new Random(5);
+		for (int i = 0; i < 2000; i++) {
+			Point p = new Point(r.nextInt(SIZE + 400) - 200, r.nextInt(SIZE / 2 + 400) - 200);
+			AreaOcean ocean = tree.getOceanAt(p);
+			if (ocean == null) {
+				// inside a wall or a pillar
+				Assert.assertTrue(dungeon.contains(p), "no ocean at " + p);
+				continue;
+			}
+			if (ocean.getBounds() != null) {
+				Assert.assertTrue(ocean.getBounds().contains(p));
+			}
+			Assert.assertTrue(containingIsland(ocean, p) == null, "an island of the ocean contains " + p);
+		}
+	}
+
+	@Test
+	public void faces() {
+		AreaTree tree = new AreaTree(createDungeon());
+		AreaOcean floor = tree.getOceanAt(new Point(10, 10));
+		List<AreaFace> all = floor.getFaces();
+		Random r = new Random(7);
+		for (int i = 0; i < 200; i++) {
+			Rectangle2D region = new Rectangle2D.Double(r.nextInt(SIZE), r.nextInt(SIZE / 2), r.nextInt(2000), r.nextInt(2000));
+			Set<AreaFace> expected = new HashSet<AreaFace>();
+			for (AreaFace face : all) {
+				Rectangle2D b = new Line2D.Double(face.getP1(), face.getP2()).getBounds2D();
+				if (b.getMinX() <= region.getMaxX() && b.getMaxX() >= region.getMinX() && b.getMinY() <= region.getMaxY() && b.getMaxY() >= region.getMinY()) {
+					expected.add(face);
+				}
+			}
+			Assert.assertEquals(new HashSet<AreaFace>(floor.getFaces(region)), expected, "faces in " + region);
+		}
+	}
+
+	@Test
+	public void update() {
+		Area dungeon = createDungeon();
+		AreaTree tree = new AreaTree(dungeon);
+		Random r = new Random(13);
+		for (int edit = 0; edit < 50; edit++) {
+			Rectangle change = edit(dungeon, edit, r);
+			tree.update(dungeon, change);
+			AreaTree expected = new AreaTree(dungeon);
+
+			for (int i = 0; i < 200; i++) {
+				Point p = i < 20 ? new Point(change.x + r.nextInt(change.width + 40) - 20, change.y + r.nextInt(change.height + 40) - 20) : new Point(r.nextInt(SIZE), r.nextInt(SIZE / 2));
+				AreaOcean actualOcean = tree.getOceanAt(p);
+				AreaOcean expectedOcean = expected.getOceanAt(p);
+				Assert.assertEquals(actualOcean == null, expectedOcean == null, "ocean at " + p + " after edit " + edit);
+				if (expectedOcean != null) {
+					Assert.assertEquals(actualOcean.getBounds2D(), expectedOcean.getBounds2D(), "ocean at " + p + " after edit " + edit);
+					Assert.assertEquals(actualOcean.getIslands().size(), expectedOcean.getIslands().size(), "islands at " + p + " after edit " + edit);
+					Assert.assertEquals(actualOcean.getFaces().size(), expectedOcean.getFaces().size(), "faces at " + p + " after edit " + edit);
+				}
+			}
+		}
+	}
+
+	@Test(groups = "benchmark")
+	public void updateBenchmark() {
+		Area dungeon = createDungeon();
+		AreaTree tree = new AreaTree(dungeon);
+		Random r = new Random(13);
+		long incremental = 0;
+		long full = 0;
+		for (int edit = 0; edit < 50; edit++) {
+			Rectangle change = edit(dungeon, edit, r);
+			long start = System.nanoTime();
+			tree.update(dungeon, change);
+			incremental += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			new AreaTree(dungeon);
+			full += System.nanoTime() - start;
+		}
+		Reporter.log(String.format("50 edits: incremental %8.2f ms/edit | rebuild %8.2f ms/edit", incremental / 1000000d / 50, full / 1000000d / 50));
+	}
+
+	@Test(groups = "benchmark")
+	public void benchmark() {
+		Area dungeon = createDungeon();
+		long start = System.nanoTime();
+		AreaTree tree = new AreaTree(dungeon);
+		long digest = System.nanoTime() - start;
+
+		Random r = new Random(11);
+		List<Point2D> origins = new ArrayList<Point2D>();
+		while (origins.size() < 200) {
+			Point2D p = new Point2D.Double(r.nextInt(SIZE), r.nextInt(SIZE / 2));
+			if (tree.getOceanAt(p) != null) {
+				origins.add(p);
+			}
+		}
+		// a vision of 1,000 pixels around the token
+		long all = 0;
+		long near = 0;
+		int allFaces = 0;
+		int nearFaces = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			all = 0;
+			near = 0;
+			for (Point2D origin : origins) {
+				Rectangle2D bounds = new Rectangle2D.Double(origin.getX() - 1000, origin.getY() - 1000, 2000, 2000);
+				AreaOcean ocean = tree.getOceanAt(origin);
+
+				start = System.nanoTime();
+				List<AreaFace> faces = ocean.getFaces();
+				VisibilitySweep.calculateVisibility(origin, faces, bounds);
+				all += System.nanoTime() - start;
+				allFaces = faces.size();
+
+				start = System.nanoTime();
+				faces = ocean.getFaces(bounds);
+				VisibilitySweep.calculateVisibility(origin, faces, bounds);
+				near += System.nanoTime() - start;
+				nearFaces = faces.size();
+			}
+		}
+		Reporter.log(String.format("%d islands: digest %8.2f ms | all faces (%d) %6.3f ms/token | faces in vision (%d) %6.3f ms/token", ROWS * COLUMNS,
+				digest / 1000000d, allFaces, all / 1000000d / origins.size(), nearFaces, near / 1000000d / origins.size()));
+	}
+
+	/**
+	 * @return a walled dungeon with a floor full of pillars, every tenth pillar is hollow with
+	 *         another pillar inside
+	 */
+	private static Area createDungeon() {
+		// nothing overlaps, so even odd winding turns every second nested rectangle into a hole
+		Path2D path = new Path2D.Double(Path2D.WIND_EVEN_ODD);
+		path.append(new Rectangle(-100, -100, SIZE + 200, SIZE / 2 + 200), false);
+		path.append(new Rectangle(0, 0, SIZE, SIZE / 2), false);
+		for (int y = 0; y < ROWS; y++) {
+			for (int x = 0; x < COLUMNS; x++) {
+				int px = x * SPACING + 20;
+				int py = y * SPACING + 20;
+				if ((x + y * COLUMNS) % 10 == 0) {
+					path.append(new Rectangle(px, py, 60, 60), false);
+					path.append(new Rectangle(px + 10, py + 10, 40, 40), false);
+					path.append(new Rectangle(px + 25, py + 25, 10, 10), false);
+				} else {
+					path.append(new Rectangle(px + 20, py + 20, 20, 20), false);
+				}
+			}
+		}
+		return new Area(path);
+	}
+
+	/**
+	 * Adds a wall between pillars or a hole into a pillar, and every tenth edit a breach into the
+	 * outer wall.
+	 * 
+	 * @return the rectangle that changed
+	 */
+	private static Rectangle edit(Area dungeon, int edit, Random r) {
+		Rectangle change = edit % 10 == 9 ? new Rectangle(r.nextInt(SIZE), -120, 40, 200) : new Rectangle(r.nextInt(SIZE), r.nextInt(SIZE / 2), r.nextInt(150) + 1, r.nextInt(150) + 1);
+		if (edit % 2 == 0) {
+			dungeon.add(new Area(change));
+		} else {
+			dungeon.subtract(new Area(change));
+		}
+		return change;
+	}
+
+	private static AreaIsland containingIsland(AreaOcean ocean, Point2D p) {
+		for (AreaIsland island : ocean.getIslands()) {
+			if (island.getBounds().contains(p)) {
+				return island;
+			}
+		}
+		return null;
+	}
+}
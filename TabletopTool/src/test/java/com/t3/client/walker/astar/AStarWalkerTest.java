@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.client.walker.astar;
+
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+
+import com.t3.client.walker.WalkerMetric;
+import com.t3.model.CellPoint;
+import com.t3.model.Zone;
+import com.t3.model.grid.Grid;
+import com.t3.model.grid.HexGridHorizontal;
+import com.t3.model.grid.HexGridVertical;
+import com.t3.model.grid.SquareGrid;
+
+/**
+ * Checks the A* search of the walkers against walls and terrain. The benchmark measures it on a
+ * hundred cell walk through a dungeon, for each kind of grid, with a new walker for every path.
+ */
+public class AStarWalkerTest {
+
+	private static final int PATHS = 50;
+	private static final int LENGTH = 100;
+
+	@Test
+	public void heap() {
+		Random r = new Random(1);
+		AStarNodes nodes = new AStarNodes();
+		List<Double> costs = new ArrayList<Double>();
+		for (int i = 0; i < 1000; i++) {
+			int node = nodes.add(i, -i);
+			double cost = r.nextInt(500);
+			nodes.update(node, -1, cost, 0, 0);
+			if (i % 3 == 0) {
+				// a cheaper way to a node that is already in the heap
+				cost = r.nextInt(500);
+				if (cost < nodes.getCost(node)) {
+					nodes.update(node, -1, cost, 0, 0);
+				}
+			}
+			costs.add(nodes.getCost(node));
+		}
+		Collections.sort(costs);
+		for (double expected : costs) {
+			int node = nodes.poll();
+			Assert.assertEquals(nodes.getCost(node), expected, 0);
+			Assert.assertTrue(nodes.isClosed(node));
+			Assert.assertEquals(nodes.get(nodes.getX(node), nodes.getY(node)), node);
+		}
+		Assert.assertTrue(nodes.isEmpty());
+		Assert.assertEquals(nodes.get(1000, -1000), -1);
+	}
+
+	@Test
+	public void straight() {
+		Zone zone = createZone(new SquareGrid(false, false));
+		AbstractAStarWalker walker = new AStarSquareEuclideanWalker(zone, WalkerMetric.ONE_TWO_ONE);
+		// three diagonal and seven straight steps in any order are equally short
+		List<CellPoint> path = walker.calculatePath(new CellPoint(0, 0), new CellPoint(10, 3));
+		Assert.assertEquals(path.size(), 11);
+		for (CellPoint p : path) {
+			Assert.assertTrue(Math.abs(p.y - p.x * 0.3) < 1, "off the line: " + path);
+		}
+	}
+
+	@Test
+	public void aroundWall() {
+		Zone zone = createZone(new SquareGrid(false, false));
+		int size = zone.getGrid().getSize();
+		// a wall along the grid line between the columns 4 and 5, with a gap at row 12
+		zone.addTopology(new Area(new Rectangle(5 * size - 1, -20 * size, 2, 32 * size)));
+		zone.addTopology(new Area(new Rectangle(5 * size - 1, 13 * size, 2, 20 * size)));
+
+		AbstractAStarWalker walker = new AStarSquareEuclideanWalker(zone, WalkerMetric.ONE_TWO_ONE);
+		List<CellPoint> direct = walker.calculatePath(new CellPoint(0, 0), new CellPoint(10, 0));
+		Assert.assertEquals(direct.size(), 11, "nothing is in the way yet");
+
+		TopologyCostLayer topology = new TopologyCostLayer(zone);
+		Assert.assertFalse(topology.isBlocked(4, 0), "the wall is on the edge of the cell");
+		Assert.assertFalse(topology.isBlocked(5, 0), "the wall is on the edge of the cell");
+		Assert.assertTrue(topology.isBlocked(4, 0, 5, 0));
+		Assert.assertFalse(topology.isBlocked(4, 12, 5, 12));
+
+		walker.addCostLayer(topology);
+		List<CellPoint> around = walker.calculatePath(new CellPoint(0, 0), new CellPoint(10, 0));
+		assertWalkable(around, topology);
+		Assert.assertTrue(around.contains(new CellPoint(5, 12)) || around.contains(new CellPoint(4, 12)), "through the gap: " + around);
+
+		// walled in, the walker shows the direct way
+		Area room = new Area(new Rectangle(8 * size - 1, -2 * size - 1, 5 * size + 2, 5 * size + 2));
+		room.subtract(new Area(new Rectangle(8 * size + 1, -2 * size + 1, 5 * size - 2, 5 * size - 2)));
+		zone.addTopology(room);
+		walker = new AStarSquareEuclideanWalker(zone, WalkerMetric.ONE_TWO_ONE);
+		walker.addCostLayer(new TopologyCostLayer(zone));
+		Assert.assertEquals(walker.calculatePath(new CellPoint(0, 0), new CellPoint(10, 0)).size(), 11);
+	}
+
+	@Test
+	public void blockedCells() {
+		Zone zone = createZone(new SquareGrid(false, false));
+		int size = zone.getGrid().getSize();
+		Random r = new Random(3);
+		for (int i = 0; i < 40; i++) {
+			Area shape = new Area(new Ellipse2D.Double(r.nextInt(60 * size) - 30 * size, r.nextInt(60 * size) - 30 * size, r.nextInt(8 * size) + 1, r.nextInt(8 * size) + 1));
+			if (i % 4 == 3) {
+				zone.removeTopology(shape);
+			} else {
+				zone.addTopology(shape);
+			}
+		}
+		TopologyCostLayer topology = new TopologyCostLayer(zone);
+		// a pixel of the rasterized topology is an eighth of a cell, only the cells near an edge may go either way
+		double pixel = size / 8.0;
+		for (int y = -32; y < 32; y++) {
+			for (int x = -32; x < 32; x++) {
+				Rectangle2D inner = new Rectangle2D.Double((x + 0.2) * size, (y + 0.2) * size, 0.6 * size, 0.6 * size);
+				Rectangle2D shrunk = new Rectangle2D.Double(inner.getX() + pixel, inner.getY() + pixel, inner.getWidth() - 2 * pixel, inner.getHeight() - 2 * pixel);
+				Rectangle2D grown = new Rectangle2D.Double(inner.getX() - pixel, inner.getY() - pixel, inner.getWidth() + 2 * pixel, inner.getHeight() + 2 * pixel);
+				if (zone.getTopology().intersects(shrunk)) {
+					Assert.assertTrue(topology.isBlocked(x, y), "cell " + x + "," + y);
+				} else if (!zone.getTopology().intersects(grown)) {
+					Assert.assertFalse(topology.isBlocked(x, y), "cell " + x + "," + y);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void terrain() {
+		Zone zone = createZone(new SquareGrid(false, false));
+		AbstractAStarWalker walker = new AStarSquareEuclideanWalker(zone, WalkerMetric.NO_DIAGONALS);
+		// a swamp across the way, only passable at the ends
+		walker.addCostLayer(new CellCostLayer() {
+			@Override
+			public double getCost(int fromX, int fromY, int x, int y) {
+				return x == 5 && Math.abs(y) < 8 ? 4 : 1;
+			}
+		});
+		List<CellPoint> path = walker.calculatePath(new CellPoint(0, 0), new CellPoint(10, 0));
+		Assert.assertEquals(path.size(), 11, "crossing the swamp is cheaper than going around");
+
+		walker.addCostLayer(new CellCostLayer() {
+			@Override
+			public double getCost(int fromX, int fromY, int x, int y) {
+				return x == 5 && Math.abs(y) < 3 ? 10 : 1;
+			}
+		});
+		path = walker.calculatePath(new CellPoint(0, 0), new CellPoint(10, 0));
+		Assert.assertEquals(path.size(), 17, "around the deep part of the swamp: " + path);
+		for (CellPoint p : path) {
+			Assert.assertFalse(p.x == 5 && Math.abs(p.y) < 3, "in the deep part of the swamp: " + path);
+		}
+	}
+
+	@Test
+	public void sharedRaster() {
+		Zone zone = createZone(new SquareGrid(false, false));
+		int size = zone.getGrid().getSize();
+		zone.addTopology(new Area(new Rectangle(0, 0, size, size)));
+		TopologyRaster raster = TopologyRaster.get(zone);
+		Assert.assertSame(TopologyRaster.get(zone), raster, "all walkers of the zone share the raster");
+		Assert.assertTrue(new TopologyCostLayer(zone).isBlocked(0, 0));
+		Assert.assertFalse(new TopologyCostLayer(zone).isBlocked(3, 0));
+
+		// a change of the topology makes a new raster
+		zone.addTopology(new Area(new Rectangle(3 * size, 0, size, size)));
+		Assert.assertNotSame(TopologyRaster.get(zone), raster);
+		Assert.assertTrue(new TopologyCostLayer(zone).isBlocked(3, 0));
+		raster = TopologyRaster.get(zone);
+		zone.getGrid().setSize(size * 2);
+		Assert.assertNotSame(TopologyRaster.get(zone), raster, "the pixels are a part of a cell");
+		Assert.assertEquals(TopologyRaster.get(zone).getPixelSize(), size * 2 / 8.0);
+	}
+
+	@Test(groups = "benchmark")
+	public void benchmark() {
+		measure("square", new SquareGrid(false, false), 0);
+		measure("horizontal hex", new HexGridHorizontal(false, false), 1);
+		measure("vertical hex", new HexGridVertical(false, false), 2);
+	}
+
+	private static void measure(String name, Grid grid, int seed) {
+		Zone zone = createZone(grid);
+		zone.addTopology(createDungeon(grid.getSize()));
+		TopologyCostLayer walls = new TopologyCostLayer(zone);
+		Random r = new Random(seed);
+		List<CellPoint[]> walks = new ArrayList<CellPoint[]>();
+		while (walks.size() < PATHS) {
+			CellPoint start = new CellPoint(r.nextInt(20), r.nextInt(LENGTH));
+			CellPoint end = new CellPoint(start.x + LENGTH, r.nextInt(LENGTH));
+			if (!walls.isBlocked(start.x, start.y) && !walls.isBlocked(end.x, end.y)) {
+				walks.add(new CellPoint[] { start, end });
+			}
+		}
+		// right after the topology changed, nothing is rasterized yet
+		zone.addTopology(new Area(new Rectangle(-10 * grid.getSize(), -10 * grid.getSize(), 1, 1)));
+		long cold = System.nanoTime();
+		createWalkerWithTopology(zone).calculatePath(walks.get(0)[0], walks.get(0)[1]);
+		cold = System.nanoTime() - cold;
+
+		long plain = 0;
+		long first = 0;
+		long again = 0;
+		int cells = 0;
+		for (int pass = 0; pass < 3; pass++) {
+			plain = 0;
+			first = 0;
+			again = 0;
+			cells = 0;
+			for (CellPoint[] walk : walks) {
+				AbstractAStarWalker walker = createWalker(zone);
+				long start = System.nanoTime();
+				walker.calculatePath(walk[0], walk[1]);
+				plain += System.nanoTime() - start;
+
+				// a new walker for every drag, like the renderer makes them
+				start = System.nanoTime();
+				walker = createWalkerWithTopology(zone);
+				List<CellPoint> path = walker.calculatePath(walk[0], walk[1]);
+				first += System.nanoTime() - start;
+				// dragging on, with the topology already rasterized
+				start = System.nanoTime();
+				walker.calculatePath(walk[0], walk[1]);
+				again += System.nanoTime() - start;
+
+				assertWalkable(path, new TopologyCostLayer(zone));
+				cells += path.size();
+			}
+		}
+		Reporter.log(String.format("%s: %d cells/path | open ground %6.3f ms/path | dungeon %6.3f ms/path, %6.3f ms/path again, %6.3f ms after a topology change", name,
+				cells / PATHS, plain / 1000000d / PATHS, first / 1000000d / PATHS, again / 1000000d / PATHS, cold / 1000000d));
+	}
+
+	@Test
+	public void drag() {
+		drag(new SquareGrid(false, false), 3);
+		drag(new HexGridHorizontal(false, false), 4);
+		drag(new HexGridVertical(false, false), 5);
+	}
+
+	@Test(groups = "benchmark")
+	public void dragBenchmark() {
+		measureDrag("square", new SquareGrid(false, false), 3);
+		measureDrag("horizontal hex", new HexGridHorizontal(false, false), 4);
+		measureDrag("vertical hex", new HexGridVertical(false, false), 5);
+	}
+
+	/**
+	 * Drags the end of a path through the dungeon a cell at a time, the walker that goes on with its
+	 * last search has to find paths as short as a new walker does.
+	 */
+	private static void drag(Grid grid, int seed) {
+		Zone zone = createZone(grid);
+		zone.addTopology(createDungeon(grid.getSize()));
+		TopologyCostLayer topology = new TopologyCostLayer(zone);
+		AbstractAStarWalker dragged = createWalker(zone);
+		dragged.addCostLayer(topology);
+		CellPoint start = new CellPoint(20, 20);
+		for (CellPoint end : createDrag(start, topology, seed)) {
+			List<CellPoint> path = dragged.calculatePath(start, end);
+			AbstractAStarWalker walker = createWalker(zone);
+			walker.addCostLayer(topology);
+			List<CellPoint> expected = walker.calculatePath(start, end);
+
+			assertWalkable(path, topology);
+			Assert.assertEquals(path.get(path.size() - 1), end);
+			Assert.assertEquals(getCost(dragged, topology, path), getCost(walker, topology, expected), 1e-6, "path to " + end);
+		}
+	}
+
+	private static void measureDrag(String name, Grid grid, int seed) {
+		Zone zone = createZone(grid);
+		zone.addTopology(createDungeon(grid.getSize()));
+		TopologyCostLayer topology = new TopologyCostLayer(zone);
+		AbstractAStarWalker dragged = createWalker(zone);
+		dragged.addCostLayer(topology);
+		CellPoint start = new CellPoint(20, 20);
+		List<CellPoint> ends = createDrag(start, topology, seed);
+		long reused = 0;
+		long fresh = 0;
+		for (CellPoint end : ends) {
+			long time = System.nanoTime();
+			dragged.calculatePath(start, end);
+			reused += System.nanoTime() - time;
+
+			AbstractAStarWalker walker = createWalker(zone);
+			walker.addCostLayer(topology);
+			time = System.nanoTime();
+			walker.calculatePath(start, end);
+			fresh += System.nanoTime() - time;
+		}
+		Reporter.log(String.format("%s: dragged %d cells away | go on %6.3f ms/move | new search %6.3f ms/move", name, ends.get(ends.size() - 1).x - start.x, reused
+				/ 1000000d / ends.size(), fresh / 1000000d / ends.size()));
+	}
+
+	/**
+	 * @return where the end of the path is after each move of a drag, a cell at a time and mostly away
+	 *         from the start, like a token that is dragged to its destination
+	 */
+	private static List<CellPoint> createDrag(CellPoint start, TopologyCostLayer topology, int seed) {
+		Random r = new Random(seed);
+		List<CellPoint> ends = new ArrayList<CellPoint>();
+		CellPoint end = new CellPoint(start.x, start.y);
+		while (ends.size() < PATHS * 4) {
+			CellPoint next = new CellPoint(end.x + r.nextInt(3) - 1, Math.max(0, end.y + r.nextInt(3) - 1));
+			if (topology.isBlocked(next.x, next.y) || topology.isBlocked(end.x, end.y, next.x, next.y)) {
+				continue;
+			}
+			if (next.x < end.x && r.nextInt(4) > 0) {
+				continue;
+			}
+			end = next;
+			ends.add(end);
+		}
+		return ends;
+	}
+
+	private static double getCost(AbstractAStarWalker walker, TopologyCostLayer topology, List<CellPoint> path) {
+		double cost = 0;
+		for (int i = 1; i < path.size(); i++) {
+			CellPoint from = path.get(i - 1);
+			CellPoint to = path.get(i);
+			cost += walker.gScore(from.x, from.y, to.x, to.y) * topology.getCost(from.x, from.y, to.x, to.y);
+		}
+		return cost;
+	}
+
+	private static void assertWalkable(List<CellPoint> path, TopologyCostLayer topology) {
+		for (int i = 1; i < path.size(); i++) {
+			CellPoint from = path.get(i - 1);
+			CellPoint to = path.get(i);
+			Assert.assertFalse(topology.isBlocked(to.x, to.y), "into the wall at " + to);
+			Assert.assertFalse(topology.isBlocked(from.x, from.y, to.x, to.y), "through the wall at " + to);
+		}
+	}
+
+	private static AbstractAStarWalker createWalker(Zone zone) {
+		if (zone.getGrid() instanceof HexGridHorizontal) {
+			return new AStarHorizHexEuclideanWalker(zone);
+		}
+		if (zone.getGrid() instanceof HexGridVertical) {
+			return new AStarVertHexEuclideanWalker(zone);
+		}
+		return new AStarSquareEuclideanWalker(zone, WalkerMetric.ONE_TWO_ONE);
+	}
+
+	private static AbstractAStarWalker createWalkerWithTopology(Zone zone) {
+		AbstractAStarWalker walker = createWalker(zone);
+		walker.addCostLayer(new TopologyCostLayer(zone));
+		return walker;
+	}
+
+	private static Zone createZone(Grid grid) {
+		Zone zone = new Zone();
+		zone.setGrid(grid);
+		return zone;
+	}
+
+	/**
+	 * @return rooms of six by six cells, with a door of two cells in the middle of each wall
+	 */
+	private static Area createDungeon(int size) {
+		// the walls overlap at the corners, non zero winding merges them
+		Path2D walls = new Path2D.Double(Path2D.WIND_NON_ZERO);
+		for (int i = -5; i < 30; i++) {
+			for (int j = -5; j < 30; j++) {
+				int x = i * 6 * size;
+				int y = j * 6 * size;
+				walls.append(new Rectangle(x - 2, y - 2, 2 * size + 4, 4), false);
+				walls.append(new Rectangle(x + 4 * size - 2, y - 2, 2 * size + 4, 4), false);
+				walls.append(new Rectangle(x - 2, y - 2, 4, 2 * size + 4), false);
+				walls.append(new Rectangle(x - 2, y + 4 * size - 2, 4, 2 * size + 4), false);
+			}
+		}
+		return new Area(walls);
+	}
+}
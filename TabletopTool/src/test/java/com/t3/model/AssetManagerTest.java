@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+
+import com.t3.MD5Key;
+
+/**
+ * Loads a campaign that is much larger than the memory the asset manager may keep and checks that only as much as it
+ * may keep stays in memory. The benchmark loads a campaign of the size of the system property
+ * <code>t3.test.campaignSize</code>, 2 GB by default, and reports the throughput and how much the heap grew.
+ */
+public class AssetManagerTest {
+
+	private static final long BENCHMARK_CAMPAIGN_SIZE = Long.getLong("t3.test.campaignSize", 2L * 1024 * 1024 * 1024);
+	private static final int ASSET_SIZE = 8 * 1024 * 1024;
+	private static final long MAX_CACHED = 32L * 1024 * 1024;
+	/** most of the assets have to be evicted */
+	private static final long CAMPAIGN_SIZE = 8 * MAX_CACHED;
+
+	@Test
+	public void largeCampaign() throws Exception {
+		File oldDir = AssetManager.getCacheDir();
+		long oldMax = AssetManager.getMaxCachedBytes();
+		File dir = createCacheDir();
+		AssetManager.setCacheDir(dir);
+		AssetManager.setMaxCachedBytes(MAX_CACHED);
+		try {
+			List<MD5Key> ids = loadCampaign(CAMPAIGN_SIZE);
+			byte[] first = new byte[ASSET_SIZE];
+			new Random(1).nextBytes(first);
+
+			Assert.assertTrue(AssetManager.getCachedBytes() <= MAX_CACHED, "cached " + AssetManager.getCachedBytes());
+			int inMemory = 0;
+			for (MD5Key id : ids) {
+				Assert.assertTrue(AssetManager.hasAsset(id));
+				Assert.assertEquals(AssetManager.getAssetInfoOnly(id).getName(), "asset" + ids.indexOf(id));
+				inMemory += AssetManager.hasAssetInMemory(id) ? 1 : 0;
+			}
+			Assert.assertTrue((long) inMemory * ASSET_SIZE <= MAX_CACHED, inMemory + " assets in memory");
+
+			// the first one was evicted long ago, but it can be read in every way
+			MD5Key id = ids.get(0);
+			Assert.assertFalse(AssetManager.hasAssetInMemory(id));
+			Assert.assertTrue(Arrays.equals(AssetManager.getAsset(id).getImage(), first));
+			ByteBuffer buffer = AssetManager.getAssetBuffer(ids.get(1));
+			Assert.assertEquals(buffer.remaining(), ASSET_SIZE);
+			Assert.assertTrue(buffer.isReadOnly());
+			try (InputStream is = AssetManager.openAssetStream(id)) {
+				Assert.assertTrue(Arrays.equals(IOUtils.toByteArray(is), first));
+			}
+			Assert.assertTrue(AssetManager.getCachedBytes() <= MAX_CACHED, "cached " + AssetManager.getCachedBytes());
+
+			for (MD5Key key : ids) {
+				AssetManager.removeAsset(key);
+			}
+			Assert.assertEquals(AssetManager.getCachedBytes(), 0);
+		} finally {
+			AssetManager.setMaxCachedBytes(oldMax);
+			AssetManager.setCacheDir(oldDir);
+			deleteQuietly(dir);
+		}
+	}
+
+	@Test(groups = "benchmark")
+	public void loadBenchmark() throws Exception {
+		File oldDir = AssetManager.getCacheDir();
+		long oldMax = AssetManager.getMaxCachedBytes();
+		File dir = createCacheDir();
+		AssetManager.setCacheDir(dir);
+		AssetManager.setMaxCachedBytes(MAX_CACHED);
+		try {
+			long before = usedHeap();
+			long start = System.nanoTime();
+			List<MD5Key> ids = loadCampaign(BENCHMARK_CAMPAIGN_SIZE);
+			long loadTime = System.nanoTime() - start;
+			long used = usedHeap() - before;
+			Reporter.log(String.format("%d MB in %d assets: %8.1f MB/s, heap grew by %d MB", BENCHMARK_CAMPAIGN_SIZE / 1024 / 1024, ids.size(),
+					BENCHMARK_CAMPAIGN_SIZE / 1024d / 1024d / (loadTime / 1000000000d), used / 1024 / 1024));
+
+			for (MD5Key key : ids) {
+				AssetManager.removeAsset(key);
+			}
+		} finally {
+			AssetManager.setMaxCachedBytes(oldMax);
+			AssetManager.setCacheDir(oldDir);
+			deleteQuietly(dir);
+		}
+	}
+
+	/**
+	 * Puts assets of random data until the campaign has the given size, and waits until all of them are written to the
+	 * persistent cache.
+	 *
+	 * @return the ids of the assets in the order they were put, their names are "asset" and their index
+	 */
+	private static List<MD5Key> loadCampaign(long size) throws Exception {
+		Random r = new Random(1);
+		List<MD5Key> ids = new ArrayList<MD5Key>();
+		for (long loaded = 0; loaded < size; loaded += ASSET_SIZE) {
+			byte[] data = new byte[ASSET_SIZE];
+			r.nextBytes(data);
+			Asset asset = new Asset("asset" + ids.size(), data);
+			AssetManager.putAsset(asset);
+			ids.add(asset.getId());
+		}
+		AssetManager.waitForPersistentCache();
+		return ids;
+	}
+
+	private static File createCacheDir() throws IOException {
+		File dir = File.createTempFile("assetcache", "");
+		dir.delete();
+		dir.mkdirs();
+		return dir;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static void deleteQuietly(File dir) {
+		try {
+			FileUtils.deleteDirectory(dir);
+		} catch (IOException e) {
+			// the mapped files may not be deleted on some systems until they are collected
+			dir.deleteOnExit();
+		}
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.model;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+
+import com.t3.model.grid.SquareGrid;
+
+/**
+ * Checks the exposed cells against the area they stand for. The benchmark measures the questions a
+ * move of a token asks, on a map that has been explored for a long time.
+ */
+public class ExposedCellsTest {
+
+	private static final int CELL_SIZE = 50;
+	private static final int OFFSET = 13;
+	private static final int MAP_SIZE = 10000;
+	private static final int MOVES = 2000;
+
+	@Test
+	public void matchesArea() {
+		Area area = createExplored(1, 200);
+		ExposedCells cells = new ExposedCells(CELL_SIZE, OFFSET, OFFSET, area);
+		assertMatches(cells, area, new Random(2));
+	}
+
+	@Test
+	public void union() {
+		Area global = createExplored(3, 100);
+		Area token = createExplored(4, 100);
+		Area union = new Area(global);
+		union.add(token);
+		ExposedCells cells = new ExposedCells(CELL_SIZE, OFFSET, OFFSET, global, token);
+		assertMatches(cells, union, new Random(5));
+	}
+
+	@Test
+	public void invalidate() {
+		Area area = createExplored(6, 100);
+		ExposedCells cells = new ExposedCells(CELL_SIZE, OFFSET, OFFSET, area);
+		Random r = new Random(7);
+		assertMatches(cells, area, r);
+		for (int i = 0; i < 20; i++) {
+			Area change = new Area(new Ellipse2D.Double(r.nextInt(MAP_SIZE), r.nextInt(MAP_SIZE), r.nextInt(1000), r.nextInt(1000)));
+			if (i % 3 == 2) {
+				area.subtract(change);
+			} else {
+				area.add(change);
+			}
+			cells.invalidate(change.getBounds2D());
+			assertMatches(cells, area, r);
+		}
+	}
+
+	@Test
+	public void zone() {
+		Zone zone = new Zone();
+		zone.setGrid(new SquareGrid(false, false));
+		ExposedCells cells = zone.getExposedCells(null);
+		Rectangle room = new Rectangle(200, 200, 300, 300);
+		Assert.assertFalse(cells.contains(room));
+		zone.exposeArea(new Area(room), (Token) null);
+		Assert.assertSame(zone.getExposedCells(null), cells, "the cells are kept");
+		Assert.assertTrue(cells.contains(room));
+		zone.clearExposedArea();
+		Assert.assertFalse(zone.getExposedCells(null).contains(room));
+	}
+
+	@Test
+	public void bitmapZone() {
+		Zone.setFogModel(Zone.FogModel.BITMAP);
+		try {
+			Zone zone = new Zone();
+			zone.setGrid(new SquareGrid(false, false));
+			ExposedCells cells = zone.getExposedCells(null);
+			Rectangle room = new Rectangle(200, 200, 300, 300);
+			Assert.assertFalse(cells.contains(room));
+			zone.exposeArea(new Area(room), (Token) null);
+			// the area is made anew from the bitmap, the cells are kept
+			Assert.assertSame(zone.getExposedCells(null), cells, "the cells are kept");
+			Assert.assertTrue(cells.isOf(zone.getExposedArea()));
+			Assert.assertTrue(cells.contains(room));
+			Assert.assertTrue(cells.contains(new Rectangle(205, 205, 10, 10)));
+			zone.exposeArea(new Area(new Rectangle(1000, 1000, 100, 100)), (Token) null);
+			Assert.assertSame(zone.getExposedCells(null), cells, "the cells are kept");
+			Assert.assertTrue(cells.contains(new Rectangle(1000, 1000, 100, 100)));
+			Assert.assertTrue(cells.contains(room));
+		} finally {
+			Zone.setFogModel(Zone.FogModel.AREA);
+		}
+	}
+
+	@Test(groups = "benchmark")
+	public void benchmark() {
+		Area area = createExplored(8, 1000);
+		Random r = new Random(9);
+		Rectangle[] tokens = new Rectangle[MOVES];
+		for (int i = 0; i < tokens.length; i++) {
+			tokens[i] = new Rectangle(r.nextInt(MAP_SIZE / CELL_SIZE) * CELL_SIZE + OFFSET, r.nextInt(MAP_SIZE / CELL_SIZE) * CELL_SIZE + OFFSET, CELL_SIZE, CELL_SIZE);
+		}
+		long areaTime = 0;
+		long cellsTime = 0;
+		int areaOpen = 0;
+		int cellsOpen = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			// the cells are built once for the map, like the zone keeps them
+			ExposedCells cells = new ExposedCells(CELL_SIZE, OFFSET, OFFSET, area);
+			areaOpen = 0;
+			cellsOpen = 0;
+			long start = System.nanoTime();
+			for (Rectangle token : tokens) {
+				areaOpen += ask(area, null, token);
+			}
+			areaTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (Rectangle token : tokens) {
+				cellsOpen += ask(null, cells, token);
+			}
+			cellsTime = System.nanoTime() - start;
+		}
+		Assert.assertEquals(cellsOpen, areaOpen);
+		Reporter.log(String.format("%d moves, %d segments: area %8.3f ms/move | cells %8.3f ms/move", MOVES, segments(area), areaTime / 1000000d / MOVES, cellsTime
+				/ 1000000d / MOVES));
+	}
+
+	/**
+	 * Asks what {@link com.t3.model.grid.Grid#validateMove} asks at most: whether each ninth of the
+	 * token is exposed, and whether each ninth of its center touches the exposed area.
+	 *
+	 * @return the number of yes
+	 */
+	private static int ask(Area area, ExposedCells cells, Rectangle token) {
+		int yes = 0;
+		Rectangle center = ninth(token, 1, 1);
+		for (int dy = 0; dy < 3; dy++) {
+			for (int dx = 0; dx < 3; dx++) {
+				Rectangle piece = ninth(token, dx, dy);
+				yes += (area != null ? area.contains(piece) : cells.contains(piece)) ? 1 : 0;
+				piece = ninth(center, dx, dy);
+				yes += (area != null ? area.intersects(piece) : cells.intersects(piece)) ? 1 : 0;
+			}
+		}
+		return yes;
+	}
+
+	private static Rectangle ninth(Rectangle r, int column, int row) {
+		return new Rectangle(r.x + r.width * column / 3, r.y + r.height * row / 3, r.width * (column + 1) / 3 - r.width * column / 3, r.height * (row + 1) / 3 - r.height
+				* row / 3);
+	}
+
+	private static void assertMatches(ExposedCells cells, Area area, Random r) {
+		for (int i = 0; i < 500; i++) {
+			Rectangle rect = new Rectangle(r.nextInt(MAP_SIZE), r.nextInt(MAP_SIZE), r.nextInt(2 * CELL_SIZE) + 1, r.nextInt(2 * CELL_SIZE) + 1);
+			if (i % 2 == 0) {
+				// on the edges of the cells
+				rect.setBounds(rect.x / CELL_SIZE * CELL_SIZE + OFFSET, rect.y / CELL_SIZE * CELL_SIZE + OFFSET, CELL_SIZE, CELL_SIZE * (1 + i % 3));
+			}
+			Assert.assertEquals(cells.contains(rect), area.contains(rect), "contains " + rect);
+			Assert.assertEquals(cells.intersects(rect), area.intersects(rect), "intersects " + rect);
+			Assert.assertEquals(cells.contains(rect.x + 0.5, rect.y + 0.5), area.contains(rect.x + 0.5, rect.y + 0.5), "contains " + rect.getLocation());
+
+			Polygon slice = new Polygon(new int[] { rect.x, rect.x + rect.width, rect.x }, new int[] { rect.y, rect.y, rect.y + rect.height }, 3);
+			Area a = new Area(slice);
+			a.intersect(area);
+			Assert.assertEquals(cells.contains(slice), a.equals(new Area(slice)), "contains " + slice.getBounds());
+		}
+	}
+
+	/**
+	 * @return the vision of a party that walked around a field of pillars, one circle per move
+	 */
+	private static Area createExplored(int seed, int moves) {
+		Random r = new Random(seed);
+		Area explored = new Area();
+		int x = MAP_SIZE / 2;
+		int y = MAP_SIZE / 2;
+		for (int i = 0; i < moves; i++) {
+			x = Math.max(0, Math.min(MAP_SIZE, x + r.nextInt(801) - 400));
+			y = Math.max(0, Math.min(MAP_SIZE, y + r.nextInt(801) - 400));
+			explored.add(new Area(new Ellipse2D.Double(x - 400, y - 400, 800, 800)));
+		}
+		Path2D pillars = new Path2D.Double();
+		for (int py = 0; py < MAP_SIZE; py += 300) {
+			for (int px = 0; px < MAP_SIZE; px += 300) {
+				pillars.append(new Rectangle(px + 120, py + 120, 60, 60), false);
+			}
+		}
+		explored.subtract(new Area(pillars));
+		return explored;
+	}
+
+	private static int segments(Area area) {
+		int count = 0;
+		for (PathIterator iter = area.getPathIterator(null); !iter.isDone(); iter.next()) {
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+
+import com.t3.MD5Key;
+
+/**
+ * Checks that the images of a directory are hashed once and only again when they changed. The benchmark measures how
+ * long it takes to look through a directory the first time and the times after.
+ */
+public class FileHashIndexTest {
+
+	private static final int FILES = 50;
+	private static final int BENCHMARK_FILES = 500;
+	private static final int FILE_SIZE = 256 * 1024;
+
+	@Test
+	public void index() throws Exception {
+		File dir = createDir();
+		try {
+			Random r = new Random(1);
+			List<MD5Key> expected = new ArrayList<MD5Key>();
+			List<File> files = createImages(dir, FILES, r, expected);
+			File indexFile = new File(dir, "filehashes");
+
+			FileHashIndex index = new FileHashIndex(indexFile);
+			Map<File, MD5Key> keys = index.getKeys(files);
+			Assert.assertEquals(new ArrayList<MD5Key>(keys.values()), expected);
+			Assert.assertEquals(index.getHashCount(), FILES);
+			index.save();
+
+			// started again, the index is read from its file
+			index = new FileHashIndex(indexFile);
+			keys = index.getKeys(files);
+			Assert.assertEquals(new ArrayList<MD5Key>(keys.values()), expected);
+			Assert.assertEquals(index.getHashCount(), 0);
+
+			// a changed image is hashed again
+			byte[] data = new byte[FILE_SIZE + 1];
+			r.nextBytes(data);
+			File changed = files.get(7);
+			FileUtils.writeByteArrayToFile(changed, data);
+			Assert.assertEquals(index.getKey(changed), new MD5Key(data));
+			Assert.assertEquals(index.getHashCount(), 1);
+			Assert.assertEquals(index.getKey(changed, data), new MD5Key(data));
+			Assert.assertEquals(index.getHashCount(), 1);
+		} finally {
+			deleteQuietly(dir);
+		}
+	}
+
+	@Test(groups = "benchmark")
+	public void indexBenchmark() throws Exception {
+		File dir = createDir();
+		try {
+			List<File> files = createImages(dir, BENCHMARK_FILES, new Random(1), new ArrayList<MD5Key>());
+			File indexFile = new File(dir, "filehashes");
+
+			FileHashIndex index = new FileHashIndex(indexFile);
+			long start = System.nanoTime();
+			index.getKeys(files);
+			long firstTime = System.nanoTime() - start;
+			index.save();
+
+			index = new FileHashIndex(indexFile);
+			start = System.nanoTime();
+			index.getKeys(files);
+			long secondTime = System.nanoTime() - start;
+
+			Reporter.log(String.format("%d files: hashed %8.1f ms | indexed %8.1f ms", BENCHMARK_FILES, firstTime / 1000000d, secondTime / 1000000d));
+		} finally {
+			deleteQuietly(dir);
+		}
+	}
+
+	/**
+	 * Writes files of random data and of random size up to {@link #FILE_SIZE}.
+	 * 
+	 * @param keys
+	 *            gets the keys of the files
+	 * @return the files in the order they were written
+	 */
+	private static List<File> createImages(File dir, int count, Random r, List<MD5Key> keys) throws IOException {
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < count; i++) {
+			byte[] data = new byte[r.nextInt(FILE_SIZE)];
+			r.nextBytes(data);
+			File file = new File(dir, "image" + i + ".png");
+			FileUtils.writeByteArrayToFile(file, data);
+			files.add(file);
+			keys.add(new MD5Key(data));
+		}
+		return files;
+	}
+
+	private static File createDir() throws IOException {
+		File dir = File.createTempFile("images", "");
+		dir.delete();
+		dir.mkdirs();
+		return dir;
+	}
+
+	private static void deleteQuietly(File dir) {
+		try {
+			FileUtils.deleteDirectory(dir);
+		} catch (IOException e) {
+			dir.deleteOnExit();
+		}
+	}
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.model;
+
+import java.awt.Rectangle;
+import java.awt.geom.Area;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+
+import com.t3.clientserver.NetworkSerializer;
+import com.t3.persistence.Persister;
+
+/**
+ * Checks the fog bitmap against the areas it is made of, also after the exposures of the first
+ * half hour of a session. The benchmark replays the exposures of a four hour session, once into an
+ * {@link Area} like the zone's exposed area and once into a bitmap.
+ */
+public class FogBitmapTest {
+
+	private static final int RESOLUTION = 5;
+	private static final int MAP_SIZE = 20000;
+	/** a move every ten seconds for four hours, by four tokens */
+	private static final int EXPOSURES = 4 * 360 * 4;
+	/** the area gets slower with every exposure, it only replays the first half hour */
+	private static final int AREA_EXPOSURES = EXPOSURES / 8;
+	private static final int VISION = 600;
+	private static final int PILLAR_SPACING = 200;
+
+	@Test
+	public void matchesArea() {
+		Random r = new Random(1);
+		Area area = new Area();
+		FogBitmap bitmap = new FogBitmap(RESOLUTION);
+		for (int i = 0; i < 40; i++) {
+			Area shape = new Area(new Ellipse2D.Double(r.nextInt(3000) - 1000, r.nextInt(3000) - 1000, r.nextInt(800) + 1, r.nextInt(800) + 1));
+			if (i % 4 == 3) {
+				area.subtract(shape);
+				bitmap.subtract(shape);
+			} else {
+				area.add(shape);
+				bitmap.add(shape);
+			}
+		}
+		// only the squares on an edge may go either way
+		for (int y = -1100; y < 2900; y += 3 * RESOLUTION) {
+			for (int x = -1100; x < 2900; x += 3 * RESOLUTION) {
+				Rectangle square = new Rectangle(x, y, RESOLUTION, RESOLUTION);
+				if (area.contains(square)) {
+					Assert.assertTrue(bitmap.contains(x, y), "exposed square at " + x + "," + y);
+				} else if (!area.intersects(square)) {
+					Assert.assertFalse(bitmap.contains(x, y), "hidden square at " + x + "," + y);
+				}
+			}
+		}
+
+		Rectangle bounds = bitmap.getBounds();
+		Rectangle2D areaBounds = area.getBounds2D();
+		Assert.assertTrue(Math.abs(bounds.getMinX() - areaBounds.getMinX()) <= RESOLUTION && Math.abs(bounds.getMaxY() - areaBounds.getMaxY()) <= RESOLUTION, bounds + " vs. "
+				+ areaBounds);
+
+		for (int i = 0; i < 1000; i++) {
+			Rectangle rect = new Rectangle(r.nextInt(4000) - 1500, r.nextInt(4000) - 1500, r.nextInt(100) + 1, r.nextInt(100) + 1);
+			boolean expected = false;
+			for (int y = rect.y - rect.y % RESOLUTION - RESOLUTION; y < rect.getMaxY() && !expected; y += RESOLUTION) {
+				for (int x = rect.x - rect.x % RESOLUTION - RESOLUTION; x < rect.getMaxX() && !expected; x += RESOLUTION) {
+					expected = new Rectangle(x, y, RESOLUTION, RESOLUTION).intersects(rect) && bitmap.contains(x, y);
+				}
+			}
+			Assert.assertEquals(bitmap.intersects(rect), expected, "intersects " + rect);
+		}
+	}
+
+	@Test
+	public void toAreaRoundTrip() {
+		Random r = new Random(2);
+		FogBitmap bitmap = new FogBitmap(RESOLUTION);
+		for (int i = 0; i < 30; i++) {
+			bitmap.add(new Ellipse2D.Double(r.nextInt(3000) - 1000, r.nextInt(3000) - 1000, r.nextInt(800) + 1, r.nextInt(800) + 1));
+		}
+		Area area = bitmap.toArea();
+		FogBitmap copy = FogBitmap.fromArea(area, RESOLUTION);
+		Assert.assertEquals(copy.getBounds(), bitmap.getBounds());
+		for (int y = -1100; y < 2900; y += 3 * RESOLUTION) {
+			for (int x = -1100; x < 2900; x += 3 * RESOLUTION) {
+				Assert.assertEquals(copy.contains(x, y), bitmap.contains(x, y), "square at " + x + "," + y);
+				Assert.assertEquals(area.contains(x + RESOLUTION / 2.0, y + RESOLUTION / 2.0), bitmap.contains(x, y), "area at " + x + "," + y);
+			}
+		}
+		FogBitmap union = new FogBitmap(copy);
+		union.add(new Rectangle(5000, 5000, 100, 100));
+		Assert.assertTrue(union.contains(5050, 5050));
+		Assert.assertFalse(copy.contains(5050, 5050), "copies share tiles");
+		copy.add(union);
+		Assert.assertTrue(copy.contains(5050, 5050));
+	}
+
+	@Test
+	public void bitmapFogModel() {
+		Zone.setFogModel(Zone.FogModel.BITMAP);
+		try {
+			Rectangle exposed = new Rectangle(100, 100, 400, 300);
+			Zone zone = new Zone();
+			zone.exposeArea(new Area(exposed), (Token) null);
+			Assert.assertTrue(zone.getExposedFog().contains(200, 200));
+			// the area is only made again after the bitmap changed
+			Area area = zone.getExposedArea();
+			Assert.assertSame(zone.getExposedArea(), area);
+			zone.exposeArea(new Area(new Rectangle(150, 150, 50, 50)), (Token) null);
+			Assert.assertNotSame(zone.getExposedArea(), area);
+			Assert.assertTrue(zone.getExposedArea().contains(175, 175));
+			// only the tile over the region is made into an area
+			Area region = zone.getExposedArea(new Rectangle(0, 0, 300, 300));
+			Assert.assertTrue(region.contains(200, 200));
+			Assert.assertFalse(region.contains(400, 350));
+			ExposedAreaMetaData meta = new ExposedAreaMetaData();
+			meta.addToExposedAreaHistory(new Area(exposed));
+			Assert.assertTrue(meta.getExposedFog().contains(200, 200));
+
+			// the areas are made from the bitmaps when they are saved or sent
+			Zone saved = (Zone) Persister.newInstance().fromXML(Persister.newInstance().toXML(zone));
+			Assert.assertEquals(saved.getExposedArea().getBounds(), exposed);
+			zone.exposeArea(new Area(new Rectangle(1000, 1000, 50, 50)), (Token) null);
+			Zone sent = (Zone) NetworkSerializer.deserializeObject(NetworkSerializer.serializeObject(zone));
+			Assert.assertTrue(sent.getExposedArea().contains(1025, 1025));
+			meta.addToExposedAreaHistory(new Area(new Rectangle(1000, 1000, 50, 50)));
+			ExposedAreaMetaData savedMeta = (ExposedAreaMetaData) Persister.newInstance().fromXML(Persister.newInstance().toXML(meta));
+			Assert.assertTrue(savedMeta.getExposedAreaHistory().contains(1025, 1025));
+			meta.addToExposedAreaHistory(new Area(new Rectangle(2000, 2000, 50, 50)));
+			ExposedAreaMetaData sentMeta = (ExposedAreaMetaData) NetworkSerializer.deserializeObject(NetworkSerializer.serializeObject(meta));
+			Assert.assertTrue(sentMeta.getExposedAreaHistory().contains(2025, 2025));
+
+			// leaving the bitmap fog model keeps what was exposed
+			zone.exposeArea(new Area(new Rectangle(3000, 3000, 50, 50)), (Token) null);
+			Zone.setFogModel(Zone.FogModel.AREA);
+			Assert.assertNull(zone.getExposedFog());
+			Assert.assertTrue(zone.getExposedArea().contains(3025, 3025));
+		} finally {
+			Zone.setFogModel(Zone.FogModel.AREA);
+		}
+	}
+
+	@Test
+	public void parseFogModel() {
+		Assert.assertEquals(Zone.parseFogModel(null), Zone.FogModel.AREA);
+		Assert.assertEquals(Zone.parseFogModel("bitmap"), Zone.FogModel.BITMAP);
+		Assert.assertEquals(Zone.parseFogModel(" Bitmap "), Zone.FogModel.BITMAP);
+		Assert.assertEquals(Zone.parseFogModel("pixels"), Zone.FogModel.AREA);
+	}
+
+	@Test
+	public void session() {
+		List<Area> exposures = createSession();
+		Area area = new Area();
+		FogBitmap bitmap = new FogBitmap(RESOLUTION);
+		for (Area exposure : exposures.subList(0, AREA_EXPOSURES)) {
+			area.add(exposure);
+			bitmap.add(exposure);
+		}
+		Random r = new Random(4);
+		int hits = 0;
+		int bitmapHits = 0;
+		for (int i = 0; i < 10000; i++) {
+			double x = r.nextInt(MAP_SIZE);
+			double y = r.nextInt(MAP_SIZE);
+			hits += area.contains(x, y) ? 1 : 0;
+			bitmapHits += bitmap.contains(x, y) ? 1 : 0;
+		}
+		// only the points on an edge may go either way
+		Assert.assertTrue(Math.abs(hits - bitmapHits) < 100, hits + " vs. " + bitmapHits);
+	}
+
+	@Test(groups = "benchmark")
+	public void sessionBenchmark() {
+		List<Area> exposures = createSession();
+
+		long start = System.nanoTime();
+		Area area = new Area();
+		for (Area exposure : exposures.subList(0, AREA_EXPOSURES)) {
+			area.add(exposure);
+		}
+		long areaExpose = System.nanoTime() - start;
+
+		// the same half hour, then the rest of the session
+		FogBitmap bitmap = new FogBitmap(RESOLUTION);
+		start = System.nanoTime();
+		for (Area exposure : exposures.subList(0, AREA_EXPOSURES)) {
+			bitmap.add(exposure);
+		}
+		long bitmapExpose = System.nanoTime() - start;
+		FogBitmap halfHour = new FogBitmap(bitmap);
+		for (Area exposure : exposures.subList(AREA_EXPOSURES, exposures.size())) {
+			bitmap.add(exposure);
+		}
+		long bitmapSession = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		Area converted = bitmap.toArea();
+		long toArea = System.nanoTime() - start;
+
+		Random r = new Random(4);
+		double[] points = new double[20000];
+		for (int i = 0; i < points.length; i++) {
+			points[i] = r.nextInt(MAP_SIZE);
+		}
+		int hits = 0;
+		start = System.nanoTime();
+		for (int i = 0; i < points.length; i += 2) {
+			hits += area.contains(points[i], points[i + 1]) ? 1 : 0;
+		}
+		long areaContains = System.nanoTime() - start;
+		int bitmapHits = 0;
+		start = System.nanoTime();
+		for (int i = 0; i < points.length; i += 2) {
+			bitmapHits += halfHour.contains(points[i], points[i + 1]) ? 1 : 0;
+		}
+		long bitmapContains = System.nanoTime() - start;
+
+		Reporter.log(String.format("%d exposures | area: %8.3f ms/exposure, %6d segments, contains %6.3f us | bitmap: %8.3f ms/exposure, contains %6.3f us", AREA_EXPOSURES,
+				areaExpose / 1000000d / AREA_EXPOSURES, segments(area), areaContains / 1000d / (points.length / 2), bitmapExpose / 1000000d / AREA_EXPOSURES, bitmapContains / 1000d
+						/ (points.length / 2)));
+		Reporter.log(String.format("%d exposures | bitmap: %8.3f ms/exposure, %5d tiles, as area %8.2f ms (%d segments)", exposures.size(), bitmapSession / 1000000d
+				/ exposures.size(), bitmap.getTileCount(), toArea / 1000000d, segments(converted)));
+	}
+
+	/**
+	 * @return the vision of four tokens walking through a map full of pillars, one polygon per move
+	 */
+	private static List<Area> createSession() {
+		Random r = new Random(3);
+		List<Area> exposures = new ArrayList<Area>(EXPOSURES);
+		int[][] tokens = new int[4][2];
+		for (int[] token : tokens) {
+			token[0] = MAP_SIZE / 2;
+			token[1] = MAP_SIZE / 2;
+		}
+		for (int i = 0; i < EXPOSURES; i++) {
+			int[] token = tokens[i % tokens.length];
+			token[0] = Math.max(0, Math.min(MAP_SIZE, token[0] + r.nextInt(401) - 200));
+			token[1] = Math.max(0, Math.min(MAP_SIZE, token[1] + r.nextInt(401) - 200));
+			Area vision = new Area(new Ellipse2D.Double(token[0] - VISION, token[1] - VISION, VISION * 2, VISION * 2));
+			// the pillars are never exposed, so they stay holes in the exposed area
+			Path2D pillars = new Path2D.Double();
+			for (int y = (token[1] - VISION) / PILLAR_SPACING; y <= (token[1] + VISION) / PILLAR_SPACING; y++) {
+				for (int x = (token[0] - VISION) / PILLAR_SPACING; x <= (token[0] + VISION) / PILLAR_SPACING; x++) {
+					pillars.append(new Rectangle(x * PILLAR_SPACING + 80, y * PILLAR_SPACING + 80, 40, 40), false);
+				}
+			}
+			vision.subtract(new Area(pillars));
+			exposures.add(vision);
+		}
+		return exposures;
+	}
+
+	private static int segments(Area area) {
+		int count = 0;
+		for (PathIterator iter = area.getPathIterator(null); !iter.isDone(); iter.next()) {
+			count++;
+		}
+		return count;
+	}
+}
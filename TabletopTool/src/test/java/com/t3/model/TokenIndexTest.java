@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.model;
+
+import java.awt.Rectangle;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+
+import com.t3.guid.GUID;
+import com.t3.model.Zone.Layer;
+import com.t3.model.grid.SquareGrid;
+
+/**
+ * Checks the token index of a {@link Zone} against a full scan, the names it hands out and the
+ * token lists it keeps between frames. The benchmarks compare adding 10000 tokens and querying a
+ * screen sized region with the sorted list the zone used before, naming dropped tokens with the
+ * name scans the zone used before, and how much the token lists a frame asks for allocate
+ * compared to copying them on every call.
+ */
+public class TokenIndexTest {
+
+	private static final int TOKENS = 10000;
+	private static final int MAP_SIZE = 50000;
+	private static final int QUERIES = 1000;
+	private static final int MAP_TOKENS = 1000;
+	private static final int DROPPED_TOKENS = 50;
+	private static final int DROPS = 20;
+	private static final int FRAMES = 1000;
+
+	@Test
+	public void queryMatchesScan() {
+		Zone zone = createZone();
+		List<Token> tokens = createTokens(TOKENS, new Random(1));
+		for (Token token : tokens) {
+			zone.putToken(token);
+		}
+		// move some tokens around and remove others
+		Random random = new Random(2);
+		for (int i = 0; i < 500; i++) {
+			Token token = tokens.get(random.nextInt(tokens.size()));
+			token.setX(random.nextInt(MAP_SIZE));
+			token.setZOrder(random.nextInt(TOKENS));
+			zone.putToken(token);
+		}
+		for (int i = 0; i < 500; i++) {
+			zone.removeToken(tokens.remove(random.nextInt(tokens.size())).getId());
+		}
+
+		List<Token> ordered = zone.getAllTokens();
+		Assert.assertEquals(ordered.size(), tokens.size());
+		for (int i = 1; i < ordered.size(); i++) {
+			Assert.assertTrue(ordered.get(i - 1).getZOrder() <= ordered.get(i).getZOrder());
+		}
+		Assert.assertEquals(zone.getSmallestZOrder(), ordered.get(0).getZOrder());
+		Assert.assertEquals(zone.getLargestZOrder(), ordered.get(ordered.size() - 1).getZOrder());
+
+		for (int i = 0; i < 100; i++) {
+			Rectangle region = new Rectangle(random.nextInt(MAP_SIZE), random.nextInt(MAP_SIZE), 1920, 1080);
+			for (Layer layer : Layer.values()) {
+				Assert.assertEquals(zone.getTokensInRegion(layer, region), scan(zone, ordered, layer, region));
+			}
+		}
+	}
+
+	@Test(groups = "benchmark")
+	public void compareWithSortedList() {
+		List<Token> tokens = createTokens(TOKENS, new Random(3));
+
+		long start = System.nanoTime();
+		List<Token> legacy = new LinkedList<Token>();
+		for (Token token : tokens) {
+			legacy.remove(token);
+			legacy.add(token);
+			Collections.sort(legacy, Zone.TOKEN_Z_ORDER_COMPARATOR);
+		}
+		long legacyPut = System.nanoTime() - start;
+
+		Zone zone = createZone();
+		start = System.nanoTime();
+		for (Token token : tokens) {
+			zone.putToken(token);
+		}
+		long indexPut = System.nanoTime() - start;
+
+		Random random = new Random(4);
+		Rectangle[] regions = new Rectangle[QUERIES];
+		for (int i = 0; i < QUERIES; i++) {
+			regions[i] = new Rectangle(random.nextInt(MAP_SIZE), random.nextInt(MAP_SIZE), 1920, 1080);
+		}
+		// warm up the bounds and the hash
+		zone.getTokensInRegion(Layer.TOKEN, regions[0]);
+
+		start = System.nanoTime();
+		int scanned = 0;
+		for (Rectangle region : regions) {
+			scanned += scan(zone, legacy, Layer.TOKEN, region).size();
+		}
+		long legacyQuery = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		int found = 0;
+		for (Rectangle region : regions) {
+			found += zone.getTokensInRegion(Layer.TOKEN, region).size();
+		}
+		long indexQuery = System.nanoTime() - start;
+
+		Reporter.log(String.format("%d tokens put: sorted list %8.2f ms, index %8.2f ms | region query: scan %8.2f us, index %8.2f us",
+				TOKENS, legacyPut / 1000000d, indexPut / 1000000d, legacyQuery / 1000d / QUERIES, indexQuery / 1000d / QUERIES));
+		Assert.assertEquals(found, scanned);
+	}
+
+	@Test
+	public void reorder() {
+		Zone zone = createZone();
+		List<Token> tokens = createTokens(100, new Random(7));
+		zone.putTokens(tokens);
+		Token front = tokens.get(0);
+		Token back = tokens.get(1);
+		int largest = zone.getLargestZOrder();
+		int smallest = zone.getSmallestZOrder();
+
+		zone.setTokenZOrders(new GUID[] { front.getId(), back.getId() }, new int[] { largest + 1, smallest - 1 });
+		Assert.assertEquals(zone.getLargestZOrder(), largest + 1);
+		Assert.assertEquals(zone.getSmallestZOrder(), smallest - 1);
+		List<Token> ordered = zone.getAllTokens();
+		Assert.assertSame(ordered.get(ordered.size() - 1), front);
+		Assert.assertSame(ordered.get(0), back);
+	}
+
+	@Test
+	public void names() {
+		Zone zone = createZone();
+		Token first = new Token("Goblin 1", null);
+		first.setZOrder(2);
+		Token second = new Token("GOBLIN 1", null);
+		second.setZOrder(1);
+		second.setGMName("3");
+		zone.putToken(first);
+		zone.putToken(second);
+		Assert.assertSame(zone.getTokenByName("goblin 1"), second);
+		Assert.assertSame(zone.getTokenByGMName("3"), second);
+		Assert.assertSame(zone.resolveToken(second.getId().toString()), second);
+		Assert.assertNull(zone.getTokenByName("Goblin"));
+
+		// 1 is used by the names and 3 by a GM name
+		Assert.assertEquals(zone.findFreeNumber("Goblin", true), 2);
+		Assert.assertEquals(zone.findFreeNumber("Goblin", true), 4);
+
+		rename(second, "Orc");
+		zone.putToken(second);
+		Assert.assertSame(zone.getTokenByName("Goblin 1"), first);
+		Assert.assertSame(zone.getTokenByName("orc"), second);
+		zone.removeToken(first.getId());
+		Assert.assertNull(zone.getTokenByName("Goblin 1"));
+		Assert.assertEquals(zone.findFreeNumber("Orc", false), 1);
+		Assert.assertEquals(zone.findFreeNumber(null, true), 1);
+	}
+
+	@Test
+	public void hugeNumbers() {
+		Zone zone = createZone();
+		Token token = new Token("Goblin 999999999", null);
+		token.setGMName("999999998");
+		zone.putToken(token);
+		Assert.assertSame(zone.getTokenByName("goblin 999999999"), token);
+		Assert.assertEquals(zone.findFreeNumber("Goblin", true), 1);
+
+		TokenIndex.NumberSet numbers = new TokenIndex.NumberSet();
+		numbers.set(999999998, true);
+		numbers.set(999999999, true);
+		numbers.set(TokenIndex.NumberSet.BITS - 1, true);
+		numbers.set(TokenIndex.NumberSet.BITS, true);
+		Assert.assertTrue(numbers.get(999999999));
+		Assert.assertEquals(numbers.nextClearBit(999999998), 1000000000);
+		Assert.assertEquals(numbers.nextClearBit(TokenIndex.NumberSet.BITS - 1), TokenIndex.NumberSet.BITS + 1);
+		Assert.assertEquals(numbers.nextClearBit(1), 1);
+		numbers.set(999999998, false);
+		numbers.set(999999999, false);
+		numbers.set(TokenIndex.NumberSet.BITS - 1, false);
+		numbers.set(TokenIndex.NumberSet.BITS, false);
+		Assert.assertTrue(numbers.isEmpty());
+	}
+
+	@Test
+	public void dropMatchesScan() {
+		Zone zone = createZone();
+		List<Token> mapTokens = createTokens(100, new Random(8));
+		for (int i = 0; i < mapTokens.size(); i++) {
+			// every third number is taken
+			rename(mapTokens.get(i), "Goblin " + i * 3);
+		}
+		zone.putTokens(mapTokens);
+		for (int i = 0; i < DROPPED_TOKENS; i++) {
+			int expected = findFreeNumberByScan(zone, "Goblin", 0);
+			int number = zone.findFreeNumber("Goblin", true);
+			Assert.assertEquals(number, expected);
+			Token token = new Token("Goblin " + number, null);
+			token.setGMName(Integer.toString(number));
+			zone.putToken(token);
+		}
+	}
+
+	@Test(groups = "benchmark")
+	public void compareBulkDrop() {
+		List<Token> mapTokens = createTokens(MAP_TOKENS, new Random(5));
+		for (int i = 0; i < mapTokens.size(); i++) {
+			rename(mapTokens.get(i), "Monster " + i);
+		}
+
+		long legacy = 0;
+		long indexed = 0;
+		for (int drop = 0; drop < DROPS; drop++) {
+			Zone zone = createZone();
+			zone.putTokens(mapTokens);
+			List<Token> dropped = new ArrayList<Token>();
+			long start = System.nanoTime();
+			for (int i = 0; i < DROPPED_TOKENS; i++) {
+				Token token = new Token("Goblin", null);
+				int number = findFreeNumberByScan(zone, "Goblin", 0);
+				rename(token, "Goblin " + number);
+				token.setGMName(Integer.toString(number));
+				zone.putToken(token);
+				dropped.add(token);
+			}
+			legacy += System.nanoTime() - start;
+			for (Token token : dropped) {
+				zone.removeToken(token.getId());
+			}
+
+			zone = createZone();
+			zone.putTokens(mapTokens);
+			start = System.nanoTime();
+			for (int i = 0; i < DROPPED_TOKENS; i++) {
+				Token token = new Token("Goblin", null);
+				int number = zone.findFreeNumber("Goblin", true);
+				rename(token, "Goblin " + number);
+				token.setGMName(Integer.toString(number));
+				zone.putToken(token);
+			}
+			indexed += System.nanoTime() - start;
+			Assert.assertEquals(zone.getTokenByName("Goblin " + DROPPED_TOKENS).getGMName(), Integer.toString(DROPPED_TOKENS));
+		}
+		Reporter.log(String.format("dropping %d tokens onto %d: name scan %8.2f ms, name index %8.2f ms",
+				DROPPED_TOKENS, MAP_TOKENS, legacy / 1000000d / DROPS, indexed / 1000000d / DROPS));
+	}
+
+	@Test
+	public void snapshots() {
+		Zone zone = createZone();
+		zone.putTokens(createTokens(MAP_TOKENS, new Random(6)));
+		Assert.assertEquals(renderFrame(zone), renderFrameByCopy(zone));
+
+		// the lists are kept until the tokens change
+		Assert.assertSame(zone.getAllTokens(), zone.getAllTokens());
+		Assert.assertSame(zone.getGMStamps(), zone.getGMStamps());
+
+		// a change is seen by the next call, but not by a snapshot taken before
+		List<Token> snapshot = zone.getAllTokens();
+		List<Token> stamps = zone.getGMStamps();
+		int version = zone.getTokenVersion();
+		Token token = new Token();
+		token.setLayer(Layer.GM);
+		zone.putToken(token);
+		Assert.assertTrue(zone.getTokenVersion() != version);
+		Assert.assertEquals(snapshot.size(), MAP_TOKENS);
+		Assert.assertEquals(zone.getAllTokens().size(), MAP_TOKENS + 1);
+		Assert.assertFalse(stamps.contains(token));
+		Assert.assertTrue(zone.getGMStamps().contains(token));
+		Assert.assertEquals(renderFrame(zone), renderFrameByCopy(zone));
+	}
+
+	@Test(groups = "benchmark")
+	public void frameAllocation() {
+		Zone zone = createZone();
+		zone.putTokens(createTokens(MAP_TOKENS, new Random(6)));
+
+		// warm up both paths
+		renderFrameByCopy(zone);
+		renderFrame(zone);
+
+		long before = allocatedBytes();
+		for (int i = 0; i < FRAMES; i++) {
+			renderFrameByCopy(zone);
+		}
+		long legacyBytes = allocatedBytes() - before;
+
+		before = allocatedBytes();
+		for (int i = 0; i < FRAMES; i++) {
+			renderFrame(zone);
+		}
+		long cachedBytes = allocatedBytes() - before;
+
+		Reporter.log(String.format("token lists per frame: copied %8d bytes, snapshots %8d bytes", legacyBytes / FRAMES, cachedBytes / FRAMES));
+	}
+
+	// the token lists the renderer asks for every frame
+	private static int renderFrame(Zone zone) {
+		return zone.getAllTokens().size() + zone.getBackgroundStamps().size() + zone.getStampTokens().size() + zone.getGMStamps().size()
+				+ zone.getTokens().size() + zone.getPlayerTokens().size();
+	}
+
+	// the same lists copied the way the zone did before the snapshots
+	private static int renderFrameByCopy(Zone zone) {
+		int count = 0;
+		for (final Layer layer : new Layer[] { null, Layer.BACKGROUND, Layer.OBJECT, Layer.GM, Layer.TOKEN }) {
+			count += zone.getTokensFiltered(new Zone.TokenFilter() {
+				@Override
+				public boolean filter(Token t) {
+					return layer == null || t.getLayer() == layer;
+				}
+			}).size();
+		}
+		return count + zone.getTokensFiltered(new Zone.TokenFilter() {
+			@Override
+			public boolean filter(Token t) {
+				return t.getType() == Token.Type.PC;
+			}
+		}).size();
+	}
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	// finds a number the way the zone did before there was a name index
+	private static int findFreeNumberByScan(Zone zone, String baseName, int lastUsed) {
+		while (true) {
+			lastUsed++;
+			if (scanByName(zone, Integer.toString(lastUsed), true) == null && scanByName(zone, baseName + " " + lastUsed, false) == null) {
+				return lastUsed;
+			}
+		}
+	}
+
+	private static Token scanByName(Zone zone, String name, boolean gmName) {
+		for (Token token : zone.getAllTokens()) {
+			String tokenName = gmName ? token.getGMName() : token.getName();
+			if (tokenName != null && tokenName.equalsIgnoreCase(name)) {
+				return token;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the name of a token without {@link Token#setName(String)}, which asks the player that is
+	 * connected to the server whether the name is taken.
+	 */
+	private static void rename(Token token, String name) {
+		try {
+			Field field = Token.class.getDeclaredField("name");
+			field.setAccessible(true);
+			field.set(token, name);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Zone createZone() {
+		Zone zone = new Zone();
+		zone.setGrid(new SquareGrid());
+		return zone;
+	}
+
+	private static List<Token> createTokens(int count, Random random) {
+		Layer[] layers = Layer.values();
+		List<Token> tokens = new ArrayList<Token>(count);
+		for (int i = 0; i < count; i++) {
+			Token token = new Token();
+			token.setX(random.nextInt(MAP_SIZE));
+			token.setY(random.nextInt(MAP_SIZE));
+			token.setZOrder(random.nextInt(count));
+			token.setLayer(layers[random.nextInt(layers.length)]);
+			tokens.add(token);
+		}
+		return tokens;
+	}
+
+	// finds the tokens the way the renderer did before there was an index
+	private static List<Token> scan(Zone zone, List<Token> ordered, Layer layer, Rectangle region) {
+		List<Token> result = new ArrayList<Token>();
+		for (Token token : ordered) {
+			if (token.getLayer() == layer && token.getBounds(zone).intersects(region)) {
+				result.add(token);
+			}
+		}
+		return result;
+	}
+}
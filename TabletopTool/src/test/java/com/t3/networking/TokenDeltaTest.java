@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ * 
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.networking;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.t3.MD5Key;
+import com.t3.clientserver.NetworkSerializer;
+import com.t3.guid.GUID;
+import com.t3.model.Token;
+import com.t3.model.TokenDelta;
+import com.t3.model.Zone;
+
+/**
+ * Compares the bytes a full token re-send puts on the wire with the bytes of a delta for the
+ * typical small changes: moving the token, changing a property and adding a state. Checks that a
+ * delta based on a version that was replaced by a full put is rebased.
+ */
+public class TokenDeltaTest {
+
+	private static final GUID ZONE = new GUID();
+
+	@Test
+	public void move() {
+		TokenDeltaTracker tracker = new TokenDeltaTracker();
+		Token token = createToken();
+		tracker.synced(token);
+		Token remote = copy(token);
+
+		token.setX(token.getX() + 50);
+		token.setY(token.getY() + 50);
+		// x and y, and the last x and y the token moved from
+		check(tracker, token, remote, 4);
+	}
+
+	@Test
+	public void property() {
+		TokenDeltaTracker tracker = new TokenDeltaTracker();
+		Token token = createToken();
+		tracker.synced(token);
+		Token remote = copy(token);
+
+		token.setProperty("HP", 12);
+		check(tracker, token, remote, 1);
+	}
+
+	@Test
+	public void state() {
+		TokenDeltaTracker tracker = new TokenDeltaTracker();
+		Token token = createToken();
+		tracker.synced(token);
+		Token remote = copy(token);
+
+		token.setState("Dead", true);
+		check(tracker, token, remote, 1);
+	}
+
+	@Test
+	public void propertyEntries() {
+		TokenDeltaTracker tracker = new TokenDeltaTracker();
+		Token token = createToken();
+		tracker.synced(token);
+		Token remote = copy(token);
+
+		// only the changed and removed entries are sent, not the other properties
+		token.setProperty("HP", 12);
+		token.setProperty("Property3", null);
+		token.resetProperty("Property4");
+		token.setState("Bloodied", false);
+		token.setBar("Health", 0.25f);
+		TokenDelta delta = tracker.createDelta(token);
+		byte[] data = NetworkSerializer.serialize(NetworkCommand.updateTokenDelta, ZONE, delta);
+		Assert.assertTrue(data.length < 400, "delta of " + data.length + " bytes");
+
+		((TokenDelta) NetworkSerializer.deserialize(data).getParameters()[1]).applyTo(remote);
+		Assert.assertEquals(remote.getProperty("HP"), 12);
+		Assert.assertEquals(remote.getProperty("Property5"), "Some value of property 5");
+		Assert.assertFalse(remote.getPropertyNames().contains("property4"));
+		Assert.assertFalse(remote.hasState("Bloodied"));
+		Assert.assertEquals(TokenDelta.fingerprint(remote), TokenDelta.fingerprint(token));
+	}
+
+	@Test
+	public void outdatedBase() {
+		TokenDeltaTracker tracker = new TokenDeltaTracker();
+		Token token = createToken();
+		tracker.synced(token);
+
+		// somebody else changed the token, we have to send it in full
+		token.setVersion(token.getVersion() + 1);
+		token.setX(1);
+		Assert.assertNull(tracker.createDelta(token));
+	}
+
+	@Test
+	public void unchanged() {
+		TokenDeltaTracker tracker = new TokenDeltaTracker();
+		Token token = createToken();
+		tracker.synced(token);
+		int version = token.getVersion();
+
+		Assert.assertTrue(tracker.createDelta(token).isEmpty());
+		Assert.assertEquals(token.getVersion(), version);
+	}
+
+	@Test
+	public void zOrder() {
+		TokenDeltaTracker tracker = new TokenDeltaTracker();
+		Token token = createToken();
+		tracker.synced(token);
+		int version = token.getVersion();
+
+		// an edit that is not sent yet survives a z-order change from the server
+		token.setProperty("HP", 12);
+		token.setZOrder(7);
+		tracker.zOrderChanged(token);
+		Assert.assertEquals(token.getVersion(), version);
+		TokenDelta delta = tracker.createDelta(token);
+		Assert.assertEquals(delta.getBaseVersion(), version);
+		Assert.assertEquals(delta.size(), 1);
+		Token remote = copy(token);
+		remote.setProperty("HP", 20);
+		delta.applyTo(remote);
+		Assert.assertEquals(remote.getProperty("HP"), 12);
+	}
+
+	@Test
+	public void fullPutThenDelta() {
+		Token token = createToken();
+		Zone server = new Zone();
+		// the clients keep the token in their copy of the same zone
+		token.setZone(server);
+		server.putToken(copy(token));
+		TokenDeltaTracker trackerA = new TokenDeltaTracker();
+		TokenDeltaTracker trackerB = new TokenDeltaTracker();
+		Token a = copy(token);
+		Token b = copy(token);
+		trackerA.synced(a);
+		trackerB.synced(b);
+		int base = token.getVersion();
+
+		// A sends the token in full, B a delta based on the same version
+		a.setX(500);
+		trackerA.sentInFull(a);
+		Assert.assertEquals(a.getVersion(), base + 1);
+		Assert.assertFalse(ServerMethodHandler.putFullToken(server, copy(a)));
+		Assert.assertEquals(server.getToken(token.getId()).getVersion(), base + 1);
+
+		b.setProperty("HP", 12);
+		TokenDelta delta = copy(trackerB.createDelta(b));
+		Assert.assertEquals(delta.getBaseVersion(), base);
+		TokenDelta applied = ServerMethodHandler.applyTokenDelta(server, delta);
+		Assert.assertNotSame(applied, delta, "a stale delta is rebased");
+		Assert.assertEquals(applied.getBaseVersion(), base + 1);
+
+		// A gets the rebased delta, B the whole token, and both end up like the server
+		Token serverToken = server.getToken(token.getId());
+		applied = copy(applied);
+		Assert.assertEquals(a.getVersion(), applied.getBaseVersion());
+		applied.applyTo(a);
+		b = copy(serverToken);
+		trackerB.synced(b);
+		Assert.assertEquals(TokenDelta.fingerprint(a), TokenDelta.fingerprint(serverToken));
+		Assert.assertEquals(TokenDelta.fingerprint(b), TokenDelta.fingerprint(serverToken));
+		Assert.assertEquals(b.getX(), 500);
+		Assert.assertEquals(b.getProperty("HP"), 12);
+		Assert.assertEquals(a.getVersion(), serverToken.getVersion());
+		Assert.assertEquals(b.getVersion(), serverToken.getVersion());
+	}
+
+	private void check(TokenDeltaTracker tracker, Token token, Token remote, int fields) {
+		int full = NetworkSerializer.serialize(NetworkCommand.putToken, ZONE, token).length;
+		int base = token.getVersion();
+		TokenDelta delta = tracker.createDelta(token);
+		Assert.assertNotNull(delta);
+		Assert.assertEquals(delta.getBaseVersion(), base);
+		Assert.assertEquals(token.getVersion(), base + 1);
+		byte[] data = NetworkSerializer.serialize(NetworkCommand.updateTokenDelta, ZONE, delta);
+		Assert.assertTrue(data.length < full, "the delta should be smaller than the token");
+		Assert.assertEquals(delta.size(), fields);
+
+		// the receiving side ends up with the same token
+		TokenDelta received = (TokenDelta) NetworkSerializer.deserialize(data).getParameters()[1];
+		received.applyTo(remote);
+		Assert.assertEquals(remote.getVersion(), token.getVersion());
+		Assert.assertEquals(remote.getX(), token.getX());
+		Assert.assertEquals(remote.getY(), token.getY());
+		Assert.assertEquals(remote.getProperty("HP"), token.getProperty("HP"));
+		Assert.assertEquals(remote.hasState("Dead"), token.hasState("Dead"));
+		Assert.assertEquals(TokenDelta.fingerprint(remote), TokenDelta.fingerprint(token));
+	}
+
+	private static Token createToken() {
+		Token token = new Token("Goblin", new MD5Key("0123456789abcdef0123456789abcdef"));
+		token.setX(100);
+		token.setY(200);
+		for (int i = 0; i < 40; i++) {
+			token.setProperty("Property" + i, "Some value of property " + i);
+		}
+		token.setProperty("HP", 20);
+		token.setState("Bloodied", true);
+		token.setBar("Health", 0.5f);
+		return token;
+	}
+
+	private static TokenDelta copy(TokenDelta delta) {
+		return (TokenDelta) NetworkSerializer.deserializeObject(NetworkSerializer.serializeObject(delta));
+	}
+
+	private static Token copy(Token token) {
+		Token copy = (Token) NetworkSerializer.deserializeObject(NetworkSerializer.serializeObject(token));
+		Assert.assertEquals(copy.getId(), token.getId());
+		return copy;
+	}
+}
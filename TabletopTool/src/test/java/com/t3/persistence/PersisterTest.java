@@ -0,0 +1,207 @@
+package com.t3.persistence;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+
+import com.t3.MD5Key;
+import com.t3.guid.GUID;
+
+/**
+ * Checks that the ids are written to files like they were when they held their text and bytes, and that copies of them
+ * find the tokens and assets of a campaign. The benchmark measures the memory and the map lookups of a campaign with
+ * many tokens against the text and bytes the ids were kept in before.
+ */
+public class PersisterTest {
+
+	private static final int OBJECTS = 50000;
+	private static final int PASSES = 20;
+	private static final String KEY = "900150983cd24fb0d6963f7d28e17f72";
+	/** a GUID, an MD5Key and the GUID again, as they were written when they held their text and bytes */
+	private static final String OLD_XML = "<list id=\"1\" version=\"[0@java.util.ArrayList]\">\n"
+			+ "  <com.t3.guid.GUID id=\"2\" version=\"[0@com.t3.guid.GUID]\">\n"
+			+ "    <baGUID id=\"3\">AQIDBAUGBwgJCgsMDQ4PEA==</baGUID>\n"
+			+ "  </com.t3.guid.GUID>\n"
+			+ "  <com.t3.MD5Key id=\"4\" version=\"[0@com.t3.MD5Key]\">\n"
+			+ "    <id version=\"[0@java.lang.String]\">" + KEY + "</id>\n"
+			+ "  </com.t3.MD5Key>\n"
+			+ "  <com.t3.guid.GUID reference=\"2\"/>\n"
+			+ "</list>";
+
+	@Test
+	public void textForm() {
+		List<?> list = (List<?>) Persister.newInstance().fromXML(OLD_XML);
+		Assert.assertEquals(list.get(0), new GUID(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 }));
+		Assert.assertEquals(list.get(1), new MD5Key(KEY));
+		Assert.assertSame(list.get(2), list.get(0));
+		Assert.assertEquals(Persister.newInstance().toXML(list), OLD_XML);
+	}
+
+	@Test
+	public void malformedKey() {
+		// older versions stored any text as a key
+		String xml = OLD_XML.replace(KEY, "lib://images/goblin.png");
+		List<?> list = (List<?>) Persister.newInstance().fromXML(xml);
+		Assert.assertEquals(list.size(), 3);
+		Assert.assertNull(list.get(1));
+		Assert.assertSame(list.get(2), list.get(0));
+	}
+
+	@Test
+	public void campaign() {
+		Random r = new Random(1);
+		Map<GUID, MD5Key> tokens = new HashMap<GUID, MD5Key>();
+		for (int i = 0; i < OBJECTS; i++) {
+			tokens.put(new GUID(), new MD5Key(r.nextLong(), r.nextLong()));
+		}
+		Set<MD5Key> assets = new HashSet<MD5Key>(tokens.values());
+		Assert.assertEquals(tokens.size(), OBJECTS);
+
+		// copies, like the ids that come with a message or from a file, find the same tokens and assets
+		for (Map.Entry<GUID, MD5Key> entry : tokens.entrySet()) {
+			GUID id = entry.getKey();
+			MD5Key image = entry.getValue();
+			GUID idCopy = new GUID(id.getHigh(), id.getLow());
+			MD5Key imageCopy = new MD5Key(image.toString());
+			Assert.assertEquals(idCopy.hashCode(), id.hashCode());
+			Assert.assertEquals(new GUID(id.getBytes()), id);
+			Assert.assertEquals(imageCopy.hashCode(), image.hashCode());
+			Assert.assertSame(tokens.get(idCopy), image);
+			Assert.assertTrue(assets.contains(imageCopy));
+			Assert.assertFalse(assets.contains(new MD5Key(image.getHigh() + 1, image.getLow())));
+		}
+	}
+
+	@Test(groups = "benchmark")
+	public void campaignBenchmark() {
+		Random r = new Random(1);
+		List<GUID> ids = new ArrayList<GUID>(OBJECTS);
+		List<MD5Key> images = new ArrayList<MD5Key>(OBJECTS);
+		for (int i = 0; i < OBJECTS; i++) {
+			ids.add(new GUID());
+			images.add(new MD5Key(r.nextLong(), r.nextLong()));
+		}
+		// copies, like the ids that come with a message or from a file
+		List<GUID> idCopies = new ArrayList<GUID>(OBJECTS);
+		List<ArrayKey> oldIdCopies = new ArrayList<ArrayKey>(OBJECTS);
+		List<MD5Key> imageCopies = new ArrayList<MD5Key>(OBJECTS);
+		List<TextKey> oldImageCopies = new ArrayList<TextKey>(OBJECTS);
+		List<char[]> texts = new ArrayList<char[]>(OBJECTS);
+		for (int i = 0; i < OBJECTS; i++) {
+			texts.add(images.get(i).toString().toCharArray());
+			idCopies.add(new GUID(ids.get(i).getHigh(), ids.get(i).getLow()));
+			oldIdCopies.add(new ArrayKey(ids.get(i).getBytes()));
+			imageCopies.add(new MD5Key(images.get(i).toString()));
+			oldImageCopies.add(new TextKey(images.get(i).toString()));
+		}
+
+		// the token map of the campaign, from the id of each token to its image, all that is allocated is kept
+		long before = allocatedBytes();
+		Map<GUID, MD5Key> tokens = new HashMap<GUID, MD5Key>();
+		for (int i = 0; i < OBJECTS; i++) {
+			tokens.put(new GUID(ids.get(i).getHigh(), ids.get(i).getLow()), new MD5Key(images.get(i).getHigh(), images.get(i).getLow()));
+		}
+		long bytes = allocatedBytes() - before;
+		List<byte[]> guidBytes = new ArrayList<byte[]>(OBJECTS);
+		for (GUID id : ids) {
+			guidBytes.add(id.getBytes());
+		}
+		before = allocatedBytes();
+		Map<ArrayKey, TextKey> oldTokens = new HashMap<ArrayKey, TextKey>();
+		for (int i = 0; i < OBJECTS; i++) {
+			oldTokens.put(new ArrayKey(guidBytes.get(i).clone()), new TextKey(new String(texts.get(i))));
+		}
+		long oldBytes = allocatedBytes() - before;
+
+		// the assets of the campaign
+		Set<MD5Key> assets = new HashSet<MD5Key>(tokens.values());
+		Set<TextKey> oldAssets = new HashSet<TextKey>(oldTokens.values());
+
+		long time = 0;
+		long oldTime = 0;
+		int found = 0;
+		for (int pass = 0; pass < PASSES; pass++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < OBJECTS; i++) {
+				found += tokens.get(idCopies.get(i)) != null && assets.contains(imageCopies.get(i)) ? 1 : 0;
+			}
+			time += System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < OBJECTS; i++) {
+				found += oldTokens.get(oldIdCopies.get(i)) != null && oldAssets.contains(oldImageCopies.get(i)) ? 1 : 0;
+			}
+			oldTime += System.nanoTime() - start;
+		}
+
+		Reporter.log(String.format("%d objects: %d bytes/object, %6.1f ns/token | as text and bytes: %d bytes/object, %6.1f ns/token (%d found)", OBJECTS,
+				bytes / OBJECTS, time / (double) PASSES / OBJECTS, oldBytes / OBJECTS, oldTime / (double) PASSES / OBJECTS, found));
+	}
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	/**
+	 * A GUID as it was kept before, its bytes with the hash cached.
+	 */
+	private static class ArrayKey {
+		private final byte[] bytes;
+		private int hash;
+
+		public ArrayKey(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = hash;
+			if (h == 0) {
+				for (byte b : bytes) {
+					h = 31 * h + b;
+				}
+				hash = h;
+			}
+			return h;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof ArrayKey && Arrays.equals(bytes, ((ArrayKey) obj).bytes);
+		}
+	}
+
+	/**
+	 * An MD5Key as it was kept before, its hex text.
+	 */
+	private static class TextKey {
+		private final String id;
+
+		public TextKey(String id) {
+			this.id = id;
+		}
+
+		@Override
+		public int hashCode() {
+			return id.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof TextKey && id.equals(((TextKey) obj).id);
+		}
+	}
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.util;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImageObserver;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+
+import com.t3.MD5Key;
+import com.t3.image.ImageUtil;
+import com.t3.model.Asset;
+import com.t3.model.AssetManager;
+
+/**
+ * Checks that the image cache stays within its memory and keeps the pinned images, and that the smaller copies are
+ * made when an image is drawn zoomed out, and that the images on screen of a map with many tokens are loaded first. The
+ * benchmark measures how long it takes until all images of the map are loaded, which is when its first complete frame
+ * is drawn, and until the ones on screen are loaded.
+ */
+public class ImageManagerTest {
+
+	private static final int SIZE = 100;
+	private static final long IMAGE_BYTES = SIZE * SIZE * 4;
+	private static final int MAP_ASSETS = 300;
+	private static final int VISIBLE_ASSETS = 20;
+
+	@Test
+	public void mipmapLevel() {
+		Assert.assertEquals(ImageManager.getMipmapLevel(1000, 1000, 1), 0);
+		Assert.assertEquals(ImageManager.getMipmapLevel(1000, 1000, 0.6), 0);
+		Assert.assertEquals(ImageManager.getMipmapLevel(1000, 1000, 0.5), 1);
+		Assert.assertEquals(ImageManager.getMipmapLevel(1000, 1000, 0.3), 1);
+		Assert.assertEquals(ImageManager.getMipmapLevel(1000, 1000, 0.25), 2);
+		Assert.assertEquals(ImageManager.getMipmapLevel(1000, 1000, 0.01), 6);
+		// never smaller than a pixel
+		Assert.assertEquals(ImageManager.getMipmapLevel(4, 1, 0.01), 2);
+		Assert.assertEquals(ImageManager.getMipmapLevel(1, 1, 0.01), 0);
+	}
+
+	@Test
+	public void halve() {
+		BufferedImage image = new BufferedImage(5, 4, BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				image.setRGB(x, y, (x + y) % 2 == 0 ? Color.WHITE.getRGB() : Color.BLACK.getRGB());
+			}
+		}
+		BufferedImage half = ImageManager.halve(image);
+		Assert.assertEquals(half.getWidth(), 3);
+		Assert.assertEquals(half.getHeight(), 2);
+		int gray = new Color(half.getRGB(0, 0)).getRed();
+		Assert.assertTrue(Math.abs(gray - 128) < 8, "mean of four pixels " + gray);
+	}
+
+	@Test
+	public void evict() {
+		long oldMax = ImageManager.getMaxImageBytes();
+		ImageManager.flush();
+		ImageManager.setMaxImageBytes(IMAGE_BYTES * 3);
+		try {
+			MD5Key[] ids = new MD5Key[6];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = new MD5Key(new byte[] { (byte) i });
+			}
+			Object owner = new Object();
+			ImageManager.setPinnedImages(owner, Collections.singleton(ids[0]));
+			for (MD5Key id : ids) {
+				ImageManager.putImage(id, new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB));
+				Assert.assertTrue(ImageManager.getImageBytes() <= IMAGE_BYTES * 3, "cache holds " + ImageManager.getImageBytes());
+			}
+			// the pinned one and the two most recent ones
+			Assert.assertEquals(ImageManager.getImage(ids[0]).getWidth(), SIZE);
+			Assert.assertEquals(ImageManager.getImage(ids[5]).getWidth(), SIZE);
+			Assert.assertEquals(ImageManager.getImage(ids[4]).getWidth(), SIZE);
+
+			// unpinned, it is dropped like any other
+			ImageManager.setPinnedImages(owner, null);
+			ImageManager.putImage(ids[1], new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB));
+			ImageManager.putImage(ids[2], new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB));
+			ImageManager.putImage(ids[3], new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB));
+			Assert.assertEquals(ImageManager.getImageBytes(), IMAGE_BYTES * 3);
+		} finally {
+			ImageManager.setMaxImageBytes(oldMax);
+			ImageManager.flush();
+		}
+	}
+
+	@Test
+	public void mipmaps() throws InterruptedException {
+		MD5Key id = new MD5Key(new byte[] { 42 });
+		BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+		ImageManager.putImage(id, image);
+		try {
+			Assert.assertSame(ImageManager.getImage(id, 0.9), image);
+
+			final CountDownLatch made = new CountDownLatch(1);
+			ImageObserver observer = new ImageObserver() {
+				@Override
+				public boolean imageUpdate(Image img, int infoflags, int x, int y, int width, int height) {
+					made.countDown();
+					return false;
+				}
+			};
+			// the image itself until the copies are there
+			Assert.assertSame(ImageManager.getImage(id, 0.2, observer), image);
+			Assert.assertTrue(made.await(10, TimeUnit.SECONDS), "observer notified");
+			BufferedImage copy = ImageManager.getImage(id, 0.2);
+			Assert.assertEquals(copy.getWidth(), SIZE / 4);
+			Assert.assertEquals(ImageManager.getImage(id, 0.4).getWidth(), SIZE / 2);
+			Assert.assertEquals(ImageManager.getImageBytes(), IMAGE_BYTES + IMAGE_BYTES / 4 + IMAGE_BYTES / 16);
+		} finally {
+			ImageManager.flush();
+		}
+	}
+
+	@Test
+	public void loadMap() throws Exception {
+		List<MD5Key> ids = putMap(new Random(3));
+		// the ones on screen are asked for last, like the tokens on top
+		Set<MD5Key> visible = new HashSet<MD5Key>(ids.subList(MAP_ASSETS - VISIBLE_ASSETS, MAP_ASSETS));
+		int processors = Runtime.getRuntime().availableProcessors();
+		try {
+			ImageManager.flush();
+			ImageManager.setImageLoaderThreads(1);
+			ImageManager.setImagePriorities(Collections.<MD5Key> emptySet(), Collections.<MD5Key> emptySet());
+			LoadOrder order = new LoadOrder(ids.size());
+			for (MD5Key id : ids) {
+				Assert.assertSame(ImageManager.getImage(id, order.observer(id)), ImageManager.TRANSFERING_IMAGE);
+			}
+			ImageManager.setImagePriorities(visible, new HashSet<MD5Key>(ids));
+			int sorted = order.size();
+			Assert.assertTrue(order.await(), "all loaded");
+			Assert.assertEquals(order.broken.get(), 0);
+
+			// the one that was being loaded when they were sorted again may come before the ones on screen
+			List<MD5Key> loaded = order.get();
+			Assert.assertEquals(new HashSet<MD5Key>(loaded), new HashSet<MD5Key>(ids));
+			int offScreen = 0;
+			int lastVisible = -1;
+			for (int i = 0; i < loaded.size(); i++) {
+				if (visible.contains(loaded.get(i))) {
+					lastVisible = i;
+				}
+			}
+			for (int i = sorted; i < lastVisible; i++) {
+				offScreen += visible.contains(loaded.get(i)) ? 0 : 1;
+			}
+			Assert.assertTrue(offScreen <= 1, offScreen + " images off screen loaded before the ones on screen");
+		} finally {
+			ImageManager.setImageLoaderThreads(processors);
+			ImageManager.setImagePriorities(Collections.<MD5Key> emptySet(), Collections.<MD5Key> emptySet());
+			ImageManager.flush();
+			for (MD5Key id : ids) {
+				AssetManager.removeAsset(id);
+			}
+		}
+	}
+
+	@Test(groups = "benchmark")
+	public void loadMapBenchmark() throws Exception {
+		List<MD5Key> ids = putMap(new Random(3));
+		Set<MD5Key> visible = new HashSet<MD5Key>(ids.subList(MAP_ASSETS - VISIBLE_ASSETS, MAP_ASSETS));
+		int processors = Runtime.getRuntime().availableProcessors();
+		try {
+			for (int pass = 0; pass < 2; pass++) {
+				for (int threads : new int[] { 1, Math.max(processors, 2) }) {
+					ImageManager.flush();
+					ImageManager.setImageLoaderThreads(threads);
+					ImageManager.setImagePriorities(Collections.<MD5Key> emptySet(), Collections.<MD5Key> emptySet());
+					long[] plain = load(ids, visible);
+					ImageManager.flush();
+					ImageManager.setImagePriorities(visible, new HashSet<MD5Key>(ids));
+					long[] prioritized = load(ids, visible);
+					if (pass == 1) {
+						Reporter.log(String.format("%d assets, %d threads: complete frame %8.1f ms, on screen %8.1f ms | prioritized: complete frame %8.1f ms, on screen %8.1f ms",
+								MAP_ASSETS, threads, plain[0] / 1000000d, plain[1] / 1000000d, prioritized[0] / 1000000d, prioritized[1] / 1000000d));
+					}
+				}
+			}
+		} finally {
+			ImageManager.setImageLoaderThreads(processors);
+			ImageManager.setImagePriorities(Collections.<MD5Key> emptySet(), Collections.<MD5Key> emptySet());
+			ImageManager.flush();
+			for (MD5Key id : ids) {
+				AssetManager.removeAsset(id);
+			}
+		}
+	}
+
+	/**
+	 * Asks for all images like the zone renderer does while the map is loading.
+	 * 
+	 * @return the time until all images are loaded, and until the visible ones are loaded
+	 */
+	private static long[] load(List<MD5Key> ids, final Set<MD5Key> visible) throws InterruptedException {
+		final CountDownLatch all = new CountDownLatch(ids.size());
+		final CountDownLatch onScreen = new CountDownLatch(visible.size());
+		long start = System.nanoTime();
+		for (final MD5Key id : ids) {
+			ImageManager.getImage(id, new ImageObserver() {
+				@Override
+				public boolean imageUpdate(Image img, int infoflags, int x, int y, int width, int height) {
+					if (visible.contains(id)) {
+						onScreen.countDown();
+					}
+					all.countDown();
+					return false;
+				}
+			});
+		}
+		onScreen.await(60, TimeUnit.SECONDS);
+		long visibleTime = System.nanoTime() - start;
+		all.await(60, TimeUnit.SECONDS);
+		long allTime = System.nanoTime() - start;
+		return new long[] { allTime, visibleTime };
+	}
+
+	/**
+	 * @return the ids of the assets of a map with many tokens, in the order they are drawn
+	 */
+	private static List<MD5Key> putMap(Random r) throws IOException {
+		List<MD5Key> ids = new ArrayList<MD5Key>();
+		for (int i = 0; i < MAP_ASSETS; i++) {
+			Asset asset = new Asset("token" + i, createTokenImage(r));
+			AssetManager.putAsset(asset);
+			ids.add(asset.getId());
+		}
+		return ids;
+	}
+
+	/**
+	 * Remembers the order in which the images are loaded.
+	 */
+	private static class LoadOrder {
+		private final List<MD5Key> loaded = new ArrayList<MD5Key>();
+		private final CountDownLatch all;
+		private final AtomicInteger broken = new AtomicInteger();
+
+		public LoadOrder(int count) {
+			all = new CountDownLatch(count);
+		}
+
+		public ImageObserver observer(final MD5Key id) {
+			return new ImageObserver() {
+				@Override
+				public boolean imageUpdate(Image img, int infoflags, int x, int y, int width, int height) {
+					if (img == ImageManager.BROKEN_IMAGE) {
+						broken.incrementAndGet();
+					}
+					synchronized (loaded) {
+						loaded.add(id);
+					}
+					all.countDown();
+					return false;
+				}
+			};
+		}
+
+		public int size() {
+			synchronized (loaded) {
+				return loaded.size();
+			}
+		}
+
+		public List<MD5Key> get() {
+			synchronized (loaded) {
+				return new ArrayList<MD5Key>(loaded);
+			}
+		}
+
+		public boolean await() throws InterruptedException {
+			return all.await(60, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * @return a png of a token, some circles on a transparent background
+	 */
+	private static byte[] createTokenImage(Random r) throws IOException {
+		int size = 200 + r.nextInt(200);
+		BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		for (int i = 0; i < 20; i++) {
+			g.setColor(new Color(r.nextInt()));
+			int d = r.nextInt(size / 2) + 1;
+			g.fillOval(r.nextInt(size - d), r.nextInt(size - d), d, d);
+		}
+		g.dispose();
+		return ImageUtil.imageToBytes(image, "png");
+	}
+}
@@ -21,6 +21,7 @@ import java.util.Map;
 public class CodeTimer {
 
 	private Map<String, Timer> timeMap = new HashMap<String, Timer>();
+	private Map<String, Long> countMap = new HashMap<String, Long>();
 	private String name;
 	private long created = System.currentTimeMillis();
 	private boolean enabled;
@@ -45,6 +46,7 @@ public class CodeTimer {
 	
 	public void clear() {
 		timeMap.clear();
+		countMap.clear();
 	}
 	
 	public void setEnabled(boolean enabled) {
@@ -91,6 +93,23 @@ public class CodeTimer {
 	
 	public void reset(String id) {
 		timeMap.remove(id);
+		countMap.remove(id);
+	}
+
+	/**
+	 * Adds to a counter, e.g. of cache hits, that is reported along with the timers.
+	 */
+	public void count(String id, long amount) {
+		if (!enabled) {
+			return;
+		}
+		Long count = countMap.get(id);
+		countMap.put(id, count == null ? amount : count + amount);
+	}
+
+	public long getCount(String id) {
+		Long count = countMap.get(id);
+		return count == null ? 0 : count;
 	}
 	
 	@Override
@@ -110,6 +129,11 @@ public class CodeTimer {
 			}
 			builder.append("\t").append(key).append(": ").append(timer.getElapsed()).append("\n");
 		}
+		keySet = new ArrayList<String>(countMap.keySet());
+		Collections.sort(keySet);
+		for (String key : keySet) {
+			builder.append("\t").append(key).append(": #").append(countMap.get(key)).append("\n");
+		}
 		
 		return builder.toString();
 	}
@@ -11,7 +11,6 @@
  */
 package com.t3;
 
-import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -26,42 +25,105 @@ import com.t3.xstreamversioned.version.SerializationVersion;
 /**
  * Represents the MD5 key for a certain set of data.
  * Can be used in maps as keys.
+ * Each thread hashes with its own digest, so several threads can hash at the same time.
+ * The 16 bytes of the key are kept in two longs, the hex text is only made by {@link #toString()}.
  */
 @SerializationVersion(0)
 public class MD5Key implements Serializable {
 
-    private static MessageDigest md5Digest;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> md5Digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("md5");
+            } catch (NoSuchAlgorithmException e) {
+                // every java platform has md5
+                throw new IllegalStateException(e);
+            }
+        }
+    };
     
-    String id;
+    /** the first eight bytes of the key */
+    private final long high;
+    /** the last eight bytes of the key */
+    private final long low;
     
-    static {
-        try {
-            md5Digest = MessageDigest.getInstance("md5");
-        } catch (NoSuchAlgorithmException e) {
-            // TODO: handle this more gracefully
-            e.printStackTrace();
-        }
+    public MD5Key(long high, long low) {
+    	this.high = high;
+    	this.low = low;
     }
     
-    public MD5Key(){}
-    
+    /**
+     * @param id
+     *            the 32 hex digits of the key
+     * @throws IllegalArgumentException
+     *             if it isn't the text of a key
+     */
     public MD5Key(String id) {
-    	this.id = id;
+    	if (id == null || id.length() != 32) {
+    		throw new IllegalArgumentException("Not an MD5 key: " + id);
+    	}
+    	high = parseHex(id, 0);
+    	low = parseHex(id, 16);
+    }
+    
+    /**
+     * Reads a key from text that may not be one, like a file name, a URL or the input of a macro.
+     * 
+     * @return the key, or null if the text isn't the 32 hex digits of a key
+     */
+    public static MD5Key valueOf(String id) {
+    	if (id == null || id.length() != 32) {
+    		return null;
+    	}
+    	for (int i = 0; i < id.length(); i++) {
+    		if (Character.digit(id.charAt(i), 16) < 0) {
+    			return null;
+    		}
+    	}
+    	return new MD5Key(id);
     }
     
     public MD5Key (byte[] data) {
-        id = encodeToHex(digestData(data));
+        byte[] digest = digestData(data);
+        high = toLong(digest, 0);
+        low = toLong(digest, 8);
     }
     
     public MD5Key(File file) throws FileNotFoundException, IOException {
-    	try(BufferedInputStream data=new BufferedInputStream(new FileInputStream(file))) {
-    		id = encodeToHex(digestData(data));
+    	try(InputStream data=new FileInputStream(file)) {
+    		byte[] digest = digestData(data);
+    		high = toLong(digest, 0);
+    		low = toLong(digest, 8);
     	}
     }
+
+    /**
+     * Hash the data of the stream, it is read to the end but not closed.
+     */
+    public MD5Key(InputStream data) throws IOException {
+    	byte[] digest = digestData(data);
+    	high = toLong(digest, 0);
+    	low = toLong(digest, 8);
+    }
+    
+    public long getHigh() {
+    	return high;
+    }
+    
+    public long getLow() {
+    	return low;
+    }
     
     @Override
 	public String toString() {
-        return id;
+        char[] hex = new char[32];
+        encodeToHex(high, hex, 0);
+        encodeToHex(low, hex, 16);
+        return new String(hex);
     }
     
     @Override
@@ -70,54 +132,64 @@ public class MD5Key implements Serializable {
             return false;
         }
         
-        return id.equals(((MD5Key) obj).id);
+        MD5Key other = (MD5Key) obj;
+        return high == other.high && low == other.low;
     }
     
     @Override
 	public int hashCode() {
-        return id.hashCode();
+        // the bytes of a digest are evenly spread already
+        return (int) (low ^ (low >>> 32));
     }
     
-    private static synchronized byte[] digestData(byte[] data) {
+    private static byte[] digestData(byte[] data) {
         
-        md5Digest.reset();
+        MessageDigest digest = md5Digest.get();
+        digest.reset();
         
-        md5Digest.update(data);
+        digest.update(data);
         
-        return md5Digest.digest();
+        return digest.digest();
     }
     
-    private static synchronized byte[] digestData(InputStream data) {
+    private static byte[] digestData(InputStream data) throws IOException {
     	
-    	md5Digest.reset();
+    	MessageDigest digest = md5Digest.get();
+    	digest.reset();
     	
-    	int b;
-    	try {
-	    	while (((b = data.read()) >= 0)) {
-	    		md5Digest.update((byte)b);
-	    	}
-    	} catch (IOException ioe) {
-    		ioe.printStackTrace();
+    	byte[] buffer = new byte[BUFFER_SIZE];
+    	int count;
+    	while ((count = data.read(buffer)) >= 0) {
+    		digest.update(buffer, 0, count);
     	}
     	
-    	return md5Digest.digest();
+    	return digest.digest();
     }
 
-    private static String encodeToHex(byte[] data) {
-        
-        StringBuilder strbuild = new StringBuilder();
-        for (int i = 0; i < data.length; i++) {
-            
-            String hex = Integer.toHexString(data[i]);
-            if (hex.length() < 2) {
-                strbuild.append("0");
-            }
-            if (hex.length() > 2) {
-                hex = hex.substring(hex.length()-2);
+    private static long toLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (data[i] & 0xff);
+        }
+        return value;
+    }
+
+    private static long parseHex(String id, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 16; i++) {
+            int digit = Character.digit(id.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Not an MD5 key: " + id);
             }
-            strbuild.append(hex);
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static void encodeToHex(long value, char[] hex, int offset) {
+        for (int i = offset + 15; i >= offset; i--) {
+            hex[i] = HEX_DIGITS[(int) (value & 0xf)];
+            value >>>= 4;
         }
-        
-        return strbuild.toString();
     }
 }
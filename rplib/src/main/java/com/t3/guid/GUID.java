@@ -21,13 +21,14 @@ import org.apache.commons.codec.binary.Hex;
 import com.t3.xstreamversioned.version.SerializationVersion;
 
 /**
- * Global unique identificator object.
+ * Global unique identificator object. The 16 bytes are kept in two longs, so that it is small and quickly hashed
+ * and compared as the key of a map.
  */
 @SerializationVersion(0)
 public class GUID extends Object implements Serializable, Comparable<GUID> {
 
     /** Serial version unique identifier. */
-    private static final long serialVersionUID = 6361057925697403643L;
+    private static final long serialVersionUID = 6361057925697403644L;
 
     /** GUIDs always have 16 bytes. */ 
     public static final int GUID_LENGTH = 16;
@@ -36,7 +37,12 @@ public class GUID extends Object implements Serializable, Comparable<GUID> {
     public static final int GUID_BUCKETS = 100; 
     // NOTE: THIS CAN NEVER BE CHANGED, OR IT WILL AFFECT ALL THINGS THAT PREVIOUSLY USED IT
 
-    private byte[] baGUID;
+    private static final long SIGN_BITS = 0x8080808080808080L;
+
+    /** the first eight bytes */
+    private final long high;
+    /** the last eight bytes */
+    private final long low;
     static byte[] ip;
     
     static {
@@ -49,36 +55,57 @@ public class GUID extends Object implements Serializable, Comparable<GUID> {
 	    }
     }
     
-    // Cache of the hashCode for a GUID
-    private transient int hash;
-    
     public GUID() {
-        this.baGUID = generateGUID();
-        validateGUID();
+        this(generateGUID());
     }
   
     /** Creates a new GUID based on the specified GUID value. */ 
     public GUID(byte[] baGUID) throws InvalidGUIDException {
-        this.baGUID = baGUID;
-        validateGUID();
+        validateGUID(baGUID);
+        this.high = toLong(baGUID, 0);
+        this.low = toLong(baGUID, 8);
     }
 
     /** Creates a new GUID based on the specified hexadecimal-code string. */ 
     public GUID(String strGUID) {
+        this(decodeHex(strGUID));
+    }
+
+    /** Creates a new GUID from its first and last eight bytes. */
+    public GUID(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /** Ensures the GUID is legal. */
+    private static void validateGUID(byte[] baGUID) throws InvalidGUIDException {
+        if (baGUID == null) throw new InvalidGUIDException("GUID is null");
+        if (baGUID.length != GUID_LENGTH) throw new InvalidGUIDException("GUID length is invalid");
+    }
+
+    private static byte[] decodeHex(String strGUID) {
         if (strGUID == null) throw new InvalidGUIDException("GUID is null");
 
         try {
-			this.baGUID = Hex.decodeHex(strGUID.toCharArray());
+			return Hex.decodeHex(strGUID.toCharArray());
 		} catch (DecoderException e) {
 			throw new Error(e);
 		}
-        validateGUID();
     }
 
-    /** Ensures the GUID is legal. */
-    private void validateGUID() throws InvalidGUIDException {
-        if (baGUID == null) throw new InvalidGUIDException("GUID is null");
-        if (baGUID.length != GUID_LENGTH) throw new InvalidGUIDException("GUID length is invalid");
+    private static long toLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (data[i] & 0xff);
+        }
+        return value;
+    }
+
+    private static void toBytes(long value, byte[] data, int offset) {
+        for (int i = offset + 7; i >= offset; i--) {
+            data[i] = (byte) value;
+            value >>>= 8;
+        }
     }
 
     /** Returns the GUID representation of the {@link byte} array argument. */
@@ -113,40 +140,35 @@ public class GUID extends Object implements Serializable, Comparable<GUID> {
             return false;
         }
 
-        // Compare bytes.
-        for (int i = 0; i < GUID_LENGTH; i++) {
-            if (this.baGUID[i] != guid.baGUID[i])
-            return false; 
-        }
+        return this.high == guid.high && this.low == guid.low;
+    }
 
-        // All tests pass.
-        return true;
+    /** Returns a new array with the 16 bytes of the GUID. */
+    public byte[] getBytes() {
+        byte[] baGUID = new byte[GUID_LENGTH];
+        toBytes(high, baGUID, 0);
+        toBytes(low, baGUID, 8);
+        return baGUID;
     }
 
-    public byte[] getBytes() { return baGUID; }
+    public long getHigh() { return high; }
+
+    public long getLow() { return low; }
 
     /** Returns a string for the GUID. */
     @Override
 	public String toString() {
-        return Hex.encodeHexString(baGUID);
+        return Hex.encodeHexString(getBytes());
     }
 
     /**
-    * Returns a hashcode for this GUID. This function is based on the algorithm that JDK 1.3 uses for a String.
+    * Returns a hashcode for this GUID. The counter and the time are in different halves, so both are mixed in.
     * @return  a hash code value for this object.
     */
     @Override
 	public int hashCode() {
-        int h = hash;
-        if (h == 0) {
-            byte val[] = baGUID;
-            int len = GUID_LENGTH;
-
-            for (int i = 0; i < len; i++)
-            h = 31*h + val[i];
-            hash = h;
-        }
-        return h;
+        long h = high * 31 + low;
+        return (int) (h ^ (h >>> 32));
     }
     
     private static long guidGenerationCounter = 0;
@@ -192,12 +214,16 @@ public class GUID extends Object implements Serializable, Comparable<GUID> {
 
     @Override
 	public int compareTo(GUID o) {
-		if (o != this) {
-			for (int i = 0; i < GUID_LENGTH; i++) {
-				if (this.baGUID[i] != o.baGUID[i])
-					return this.baGUID[i] - o.baGUID[i];
-			}
-		}
-		return 0;
+		// the same order as comparing the signed bytes one after the other
+		if (this.high != o.high)
+			return compareSignedBytes(this.high, o.high);
+		return compareSignedBytes(this.low, o.low);
+	}
+
+	private static int compareSignedBytes(long a, long b) {
+		// flipping the sign bit of every byte makes it an unsigned comparison, which moving by MIN_VALUE makes signed
+		a ^= SIGN_BITS ^ Long.MIN_VALUE;
+		b ^= SIGN_BITS ^ Long.MIN_VALUE;
+		return a < b ? -1 : a > b ? 1 : 0;
 	}
 }
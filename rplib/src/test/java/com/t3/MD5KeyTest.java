@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class MD5KeyTest {
+
+	@Test
+	public void knownKeys() throws IOException {
+		Assert.assertEquals(new MD5Key(new byte[0]).toString(), "d41d8cd98f00b204e9800998ecf8427e");
+		Assert.assertEquals(new MD5Key("abc".getBytes("US-ASCII")).toString(), "900150983cd24fb0d6963f7d28e17f72");
+		Assert.assertEquals(new MD5Key(new ByteArrayInputStream("The quick brown fox jumps over the lazy dog".getBytes("US-ASCII"))).toString(),
+				"9e107d9d372bb6826bd81d3542a419d6");
+	}
+
+	@Test
+	public void text() throws IOException {
+		MD5Key key = new MD5Key("abc".getBytes("US-ASCII"));
+		Assert.assertEquals(new MD5Key(key.toString()), key);
+		Assert.assertEquals(new MD5Key("900150983CD24FB0D6963F7D28E17F72"), key);
+		Assert.assertEquals(new MD5Key(key.getHigh(), key.getLow()), key);
+		Assert.assertEquals(new MD5Key(-1, 0).toString(), "ffffffffffffffff0000000000000000");
+		for (String bad : new String[] { null, "", "900150983cd24fb0d6963f7d28e17f7", "900150983cd24fb0d6963f7d28e17fxx" }) {
+			try {
+				new MD5Key(bad);
+				Assert.fail("not a key: " + bad);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+			Assert.assertNull(MD5Key.valueOf(bad));
+		}
+		Assert.assertEquals(MD5Key.valueOf(key.toString()), key);
+	}
+
+	@Test
+	public void streamMatchesBytes() throws IOException {
+		byte[] data = new byte[1000000];
+		new Random(1).nextBytes(data);
+		Assert.assertEquals(new MD5Key(new ByteArrayInputStream(data)), new MD5Key(data));
+	}
+
+	@Test
+	public void concurrent() throws Exception {
+		final List<byte[]> data = new ArrayList<byte[]>();
+		List<MD5Key> expected = new ArrayList<MD5Key>();
+		Random r = new Random(2);
+		for (int i = 0; i < 64; i++) {
+			byte[] d = new byte[r.nextInt(200000)];
+			r.nextBytes(d);
+			data.add(d);
+			expected.add(new MD5Key(d));
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<MD5Key>> keys = new ArrayList<Future<MD5Key>>();
+			for (int pass = 0; pass < 4; pass++) {
+				for (final byte[] d : data) {
+					keys.add(pool.submit(new Callable<MD5Key>() {
+						@Override
+						public MD5Key call() throws Exception {
+							return new MD5Key(new ByteArrayInputStream(d));
+						}
+					}));
+				}
+			}
+			for (int i = 0; i < keys.size(); i++) {
+				Assert.assertEquals(keys.get(i).get(), expected.get(i % data.size()));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
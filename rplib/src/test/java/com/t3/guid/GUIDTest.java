@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2014 tabletoptool.com team.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0
+ * which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/gpl.html
+ *
+ * Contributors:
+ *     rptools.com team - initial implementation
+ *     tabletoptool.com team - further development
+ */
+package com.t3.guid;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class GUIDTest {
+
+	@Test
+	public void bytes() {
+		byte[] bytes = new byte[GUID.GUID_LENGTH];
+		new Random(1).nextBytes(bytes);
+		GUID guid = new GUID(bytes.clone());
+		Assert.assertTrue(Arrays.equals(guid.getBytes(), bytes));
+		Assert.assertEquals(new GUID(guid.toString()), guid);
+		Assert.assertEquals(new GUID(guid.getHigh(), guid.getLow()), guid);
+		Assert.assertEquals(new GUID(guid.getBytes()).hashCode(), guid.hashCode());
+		Assert.assertTrue(guid.equals(guid.toString()));
+
+		// a copy, changing it doesn't change the GUID
+		guid.getBytes()[0]++;
+		Assert.assertTrue(Arrays.equals(guid.getBytes(), bytes));
+
+		Assert.assertFalse(new GUID().equals(new GUID()));
+		try {
+			new GUID(new byte[GUID.GUID_LENGTH - 1]);
+			Assert.fail("too short");
+		} catch (InvalidGUIDException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void compareTo() {
+		Random r = new Random(2);
+		for (int i = 0; i < 10000; i++) {
+			byte[] a = new byte[GUID.GUID_LENGTH];
+			byte[] b = new byte[GUID.GUID_LENGTH];
+			r.nextBytes(a);
+			// mostly the same bytes, so that the later ones decide too
+			System.arraycopy(a, 0, b, 0, GUID.GUID_LENGTH);
+			b[r.nextInt(GUID.GUID_LENGTH)] = (byte) r.nextInt();
+			Assert.assertEquals(Integer.signum(new GUID(a).compareTo(new GUID(b))), compareBytes(a, b), Arrays.toString(a) + " " + Arrays.toString(b));
+		}
+	}
+
+	/**
+	 * @return how GUIDs compared when they held their bytes, signed and one after the other
+	 */
+	private static int compareBytes(byte[] a, byte[] b) {
+		for (int i = 0; i < GUID.GUID_LENGTH; i++) {
+			if (a[i] != b[i]) {
+				return Integer.signum(a[i] - b[i]);
+			}
+		}
+		return 0;
+	}
+}
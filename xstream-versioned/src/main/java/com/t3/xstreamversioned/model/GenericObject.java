@@ -127,6 +127,7 @@ public class GenericObject {
 	}
 
 	public void removeChild(GenericObject child) {
-		children.remove(child);
+		if(child!=null)
+			children.remove(child.getInternalId());
 	}
 }